@@ -0,0 +1,139 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Puts, gets and range scans with getInRange, scan and a cursor of a tree holding datasetSize keys with values of
+ * valueSize bytes. The keys that the operations use are drawn from distribution. Run with -prof gc to see how much
+ * every operation allocates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BTreeBenchmark {
+
+    // Operations cycle through this many keys drawn up front
+    private static final int DRAWN_KEYS = 1 << 16;
+    private static final int SCAN_LENGTH = 100;
+    private static final int LOAD_BATCH = 10000;
+
+    @Param({"16", "64", "256"})
+    public int nodeSize;
+
+    @Param({"SEQUENTIAL", "UNIFORM", "ZIPFIAN"})
+    public KeyDistribution distribution;
+
+    @Param({"16", "256"})
+    public int valueSize;
+
+    @Param({"100000", "1000000"})
+    public int datasetSize;
+
+    private File directory;
+    private BTree tree;
+    private int[] keys;
+    private byte[] value;
+    private int next;
+    private ScanCursor cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("btree-benchmark").toFile();
+        tree = BTree.makeBTree(new File(directory, "tree.dat").getPath(),
+                new BTreeConfig().nodeSize(nodeSize).cacheEntries(datasetSize / nodeSize * 2));
+        value = new byte[valueSize];
+        new Random(1).nextBytes(value);
+        // Loaded in random order, so that the nodes are as full as after ordinary use
+        int[] order = new int[datasetSize];
+        Random random = new Random(2);
+        for (int i = 0; i < datasetSize; i++) {
+            int j = random.nextInt(i + 1);
+            order[i] = order[j];
+            order[j] = i;
+        }
+        for (int from = 0; from < datasetSize; from += LOAD_BATCH) {
+            int[] batch = Arrays.copyOfRange(order, from, Math.min(from + LOAD_BATCH, datasetSize));
+            byte[][] values = new byte[batch.length][];
+            Arrays.fill(values, value);
+            tree.putAll(batch, values);
+        }
+        keys = distribution.keys(datasetSize, DRAWN_KEYS, 3);
+        cursor = tree.cursor();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        cursor.close();
+        tree.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private int nextKey() {
+        return keys[next++ & (DRAWN_KEYS - 1)];
+    }
+
+    @Benchmark
+    public void put() throws IOException {
+        tree.put(nextKey(), value);
+    }
+
+    @Benchmark
+    public byte[] get() throws IOException {
+        return tree.get(nextKey());
+    }
+
+    @Benchmark
+    public void getInRange(Blackhole blackhole) throws IOException {
+        int key = nextKey();
+        for (Tuple<Integer, byte[]> entry : tree.getInRange(key, key + SCAN_LENGTH)) {
+            blackhole.consume(entry);
+        }
+    }
+
+    @Benchmark
+    public void scan(Blackhole blackhole) throws IOException {
+        int key = nextKey();
+        tree.scan(key, key + SCAN_LENGTH, (scannedKey, scannedValue) -> {
+            blackhole.consume(scannedKey);
+            blackhole.consume(scannedValue.get(scannedValue.position()));
+        });
+    }
+
+    @Benchmark
+    public void cursor(Blackhole blackhole) throws IOException {
+        int key = nextKey();
+        cursor.seek(key, key + SCAN_LENGTH);
+        while (cursor.next()) {
+            ByteBuffer cursorValue = cursor.value();
+            blackhole.consume(cursor.key());
+            blackhole.consume(cursorValue.get(cursorValue.position()));
+        }
+    }
+}
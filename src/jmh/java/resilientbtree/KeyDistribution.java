@@ -0,0 +1,65 @@
+package resilientbtree;
+
+import java.util.Random;
+
+/**
+ * How the keys of a benchmark are drawn from [0, keys).
+ */
+public enum KeyDistribution {
+    // Every key once in increasing order, then over again
+    SEQUENTIAL,
+    // Every key equally likely
+    UNIFORM,
+    // A few keys are far more likely than the rest, key k with a probability proportional to 1 / (k + 1)^0.99.
+    // The keys are scattered over the range so that the likely ones do not all sit in the same leaves
+    ZIPFIAN;
+
+    private static final double ZIPF_EXPONENT = 0.99;
+
+    /**
+     * @return count keys in [0, keys) drawn from this distribution
+     */
+    int[] keys(int keys, int count, long seed) {
+        Random random = new Random(seed);
+        int[] drawn = new int[count];
+        switch (this) {
+            case SEQUENTIAL:
+                for (int i = 0; i < count; i++) {
+                    drawn[i] = i % keys;
+                }
+                break;
+            case UNIFORM:
+                for (int i = 0; i < count; i++) {
+                    drawn[i] = random.nextInt(keys);
+                }
+                break;
+            default:
+                double[] cumulative = new double[keys];
+                double sum = 0;
+                for (int k = 0; k < keys; k++) {
+                    sum += 1 / Math.pow(k + 1, ZIPF_EXPONENT);
+                    cumulative[k] = sum;
+                }
+                for (int i = 0; i < count; i++) {
+                    int rank = search(cumulative, random.nextDouble() * sum);
+                    // Multiplying by an odd constant modulo a power of two spreads the ranks over the range
+                    drawn[i] = (int) ((rank * 0x9E3779B1L) & (Integer.highestOneBit(keys) * 2L - 1)) % keys;
+                }
+        }
+        return drawn;
+    }
+
+    private static int search(double[] cumulative, double value) {
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulative[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
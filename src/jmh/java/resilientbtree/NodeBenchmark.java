@@ -0,0 +1,104 @@
+package resilientbtree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Builds and searches the red black tree of a node and writes and reads a full leaf in each node layout, without
+ * any file in between. Run with -prof gc to see how much every operation allocates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeBenchmark {
+
+    // Keys of a leaf are this far apart on average
+    private static final int KEY_SPACING = 16;
+
+    @Param({"16", "64", "256"})
+    public int nodeSize;
+
+    @Param({"SEQUENTIAL", "UNIFORM", "ZIPFIAN"})
+    public KeyDistribution distribution;
+
+    @Param({"RED_BLACK_TREE", "SORTED_ARRAY", "COMPRESSED"})
+    public BTreeConfig.NodeLayout layout;
+
+    private long[] keys;
+    private RedBlackTree rbTree;
+    private BTreeNode leaf;
+    private int format;
+    private int batchSize;
+    private byte[] page;
+    private ByteBuffer target;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Distinct keys in the order the distribution draws them, like the keys put into one leaf
+        int[] drawn = distribution.keys(nodeSize * KEY_SPACING, nodeSize * KEY_SPACING * 4, 1);
+        keys = Arrays.stream(drawn).asLongStream().distinct().limit(nodeSize).toArray();
+        rbTree = new RedBlackTree();
+        for (long key : keys) {
+            rbTree.put(key, key * 64);
+        }
+        leaf = new BTreeNode(rbTree.copy(), true, 1, -1, 1, -1);
+        format = new BTreeConfig().nodeLayout(layout).format();
+        batchSize = BTreeNode.batchSize(nodeSize, format);
+        // Nodes are read from whole pages
+        page = Arrays.copyOf(leaf.serialize(format), batchSize);
+        target = ByteBuffer.allocateDirect(batchSize);
+    }
+
+    @Benchmark
+    public RedBlackTree rbtPut() {
+        RedBlackTree tree = new RedBlackTree();
+        for (long key : keys) {
+            tree.put(key, key);
+        }
+        return tree;
+    }
+
+    @Benchmark
+    public Long rbtGet() {
+        return rbTree.get(keys[next++ % keys.length]);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return leaf.serialize(format);
+    }
+
+    /**
+     * Writes the leaf into a reused buffer outside the heap, like writes into the mapped index file
+     */
+    @Benchmark
+    public ByteBuffer serializeInto() {
+        target.clear();
+        leaf.serializeInto(target, format, 0, false);
+        return target;
+    }
+
+    @Benchmark
+    public BTreeNode deSerialize() throws IOException {
+        return BTreeNode.deSerialize(page, batchSize, format);
+    }
+}
@@ -1,180 +1,3559 @@
 package resilientbtree;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.StampedLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Created by sohaib on 08/12/16.
+ *
+ * Any number of threads can get, getInRange and put at the same time. Every node has a latch, kept by the
+ * position of the node, see NodeLatches. Writers never modify a node that readers can see: they latch it, modify a
+ * copy, write it and only then put it into the node cache. On the way down from the root a writer keeps the
+ * latches of all nodes that a split could reach and lets go of them as soon as it gets to a node with room for
+ * one more key (latch crabbing). Writers that go to different leaves therefore only meet for a moment at the
+ * top of the tree.
+ *
+ * Readers do not take latches. They remember the version of every node before reading it and only move on to
+ * a child once both the node and the pointer to the child in the parent are known to be unchanged (optimistic
+ * lock coupling). If a writer got in the way they start over. See ReadPosition.
+ *
+ * Trees created with BTreeConfig.copyOnWrite work differently. Writers take turns and never modify a page that
+ * the current root can reach: every node they change is written to a new page and the commit swaps the root
+ * address. Readers pin a root (see Snapshot) and read it without any checks. Pages that were replaced are
+ * reused once no snapshot that can reach them is open.
  */
 public class BTree {
 
+    /*
+     * Files written with FORMAT_V2 or later start with a header:
+     * [0, 3] magic number, [4, 7] format version, [8, 15] root address, [16, 23] logical length of the index
+     * file, [24, 31] logical length of the value file, [32, 35] flags in the low and the inline value size in
+     * the high 16 bits, [36, 39] the first page on the free list, see freePage, [40, 63] root address and
+     * logical lengths of both files as of the last checkpoint. See checkpoint. The rest of the header is
+     * reserved.
+     * Trees created with BTreeConfig.pageSize have FLAG_PAGED set and the page size at [64, 67]. Their header
+     * takes up the whole first page, so that every node starts on a page boundary.
+     * Legacy (FORMAT_V1) files have no header and start with a 4 byte root address. The magic number is
+     * negative so that it can never be mistaken for a legacy root address.
+     */
+    static final int MAGIC = 0xB7EEF11E;
+    static final int HEADER_SIZE = 64;
+    static final int FORMAT_OFFSET = 4;
+    static final int ROOT_OFFSET = 8;
+    static final int INDEX_LENGTH_OFFSET = 16;
+    static final int VALUE_LENGTH_OFFSET = 24;
+    static final int FLAGS_OFFSET = 32;
+    // Set in the flags of trees that are written copy on write
+    static final int FLAG_COPY_ON_WRITE = 1;
+    // Set in the flags of trees whose inner nodes keep the number of keys below every child
+    static final int FLAG_COUNTS = 2;
+    // Set in the flags of trees whose keys are byte arrays, see ByteKeys
+    static final int FLAG_BYTE_KEYS = 4;
+    // Set in the flags of trees whose nodes take up a page each, see BTreeConfig.pageSize
+    static final int FLAG_PAGED = 8;
+    static final int PAGE_SIZE_OFFSET = 64;
+    static final int FREE_LIST_OFFSET = 36;
+    static final int CHECKPOINT_OFFSET = 40;
+    // Granularity of the lengths recorded in the header while the tree is open, see recordLengths
+    static final long LENGTH_GRANULE = IOHandler.MIN_GROWTH;
+    // First byte of a page on the free list. Nodes start with +1 (leaf) or -1 (inner node)
+    static final byte FREE_PAGE = 0;
+    // Size of the root address of a legacy file
+    static final int LEGACY_HEADER_SIZE = 4;
+    // Value pointers keep the generation of the value file they point into above this bit and the offset in the
+    // file below it. Generation 0 is the original value file, so pointers written before compaction existed
+    // stay valid. Legacy files have 32 bit pointers and only generation 0
+    static final int GENERATION_SHIFT = 48;
+    // Values of at most inlineValueSize bytes are kept in a slot of their leaf entry instead of the value file.
+    // The pointer of such an entry is this bit together with the length of the value. Pointers into the value
+    // files never have it set. See BTreeConfig.inlineValueSize
+    static final long INLINE_VALUE = Long.MIN_VALUE;
+    static final int MAX_INLINE_VALUE_SIZE = 0xFFFF;
+    // The inline value size is kept in the flags above this bit
+    static final int INLINE_SIZE_SHIFT = 16;
+    // Bytes of a page of a compressed tree that puts leave free. Removing the first key of a compressed node can
+    // make it larger, since the key after it is then stored in full, but all such removals together add at most
+    // a key and a pointer of BTreeNode.MAX_VARINT_SIZE bytes each
+    static final int COMPRESSED_SLACK = 2 * BTreeNode.MAX_VARINT_SIZE;
+    // Number of values compactValues moves while holding lock
+    static final int COMPACTION_BATCH = 1024;
+    // Shortest byte array key limit a tree with byte array keys can be created with, see maxKeyLength
+    static final int MIN_KEY_LENGTH = 8;
+
     // IO Handler for the index file
     IOHandler handler;
-    // IO handler for the value file
+    // IO handler for the value file that new values are appended to
     IOHandler valueHandler;
-    BTreeNode root;
+    // Generation of valueHandler. Only changes while holding lock exclusively
+    private int valueGeneration;
+    // All value files by generation, including valueHandler. See compactValues
+    private final ConcurrentHashMap<Integer, IOHandler> valueFiles = new ConcurrentHashMap<>();
+    // Value files that can be deleted once no snapshot older than their tag is open, tagged like retired pages.
+    // Closing a snapshot checks whether there are any, see release
+    private final ConcurrentLinkedDeque<long[]> retiredValueFiles = new ConcurrentLinkedDeque<>();
+    private final String fileName;
+    // Held by compactValues
+    private final Object compactionLock = new Object();
+    // Lengths of the index file and of valueHandler recorded in the header. Only grow while holding lengthLock,
+    // see recordLengths
+    private volatile long recordedIndexLength;
+    private volatile long recordedValueLength;
+    private final Object lengthLock = new Object();
+    // Position of the root node. Only changes while holding rootLatch
+    volatile long rootPosition;
+    // The leaf at the right edge of a tree written in place and the largest key in it when it was last written,
+    // see append. Only set while holding the latch of the leaf, -1 if not known
+    private volatile long rightmostLeaf = -1;
+    private volatile long rightmostKey;
     int batchsize;
     int nodeSize;
+    // Position of the first node. Nodes take up batchsize bytes each from here on
+    private long firstPage;
+    // On disk format of this tree. See BTreeNode.FORMAT_V1 and BTreeNode.FORMAT_V2
+    int format;
+    // Whether nodes hold as many keys as fit in their page rather than nodeSize, see BTreeNode.FORMAT_COMPRESSED
+    boolean compressed;
+    // Largest number of bytes a compressed node takes up after a put. The rest of the page is left for deletes,
+    // see capacity
+    private int capacity;
+    // Reads the nodes of trees with a sorted layout in place
+    final SortedNodeView sortedView;
+    // Whether the keys are byte arrays, which nodes store in full. See ByteKeys
+    final boolean byteKeys;
+    // Longest byte array key the nodes of a tree with byte array keys have room for, see maxKeyLength
+    private int maxKeyLength;
+    // Size of the slot every leaf entry has for a value stored in the leaf, 0 if values are never stored there
+    final int inlineValueSize;
+    // Whether inner nodes keep the number of keys below every child. See BTreeConfig.countKeys
+    final boolean counted;
+    // Decoded nodes by position in the index file
+    NodeCache cache;
+    // Reads leaves ahead of range scans, null if BTreeConfig.readAheadLeaves is 0
+    private final ReadAhead readAhead;
+    // Deflates values that go to the value file, null if BTreeConfig.compressValues is -1
+    private final ValueCodec valueCodec;
+    // Records what the tree does, null if BTreeConfig.metrics is off
+    final Metrics metrics;
+
+    static final int DEFAULT_CACHE_ENTRIES = 4096;
+    // Box the keys handed out by the range iterators
+    static final KeyBox<Integer> INT_KEY = (key, bytes) -> (int) key;
+    static final KeyBox<Long> LONG_KEY = (key, bytes) -> key;
+    // Byte array keys are copied, since they are shared with the entries in the node cache
+    static final KeyBox<byte[]> BYTES_KEY = (key, bytes) -> bytes.clone();
+
+    /**
+     * Makes the key of an entry handed out by a range iterator from its key in the tree and its byte array key,
+     * which is null unless the tree has byte array keys
+     */
+    interface KeyBox<K> {
+        K box(long key, byte[] bytes);
+    }
+    // Optimistic attempts made by a reader before it falls back to blocking writers
+    static final int OPTIMISTIC_ATTEMPTS = 8;
+    // No tree gets this high. A reader that descends further followed a pointer out of a half written node.
+    static final int MAX_HEIGHT = 128;
+
+    // Shared by puts. Held exclusively by operations that change many nodes at once, by close and by readers
+    // that keep getting overtaken by writers. See optimisticRead
+    final StampedLock lock = new StampedLock();
+    // Latch of the root pointer. Writers treat it as the parent of the root
+    final StampedLock rootLatch = new StampedLock();
+    // Latches of the nodes by position, see NodeLatches
+    private final NodeLatches latches;
+
+    // Whether changed nodes are written to new pages. See class comment
+    final boolean copyOnWrite;
+    // Number of commits made to a copy on write tree since it was opened
+    private volatile long version;
+    // Open snapshots, oldest first
+    private final ConcurrentSkipListSet<Snapshot> pins = new ConcurrentSkipListSet<>(
+            Comparator.comparingLong((Snapshot snapshot) -> snapshot.version).thenComparingLong(snapshot -> snapshot.id));
+    // Pages replaced by the commit in progress and replaced pages tagged with the version of the commit that
+    // replaced them. Only used by the writer
+    private final List<Long> retiring = new ArrayList<>();
+    private final ArrayDeque<long[]> retired = new ArrayDeque<>();
+    // First page of the free list, -1 if it is empty. Every free page holds the position of the next one
+    private long freeList = -1;
+    private final Object freeListLock = new Object();
+
+    // Write ahead log, null with Durability.NONE
+    private WriteAheadLog log;
+    private final String logFileName;
+    private final long checkpointBytes;
+    // A crash rolls the tree back to the last checkpoint, so its pages must not be reused before the next one
+    private Snapshot checkpointPin;
+
+    BTree(String fileName, int nodeSize) throws  IOException {
+        this(fileName, new BTreeConfig().nodeSize(nodeSize));
+    }
+
+    BTree(String fileName, BTreeConfig config) throws  IOException {
+        this.nodeSize = config.nodeSize;
+        // The batch size is not known until the format has been read so it is set after opening
+        handler = new IOHandler(fileName, 0);
+        format = readFormat(config);
+        sortedView = new SortedNodeView(handler, format);
+        int flags = format == BTreeNode.FORMAT_V1 ? 0 : handler.getInt(FLAGS_OFFSET);
+        copyOnWrite = (flags & FLAG_COPY_ON_WRITE) != 0;
+        inlineValueSize = flags >>> INLINE_SIZE_SHIFT;
+        counted = (flags & FLAG_COUNTS) != 0;
+        byteKeys = (flags & FLAG_BYTE_KEYS) != 0;
+        if (byteKeys != (format == BTreeNode.FORMAT_BYTES)) {
+            throw new IOException("Byte array keys in format " + format + " are not supported");
+        }
+        if ((flags & FLAG_PAGED) != 0) {
+            // As many keys as fit in a page, whatever the configuration says
+            batchsize = handler.getInt(PAGE_SIZE_OFFSET);
+            nodeSize = BTreeNode.nodeSizeForPage(batchsize, format, inlineValueSize, counted);
+            if (Integer.bitCount(batchsize) != 1 || nodeSize < BTreeConfig.MIN_PAGE_KEYS) {
+                throw new IOException("Invalid page size: " + batchsize);
+            }
+            firstPage = batchsize;
+        } else {
+            // See BTreeNode.java for the metadata stored with every node
+            batchsize = BTreeNode.batchSize(nodeSize, format, inlineValueSize, counted);
+            firstPage = format == BTreeNode.FORMAT_V1 ? LEGACY_HEADER_SIZE : HEADER_SIZE;
+        }
+        handler.batchSize = batchsize;
+        latches = new NodeLatches(batchsize);
+        cache = config.cacheBytes >= 0 ? NodeCache.withByteBudget(config.cacheBytes, batchsize)
+                : new NodeCache(config.cacheEntries);
+        compressed = BTreeNode.isCompressed(format);
+        capacity = batchsize - COMPRESSED_SLACK;
+        if (byteKeys) {
+            maxKeyLength = maxKeyLength(batchsize, inlineValueSize, counted);
+            // Removing the first key of a node stores the key after it in full
+            capacity -= BTreeNode.MAX_VARINT_SIZE + maxKeyLength;
+        }
+        this.fileName = fileName;
+        openValueFiles();
+        if (format != BTreeNode.FORMAT_V1) {
+            // Files that were not closed cleanly still contain preallocated space past the logical end
+            ByteBuffer lengths = ByteBuffer.wrap(handler.read(16, INDEX_LENGTH_OFFSET));
+            recordedIndexLength = lengths.getLong();
+            recordedValueLength = lengths.getLong();
+            handler.setLogicalLength(recordedIndexLength);
+            valueHandler.setLogicalLength(recordedValueLength);
+            int freePage = handler.getInt(FREE_LIST_OFFSET);
+            freeList = freePage == 0 ? -1 : firstPage + (long) (freePage - 1) * batchsize;
+        }
+        rootPosition = getRoot();
+        logFileName = fileName + "_log";
+        checkpointBytes = config.checkpointBytes;
+        openLog(config);
+        readAhead = config.readAheadLeaves > 0 ? new ReadAhead(this, config.readAheadLeaves) : null;
+        valueCodec = config.compressValues >= 0 ? new ValueCodec(config.compressValues) : null;
+        metrics = config.metrics ? new Metrics(this) : null;
+        if (metrics != null) {
+            metrics.register(fileName);
+        }
+    }
+
+    /**
+     * Replays the log of a tree that was not closed after it had been opened with one, on top of the last
+     * checkpoint. Then starts a new log if the configuration asks for one.
+     */
+    private void openLog(BTreeConfig config) throws IOException {
+        boolean logged = config.durability != BTreeConfig.Durability.NONE;
+        if (logged && !copyOnWrite) {
+            throw new IllegalArgumentException("Only trees created copy on write can be opened with a log");
+        }
+        File logFile = new File(logFileName);
+        if (logFile.exists()) {
+            ByteBuffer checkpoint = ByteBuffer.wrap(handler.read(24, CHECKPOINT_OFFSET));
+            long root = checkpoint.getLong();
+            if (root > 0) {
+                // Whatever was written after the checkpoint may not have made it to the disk
+                handler.setLogicalLength(checkpoint.getLong());
+                valueHandler.setLogicalLength(checkpoint.getLong());
+                cache.clear();
+                rootPosition = root;
+                writeRootAddress(root);
+                // The free list may hold pages that were written again after the checkpoint. Its pages are
+                // lost to the tree, but the checkpoint is intact
+                synchronized (freeListLock) {
+                    freeList = -1;
+                    writeFreeList();
+                }
+            }
+            WriteAheadLog.replay(logFileName, logKeySize(), (keys, keyBytes, values) -> {
+                if (values.length == 1 && values[0] == null) {
+                    deleteShadowed(keys[0], keyBytes == null ? null : keyBytes[0]);
+                } else {
+                    putAllLocked(keys, keyBytes, values);
+                }
+            });
+        }
+        if (logged) {
+            checkpoint();
+            log = new WriteAheadLog(logFileName, logKeySize(), config.durability, config.syncIntervalMillis);
+        } else if (logFile.exists()) {
+            // The replayed puts must be on disk before their log goes away
+            valueHandler.force();
+            handler.force();
+            logFile.delete();
+        }
+    }
+
+    /**
+     * @return the number of bytes of a key in the log, 0 for byte array keys, see WriteAheadLog
+     */
+    private int logKeySize() {
+        return byteKeys ? 0 : BTreeNode.keySize(format);
+    }
+
+    /**
+     * Forces both files, records the root and the lengths as the checkpoint a crash rolls back to and starts
+     * the log over. The caller must hold lock exclusively.
+     */
+    private void checkpoint() throws IOException {
+        valueHandler.force();
+        handler.force();
+        ByteBuffer checkpoint = ByteBuffer.allocate(24);
+        checkpoint.putLong(rootPosition).putLong(handler.fileLength()).putLong(valueHandler.fileLength());
+        handler.write(checkpoint.array(), 24, CHECKPOINT_OFFSET);
+        handler.force();
+        if (log != null) {
+            log.truncate();
+        }
+        Snapshot previous = checkpointPin;
+        checkpointPin = pin();
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Waits for the log record with the sequence number lsn to be as durable as configured. Checkpoints once
+     * the log has grown too large.
+     */
+    private void awaitLog(long lsn) throws IOException {
+        if (log == null) {
+            return;
+        }
+        log.commit(lsn);
+        if (log.size() > checkpointBytes) {
+            long stamp = lock.writeLock();
+            try {
+                if (log.size() > checkpointBytes) {
+                    checkpoint();
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Reads the format of the index file. Empty files are initialized with a header for the configuration.
+     */
+    private int readFormat(BTreeConfig config) throws IOException {
+        if (handler.fileLength() == 0) {
+            int newFormat = config.format();
+            boolean paged = config.pageSize > 0;
+            if (paged && BTreeNode.nodeSizeForPage(config.pageSize, newFormat, config.inlineValueSize,
+                    config.countKeys) < BTreeConfig.MIN_PAGE_KEYS) {
+                throw new IllegalArgumentException("Pages of " + config.pageSize + " bytes hold fewer than "
+                        + BTreeConfig.MIN_PAGE_KEYS + " keys");
+            }
+            int pageSize = paged ? config.pageSize
+                    : BTreeNode.batchSize(config.nodeSize, newFormat, config.inlineValueSize, config.countKeys);
+            if (config.keyType == BTreeConfig.KeyType.BYTES
+                    && maxKeyLength(pageSize, config.inlineValueSize, config.countKeys) < MIN_KEY_LENGTH) {
+                throw new IllegalArgumentException("Nodes of " + pageSize + " bytes hold fewer than "
+                        + BTreeConfig.MIN_PAGE_KEYS + " byte array keys of " + MIN_KEY_LENGTH
+                        + " bytes, use a larger nodeSize or pageSize");
+            }
+            ByteBuffer header = ByteBuffer.allocate(paged ? PAGE_SIZE_OFFSET + 4 : HEADER_SIZE);
+            header.putInt(MAGIC).putInt(newFormat).putLong(-1);
+            // Trees that are logged have to be copy on write. See BTreeConfig.durability
+            boolean copyOnWrite = config.copyOnWrite || config.durability != BTreeConfig.Durability.NONE;
+            int flags = (copyOnWrite ? FLAG_COPY_ON_WRITE : 0) | (config.countKeys ? FLAG_COUNTS : 0)
+                    | (config.keyType == BTreeConfig.KeyType.BYTES ? FLAG_BYTE_KEYS : 0)
+                    | (paged ? FLAG_PAGED : 0) | config.inlineValueSize << INLINE_SIZE_SHIFT;
+            header.putLong(0).putLong(0).putInt(flags);
+            if (paged) {
+                header.putInt(PAGE_SIZE_OFFSET, config.pageSize);
+            }
+            // The rest of the first page stays empty, see FLAG_PAGED
+            handler.write(header.array(), paged ? config.pageSize : HEADER_SIZE, 0);
+            return newFormat;
+        }
+        int magic = ByteBuffer.wrap(handler.read(4, 0)).getInt();
+        if (magic != MAGIC) {
+            return BTreeNode.FORMAT_V1;
+        }
+        int version = ByteBuffer.wrap(handler.read(4, FORMAT_OFFSET)).getInt();
+        if (version < BTreeNode.FORMAT_V2 || version > BTreeNode.FORMAT_BYTES) {
+            throw new IOException("Unsupported BTree format version: " + version);
+        }
+        return version;
+    }
+
+    /**
+     * @return the longest byte array key that nodes of pageSize bytes of a tree with byte array keys have room for:
+     * every node holds at least BTreeConfig.MIN_PAGE_KEYS entries with keys that long and the slack that removing
+     * its first key needs, see capacity
+     */
+    static int maxKeyLength(int pageSize, int inlineSize, boolean counted) {
+        int entry = Math.max(BTreeNode.maxByteKeyEntrySize(true, inlineSize, counted, 0),
+                BTreeNode.maxByteKeyEntrySize(false, inlineSize, counted, 0));
+        int free = pageSize - COMPRESSED_SLACK - BTreeNode.MAX_VARINT_SIZE
+                - BTreeNode.compressedMetadataSize(false, Long.MAX_VALUE, counted) - BTreeConfig.MIN_PAGE_KEYS * entry;
+        return free / (BTreeConfig.MIN_PAGE_KEYS + 1);
+    }
+
+    /**
+     * @return the longest byte array key this tree takes, see BTreeConfig.KeyType.BYTES
+     */
+    public int maxKeyLength() {
+        checkByteKeys();
+        return maxKeyLength;
+    }
+
+    /**
+     * @return the largest number of bytes one entry of a compressed node can take up
+     */
+    private int maxEntrySize(boolean isLeaf) {
+        return byteKeys ? BTreeNode.maxByteKeyEntrySize(isLeaf, inlineValueSize, counted, maxKeyLength)
+                : BTreeNode.maxCompressedEntrySize(isLeaf, inlineValueSize, counted);
+    }
+
+    /**
+     * @return whether node holds more keys than a node can, see splitAndWrite
+     */
+    private boolean overflows(BTreeNode node) {
+        return compressed ? node.compressedSize(counted) > capacity : node.rbTree.size() > nodeSize;
+    }
+
+    /**
+     * @return whether node takes one more key without splitting
+     */
+    private boolean hasRoom(BTreeNode node) {
+        if (!compressed) {
+            return node.rbTree.size() < nodeSize;
+        }
+        // Besides its own entry a new key can only make the entry after it larger
+        return node.compressedSize(counted) + 2 * maxEntrySize(node.isLeaf) <= capacity;
+    }
+
+    /**
+     * @return whether keys from smallest up go to the end of node, which is at the right edge of the tree. Only
+     * inner nodes above the rightmost leaf are known to be there, see putAll
+     */
+    private static boolean isAppend(BTreeNode node, long smallest, byte[] smallestBytes) {
+        if (node.isLeaf && node.nextLeafPos > 0) {
+            return false;
+        }
+        RBTNode max = node.rbTree.maxEntry();
+        return max == null || RedBlackTree.compare(smallest, smallestBytes, max) > 0;
+    }
+
+    /**
+     * @return whether child is the last child of the inner node
+     */
+    private static boolean isLastChild(BTreeNode node, long child) {
+        RBTNode max = node.rbTree.maxEntry();
+        return max == null ? child == node.phi : child == max.value;
+    }
+
+    /**
+     * @return whether the compressed node fits in its page without its largest key
+     */
+    private boolean fitsWithoutMax(BTreeNode node) {
+        if (node.rbTree.size() < 2) {
+            return false;
+        }
+        BTreeNode rest = node.copy();
+        RBTNode max = rest.rbTree.maxEntry();
+        rest.rbTree.delete(max.key, max.bytes);
+        return !overflows(rest);
+    }
+
+    /**
+     * @return the number of keys of each of the fewest pieces that the keys of the compressed node split into all
+     * fit in. The pieces split the keys evenly if they fit that way, else they split the bytes evenly, which the
+     * keys of trees with byte array keys need, since one of them can take up many times the bytes of another.
+     * Either way a node that outgrew its page by one key splits in two, which put relies on.
+     */
+    private int[] compressedPieces(BTreeNode node) {
+        int size = node.rbTree.size();
+        RBTNode[] entries = new RBTNode[size];
+        int index = 0;
+        for (RBTNode entry : node.rbTree) {
+            entries[index++] = entry;
+        }
+        int total = node.compressedSize(counted);
+        for (int pieces = Math.max(2, (total + capacity - 1) / capacity); ; pieces++) {
+            int[] even = new int[pieces];
+            for (int piece = 0; piece < pieces; piece++) {
+                even[piece] = size / pieces + (piece >= pieces - size % pieces ? 1 : 0);
+            }
+            if (fits(node, entries, even)) {
+                return even;
+            }
+            int[] balanced = new int[pieces];
+            int from = 0;
+            int bytes = 0;
+            for (int piece = 0; piece < pieces; piece++) {
+                // Every piece takes at least one key and leaves at least one for each piece after it
+                int to = piece == pieces - 1 ? size : from + 1;
+                bytes += BTreeNode.compressedEntrySize(entries[from], from == 0 ? null : entries[from - 1],
+                        node.isLeaf, counted);
+                while (to < size - (pieces - 1 - piece) && bytes < (long) total * (piece + 1) / pieces) {
+                    bytes += BTreeNode.compressedEntrySize(entries[to], entries[to - 1], node.isLeaf, counted);
+                    to++;
+                }
+                balanced[piece] = to - from;
+                from = to;
+            }
+            if (fits(node, entries, balanced)) {
+                return balanced;
+            }
+            if (pieces >= size) {
+                return even;
+            }
+        }
+    }
+
+    /**
+     * @return whether every piece of the entries of the compressed node with the given numbers of keys fits in
+     * its page
+     */
+    private boolean fits(BTreeNode node, RBTNode[] entries, int[] pieceSizes) {
+        int from = 0;
+        for (int pieceSize : pieceSizes) {
+            BTreeNode part = new BTreeNode(new RedBlackTree(), node.isLeaf, -1, -1, -1, -1);
+            for (int i = from; i < from + pieceSize; i++) {
+                part.rbTree.put(entries[i]);
+            }
+            if (part.compressedSize(counted) > capacity) {
+                return false;
+            }
+            from += pieceSize;
+        }
+        return true;
+    }
+
+    private RBTNode _putInternal(BTreeNode root, long key, byte[] byteKey, long value, byte[] inline,
+                                 WritePath path) throws IOException {
+        BTreeNode node = root.copy();
+        node.rbTree.put(key, byteKey, value, inline, 0);
+        List<RBTNode> separators = splitAndWrite(node, path, path.appended);
+        return separators.isEmpty() ? null : separators.get(0); // Pass the middle node up if any
+    }
+
+    private List<RBTNode> splitAndWrite(BTreeNode node, WritePath path) throws IOException {
+        return splitAndWrite(node, path, false);
+    }
+
+    /**
+     * Splits node into as few nodes as possible that hold at most nodeSize keys each, or fit in capacity bytes if
+     * the tree is compressed, and writes all of them.
+     * The node must not be visible to readers, i.e. it has to be a copy of the cached node.
+     * The smallest keys stay in node and the new nodes go to newly allocated pages.
+     * The caller must hold the latch of node and, if node may split, of its parent.
+     * @param path - latches held by the caller, which are not taken again when the children moved to the new
+     *             nodes get their new parent. Null if the caller holds no latches below node.
+     * @param appended - whether the keys just added to node are larger than all others and node is at the right
+     *                 edge of the tree. Keys put in ascending order keep coming there, so node and all new nodes
+     *                 but the last are filled up rather than being left half empty for good. A compressed node
+     *                 only keeps all but its largest key.
+     * @return the first key and position of every new node in key order. These have to go into the parent.
+     */
+    private List<RBTNode> splitAndWrite(BTreeNode node, WritePath path, boolean appended) throws IOException {
+        List<RBTNode> separators = new ArrayList<>();
+        int rbtSize = node.rbTree.size();
+        if (overflows(node)) {
+            // Need to split this node into several nodes;
+            //creates a copy of the nodes
+            boolean keepFull = appended && (!compressed || fitsWithoutMax(node));
+            int[] pieceSizes = compressed && !keepFull ? compressedPieces(node) : null;
+            int pieces = !compressed ? (rbtSize + nodeSize - 1) / nodeSize : keepFull ? 2 : pieceSizes.length;
+            if (metrics != null) {
+                metrics.splits.add(pieces - 1);
+            }
+            Iterator<RBTNode> rbtIterator = node.rbTree.iterator();
+            RBTNode previous = null;
+            if (!copyOnWrite && node.parent < 1) {
+                // Only the root has no parent. Reserve the slot for the new root above it. See growRoot
+                node.parent = allocatePage();
+            }
+            List<BTreeNode> siblings = new ArrayList<>();
+            BTreeNode current = node;
+            current.rbTree = new RedBlackTree();
+            for (int piece = 0; piece < pieces; piece++) {
+                if (piece > 0) {
+                    BTreeNode sibling = new BTreeNode(
+                            new RedBlackTree(), node.isLeaf, node.parent, -1, allocatePage(), current.nextLeafPos);
+                    current.nextLeafPos = sibling.selfPosition;
+                    siblings.add(sibling);
+                    current = sibling;
+                }
+                // Like a two way split the smaller pieces come first
+                int pieceSize;
+                if (pieceSizes != null) {
+                    pieceSize = pieceSizes[piece];
+                } else if (!keepFull) {
+                    pieceSize = rbtSize / pieces + (piece >= pieces - rbtSize % pieces ? 1 : 0);
+                } else if (compressed) {
+                    pieceSize = piece == 0 ? rbtSize - 1 : 1;
+                } else {
+                    pieceSize = Math.min(nodeSize, rbtSize - piece * nodeSize);
+                }
+                for (int i = 0; i < pieceSize; i++) {
+                    RBTNode rbtNode = rbtIterator.next();
+                    if (i == 0 && piece > 0) {
+                        separators.add(separator(previous, rbtNode, current));
+                    }
+                    current.rbTree.put(rbtNode);
+                    previous = rbtNode;
+                }
+            }
+            for (int i = 0; i < siblings.size(); i++) {
+                BTreeNode sibling = siblings.get(i);
+                separators.get(i).count = sibling.count();
+                writeNode(sibling);
+                if (!copyOnWrite && !sibling.isLeaf) {
+                    for (RBTNode child : sibling.rbTree) {
+                        reparent(child.value, sibling.selfPosition, path);
+                    }
+                }
+            }
+        }
+        writeNode(node); // Persist change to disk
+        return separators;
+    }
+
+    /**
+     * Reads a node for a writer, which has to hold the latch of the node, or for a reader of a pinned copy on
+     * write root, whose pages do not change.
+     */
+    BTreeNode getBTreeNodeAtIndex(long index) throws IOException {
+        BTreeNode node = cache.get(index);
+        if (node == null) {
+            byte[] batch = handler.readBatch(index);
+            node = BTreeNode.deSerialize(batch, batchsize, format, inlineValueSize, counted);
+            cache.putIfAbsent(index, node);
+            if (metrics != null) {
+                metrics.deserializations.increment();
+            }
+        }
+        if (metrics != null) {
+            metrics.nodeReads.increment();
+        }
+        return node;
+    }
+
+    /**
+     * Reads a node for a reader that got stamp from the latch of the node before. The node is only cached if it
+     * has not been written since, since it may have been decoded from half written bytes.
+     */
+    private BTreeNode readNode(long index, StampedLock latch, long stamp) throws IOException {
+        BTreeNode node = cache.get(index);
+        if (node == null) {
+            byte[] batch = handler.readBatch(index);
+            node = BTreeNode.deSerialize(batch, batchsize, format, inlineValueSize, counted);
+            if (metrics != null) {
+                metrics.deserializations.increment();
+            }
+            // Holding a read lock keeps writers out between the validation and the insert
+            long readStamp = latch.tryReadLock();
+            if (readStamp != 0) {
+                try {
+                    if (latch.validate(stamp)) {
+                        cache.putIfAbsent(index, node);
+                    }
+                } finally {
+                    latch.unlockRead(readStamp);
+                }
+            }
+        }
+        if (metrics != null) {
+            metrics.nodeReads.increment();
+        }
+        return node;
+    }
+
+    /**
+     * Thrown by a read that found a node changed under it. See optimisticRead
+     */
+    static final class RestartRead extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private RestartRead() {
+            super("A node changed while it was read", null, false, false);
+        }
+    }
+
+    static final RestartRead RESTART = new RestartRead();
+
+    /**
+     * The node a reader is at together with the stamp of its latch, which was taken before the node was read.
+     * The node is only decoded for layouts that are not read in place, i.e. it is null for FORMAT_SORTED.
+     */
+    static final class ReadPosition {
+        long position;
+        BTreeNode node;
+        StampedLock latch;
+        long stamp;
+
+        /**
+         * Starts the read over unless the node has not been written since it was read.
+         */
+        void validate() {
+            if (!latch.validate(stamp)) {
+                throw RESTART;
+            }
+        }
+    }
+
+    /**
+     * Moves at to the root of the tree.
+     */
+    ReadPosition readRoot(ReadPosition at) throws IOException {
+        long stamp = rootLatch.tryOptimisticRead();
+        enter(at, rootPosition);
+        if (!rootLatch.validate(stamp)) {
+            throw RESTART;
+        }
+        return at;
+    }
+
+    /**
+     * Moves at to the node at position, which was read from the node at is at. The pointer is checked before
+     * the latch of the child is looked up and once more after the child has been entered, so that a split
+     * of the child in between is not missed.
+     */
+    void descend(ReadPosition at, long position) throws IOException {
+        StampedLock parentLatch = at.latch;
+        long parentStamp = at.stamp;
+        at.validate();
+        enter(at, position);
+        if (!parentLatch.validate(parentStamp)) {
+            throw RESTART;
+        }
+    }
+
+    private void enter(ReadPosition at, long position) throws IOException {
+        NodeLatches.Stripe latch = latches.stripe(position);
+        long stamp = latch.stamp();
+        if (stamp == 0) {
+            throw RESTART; // A writer has the node
+        }
+        at.position = position;
+        at.latch = latch;
+        at.stamp = stamp;
+        if (BTreeNode.isSorted(format)) {
+            at.node = null;
+            if (metrics != null) {
+                metrics.nodeReads.increment();
+            }
+        } else {
+            at.node = readNode(position, latch, stamp);
+        }
+    }
+
+    private boolean isLeaf(ReadPosition at) {
+        return BTreeNode.isSorted(format) ? sortedView.isLeaf(at.position) : at.node.isLeaf;
+    }
+
+    /**
+     * Moves at to the leaf whose key range contains key.
+     */
+    ReadPosition findLeaf(long key, ReadPosition at) throws IOException {
+        return findLeaf(key, null, at);
+    }
+
+    /**
+     * Same as findLeaf for the key with the byte array key byteKey
+     */
+    ReadPosition findLeaf(long key, byte[] byteKey, ReadPosition at) throws IOException {
+        readRoot(at);
+        for (int depth = 0; !isLeaf(at); depth++) {
+            if (depth > MAX_HEIGHT) {
+                throw new IOException("Tree is higher than " + MAX_HEIGHT);
+            }
+            long child = BTreeNode.isSorted(format)
+                    ? sortedView.getLower(at.position, key)
+                    : at.node.getLower(key, byteKey);
+            descend(at, child);
+        }
+        return at;
+    }
+
+    /**
+     * A read of the tree. It gets whether it is being retried.
+     */
+    interface TreeRead<T> {
+        T read(boolean retry) throws IOException;
+    }
+
+    /**
+     * Runs read without blocking writers. If a node read changed under it, read throws RESTART and is retried.
+     * Other exceptions are retried as well, since they may come from a half written node. After
+     * OPTIMISTIC_ATTEMPTS attempts read runs once more with all writers locked out, so that it cannot fail
+     * because of them.
+     */
+    <T> T optimisticRead(TreeRead<T> read) throws IOException {
+        return optimisticRead(read, false);
+    }
+
+    /**
+     * @param rootLatched - whether the writers that get in the way of read hold rootLatch until they are done, like
+     *                    every write that changes the counts of a tree written in place. Read is then retried while
+     *                    holding rootLatch before it locks all writers out, which keeps the writers of other
+     *                    trees and readers going. Writes that only overwrite a value let go of rootLatch early
+     */
+    private <T> T optimisticRead(TreeRead<T> read, boolean rootLatched) throws IOException {
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+            try {
+                return read.read(attempt > 0);
+            } catch (IOException | RuntimeException e) {
+                Thread.yield(); // Give the writer in the way a chance to finish
+            }
+        }
+        if (rootLatched) {
+            long stamp = rootLatch.readLock();
+            try {
+                for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+                    try {
+                        return read.read(true);
+                    } catch (IOException | RuntimeException e) {
+                        Thread.yield();
+                    }
+                }
+            } finally {
+                rootLatch.unlockRead(stamp);
+            }
+        }
+        long stamp = lock.writeLock();
+        try {
+            return read.read(true);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return the read ahead of a new range scan, null if scans do not read ahead. See ReadAhead
+     */
+    ReadAhead.Window readAheadWindow() {
+        return readAhead == null ? null : readAhead.window();
+    }
+
+    /**
+     * @return the next leaf after the leaf at position of a tree written in place, -1 if it is being written.
+     * Used by ReadAhead, which neither holds latches nor retries, so the result may be out of date.
+     */
+    long readAheadNextLeaf(long position) throws IOException {
+        if (BTreeNode.isSorted(format)) {
+            return sortedView.nextLeaf(position);
+        }
+        BTreeNode node = readAheadNode(position);
+        return node == null ? -1 : node.nextLeafPos;
+    }
+
+    /**
+     * Touches the page of the leaf at position and the values it points to, see IOHandler.touch.
+     * @param pinned - whether a pin keeps the leaf from changing. Leaves of a tree written in place are only
+     *               decoded if they are not being written.
+     */
+    void readAheadLeaf(long position, boolean pinned) throws IOException {
+        handler.touch(position, batchsize);
+        if (BTreeNode.isSorted(format)) {
+            int size = Math.min(sortedView.size(position), nodeSize);
+            for (int i = 0; i < size; i++) {
+                readAheadValue(sortedView.value(position, size, i));
+            }
+            return;
+        }
+        BTreeNode node = pinned ? getBTreeNodeAtIndex(position) : readAheadNode(position);
+        if (node != null) {
+            for (RBTNode entry : node.rbTree) {
+                if (entry.inline == null) {
+                    readAheadValue(entry.value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the node at position of a tree written in place if no writer has it. It goes into the cache like
+     * a node read by an optimistic reader, see readNode.
+     */
+    private BTreeNode readAheadNode(long position) throws IOException {
+        NodeLatches.Stripe latch = latches.stripe(position);
+        long stamp = latch.stamp();
+        if (stamp == 0) {
+            return null;
+        }
+        BTreeNode node = readNode(position, latch, stamp);
+        return latch.validate(stamp) ? node : null;
+    }
+
+    private void readAheadValue(long pointer) throws IOException {
+        if (!isInline(pointer)) {
+            IOHandler file = valueFile(pointer);
+            file.touch(valueOffset(pointer), 4L + valueLength(file, pointer));
+        }
+    }
+
+    /**
+     * Writes node at its own position and keeps the cache coherent with the file.
+     * @return the position the node was written at
+     */
+    private long writeNode(BTreeNode node) throws IOException {
+        long position = writeBatch(node, node.selfPosition);
+        cache.put(position, node);
+        return position;
+    }
+
+    /**
+     * Serializes node straight into its page of the index file at position, see IOHandler.writeBatch
+     */
+    private long writeBatch(BTreeNode node, long position) throws IOException {
+        return handler.writeBatch(node.serializedSize(format, inlineValueSize, counted),
+                batch -> node.serializeInto(batch, format, inlineValueSize, counted), position);
+    }
+
+    /**
+     * Reads the length prefixed value stored at valueInd in the value file and inflates it if it was deflated.
+     */
+    byte[] readValue(long valueInd) throws IOException {
+        IOHandler file = valueFile(valueInd);
+        byte[] stored = file.read(valueLength(file, valueInd), valueOffset(valueInd) + 4);
+        if (metrics != null) {
+            metrics.valueBytesRead.add(stored.length);
+        }
+        return isDeflated(file, valueInd) ? ValueCodec.inflate(stored) : stored;
+    }
+
+    /**
+     * @return the value file valueInd points into
+     */
+    IOHandler valueFile(long valueInd) throws IOException {
+        // The file is gone if compactValues moved the value after the pointer was read
+        IOHandler file = valueFiles.get((int) (valueInd >>> GENERATION_SHIFT));
+        if (file == null) {
+            throw new IOException("Invalid value at " + valueInd);
+        }
+        return file;
+    }
+
+    static long valueOffset(long valueInd) {
+        return valueInd & ((1L << GENERATION_SHIFT) - 1);
+    }
+
+    /**
+     * @return the number of bytes stored for the value valueInd points to in file, which follow its length prefix
+     */
+    static int valueLength(IOHandler file, long valueInd) throws IOException {
+        long offset = valueOffset(valueInd);
+        int len = file.getInt(offset) & ~ValueCodec.DEFLATED;
+        if (offset + 4 + len > file.fileLength()) {
+            throw new IOException("Invalid value at " + valueInd);
+        }
+        return len;
+    }
+
+    /**
+     * @return whether the value valueInd points to in file was deflated, see ValueCodec
+     */
+    static boolean isDeflated(IOHandler file, long valueInd) throws IOException {
+        return ValueCodec.isDeflated(file.getInt(valueOffset(valueInd)));
+    }
+
+    /**
+     * Reads the value of a leaf entry of a decoded node.
+     */
+    byte[] readValue(RBTNode entry) throws IOException {
+        return entry.inline != null ? entry.inline : readValue(entry.value);
+    }
+
+    /**
+     * Reads the value of the index-th entry of the FORMAT_SORTED leaf at leaf with size keys from the mapped
+     * bytes, if it is stored in the leaf. Like the pointer it has to be read before the leaf is validated.
+     * @return null if pointer points into a value file
+     */
+    byte[] readInlineValue(long leaf, int size, int index, long pointer) throws IOException {
+        if (!isInline(pointer)) {
+            return null;
+        }
+        return handler.read(inlineLength(pointer), inlinePosition(leaf, size, index, pointer));
+    }
+
+    /**
+     * @return the position of the value of the index-th entry of the FORMAT_SORTED leaf at leaf with size keys,
+     * whose pointer says that the value is stored in the leaf
+     */
+    long inlinePosition(long leaf, int size, int index, long pointer) throws IOException {
+        if (inlineLength(pointer) > inlineValueSize || size > nodeSize) {
+            throw new IOException("Invalid value in leaf " + leaf); // Read from a half written leaf
+        }
+        return sortedView.inlinePosition(leaf, size, index, inlineValueSize);
+    }
+
+    static boolean isInline(long pointer) {
+        return (pointer & ~(long) MAX_INLINE_VALUE_SIZE) == INLINE_VALUE;
+    }
+
+    static int inlineLength(long pointer) {
+        return (int) (pointer & MAX_INLINE_VALUE_SIZE);
+    }
+
+    /**
+     * @return the pointer of the leaf entry for value: its length if it is stored in the leaf, otherwise where it
+     * was appended to the value file
+     */
+    private long valuePointer(byte[] value) throws IOException {
+        return fitsInLeaf(value.length) ? INLINE_VALUE | value.length : appendValue(value);
+    }
+
+    /**
+     * @return the value to store in the leaf entry for value, null if it goes to the value file
+     */
+    private byte[] inlineValue(byte[] value) {
+        // Nodes in the cache are shared with readers, so they must not see later changes by the caller
+        return fitsInLeaf(value.length) ? value.clone() : null;
+    }
+
+    /**
+     * @return whether a value of length bytes is stored in the leaf. Trees without slots store even empty values
+     * in the value file, so that the leaves of trees written before values were stored in leaves stay valid.
+     */
+    private boolean fitsInLeaf(int length) {
+        return inlineValueSize > 0 && length <= inlineValueSize;
+    }
+
+    /**
+     * Latches held by a writer, in the order they were taken, i.e. from the top of the tree down. A writer that
+     * starts at the root holds rootLatch first.
+     */
+    private final class WritePath {
+        private long rootStamp;
+        private long[] positions = new long[8];
+        private int held;
+        // Whether the write added a key to the leaf, which changes the counts of all nodes above it
+        boolean added;
+        // Whether the key is larger than all others in the tree, see splitAndWrite
+        boolean appended;
+
+        void lockRoot() {
+            rootStamp = rootLatch.writeLock();
+        }
+
+        void lock(long position) {
+            if (held == positions.length) {
+                positions = Arrays.copyOf(positions, 2 * held);
+            }
+            latches.lock(position);
+            positions[held++] = position;
+        }
+
+        /**
+         * Releases all latches but the one taken last, which is the latch of a node.
+         */
+        void releaseAncestors() {
+            releaseRoot();
+            for (int i = 0; i < held - 1; i++) {
+                latches.unlock(positions[i]);
+            }
+            positions[0] = positions[held - 1];
+            held = 1;
+        }
+
+        void releaseAll() {
+            releaseRoot();
+            for (int i = 0; i < held; i++) {
+                latches.unlock(positions[i]);
+            }
+            held = 0;
+        }
+
+        private void releaseRoot() {
+            if (rootStamp != 0) {
+                rootLatch.unlockWrite(rootStamp);
+                rootStamp = 0;
+            }
+        }
+
+        boolean holds(long position) {
+            for (int i = 0; i < held; i++) {
+                if (positions[i] == position) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Put currently takes log(n) space on the stack. We can convert this to a loop but would need to
+    // read each node twice in the worst case.
+    private RBTNode put(long position, long key, byte[] byteKey, long value, byte[] inline, WritePath path)
+            throws IOException {
+        path.lock(position);
+        BTreeNode root = getBTreeNodeAtIndex(position);
+        boolean overwrite = root.isLeaf && root.rbTree.getEntry(key, byteKey) != null;
+        if ((overwrite && !compressed) || (!counted && hasRoom(root))) {
+            // This node takes one more key without splitting, so nothing above it can change. The counts above
+            // change with every new key though, unless the key is only overwritten. A compressed leaf can
+            // outgrow its page when a value is overwritten
+            path.releaseAncestors();
+        }
+        if (root.isLeaf) {
+            path.added = !overwrite;
+            RBTNode max = root.rbTree.maxEntry();
+            boolean rightmost = root.nextLeafPos <= 0;
+            path.appended = isAppend(root, key, byteKey);
+            RBTNode toPut = _putInternal(root, key, byteKey, value, inline, path); // Just put it like that for leaf
+            if (rightmost) {
+                // Any new rightmost leaf is the last piece of the split. The latch of this leaf is still held
+                rightmostKey = max == null ? key : Math.max(key, max.key);
+                rightmostLeaf = toPut == null ? position : toPut.value;
+            }
+            return toPut;
+        } else { // For parents first let it go to child then pick up floated middle terms if any
+            long valueLower = root.getLower(key, byteKey);
+            RBTNode toPut = put(valueLower, key, byteKey, value, inline, path);
+            if (toPut == null && !(counted && path.added)) {
+                return null;
+            }
+            BTreeNode node = root.copy();
+            if (counted) {
+                node.setLower(key, byteKey, valueLower, getBTreeNodeAtIndex(valueLower).count());
+            }
+            if (toPut != null) {
+                node.rbTree.put(toPut);
+            }
+            // A new rightmost leaf has the largest key of the tree, so its separator is the largest in node
+            List<RBTNode> separators = splitAndWrite(node, path, path.appended && toPut != null);
+            return separators.isEmpty() ? null : separators.get(0);
+        }
+    }
+
+    /**
+     * Puts key with value. Trees with 32 bit keys only take keys in the range of an int, see BTreeConfig.keyType
+     */
+    public void put(long key, byte[] value) throws IOException {
+        checkKey(key);
+        putEntry(key, null, value);
+    }
+
+    /**
+     * @param byteKey - the byte array key of a tree with byte array keys, whose prefix key is. Null otherwise
+     */
+    private void putEntry(long key, byte[] byteKey, byte[] value) throws IOException {
+        if (metrics == null) {
+            putTimed(key, byteKey, value);
+            return;
+        }
+        long start = System.nanoTime();
+        putTimed(key, byteKey, value);
+        metrics.puts.increment();
+        metrics.putLatency.record(start);
+    }
+
+    private void putTimed(long key, byte[] byteKey, byte[] value) throws IOException {
+        if (copyOnWrite) {
+            long lsn = 0;
+            long stamp = lock.writeLock();
+            try {
+                byte[][] keyBytes = byteKey == null ? null : new byte[][]{byteKey};
+                if (log != null) {
+                    lsn = log.append(new long[]{key}, keyBytes, new byte[][]{value});
+                }
+                commit(putAllShadowed(new long[]{key}, keyBytes, new long[]{valuePointer(value)},
+                        new byte[][]{inlineValue(value)}, 1));
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            // Other writers can go ahead while this one waits for the log
+            awaitLog(lsn);
+            return;
+        }
+        long stamp = lock.readLock();
+        try {
+            putLatched(key, byteKey, value);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private void putLatched(long key, byte[] byteKey, byte[] value) throws IOException {
+        long valueInd = valuePointer(value);
+        byte[] inline = inlineValue(value);
+        if (append(key, byteKey, valueInd, inline)) {
+            return;
+        }
+        WritePath path = new WritePath();
+        try {
+            path.lockRoot();
+            RBTNode toPut = put(rootPosition, key, byteKey, valueInd, inline, path);
+            if (toPut != null) {
+                // The root split, so rootLatch is still held
+                publishRoot(growRoot(rootPosition, Collections.singletonList(toPut)));
+            }
+        } finally {
+            path.releaseAll();
+        }
+    }
+
+    /**
+     * Puts a key that is larger than all others straight into the rightmost leaf if the leaf has room for it, so
+     * that keys put in ascending order, e.g. timestamps, do not descend from the root every time. Trees that count
+     * their keys have to update every node on the way down, so they always take the normal way.
+     * @return false if the key has to go the normal way
+     */
+    private boolean append(long key, byte[] byteKey, long value, byte[] inline) throws IOException {
+        long leaf = rightmostLeaf;
+        // Byte array keys with the same prefix as the largest key may still be larger than it
+        if (leaf <= 0 || counted || key < rightmostKey || key == rightmostKey && byteKey == null) {
+            return false;
+        }
+        latches.lock(leaf);
+        try {
+            // The leaf may have been freed in the meantime, see freePage, or split, which gives it a next leaf
+            if (rightmostLeaf != leaf) {
+                return false;
+            }
+            BTreeNode node = getBTreeNodeAtIndex(leaf);
+            RBTNode max = node.rbTree.maxEntry();
+            if (!node.isLeaf || node.nextLeafPos > 0 || max == null || RedBlackTree.compare(key, byteKey, max) <= 0
+                    || !hasRoom(node)) {
+                return false;
+            }
+            // The rightmost leaf covers every key from its separator up, which key is above
+            BTreeNode copy = node.copy();
+            copy.rbTree.put(key, byteKey, value, inline, 0);
+            writeNode(copy);
+            rightmostKey = key;
+            return true;
+        } finally {
+            latches.unlock(leaf);
+        }
+    }
+
+    /**
+     * Puts a batch of keys. The batch is sorted and grouped by the leaf every key goes to so that every
+     * modified node is written once and all values are appended to the value file with a single write.
+     * If a key occurs more than once in the batch the last value wins. Other writers wait for the batch.
+     */
+    public void putAll(int[] keys, byte[][] values) throws IOException {
+        long[] longKeys = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            longKeys[i] = keys[i];
+        }
+        putAll(longKeys, values);
+    }
+
+    /**
+     * Same as putAll for keys that do not fit in an int, see BTreeConfig.keyType
+     */
+    public void putAll(long[] keys, byte[][] values) throws IOException {
+        for (long key : keys) {
+            checkKey(key);
+        }
+        if (keys.length != values.length) {
+            throw new IllegalArgumentException("Got " + keys.length + " keys but " + values.length + " values");
+        }
+        if (keys.length == 0) {
+            return;
+        }
+        if (metrics != null) {
+            metrics.puts.add(keys.length);
+        }
+        long lsn = 0;
+        long stamp = lock.writeLock();
+        try {
+            if (log != null) {
+                lsn = log.append(keys, null, values);
+            }
+            putAllLocked(keys, null, values);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        awaitLog(lsn);
+    }
+
+    /**
+     * @param keyBytes - the byte array keys of a tree with byte array keys, whose prefixes keys are. Null otherwise
+     */
+    private void putAllLocked(long[] keys, byte[][] keyBytes, byte[][] values) throws IOException {
+        // Positions in the batch sorted by key. The sort is stable, so the last value of a key comes last
+        int[] order = sortedOrder(keys, keyBytes);
+        int unique = 0;
+        int valueBytes = 0;
+        // Deflated values by position in the batch
+        byte[][] records = new byte[keys.length][];
+        for (int i = 0; i < order.length; i++) {
+            if (i + 1 < order.length && compare(keys, keyBytes, order[i + 1], order[i]) == 0) {
+                continue; // A later value for the same key replaces this one
+            }
+            order[unique++] = order[i];
+            int length = values[order[i]].length;
+            if (!fitsInLeaf(length)) {
+                records[order[i]] = valueRecord(values[order[i]]);
+                valueBytes += records[order[i]] != null ? records[order[i]].length : 4 + length;
+            }
+        }
+        // Write all the values that are not stored in the leaves as one region of the value file
+        ByteBuffer region = ByteBuffer.allocate(valueBytes);
+        long[] sortedKeys = new long[unique];
+        byte[][] sortedBytes = keyBytes == null ? null : new byte[unique][];
+        long[] pointers = new long[unique];
+        byte[][] inline = new byte[unique][];
+        for (int i = 0; i < unique; i++) {
+            byte[] value = values[order[i]];
+            sortedKeys[i] = keys[order[i]];
+            if (sortedBytes != null) {
+                sortedBytes[i] = keyBytes[order[i]];
+            }
+            inline[i] = inlineValue(value);
+            if (inline[i] != null) {
+                pointers[i] = INLINE_VALUE | value.length;
+            } else if (records[order[i]] != null) {
+                pointers[i] = region.position();
+                region.put(records[order[i]]);
+            } else {
+                pointers[i] = region.position();
+                region.putInt(value.length).put(value);
+            }
+        }
+        long regionStart = valueBytes > 0 ? appendValues(region.array()) : 0;
+        for (int i = 0; i < unique; i++) {
+            if (inline[i] == null) {
+                pointers[i] += regionStart;
+            }
+        }
+        putSorted(sortedKeys, sortedBytes, pointers, inline, unique);
+    }
+
+    /**
+     * Compares the keys at the positions a and b of a batch
+     * @param keyBytes - the byte array keys of the batch, null if the tree has numeric keys
+     */
+    private static int compare(long[] keys, byte[][] keyBytes, int a, int b) {
+        return RedBlackTree.compare(keys[a], byteKey(keyBytes, a), keys[b], byteKey(keyBytes, b));
+    }
+
+    /**
+     * @return the byte array key at index of a batch, null if the tree has numeric keys
+     */
+    private static byte[] byteKey(byte[][] keyBytes, int index) {
+        return keyBytes == null ? null : keyBytes[index];
+    }
+
+    /**
+     * @return the positions of keys in key order, where equal keys keep the order they have in keys. A merge sort
+     * of the positions, so that no key is boxed.
+     */
+    private static int[] sortedOrder(long[] keys, byte[][] keyBytes) {
+        int[] order = new int[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        int[] merged = new int[keys.length];
+        for (int width = 1; width < order.length; width *= 2) {
+            for (int low = 0; low < order.length; low += 2 * width) {
+                int middle = Math.min(low + width, order.length);
+                int high = Math.min(low + 2 * width, order.length);
+                int left = low;
+                int right = middle;
+                int out = low;
+                while (left < middle && right < high) {
+                    // Taking the left one on ties keeps the sort stable
+                    merged[out++] = compare(keys, keyBytes, order[right], order[left]) < 0
+                            ? order[right++] : order[left++];
+                }
+                while (left < middle) {
+                    merged[out++] = order[left++];
+                }
+                while (right < high) {
+                    merged[out++] = order[right++];
+                }
+            }
+            int[] sorted = merged;
+            merged = order;
+            order = sorted;
+        }
+        return order;
+    }
+
+    /**
+     * Puts the first count keys, which are sorted and unique, with the pointers to their values and the values
+     * that are stored in the leaves. The caller must hold lock exclusively.
+     */
+    private void putSorted(long[] sortedKeys, byte[][] keyBytes, long[] pointers, byte[][] inline, int unique)
+            throws IOException {
+        if (copyOnWrite) {
+            commit(putAllShadowed(sortedKeys, keyBytes, pointers, inline, unique));
+            return;
+        }
+        // Other writers are locked out, but readers still need to see the latches of the nodes that change
+        long rootStamp = rootLatch.writeLock();
+        try {
+            List<RBTNode> separators = putAll(rootPosition, true, sortedKeys, keyBytes, pointers, inline, 0, unique);
+            if (!separators.isEmpty()) {
+                publishRoot(growRoot(rootPosition, separators));
+            }
+        } finally {
+            rootLatch.unlockWrite(rootStamp);
+        }
+    }
+
+    /**
+     * Puts the sorted keys [from, to) into the subtree rooted at the node at position.
+     * @param rightEdge - whether the node is the last one of its level
+     * @return the separators of nodes split off from the node, which the caller has to put into the parent
+     */
+    private List<RBTNode> putAll(long position, boolean rightEdge, long[] keys, byte[][] keyBytes, long[] pointers,
+                                 byte[][] inline, int from, int to) throws IOException {
+        latches.lock(position);
+        try {
+            BTreeNode node = getBTreeNodeAtIndex(position);
+            boolean appended = rightEdge && isAppend(node, keys[from], byteKey(keyBytes, from));
+            if (node.isLeaf) {
+                node = node.copy();
+                for (int i = from; i < to; i++) {
+                    node.rbTree.put(keys[i], byteKey(keyBytes, i), pointers[i], inline[i], 0);
+                }
+                return splitAndWrite(node, null, appended);
+            }
+            // Hand every run of keys that goes to the same child down in one go
+            List<RBTNode> childSeparators = new ArrayList<>();
+            BTreeNode copy = node.copy();
+            int i = from;
+            while (i < to) {
+                long child = node.getLower(keys[i], byteKey(keyBytes, i));
+                int j = i + 1;
+                while (j < to && node.getLower(keys[j], byteKey(keyBytes, j)) == child) {
+                    j++;
+                }
+                childSeparators.addAll(putAll(child, rightEdge && j == to && isLastChild(node, child), keys, keyBytes,
+                        pointers, inline, i, j));
+                if (counted) {
+                    // Other writers are locked out, so the child can be read after its latch has been let go of
+                    copy.setLower(keys[i], byteKey(keyBytes, i), child, getBTreeNodeAtIndex(child).count());
+                }
+                i = j;
+            }
+            if (childSeparators.isEmpty() && !counted) {
+                return childSeparators; // This node did not change
+            }
+            for (RBTNode separator : childSeparators) {
+                copy.rbTree.put(separator);
+            }
+            return splitAndWrite(copy, null, appended);
+        } finally {
+            latches.unlock(position);
+        }
+    }
+
+    /**
+     * Copy on write version of putAll for the sorted keys [from, to). Nothing that the current root can reach
+     * is changed: the nodes on the way down to the leaves are written to new pages and their old pages retired.
+     * @return the new root, which still has to be committed
+     */
+    private long putAllShadowed(long[] keys, byte[][] keyBytes, long[] pointers, byte[][] inline, int count)
+            throws IOException {
+        List<RBTNode> separators = new ArrayList<>();
+        long root = putAllShadowed(rootPosition, true, keys, keyBytes, pointers, inline, 0, count, separators);
+        return growRoot(root, separators);
+    }
+
+    /**
+     * Puts the sorted keys [from, to) into a copy of the subtree rooted at the node at position.
+     * @param rightEdge - whether the node is the last one of its level
+     * @param separators - receives the separators of nodes split off from the copy
+     * @return the position of the copy
+     */
+    private long putAllShadowed(long position, boolean rightEdge, long[] keys, byte[][] keyBytes, long[] pointers,
+                                byte[][] inline, int from, int to, List<RBTNode> separators) throws IOException {
+        BTreeNode node = getBTreeNodeAtIndex(position);
+        boolean appended = rightEdge && isAppend(node, keys[from], byteKey(keyBytes, from));
+        BTreeNode copy = node.copyTo(allocatePage());
+        if (node.isLeaf) {
+            for (int i = from; i < to; i++) {
+                copy.rbTree.put(keys[i], byteKey(keyBytes, i), pointers[i], inline[i], 0);
+            }
+        } else {
+            List<RBTNode> childSeparators = new ArrayList<>();
+            int i = from;
+            while (i < to) {
+                long child = node.getLower(keys[i], byteKey(keyBytes, i));
+                int j = i + 1;
+                while (j < to && node.getLower(keys[j], byteKey(keyBytes, j)) == child) {
+                    j++;
+                }
+                long childCopy = putAllShadowed(child, rightEdge && j == to && isLastChild(node, child), keys,
+                        keyBytes, pointers, inline, i, j, childSeparators);
+                copy.setLower(keys[i], byteKey(keyBytes, i), childCopy, getBTreeNodeAtIndex(childCopy).count());
+                i = j;
+            }
+            for (RBTNode separator : childSeparators) {
+                copy.rbTree.put(separator);
+            }
+        }
+        separators.addAll(splitAndWrite(copy, null, appended));
+        retiring.add(position);
+        return copy.selfPosition;
+    }
+
+    /**
+     * Deletes key from the tree. A node other than the root that is left with fewer than nodeSize / 2 keys, or
+     * that fills less than half its page if the tree is compressed, takes a key from a sibling next to it, or is
+     * merged into it if the sibling has none to spare. The page
+     * of a merged node goes on the free list. A root that is left with a single child is replaced by it.
+     * @return whether the key was in the tree
+     */
+    public boolean delete(long key) throws IOException {
+        checkNotByteKeys();
+        return deleteEntry(key, null);
+    }
+
+    /**
+     * @param byteKey - the byte array key of a tree with byte array keys, whose prefix key is. Null otherwise
+     */
+    private boolean deleteEntry(long key, byte[] byteKey) throws IOException {
+        if (metrics == null) {
+            return deleteTimed(key, byteKey);
+        }
+        long start = System.nanoTime();
+        boolean deleted = deleteTimed(key, byteKey);
+        metrics.deleteLatency.record(start);
+        return deleted;
+    }
+
+    private boolean deleteTimed(long key, byte[] byteKey) throws IOException {
+        if (copyOnWrite) {
+            long lsn = 0;
+            boolean deleted;
+            long stamp = lock.writeLock();
+            try {
+                if (log != null) {
+                    lsn = log.append(new long[]{key}, byteKey == null ? null : new byte[][]{byteKey},
+                            new byte[][]{null});
+                }
+                deleted = deleteShadowed(key, byteKey);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            awaitLog(lsn);
+            return deleted;
+        }
+        long stamp = lock.readLock();
+        try {
+            return deleteLatched(key, byteKey);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private boolean deleteLatched(long key, byte[] byteKey) throws IOException {
+        WritePath path = new WritePath();
+        try {
+            path.lockRoot();
+            long position = rootPosition;
+            BTreeNode root = delete(position, key, byteKey, true, path);
+            if (root == null) {
+                return false;
+            }
+            if (keyCount(root) == 0 && !root.isLeaf) {
+                // The root lost its last key, so rootLatch is still held
+                reparent(root.phi, -1, path);
+                publishRoot(root.phi);
+                freePage(position);
+            }
+            return true;
+        } finally {
+            path.releaseAll();
+        }
+    }
+
+    /**
+     * Copy on write version of delete. The nodes on the way down to the leaf are written to new pages.
+     */
+    private boolean deleteShadowed(long key, byte[] byteKey) throws IOException {
+        BTreeNode root = delete(rootPosition, key, byteKey, true, null);
+        if (root == null) {
+            return false;
+        }
+        if (keyCount(root) == 0 && !root.isLeaf) {
+            // The copy of the root was never written
+            freePage(root.selfPosition);
+            commit(root.phi);
+        } else {
+            commit(root.selfPosition);
+        }
+        return true;
+    }
+
+    /**
+     * Deletes key from the subtree rooted at the node at position.
+     * @param path - latches held in place, null copy on write. See put
+     * @return null if the key is not in the subtree. Otherwise the node at the top of the subtree: it has been
+     * written unless it has too few keys, see underflows, in which case the caller fixes it up with a sibling
+     * and writes it. The root is written unless it is an inner node without keys.
+     */
+    private BTreeNode delete(long position, long key, byte[] byteKey, boolean isRoot, WritePath path)
+            throws IOException {
+        if (path != null) {
+            path.lock(position);
+        }
+        BTreeNode node = getBTreeNodeAtIndex(position);
+        boolean released = false;
+        if (path != null && !counted && (isRoot ? node.isLeaf || keyCount(node) > 1 : hasSpare(node))) {
+            // This node keeps enough keys even if a child is merged into another, so nothing above it changes.
+            // The counts above change with every delete though
+            path.releaseAncestors();
+            released = true;
+        }
+        BTreeNode copy;
+        if (node.isLeaf) {
+            if (node.rbTree.getEntry(key, byteKey) == null) {
+                return null;
+            }
+            copy = modifiable(node);
+            copy.rbTree.delete(key, byteKey);
+        } else {
+            long child = node.getLower(key, byteKey);
+            BTreeNode changed = delete(child, key, byteKey, false, path);
+            if (changed == null) {
+                return null;
+            }
+            // A split can leave an inner node with too few keys already. If the latch of this node has been let go
+            // the subtree below kept enough keys, so such a child is left as it is rather than fixed up unlatched
+            boolean underflow = underflows(changed) && (path == null || path.holds(position));
+            if (changed.selfPosition == child && !underflow && !counted) {
+                return node; // Written in place without touching this node
+            }
+            copy = modifiable(node);
+            normalize(copy);
+            copy.setLower(key, byteKey, changed.selfPosition, changed.count());
+            if (underflow) {
+                rebalance(copy, key, byteKey, changed, path);
+            }
+            if (isRoot && keyCount(copy) == 0) {
+                return copy; // The caller replaces the root with its only child
+            }
+        }
+        // Entries of a compressed node differ in size, so one can be left with too few keys after all. Nothing
+        // above fixes it up once the latches above have been let go
+        if (isRoot || released || !underflows(copy)) {
+            writeNode(copy);
+        }
+        return copy;
+    }
+
+    /**
+     * @return the number of keys of node. An inner node without phi keeps the smallest key it covers as its first
+     * key, which does not count.
+     */
+    private static int keyCount(BTreeNode node) {
+        return node.isLeaf || node.phi > 0 ? node.rbTree.size() : node.rbTree.size() - 1;
+    }
+
+    /**
+     * @return whether node has too few keys, or fills less than half its page if the tree is compressed
+     */
+    private boolean underflows(BTreeNode node) {
+        return compressed ? node.compressedSize(counted) < capacity / 2 : keyCount(node) < nodeSize / 2;
+    }
+
+    /**
+     * @return whether node still has enough keys after losing one
+     */
+    private boolean hasSpare(BTreeNode node) {
+        if (!compressed) {
+            return keyCount(node) > nodeSize / 2;
+        }
+        // Removing a key takes at most its own entry and the one after it off the page
+        return node.compressedSize(counted) - 2 * maxEntrySize(node.isLeaf) >= capacity / 2;
+    }
+
+    /**
+     * Turns the first child of an inner node without phi into its phi, so that every child but phi has the key
+     * that separates it from the child before it.
+     */
+    private static void normalize(BTreeNode node) {
+        if (!node.isLeaf && node.phi <= 0 && node.rbTree.size() > 0) {
+            RBTNode first = node.rbTree.minEntry();
+            node.phi = first.value;
+            node.phiCount = first.count;
+            node.rbTree.delete(first.key, first.bytes);
+        }
+    }
+
+    /**
+     * @return a copy of node to modify, at the same position in place or on a new page copy on write
+     */
+    private BTreeNode modifiable(BTreeNode node) throws IOException {
+        if (!copyOnWrite) {
+            return node.copy();
+        }
+        retiring.add(node.selfPosition);
+        return node.copyTo(allocatePage());
+    }
+
+    /**
+     * Fixes up node, a child of parent that has too few keys, with the sibling before it or, if node is the first
+     * child, the sibling after it. The sibling gives node a key if it has one to spare, otherwise the right one
+     * of the two is merged into the left one and its page freed. Writes node and the sibling, but not parent.
+     * @param parent - a normalized copy of the parent
+     * @param key - the key deleted below node
+     * @param byteKey - its byte array key, null unless the tree has byte array keys
+     */
+    private void rebalance(BTreeNode parent, long key, byte[] byteKey, BTreeNode node, WritePath path)
+            throws IOException {
+        normalize(node);
+        if (parent.rbTree.size() == 0) {
+            // A bulk load can leave an inner node with nothing but phi. The parent is fixed up in turn
+            writeNode(node);
+            return;
+        }
+        RBTNode nodeEntry = parent.rbTree.getLowerEntry(key, byteKey);
+        // Entry of the left one of the two nodes in parent, null for phi, and the entry that separates them. Both
+        // are copies, since deletes move keys between the entries of a tree
+        RBTNode leftEntry;
+        RBTNode separator;
+        long siblingPosition;
+        if (nodeEntry == null) {
+            leftEntry = null;
+            separator = parent.rbTree.minEntry().copyEntry();
+            siblingPosition = separator.value;
+        } else {
+            RBTNode below = parent.rbTree.getBelowEntry(nodeEntry.key, nodeEntry.bytes);
+            leftEntry = below == null ? null : below.copyEntry();
+            separator = nodeEntry.copyEntry();
+            siblingPosition = leftEntry == null ? parent.phi : leftEntry.value;
+        }
+        if (path != null) {
+            latches.lock(siblingPosition);
+        }
+        try {
+            BTreeNode cached = getBTreeNodeAtIndex(siblingPosition);
+            boolean merge;
+            if (compressed) {
+                BTreeNode sibling = cached.copy();
+                normalize(sibling);
+                BTreeNode left = nodeEntry == null ? node : sibling;
+                BTreeNode right = nodeEntry == null ? sibling : node;
+                merge = mergeFits(left, right, separator);
+                if (!merge && !borrowFits(parent, separator, left, right, sibling == right)) {
+                    // The parent is too full for a longer separator. Node is left with too few keys
+                    writeNode(node);
+                    return;
+                }
+            } else {
+                merge = keyCount(cached) <= nodeSize / 2;
+            }
+            BTreeNode sibling = modifiable(cached);
+            normalize(sibling);
+            BTreeNode left = nodeEntry == null ? node : sibling;
+            BTreeNode right = nodeEntry == null ? sibling : node;
+            parent.rbTree.delete(separator.key, separator.bytes);
+            if (!merge) {
+                RBTNode newSeparator;
+                if (sibling == right) {
+                    RBTNode first = right.rbTree.minEntry().copyEntry();
+                    right.rbTree.delete(first.key, first.bytes);
+                    if (left.isLeaf) {
+                        left.rbTree.put(first);
+                        newSeparator = right.rbTree.minEntry().copyEntry();
+                    } else {
+                        // The separator comes down to the first child of right, which moves over to left
+                        left.rbTree.put(separator.key, separator.bytes, right.phi, null, right.phiCount);
+                        reparent(right.phi, left.selfPosition, path);
+                        right.phi = first.value;
+                        right.phiCount = first.count;
+                        newSeparator = first;
+                    }
+                } else {
+                    RBTNode last = left.rbTree.maxEntry().copyEntry();
+                    left.rbTree.delete(last.key, last.bytes);
+                    if (left.isLeaf) {
+                        right.rbTree.put(last);
+                    } else {
+                        right.rbTree.put(separator.key, separator.bytes, right.phi, null, right.phiCount);
+                        right.phi = last.value;
+                        right.phiCount = last.count;
+                        reparent(last.value, right.selfPosition, path);
+                    }
+                    newSeparator = last;
+                }
+                parent.rbTree.put(newSeparator.key, newSeparator.bytes, right.selfPosition, null, right.count());
+                writeNode(right);
+            } else {
+                if (left.isLeaf) {
+                    left.nextLeafPos = right.nextLeafPos;
+                } else {
+                    left.rbTree.put(separator.key, separator.bytes, right.phi, null, right.phiCount);
+                    reparent(right.phi, left.selfPosition, path);
+                }
+                for (RBTNode entry : right.rbTree) {
+                    left.rbTree.put(entry);
+                    if (!left.isLeaf) {
+                        reparent(entry.value, left.selfPosition, path);
+                    }
+                }
+                // In place the latch of right is held, copy on write its copy was never written
+                freePage(right.selfPosition);
+            }
+            if (leftEntry == null) {
+                parent.phi = left.selfPosition;
+                parent.phiCount = left.count();
+            } else {
+                parent.rbTree.put(leftEntry.key, leftEntry.bytes, left.selfPosition, null, left.count());
+            }
+            writeNode(left);
+        } finally {
+            if (path != null) {
+                latches.unlock(siblingPosition);
+            }
+        }
+    }
+
+    /**
+     * @return whether the compressed nodes left and right, normalized, fit in one page together
+     */
+    private boolean mergeFits(BTreeNode left, BTreeNode right, RBTNode separator) {
+        BTreeNode merged = left.copy();
+        if (!left.isLeaf) {
+            merged.rbTree.put(separator.key, separator.bytes, right.phi, null, right.phiCount);
+        }
+        for (RBTNode entry : right.rbTree) {
+            merged.rbTree.put(entry);
+        }
+        return !overflows(merged);
+    }
+
+    /**
+     * @return whether the compressed node right, or left if fromRight is false, can give a key to the other one
+     * and parent still fits in its page with the separator that then replaces separator. See rebalance
+     */
+    private boolean borrowFits(BTreeNode parent, RBTNode separator, BTreeNode left, BTreeNode right,
+                               boolean fromRight) {
+        BTreeNode from = fromRight ? right : left;
+        if (from.rbTree.size() < (from.isLeaf ? 2 : 1)) {
+            return false;
+        }
+        RBTNode newSeparator;
+        long count = right.count();
+        if (fromRight) {
+            RBTNode first = right.rbTree.minEntry();
+            newSeparator = left.isLeaf ? right.rbTree.getHigherEntry(first.key, first.bytes) : first;
+            count -= left.isLeaf ? 1 : right.phiCount;
+        } else {
+            RBTNode last = left.rbTree.maxEntry();
+            newSeparator = last;
+            count += left.isLeaf ? 1 : last.count;
+        }
+        BTreeNode trial = parent.copy();
+        trial.rbTree.delete(separator.key, separator.bytes);
+        trial.rbTree.put(newSeparator.key, newSeparator.bytes, right.selfPosition, null, count);
+        return !overflows(trial);
+    }
+
+    /**
+     * Makes parent the parent of the node at position, unless it is copy on write and keeps no parent pointers.
+     * @param path - latches held by the caller, which are not taken again
+     */
+    private void reparent(long position, long parent, WritePath path) throws IOException {
+        if (copyOnWrite) {
+            return;
+        }
+        boolean held = path != null && path.holds(position);
+        if (!held) {
+            latches.lock(position);
+        }
+        try {
+            BTreeNode node = getBTreeNodeAtIndex(position);
+            if (node.parent != parent) {
+                BTreeNode copy = node.copy();
+                copy.parent = parent;
+                writeNode(copy);
+            }
+        } finally {
+            if (!held) {
+                latches.unlock(position);
+            }
+        }
+    }
+
+    /**
+     * @return the entry that goes into the parent for node, which starts with first, the key after last. Leaves
+     * with byte array keys are split at the shortest key between the two, see ByteKeys.separator. The first key of
+     * an inner node stays in it, so it is the separator in full.
+     */
+    private static RBTNode separator(RBTNode last, RBTNode first, BTreeNode node) {
+        RBTNode separator;
+        if (first.bytes != null && node.isLeaf) {
+            byte[] bytes = ByteKeys.separator(last.bytes, first.bytes);
+            separator = new RBTNode(ByteKeys.prefix(bytes), node.selfPosition, RedBlackTree.Color.BLACK);
+            separator.bytes = bytes;
+        } else {
+            separator = new RBTNode(first.key, node.selfPosition, RedBlackTree.Color.BLACK);
+            separator.bytes = first.bytes;
+        }
+        return separator;
+    }
+
+    /**
+     * Puts new roots above root until the separators that were split off from it fit into one node.
+     * @return the position of the new root
+     */
+    private long growRoot(long root, List<RBTNode> separators) throws IOException {
+        while (!separators.isEmpty()) {
+            // In place, splitAndWrite reserved the slot for the new root and made it the parent of the old root
+            long position = copyOnWrite ? allocatePage() : getBTreeNodeAtIndex(root).parent;
+            BTreeNode newRoot = new BTreeNode(new RedBlackTree(), false, -1, root, position, -1);
+            newRoot.phiCount = getBTreeNodeAtIndex(root).count();
+            for (RBTNode separator : separators) {
+                newRoot.rbTree.put(separator);
+            }
+            // A large batch can split the root into more nodes than fit in one new root
+            separators = splitAndWrite(newRoot, null);
+            root = position;
+        }
+        return root;
+    }
+
+    /**
+     * Makes position the root of a tree that is written in place. The caller must hold rootLatch.
+     */
+    private void publishRoot(long position) throws IOException {
+        rootPosition = position;
+        writeRootAddress(position);
+    }
+
+    /**
+     * Makes root the root of a copy on write tree. Everything root can reach has been written, so the lengths
+     * are recorded before the root address is swapped. The pages retired on the way can be reused once no
+     * snapshot older than this commit is open.
+     */
+    private void commit(long root) throws IOException {
+        rootPosition = root;
+        writeRootAddress(root);
+        long committed = version + 1;
+        version = committed;
+        for (long page : retiring) {
+            retired.add(new long[]{committed, page});
+        }
+        retiring.clear();
+        reclaim();
+    }
+
+    /**
+     * Frees the retired pages and deletes the retired value files that no open snapshot can reach anymore.
+     */
+    private void reclaim() throws IOException {
+        Iterator<Snapshot> open = pins.iterator();
+        long oldest = open.hasNext() ? open.next().version : version;
+        // A snapshot of version v reads a root committed at v or later, which cannot reach pages retired at v
+        while (!retired.isEmpty() && retired.peekFirst()[0] <= oldest) {
+            freePage(retired.pollFirst()[1]);
+        }
+        while (!retiredValueFiles.isEmpty() && retiredValueFiles.peekFirst()[0] <= oldest) {
+            deleteValueFile((int) retiredValueFiles.pollFirst()[1]);
+        }
+    }
+
+    /**
+     * @return the position of a page for a new node. Pages on the free list are reused before the file grows.
+     */
+    private long allocatePage() throws IOException {
+        synchronized (freeListLock) {
+            if (freeList > 0) {
+                long page = freeList;
+                freeList = handler.getLong(page + 1);
+                writeFreeList();
+                return page;
+            }
+        }
+        return newPage();
+    }
+
+    /**
+     * @return a page at the end of the index file
+     */
+    private long newPage() throws IOException {
+        long position = handler.allocate(batchsize);
+        recordLengths();
+        return position;
+    }
+
+    /**
+     * Puts the page at position on the free list. Nothing may read the page anymore: in place the caller holds
+     * the latch of the page and has removed every pointer to it, copy on write no snapshot can reach it.
+     * Legacy files have no header to keep the list in, so their pages are not reused.
+     */
+    private void freePage(long position) throws IOException {
+        if (position == rightmostLeaf) {
+            rightmostLeaf = -1;
+        }
+        if (format == BTreeNode.FORMAT_V1) {
+            return;
+        }
+        cache.remove(position);
+        synchronized (freeListLock) {
+            handler.writeBatch(ByteBuffer.allocate(9).put(FREE_PAGE).putLong(freeList).array(), position);
+            freeList = position;
+            writeFreeList();
+        }
+    }
+
+    /**
+     * Records the first page of the free list in the header as a page number, 0 if the list is empty.
+     * The caller must hold freeListLock.
+     */
+    private void writeFreeList() throws IOException {
+        if (format != BTreeNode.FORMAT_V1) {
+            int freePage = freeList < 0 ? 0 : (int) ((freeList - firstPage) / batchsize) + 1;
+            handler.write(ByteBuffer.allocate(4).putInt(freePage).array(), 4, FREE_LIST_OFFSET);
+        }
+    }
+
+    /**
+     * Pins the latest root of a copy on write tree.
+     */
+    Snapshot pin() {
+        while (true) {
+            long pinned = version;
+            Snapshot snapshot = new Snapshot(this, pinned, rootPosition);
+            pins.add(snapshot);
+            // A commit in between may already have decided to reuse pages that the snapshot can reach
+            if (version == pinned) {
+                return snapshot;
+            }
+            pins.remove(snapshot);
+        }
+    }
+
+    void release(Snapshot snapshot) {
+        if (pins.remove(snapshot) && !retiredValueFiles.isEmpty()) {
+            // The snapshot may have been the last one reading old value files. Writers reclaim on every commit,
+            // so there is no need to wait for one that is running
+            long stamp = lock.tryWriteLock();
+            if (stamp != 0) {
+                try {
+                    reclaim();
+                } catch (IOException e) {
+                    // The files are deleted by a later commit or by close
+                } finally {
+                    lock.unlockWrite(stamp);
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a point in time view of the tree. Only trees created with BTreeConfig.copyOnWrite support snapshots.
+     * The snapshot has to be closed, since the pages it reads are not reused before.
+     */
+    public Snapshot snapshot() {
+        if (!copyOnWrite) {
+            throw new IllegalStateException("Snapshots need a tree created with BTreeConfig.copyOnWrite");
+        }
+        return pin();
+    }
+
+    /**
+     * Writes the root position at the beginning of the file
+     */
+    private void writeRootAddress(long position) throws IOException {
+        if (format == BTreeNode.FORMAT_V1) {
+            handler.write(ByteBuffer.allocate(4).putInt((int) position).array(), 4, 0);
+        } else {
+            handler.putLong(ROOT_OFFSET, position);
+        }
+    }
+
+    /**
+     * Loads a sorted stream of key value pairs into an empty tree with completely packed nodes.
+     * @see #bulkLoad(Iterator, double)
+     */
+    public void bulkLoad(Iterator<Tuple<Integer, byte[]>> entries) throws IOException {
+        bulkLoad(entries, 1.0);
+    }
+
+    /**
+     * Loads a stream of key value pairs sorted by strictly increasing key into an empty tree. The values and
+     * the leaves are written sequentially, then every level of inner nodes is built bottom up from the first
+     * key of each node below it. The root address is only published once the whole tree has been written.
+     * @param entries - key value pairs in strictly increasing key order
+     * @param fillFactor - fraction of nodeSize keys, or of the page of a compressed tree, put in every node, in
+     *                   (0, 1]. Leaving room in the nodes avoids splits when keys are put into the tree later.
+     */
+    public void bulkLoad(Iterator<Tuple<Integer, byte[]>> entries, double fillFactor) throws IOException {
+        bulkLoadKeys(entries, fillFactor);
+    }
+
+    /**
+     * Same as bulkLoad for trees with keys that do not fit in an int, see BTreeConfig.keyType
+     */
+    public void bulkLoadLong(Iterator<Tuple<Long, byte[]>> entries) throws IOException {
+        bulkLoadLong(entries, 1.0);
+    }
+
+    public void bulkLoadLong(Iterator<Tuple<Long, byte[]>> entries, double fillFactor) throws IOException {
+        bulkLoadKeys(entries, fillFactor);
+    }
+
+    private void bulkLoadKeys(Iterator<? extends Tuple<? extends Number, byte[]>> entries, double fillFactor)
+            throws IOException {
+        checkNotByteKeys();
+        if (fillFactor <= 0 || fillFactor > 1) {
+            throw new IllegalArgumentException("Fill factor must be in (0, 1]: " + fillFactor);
+        }
+        long stamp = lock.writeLock();
+        try {
+            bulkLoadLocked(entries, fillFactor);
+            if (log != null) {
+                // Bulk loaded entries are not logged
+                checkpoint();
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void bulkLoadLocked(Iterator<? extends Tuple<? extends Number, byte[]>> entries, double fillFactor)
+            throws IOException {
+        BTreeNode root = getBTreeNodeAtIndex(rootPosition);
+        if (!root.isLeaf || root.rbTree.size() > 0) {
+            throw new IllegalStateException("Bulk loading is only supported on an empty tree");
+        }
+        long loaded = writeTree(new Iterator<RBTNode>() {
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            public RBTNode next() {
+                Tuple<? extends Number, byte[]> entry = entries.next();
+                long key = entry.x.longValue();
+                checkKey(key);
+                try {
+                    return leafEntry(key, valuePointer(entry.y), inlineValue(entry.y));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }, fillFactor);
+        if (loaded < 0) {
+            return; // Nothing to load
+        }
+        swapRoot(loaded, Collections.singletonList(rootPosition));
+    }
+
+    /**
+     * Writes the entries of a whole tree to the end of the index file: the leaves one after the other in key
+     * order, then every level of inner nodes bottom up from the first key of each node below it.
+     * @param entries - leaf entries in strictly increasing key order
+     * @return the position of the root, -1 if there were no entries
+     */
+    private long writeTree(Iterator<RBTNode> entries, double fillFactor) throws IOException {
+        int keysPerNode = Math.max(1, (int) (nodeSize * fillFactor));
+        // Compressed nodes are filled up to a fraction of their page instead
+        int bytesPerNode = (int) (capacity * fillFactor);
+        // First key and position of every node of the level that was written last
+        List<RBTNode> levelKeys = new ArrayList<>();
+        List<Long> levelNodes = new ArrayList<>();
+        // Number of keys below every node of that level
+        List<Long> levelCounts = new ArrayList<>();
+        writeLeaves(entries, fillFactor, -1, -1, levelKeys, levelNodes, levelCounts);
+        if (levelNodes.isEmpty()) {
+            return -1;
+        }
+
+        // Each inner node takes the first child as phi and keysPerNode more children as keys
+        while (levelNodes.size() > 1) {
+            List<RBTNode> parentKeys = new ArrayList<>();
+            List<Long> parentNodes = new ArrayList<>();
+            List<Long> parentCounts = new ArrayList<>();
+            int child = 0;
+            while (child < levelNodes.size()) {
+                long parentPosition = newPage();
+                BTreeNode parent =
+                        new BTreeNode(new RedBlackTree(), false, -1, levelNodes.get(child), parentPosition, -1);
+                parent.phiCount = levelCounts.get(child);
+                parentKeys.add(levelKeys.get(child));
+                writeParentAddress(levelNodes.get(child), parentPosition);
+                child++;
+                int parentBytes = BTreeNode.compressedMetadataSize(false, parent.phiCount, counted);
+                RBTNode previousChild = null;
+                for (int i = 0; child < levelNodes.size(); i++, child++) {
+                    RBTNode entry = levelKeys.get(child).copyEntry();
+                    entry.value = levelNodes.get(child);
+                    entry.inline = null;
+                    entry.count = levelCounts.get(child);
+                    parentBytes += BTreeNode.compressedEntrySize(entry, previousChild, false, counted);
+                    if (compressed ? i > 0 && parentBytes > bytesPerNode : i == keysPerNode) {
+                        break;
+                    }
+                    parent.rbTree.put(entry);
+                    writeParentAddress(entry.value, parentPosition);
+                    previousChild = entry;
+                }
+                writeBatch(parent, parentPosition);
+                parentNodes.add(parentPosition);
+                parentCounts.add(parent.count());
+            }
+            levelKeys = parentKeys;
+            levelNodes = parentNodes;
+            levelCounts = parentCounts;
+        }
+        return levelNodes.get(0);
+    }
+
+    /**
+     * Writes leaf entries to new leaves one after the other at the end of the index file, each filled to
+     * fillFactor and linked to the next one in the leaf chain.
+     * @param entries - leaf entries in strictly increasing key order
+     * @param parent - the parent of the new leaves, -1 if it is not known yet
+     * @param nextLeaf - the leaf after the last new leaf, -1 if there is none
+     * @param keys - receives the first entry of every new leaf
+     * @param nodes - receives the position of every new leaf
+     * @param counts - receives the number of keys of every new leaf
+     */
+    private void writeLeaves(Iterator<RBTNode> entries, double fillFactor, long parent, long nextLeaf,
+                             List<RBTNode> keys, List<Long> nodes, List<Long> counts) throws IOException {
+        int keysPerNode = Math.max(1, (int) (nodeSize * fillFactor));
+        int bytesPerNode = (int) (capacity * fillFactor);
+        // Leaves are written one behind so that each one can be linked to the next in the leaf chain
+        BTreeNode pending = null;
+        RedBlackTree leafKeys = new RedBlackTree();
+        int leafBytes = 0;
+        RBTNode previous = null;
+        try {
+            while (entries.hasNext()) {
+                RBTNode entry = entries.next();
+                if (previous != null && RedBlackTree.compare(entry.key, entry.bytes, previous) <= 0) {
+                    throw new IllegalArgumentException("Keys must be strictly increasing: " + entry.key + " after "
+                            + previous.key);
+                }
+                if (leafKeys.size() > 0 && (compressed
+                        ? leafBytes + BTreeNode.compressedEntrySize(entry, previous, true, counted) > bytesPerNode
+                        : leafKeys.size() == keysPerNode)) {
+                    long position = newPage();
+                    pending = writeBulkLeaf(pending, new BTreeNode(leafKeys, true, parent, -1, position, -1));
+                    nodes.add(position);
+                    counts.add((long) leafKeys.size());
+                    leafKeys = new RedBlackTree();
+                }
+                if (leafKeys.size() == 0) {
+                    keys.add(entry);
+                    leafBytes = BTreeNode.compressedMetadataSize(true, 0, counted);
+                }
+                leafBytes += BTreeNode.compressedEntrySize(entry, leafKeys.size() == 0 ? null : previous, true, counted);
+                leafKeys.put(entry.key, entry.bytes, entry.value, entry.inline, 0);
+                previous = entry;
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (leafKeys.size() > 0) {
+            long position = newPage();
+            pending = writeBulkLeaf(pending, new BTreeNode(leafKeys, true, parent, -1, position, -1));
+            nodes.add(position);
+            counts.add((long) leafKeys.size());
+        }
+        if (pending != null) {
+            pending.nextLeafPos = nextLeaf;
+            writeBatch(pending, pending.selfPosition);
+        }
+    }
+
+    private static RBTNode leafEntry(long key, long value, byte[] inline) {
+        RBTNode entry = new RBTNode(key, value, RedBlackTree.Color.BLACK);
+        entry.inline = inline;
+        return entry;
+    }
+
+    /**
+     * Replaces the whole tree with the tree written by writeTree and gives the pages of the old one back. Copy on
+     * write they are retired, so snapshots can go on reading them. In place every old page is freed while its
+     * latch is held, so optimistic readers that are still on it restart from the new root. The caller must hold
+     * lock exclusively.
+     */
+    private void swapRoot(long root, List<Long> oldPages) throws IOException {
+        if (copyOnWrite) {
+            retiring.addAll(oldPages);
+            commit(root);
+            return;
+        }
+        long rootStamp = rootLatch.writeLock();
+        try {
+            publishRoot(root);
+        } finally {
+            rootLatch.unlockWrite(rootStamp);
+        }
+        for (long page : oldPages) {
+            latches.lock(page);
+            try {
+                freePage(page);
+            } finally {
+                latches.unlock(page);
+            }
+        }
+    }
+
+    /**
+     * Writes the leaves of the tree again with the leaves next to each other in key order at the end of the index
+     * file, every leaf filled to fillFactor. Splits and the free list scatter the leaves of a tree over the file as
+     * it changes; afterwards a range scan reads the index file mostly front to back. The leaves are written the
+     * way compactValues moves values: in batches of the leaves below one inner node, letting go of lock between
+     * batches, so puts and deletes only wait for one batch at a time and gets and scans go on throughout. Keys
+     * put between batches may split leaves that have already been written, and copy on write every put or delete
+     * alongside writes the leaf it changes to a new page, out of order again. The inner nodes stay where they are
+     * and are only split when their new leaves do not fit. The pages of the old leaves go on the free list.
+     * Legacy files cannot be laid out again, since they have no free list to give the old pages back to.
+     * @param fillFactor - fraction of nodeSize keys, or of the page of a compressed tree, put in every leaf, in
+     *                   (0, 1]
+     */
+    public void relayout(double fillFactor) throws IOException {
+        if (fillFactor <= 0 || fillFactor > 1) {
+            throw new IllegalArgumentException("Fill factor must be in (0, 1]: " + fillFactor);
+        }
+        if (format == BTreeNode.FORMAT_V1) {
+            throw new IllegalStateException("Legacy files cannot be laid out again");
+        }
+        RBTNode[] from = {smallestKey()};
+        boolean more = true;
+        while (more) {
+            long stamp = lock.writeLock();
+            try {
+                more = relayoutBatch(from, fillFactor);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+        if (log != null) {
+            long stamp = lock.writeLock();
+            try {
+                // The checkpoint pins the old pages until the next one
+                checkpoint();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Writes the leaves below the lowest inner node on the way to from to new pages at the end of the index file.
+     * The caller must hold lock exclusively.
+     * @param from - the key to continue from, which is moved on to the first key after the leaves written
+     * @return whether there are leaves left
+     */
+    private boolean relayoutBatch(RBTNode[] from, double fillFactor) throws IOException {
+        if (getBTreeNodeAtIndex(rootPosition).isLeaf) {
+            return false; // A single leaf has nothing to be next to
+        }
+        // The smallest key below the inner node and the smallest key after it, found on the way down. Null as long
+        // as there is no such separator
+        RBTNode[] bounds = new RBTNode[2];
+        boolean[] more = {false};
+        if (copyOnWrite) {
+            List<RBTNode> separators = new ArrayList<>();
+            long root = relayoutShadowed(rootPosition, from[0], fillFactor, bounds, more, separators);
+            commit(growRoot(root, separators));
+        } else {
+            // Other writers are locked out, but readers still need to see the latches of the nodes that change
+            long rootStamp = rootLatch.writeLock();
+            try {
+                List<RBTNode> separators = relayoutLeaves(rootPosition, from[0], fillFactor, bounds, more);
+                if (!separators.isEmpty()) {
+                    publishRoot(growRoot(rootPosition, separators));
+                }
+            } finally {
+                rootLatch.unlockWrite(rootStamp);
+            }
+        }
+        from[0] = bounds[1];
+        return more[0];
+    }
+
+    /**
+     * Writes the leaves below the lowest inner node on the way from the node at position to key again.
+     * @param bounds - narrowed down to the smallest key below the node and the smallest key after it
+     * @param more - set if there are keys after the node
+     * @return the separators of nodes split off from the node, which the caller has to put into the parent
+     */
+    private List<RBTNode> relayoutLeaves(long position, RBTNode key, double fillFactor, RBTNode[] bounds,
+                                         boolean[] more) throws IOException {
+        latches.lock(position);
+        try {
+            BTreeNode node = getBTreeNodeAtIndex(position);
+            BTreeNode copy = node.copy();
+            long child = node.getLower(key.key, key.bytes);
+            if (getBTreeNodeAtIndex(child).isLeaf) {
+                List<Long> oldLeaves = replaceLeaves(node, copy, fillFactor);
+                if (bounds[0] != null) {
+                    // Link the leaf before the new ones to the first of them
+                    long previous = leafBefore(bounds[0]);
+                    latches.lock(previous);
+                    try {
+                        BTreeNode linked = getBTreeNodeAtIndex(previous).copy();
+                        linked.nextLeafPos = copy.phi > 0 ? copy.phi : copy.rbTree.min().y;
+                        writeNode(linked);
+                    } finally {
+                        latches.unlock(previous);
+                    }
+                }
+                List<RBTNode> separators = splitAndWrite(copy, null);
+                // Readers that are still on an old leaf see its latch change and start over from the root
+                for (long leaf : oldLeaves) {
+                    latches.lock(leaf);
+                    try {
+                        freePage(leaf);
+                    } finally {
+                        latches.unlock(leaf);
+                    }
+                }
+                return separators;
+            }
+            narrowBounds(node, key, bounds, more);
+            List<RBTNode> childSeparators = relayoutLeaves(child, key, fillFactor, bounds, more);
+            if (childSeparators.isEmpty() && !counted) {
+                return childSeparators; // This node did not change
+            }
+            if (counted) {
+                // Other writers are locked out, so the child can be read after its latch has been let go of
+                copy.setLower(key.key, key.bytes, child, getBTreeNodeAtIndex(child).count());
+            }
+            for (RBTNode separator : childSeparators) {
+                copy.rbTree.put(separator);
+            }
+            return splitAndWrite(copy, null);
+        } finally {
+            latches.unlock(position);
+        }
+    }
+
+    /**
+     * Copy on write version of relayoutLeaves. The nodes on the way down are written to new pages and their old
+     * pages and the old leaves retired.
+     * @param separators - receives the separators of nodes split off from the copy
+     * @return the position of the copy
+     */
+    private long relayoutShadowed(long position, RBTNode key, double fillFactor, RBTNode[] bounds, boolean[] more,
+                                  List<RBTNode> separators) throws IOException {
+        BTreeNode node = getBTreeNodeAtIndex(position);
+        BTreeNode copy = node.copyTo(allocatePage());
+        long child = node.getLower(key.key, key.bytes);
+        if (getBTreeNodeAtIndex(child).isLeaf) {
+            retiring.addAll(replaceLeaves(node, copy, fillFactor));
+        } else {
+            narrowBounds(node, key, bounds, more);
+            List<RBTNode> childSeparators = new ArrayList<>();
+            long childCopy = relayoutShadowed(child, key, fillFactor, bounds, more, childSeparators);
+            copy.setLower(key.key, key.bytes, childCopy, getBTreeNodeAtIndex(childCopy).count());
+            for (RBTNode separator : childSeparators) {
+                copy.rbTree.put(separator);
+            }
+        }
+        separators.addAll(splitAndWrite(copy, null));
+        retiring.add(position);
+        return copy.selfPosition;
+    }
+
+    /**
+     * Narrows bounds down to the keys below the child of the inner node node that key goes to, see relayoutBatch.
+     */
+    private static void narrowBounds(BTreeNode node, RBTNode key, RBTNode[] bounds, boolean[] more) {
+        RBTNode lower = node.rbTree.getLowerEntry(key.key, key.bytes);
+        if (lower != null && (bounds[0] == null || RedBlackTree.compare(lower.key, lower.bytes, bounds[0]) > 0)) {
+            bounds[0] = lower.copyEntry();
+        }
+        RBTNode higher = node.rbTree.getHigherEntry(key.key, key.bytes);
+        if (higher != null) {
+            if (bounds[1] == null || RedBlackTree.compare(higher.key, higher.bytes, bounds[1]) < 0) {
+                bounds[1] = higher.copyEntry();
+            }
+            more[0] = true;
+        }
+    }
+
+    /**
+     * Writes the entries of the leaves below node to new leaves at the end of the index file, each filled to
+     * fillFactor, and makes them the children of copy instead of the old leaves.
+     * @return the positions of the old leaves
+     */
+    private List<Long> replaceLeaves(BTreeNode node, BTreeNode copy, double fillFactor) throws IOException {
+        List<Long> oldLeaves = new ArrayList<>();
+        // An inner node without phi keeps its first child in its entries, see keyCount
+        if (node.phi > 0) {
+            oldLeaves.add(node.phi);
+        }
+        for (RBTNode entry : node.rbTree) {
+            oldLeaves.add(entry.value);
+        }
+        // Copy on write trees have no leaf chain
+        long nextLeaf = copyOnWrite ? -1 : getBTreeNodeAtIndex(oldLeaves.get(oldLeaves.size() - 1)).nextLeafPos;
+        List<RBTNode> keys = new ArrayList<>();
+        List<Long> leaves = new ArrayList<>();
+        List<Long> counts = new ArrayList<>();
+        writeLeaves(new Iterator<RBTNode>() {
+            int leaf = 0;
+            Iterator<RBTNode> entries = Collections.emptyIterator();
+
+            public boolean hasNext() {
+                while (!entries.hasNext() && leaf < oldLeaves.size()) {
+                    try {
+                        entries = getBTreeNodeAtIndex(oldLeaves.get(leaf++)).rbTree.iterator();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return entries.hasNext();
+            }
+
+            public RBTNode next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return entries.next().copyEntry();
+            }
+        }, fillFactor, copy.selfPosition, nextLeaf, keys, leaves, counts);
+        copy.rbTree = new RedBlackTree();
+        for (int i = 0; i < leaves.size(); i++) {
+            if (i == 0 && node.phi > 0) {
+                copy.phi = leaves.get(0);
+                copy.phiCount = counts.get(0);
+            } else {
+                // The smallest key the node covers stays the first key of a node without phi
+                RBTNode first = i == 0 ? node.rbTree.minEntry() : keys.get(i);
+                copy.rbTree.put(first.key, first.bytes, leaves.get(i), null, counts.get(i));
+            }
+        }
+        return oldLeaves;
+    }
+
+    /**
+     * @return the position of the leaf the largest key less than key goes to. The caller must hold lock
+     * exclusively.
+     */
+    private long leafBefore(RBTNode key) throws IOException {
+        long position = rootPosition;
+        BTreeNode node = getBTreeNodeAtIndex(position);
+        while (!node.isLeaf) {
+            RBTNode below = node.rbTree.getBelowEntry(key.key, key.bytes);
+            position = below == null ? node.phi : below.value;
+            node = getBTreeNodeAtIndex(position);
+        }
+        return position;
+    }
+
+    /**
+     * @return an entry with the smallest key of all, for cursors that walk the whole tree
+     */
+    private static RBTNode smallestKey() {
+        // No byte array key comes before a null one with the same prefix, see RedBlackTree.compare
+        return leafEntry(Long.MIN_VALUE, 0, null);
+    }
+
+    /**
+     * Writes the pending leaf now that the leaf following it is known and returns the following leaf.
+     */
+    private BTreeNode writeBulkLeaf(BTreeNode pending, BTreeNode next) throws IOException {
+        if (pending != null) {
+            pending.nextLeafPos = next == null ? -1 : next.selfPosition;
+            writeBatch(pending, pending.selfPosition);
+        }
+        return next;
+    }
+
+    /**
+     * Overwrites the parent pointer of the node at position without rewriting the rest of the node.
+     */
+    private void writeParentAddress(long position, long parent) throws IOException {
+        // The parent pointer follows the leaf flag and the key count
+        if (format == BTreeNode.FORMAT_V1) {
+            handler.write(ByteBuffer.allocate(4).putInt((int) parent).array(), 4, position + 5);
+        } else {
+            handler.write(ByteBuffer.allocate(8).putLong(parent).array(), 8, position + 5);
+        }
+    }
+
+    private long appendValue(byte[] value) throws IOException {
+        byte[] record = valueRecord(value);
+        return appendValues(record != null ? record
+                : ByteBuffer.allocate(4 + value.length).putInt(value.length).put(value).array());
+    }
+
+    /**
+     * @return the length prefix and deflated bytes of value, null if it is stored as it is. See ValueCodec
+     */
+    private byte[] valueRecord(byte[] value) {
+        return valueCodec == null ? null : valueCodec.encode(value);
+    }
+
+    /**
+     * @return how many times smaller the values written to the value file since the tree was opened have been
+     * stored, length prefixes included. 1 if values are not compressed. See BTreeConfig.compressValues
+     */
+    public double valueCompressionRatio() {
+        return valueCodec == null ? 1 : valueCodec.ratio();
+    }
+
+    /**
+     * Appends length prefixed values to the current value file.
+     * @return the pointer to the first one
+     */
+    private long appendValues(byte[] values) throws IOException {
+        long pointer = ((long) valueGeneration << GENERATION_SHIFT) | valueHandler.append(values);
+        recordLengths();
+        return pointer;
+    }
+
+    private String valueFileName(int generation) {
+        return fileName + "_values" + (generation == 0 ? "" : "." + generation);
+    }
+
+    /**
+     * Opens every value file generation left by compactValues. New values go to the latest one.
+     */
+    private void openValueFiles() throws IOException {
+        File original = new File(valueFileName(0)).getAbsoluteFile();
+        if (original.exists()) {
+            valueFiles.put(0, new IOHandler(original.getPath(), batchsize));
+        }
+        String prefix = original.getName() + ".";
+        File[] files = original.getParentFile().listFiles();
+        if (files != null && format != BTreeNode.FORMAT_V1) {
+            for (File file : files) {
+                String suffix = file.getName().startsWith(prefix) ? file.getName().substring(prefix.length()) : "";
+                if (!suffix.isEmpty() && suffix.chars().allMatch(Character::isDigit)) {
+                    valueFiles.put(Integer.parseInt(suffix), new IOHandler(file.getPath(), batchsize));
+                }
+            }
+        }
+        if (valueFiles.isEmpty()) {
+            valueFiles.put(0, new IOHandler(original.getPath(), batchsize));
+        }
+        valueGeneration = Collections.max(valueFiles.keySet());
+        valueHandler = valueFiles.get(valueGeneration);
+    }
+
+    /**
+     * Moves every value the tree can reach to a new value file and deletes the old value files, which also hold
+     * the values that were overwritten or deleted. Leaves are visited in key order, so the values end up in key
+     * order as well. New values go to the new file as soon as compaction starts. Compaction moves
+     * COMPACTION_BATCH values at a time while holding lock, so puts only wait for one batch and gets, which
+     * take no lock, go on throughout. Value files that open snapshots can still read are deleted once the
+     * snapshots are closed. Legacy files cannot be compacted.
+     */
+    public void compactValues() throws IOException {
+        if (format == BTreeNode.FORMAT_V1) {
+            throw new IllegalStateException("The values of legacy files cannot be compacted");
+        }
+        synchronized (compactionLock) {
+            long stamp = lock.writeLock();
+            try {
+                int generation = valueGeneration + 1;
+                IOHandler file = new IOHandler(valueFileName(generation), batchsize);
+                valueFiles.put(generation, file);
+                valueHandler = file;
+                valueGeneration = generation;
+                synchronized (lengthLock) {
+                    recordedValueLength = 0;
+                    writeLengths(recordedIndexLength, 0);
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            RBTNode[] from = {smallestKey()};
+            boolean more = true;
+            while (more) {
+                stamp = lock.writeLock();
+                try {
+                    more = compactBatch(from);
+                } finally {
+                    lock.unlockWrite(stamp);
+                }
+            }
+            stamp = lock.writeLock();
+            try {
+                if (log != null) {
+                    // The checkpoint a crash rolls back to must not point into the old files
+                    checkpoint();
+                }
+                for (int generation : valueFiles.keySet()) {
+                    if (generation == valueGeneration) {
+                        continue;
+                    }
+                    if (copyOnWrite) {
+                        retiredValueFiles.add(new long[]{version, generation});
+                    } else {
+                        deleteValueFile(generation);
+                    }
+                }
+                if (copyOnWrite) {
+                    reclaim();
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Moves the values of keys from from on that are not in the current value file, leaf by leaf, until
+     * COMPACTION_BATCH values have been moved. Leaves are found from the root, since copy on write trees have no
+     * leaf chain. The caller must hold lock exclusively.
+     * @param from - the key to continue from, which is moved on to the first key of the next leaf
+     * @return whether there are leaves left
+     */
+    private boolean compactBatch(RBTNode[] from) throws IOException {
+        // Every entry of a compressed leaf takes up at least two bytes
+        long[] keys = new long[COMPACTION_BATCH + (compressed ? batchsize / 2 : nodeSize)];
+        byte[][] keyBytes = byteKeys ? new byte[keys.length][] : null;
+        long[] pointers = new long[keys.length];
+        // Values as they are, or their length prefix and deflated bytes if deflated is set
+        List<byte[]> values = new ArrayList<>();
+        List<Boolean> deflated = new ArrayList<>();
+        int valueBytes = 0;
+        boolean more = true;
+        while (values.size() < COMPACTION_BATCH && more) {
+            RBTNode key = from[0];
+            // Smallest key of the next leaf: the smallest separator greater than key on the way down. There is
+            // none on the way to the last leaf
+            more = false;
+            RBTNode upper = null;
+            BTreeNode node = getBTreeNodeAtIndex(rootPosition);
+            while (!node.isLeaf) {
+                RBTNode higher = node.rbTree.getHigherEntry(key.key, key.bytes);
+                if (higher != null) {
+                    if (upper == null || RedBlackTree.compare(higher.key, higher.bytes, upper) < 0) {
+                        upper = higher.copyEntry();
+                    }
+                    more = true;
+                }
+                node = getBTreeNodeAtIndex(node.getLower(key.key, key.bytes));
+            }
+            for (RBTNode entry : node.rbTree) {
+                if (RedBlackTree.compare(entry.key, entry.bytes, key) >= 0 && entry.inline == null
+                        && (int) (entry.value >>> GENERATION_SHIFT) != valueGeneration) {
+                    byte[] value = readValue(entry.value);
+                    byte[] record = valueRecord(value);
+                    if (keyBytes != null) {
+                        keyBytes[values.size()] = entry.bytes;
+                    }
+                    keys[values.size()] = entry.key;
+                    pointers[values.size()] = valueBytes;
+                    values.add(record != null ? record : value);
+                    deflated.add(record != null);
+                    valueBytes += record != null ? record.length : 4 + value.length;
+                }
+            }
+            from[0] = upper;
+        }
+        if (!values.isEmpty()) {
+            ByteBuffer region = ByteBuffer.allocate(valueBytes);
+            for (int i = 0; i < values.size(); i++) {
+                if (!deflated.get(i)) {
+                    region.putInt(values.get(i).length);
+                }
+                region.put(values.get(i));
+            }
+            long regionStart = appendValues(region.array());
+            for (int i = 0; i < values.size(); i++) {
+                pointers[i] += regionStart;
+            }
+            putSorted(keys, keyBytes, pointers, new byte[values.size()][], values.size());
+        }
+        return more;
+    }
+
+    /**
+     * Closes and deletes the value file of generation. Readers that still had a pointer into it fail to read the
+     * value and start over, see readValue. The caller must hold lock exclusively.
+     */
+    private void deleteValueFile(int generation) throws IOException {
+        IOHandler file = valueFiles.remove(generation);
+        if (file != null) {
+            file.close();
+            new File(valueFileName(generation)).delete();
+        }
+    }
+
+    public byte[] get(long key) throws IOException {
+        checkNotByteKeys();
+        return getEntry(key, null);
+    }
 
-    BTree(String fileName, int nodeSize) throws  IOException {
-        // the 17 bytes are for BTreeNode information
-        // See BTreeNode.java
-        batchsize = nodeSize * RBTNode.SERIALIZED_SIZE + BTreeNode.metadataSize;
-        this.nodeSize = nodeSize;
-        handler = new IOHandler(fileName, batchsize);
-        valueHandler = new IOHandler(fileName + "_values", batchsize);
-        root = getRoot();
-    }
-
-    private RBTNode _putInternal(BTreeNode root, int key, int value) throws IOException {
-        root.rbTree.put(key, value);
-        RBTNode midNode = null;
-        if (root.rbTree.size() > nodeSize) {
-            // Need to split this node into two nodes;
-            //creates a copy of the nodes
-            int rbtSize = root.rbTree.size();
-            Iterator<RBTNode> rbtIterator = root.rbTree.iterator();
-            root.rbTree = new RedBlackTree();
-            RedBlackTree rightRBT = new RedBlackTree();
-            BTreeNode rightBTNode =
-                    new BTreeNode(rightRBT, root.isLeaf, root.parent, -1, handler.fileLength(), root.nextLeafPos);
-            root.nextLeafPos = rightBTNode.selfPosition;
-            for (int i=1; i <= rbtSize/2; i++) {
-                RBTNode rbtNode = rbtIterator.next();
-                root.rbTree.put(rbtNode.key, rbtNode.value);
+    /**
+     * @param byteKey - the byte array key of a tree with byte array keys, whose prefix key is. Null otherwise
+     */
+    private byte[] getEntry(long key, byte[] byteKey) throws IOException {
+        if (metrics == null) {
+            return getTimed(key, byteKey);
+        }
+        long start = System.nanoTime();
+        byte[] value = getTimed(key, byteKey);
+        metrics.getLatency.record(start);
+        return value;
+    }
+
+    private byte[] getTimed(long key, byte[] byteKey) throws IOException {
+        if (copyOnWrite) {
+            try (Snapshot snapshot = pin()) {
+                return get(snapshot.root, key, byteKey);
             }
-            for (int i = (rbtSize/2) + 1; i <= rbtSize; i++) {
-                RBTNode rbtNode = rbtIterator.next();
-                if (midNode == null) {
-                    midNode = rbtNode;
+        }
+        return optimisticRead(retry -> {
+            ReadPosition leaf = findLeaf(key, byteKey, new ReadPosition());
+            if (BTreeNode.isSorted(format)) {
+                // Search the mapped bytes in place instead of going through decoded nodes
+                int size = sortedView.size(leaf.position);
+                int index = sortedView.floorIndex(leaf.position, size, key);
+                if (index < 0 || sortedView.key(leaf.position, index) != key) {
+                    leaf.validate();
+                    return null;
+                }
+                long valueInd = sortedView.value(leaf.position, size, index);
+                byte[] inline = readInlineValue(leaf.position, size, index, valueInd);
+                // The pointer can only be followed if the leaf did not change while it was read
+                leaf.validate();
+                return inline != null ? inline : readValue(valueInd);
+            }
+            RBTNode entry = leaf.node.rbTree.getEntry(key, byteKey);
+            leaf.validate();
+            return entry == null ? null : readValue(entry);
+        });
+    }
+
+    /**
+     * Looks key up in the tree rooted at root, which must be pinned. See Snapshot
+     */
+    byte[] get(long root, long key) throws IOException {
+        return get(root, key, null);
+    }
+
+    /**
+     * Same as get for the key with the byte array key byteKey
+     */
+    byte[] get(long root, long key, byte[] byteKey) throws IOException {
+        if (BTreeNode.isSorted(format)) {
+            long node = root;
+            while (!sortedView.isLeaf(node)) {
+                node = sortedView.getLower(node, key);
+                if (metrics != null) {
+                    metrics.nodeReads.increment();
                 }
-                rightBTNode.rbTree.put(rbtNode.key, rbtNode.value);
             }
-            if (root.parent < 1) {
-                // The next node to be written after the right node would be the parent of the node.
-                root.parent = handler.fileLength() + batchsize;
-                //System.out.println(root.parent);
-                rightBTNode.parent = root.parent;
+            if (metrics != null) {
+                metrics.nodeReads.increment();
+            }
+            int size = sortedView.size(node);
+            int index = sortedView.floorIndex(node, size, key);
+            if (index < 0 || sortedView.key(node, index) != key) {
+                return null;
             }
-            midNode.value = handler.writeBatch(rightBTNode.serialize());
+            long valueInd = sortedView.value(node, size, index);
+            byte[] inline = readInlineValue(node, size, index, valueInd);
+            return inline != null ? inline : readValue(valueInd);
+        }
+        BTreeNode node = getBTreeNodeAtIndex(root);
+        while (!node.isLeaf) {
+            node = getBTreeNodeAtIndex(node.getLower(key, byteKey));
         }
-        handler.writeBatch(root.serialize(), root.selfPosition); // Persist change to disk
-        return midNode; // Pass the middle node up if any
+        RBTNode entry = node.rbTree.getEntry(key, byteKey);
+        return entry == null ? null : readValue(entry);
     }
 
-    private BTreeNode getBTreeNodeAtIndex(int index) throws IOException {
-        byte[] batch = handler.readBatch(index);
-        return  BTreeNode.deSerialize(batch, batchsize);
+    /**
+     * @return the number of keys in the range [keyLow, keyHigh] both inclusive. Takes one descent from the root
+     * to a leaf for each end of the range and reads no values. Needs a tree created with BTreeConfig.countKeys
+     */
+    public long count(long keyLow, long keyHigh) throws IOException {
+        checkNotByteKeys();
+        if (copyOnWrite) {
+            try (Snapshot snapshot = pin()) {
+                return snapshot.count(keyLow, keyHigh);
+            }
+        }
+        checkCounted();
+        if (keyLow > keyHigh) {
+            return 0;
+        }
+        if (keyLow == Long.MIN_VALUE) {
+            return ranks(keyHigh)[0];
+        }
+        long[] ranks = ranks(keyLow - 1, keyHigh);
+        return ranks[1] - ranks[0];
     }
 
-    // Put currently takes log(n) space on the stack. We can convert this to a loop but would need to
-    // read each node twice in the worst case.
-    private RBTNode put(BTreeNode root, int key, int value) throws IOException {
-        //int valuePos = valueHandler.append(value);
-        if (root.isLeaf) {
-            return _putInternal(root, key, value); // Just put it like that for leaf
-        } else { // For parents first let it go to child then pick up floated middle terms if any
-            int valueLower = root.getLower(key);
-            BTreeNode node = getBTreeNodeAtIndex(valueLower);
-            RBTNode toPut = put(node, key, value);
-            if (toPut != null) {
-                return _putInternal(root, toPut.key, toPut.value);
-            } else {
-                return null;
+    /**
+     * @return the number of keys less than key. Needs a tree created with BTreeConfig.countKeys
+     */
+    public long rank(long key) throws IOException {
+        checkNotByteKeys();
+        if (copyOnWrite) {
+            try (Snapshot snapshot = pin()) {
+                return snapshot.rank(key);
             }
         }
+        checkCounted();
+        return key == Long.MIN_VALUE ? 0 : ranks(key - 1)[0];
     }
 
-    private byte[] get(BTreeNode root, int key) throws IOException {
-        if (root.isLeaf) {
-            Integer valueInd = root.rbTree.get(key);
-            if (valueInd == null) {
+    /**
+     * @return the key with index keys less than it, i.e. select(rank(key)) is key for every key in the tree.
+     * Null if the tree does not have more than index keys. Needs a tree created with BTreeConfig.countKeys
+     */
+    public Integer select(long index) throws IOException {
+        Long key = selectLong(index);
+        return key == null ? null : Math.toIntExact(key);
+    }
+
+    /**
+     * Same as select for trees with keys that do not fit in an int, see BTreeConfig.keyType
+     */
+    public Long selectLong(long index) throws IOException {
+        checkNotByteKeys();
+        if (copyOnWrite) {
+            try (Snapshot snapshot = pin()) {
+                return snapshot.selectLong(index);
+            }
+        }
+        checkCounted();
+        return optimisticRead(retry -> {
+            ReadPosition at = readRoot(new ReadPosition());
+            long[] remaining = {index};
+            for (int depth = 0; !isLeaf(at); depth++) {
+                if (depth > MAX_HEIGHT) {
+                    throw new IOException("Tree is higher than " + MAX_HEIGHT);
+                }
+                long child = selectChild(at.position, at.node, remaining);
+                if (child <= 0) {
+                    at.validate();
+                    return null;
+                }
+                descend(at, child);
+            }
+            Long key = selectKey(at.position, at.node, remaining[0]);
+            at.validate();
+            return key;
+        });
+    }
+
+    /**
+     * @return the number of keys less than or equal to each of bounds. All of them are taken from the same version
+     * of the tree, which is written in place.
+     */
+    private long[] ranks(long... bounds) throws IOException {
+        checkCounted();
+        return optimisticRead(retry -> {
+            long rootStamp = rootLatch.tryOptimisticRead();
+            ReadPosition at = new ReadPosition();
+            StampedLock rootNodeLatch = null;
+            long rootNodeStamp = 0;
+            long[] ranks = new long[bounds.length];
+            for (int i = 0; i < bounds.length; i++) {
+                readRoot(at);
+                if (i == 0) {
+                    rootNodeLatch = at.latch;
+                    rootNodeStamp = at.stamp;
+                }
+                long key = bounds[i];
+                for (int depth = 0; !isLeaf(at); depth++) {
+                    if (depth > MAX_HEIGHT) {
+                        throw new IOException("Tree is higher than " + MAX_HEIGHT);
+                    }
+                    ranks[i] += keysBefore(at.position, at.node, key);
+                    descend(at, BTreeNode.isSorted(format)
+                            ? sortedView.getLower(at.position, key)
+                            : at.node.getLower(key));
+                }
+                ranks[i] += keysAtMost(at.position, at.node, key);
+                at.validate();
+            }
+            // Every write that changes the number of keys holds the latch of the root until it is done, so the
+            // ranks belong to the same version if the root has not been written since the first descent
+            if (!rootLatch.validate(rootStamp) || !rootNodeLatch.validate(rootNodeStamp)) {
+                throw RESTART;
+            }
+            return ranks;
+        }, true);
+    }
+
+    /**
+     * Count of the tree rooted at root, which must be pinned. See Snapshot
+     */
+    long count(long root, long keyLow, long keyHigh) throws IOException {
+        checkCounted();
+        if (keyLow > keyHigh) {
+            return 0;
+        }
+        if (keyLow == Long.MIN_VALUE) {
+            return pinnedRanks(root, keyHigh)[0];
+        }
+        long[] ranks = pinnedRanks(root, keyLow - 1, keyHigh);
+        return ranks[1] - ranks[0];
+    }
+
+    /**
+     * Rank of the tree rooted at root, which must be pinned
+     */
+    long rank(long root, long key) throws IOException {
+        checkCounted();
+        return key == Long.MIN_VALUE ? 0 : pinnedRanks(root, key - 1)[0];
+    }
+
+    /**
+     * Same as ranks for the tree rooted at root, which must be pinned
+     */
+    long[] pinnedRanks(long root, long... bounds) throws IOException {
+        checkCounted();
+        long[] ranks = new long[bounds.length];
+        for (int i = 0; i < bounds.length; i++) {
+            long key = bounds[i];
+            long position = root;
+            BTreeNode node = pinnedNode(position);
+            while (!(node == null ? sortedView.isLeaf(position) : node.isLeaf)) {
+                ranks[i] += keysBefore(position, node, key);
+                position = node == null ? sortedView.getLower(position, key) : node.getLower(key);
+                node = pinnedNode(position);
+            }
+            ranks[i] += keysAtMost(position, node, key);
+        }
+        return ranks;
+    }
+
+    /**
+     * Select of the tree rooted at root, which must be pinned
+     */
+    Long selectLong(long root, long index) throws IOException {
+        checkCounted();
+        long[] remaining = {index};
+        long position = root;
+        BTreeNode node = pinnedNode(position);
+        while (!(node == null ? sortedView.isLeaf(position) : node.isLeaf)) {
+            position = selectChild(position, node, remaining);
+            if (position <= 0) {
                 return null;
-            } else {
-                int len = ByteBuffer.wrap(valueHandler.read(4, valueInd)).getInt();
-                return valueHandler.read(len, valueInd+4);
             }
-        } else {
-            int valueLower = root.getLower(key);
-            BTreeNode node = getBTreeNodeAtIndex(valueLower);
-            return get(node, key);
+            node = pinnedNode(position);
         }
+        return selectKey(position, node, remaining[0]);
     }
 
     /**
-     * Gets the BTreeNode which contains the key greater than or equal to the current node.
-     * @param key
-     * @return
+     * @return a key in (keyLow, keyHigh] at which the range can be split into the key ranges of different
+     * subtrees, Long.MIN_VALUE if the range is within one leaf. It comes from the highest node on the way down
+     * that has separators in the range and splits them in half. See RangeSpliterator
      */
-    private BTreeNode getCeil(BTreeNode root, int key) throws IOException {
-        if (root.isLeaf) {
-            if (root.rbTree.max().x < key) {
-                return getBTreeNodeAtIndex(root.nextLeafPos);
-            } else {
-                return root;
+    long splitKey(long keyLow, long keyHigh) throws IOException {
+        if (copyOnWrite) {
+            try (Snapshot snapshot = pin()) {
+                return splitKey(snapshot.root, keyLow, keyHigh);
             }
-        } else {
-            int valueLower = root.getLower(key);
-            BTreeNode node = getBTreeNodeAtIndex(valueLower);
-            return getCeil(node, key);
         }
+        return optimisticRead(retry -> {
+            ReadPosition at = readRoot(new ReadPosition());
+            for (int depth = 0; !isLeaf(at); depth++) {
+                if (depth > MAX_HEIGHT) {
+                    throw new IOException("Tree is higher than " + MAX_HEIGHT);
+                }
+                long key = middleSeparator(at.position, at.node, keyLow, keyHigh);
+                if (key != Long.MIN_VALUE) {
+                    at.validate();
+                    return key;
+                }
+                // The whole range goes to one child
+                descend(at, BTreeNode.isSorted(format)
+                        ? sortedView.getLower(at.position, keyLow)
+                        : at.node.getLower(keyLow));
+            }
+            at.validate();
+            return Long.MIN_VALUE;
+        });
+    }
+
+    /**
+     * Same as splitKey for the tree rooted at root, which must be pinned
+     */
+    long splitKey(long root, long keyLow, long keyHigh) throws IOException {
+        long position = root;
+        BTreeNode node = pinnedNode(position);
+        while (!(node == null ? sortedView.isLeaf(position) : node.isLeaf)) {
+            long key = middleSeparator(position, node, keyLow, keyHigh);
+            if (key != Long.MIN_VALUE) {
+                return key;
+            }
+            position = node == null ? sortedView.getLower(position, keyLow) : node.getLower(keyLow);
+            node = pinnedNode(position);
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * @param node - the decoded inner node at position, null for FORMAT_SORTED, which is read in place
+     * @return the middle one of the keys of the inner node in (keyLow, keyHigh], Long.MIN_VALUE if there are none
+     */
+    private long middleSeparator(long position, BTreeNode node, long keyLow, long keyHigh) {
+        if (node != null) {
+            List<Long> separators = new ArrayList<>();
+            RBTNode entry = node.rbTree.getHigherEntry(keyLow);
+            while (entry != null && entry.key <= keyHigh) {
+                separators.add(entry.key);
+                entry = node.rbTree.getHigherEntry(entry.key);
+            }
+            return separators.isEmpty() ? Long.MIN_VALUE : separators.get(separators.size() / 2);
+        }
+        int size = Math.min(sortedView.size(position), nodeSize);
+        int first = sortedView.floorIndex(position, size, keyLow) + 1;
+        int last = sortedView.floorIndex(position, size, keyHigh);
+        return first > last ? Long.MIN_VALUE : sortedView.key(position, (first + last + 1) / 2);
+    }
+
+    private void checkCounted() {
+        if (!counted) {
+            throw new IllegalStateException("Counts need a tree created with BTreeConfig.countKeys");
+        }
+    }
+
+    /**
+     * @return the decoded node at position of a pinned tree, null for FORMAT_SORTED, which is read in place
+     */
+    private BTreeNode pinnedNode(long position) throws IOException {
+        return BTreeNode.isSorted(format) ? null : getBTreeNodeAtIndex(position);
+    }
+
+    /**
+     * @param node - the decoded inner node at position, null for FORMAT_SORTED, which is read in place
+     * @return the number of keys below the children of the node that come before the child key goes to
+     */
+    private long keysBefore(long position, BTreeNode node, long key) {
+        if (node != null) {
+            RBTNode lower = node.rbTree.getLowerEntry(key);
+            return lower == null ? 0 : node.phiCount + node.rbTree.countBelow(lower.key);
+        }
+        int size = sortedView.size(position);
+        int index = Math.min(sortedView.floorIndex(position, size, key), nodeSize);
+        long keys = 0;
+        for (int i = -1; i < index; i++) {
+            keys += sortedView.count(position, size, i);
+        }
+        return keys;
+    }
+
+    /**
+     * @return the number of keys of the leaf at position that are less than or equal to bound
+     */
+    private long keysAtMost(long position, BTreeNode node, long bound) {
+        if (node != null) {
+            return node.rbTree.rank(bound) + (node.rbTree.getEntry(bound) != null ? 1 : 0);
+        }
+        int size = sortedView.size(position);
+        return sortedView.floorIndex(position, size, bound) + 1;
     }
 
-    public void put(int key, byte[] value) throws IOException {
-        int valueInd = valueHandler.append(ByteBuffer.allocate(4 + value.length).putInt(value.length).put(value).array());
-        RBTNode toPut = put(root, key, valueInd);
-        if (toPut != null) {
-            BTreeNode newRoot = new BTreeNode(
-                    new RedBlackTree(),
-                    false,
-                    -1,
-                    root.selfPosition,
-                    handler.fileLength(),
-                    -1
-            );
-            newRoot.rbTree.put(toPut.key, toPut.value);
-            int position = handler.writeBatch(newRoot.serialize());
-            this.root = newRoot;
-            // Write the root position at the beginning of the file
-            handler.write(ByteBuffer.allocate(4).putInt(position).array(), 4, 0);
+    /**
+     * @param remaining - the index of the key to select below the inner node, which is reduced by the number of
+     *                  keys below the children that come before the child it is in
+     * @return the child, -1 if the node does not have that many keys below it
+     */
+    private long selectChild(long position, BTreeNode node, long[] remaining) {
+        if (node != null) {
+            if (remaining[0] < node.phiCount) {
+                return node.phi;
+            }
+            remaining[0] -= node.phiCount;
+            for (RBTNode entry : node.rbTree) {
+                if (remaining[0] < entry.count) {
+                    return entry.value;
+                }
+                remaining[0] -= entry.count;
+            }
+            return -1;
         }
+        int size = Math.min(sortedView.size(position), nodeSize);
+        for (int i = -1; i < size; i++) {
+            long count = sortedView.count(position, size, i);
+            if (remaining[0] < count) {
+                return i < 0 ? sortedView.phi(position) : sortedView.value(position, size, i);
+            }
+            remaining[0] -= count;
+        }
+        return -1;
     }
 
-    public byte[] get(int key) throws IOException {
-        return get(root, key);
+    /**
+     * @return the index-th smallest key of the leaf at position, null if it has no more than index keys
+     */
+    private Long selectKey(long position, BTreeNode node, long index) {
+        if (node != null) {
+            RBTNode entry = index < 0 || index > Integer.MAX_VALUE ? null : node.rbTree.select((int) index);
+            return entry == null ? null : entry.key;
+        }
+        int size = sortedView.size(position);
+        return index < 0 || index >= size ? null : sortedView.key(position, (int) index);
     }
 
     /**
      *
      * @param keyLow
      * @param keyHigh
-     * @return Returns all key and values in this btree in the range [keyLow, keyHigh] both inclusive
+     * @return Returns all key and values in this btree in the range [keyLow, keyHigh] both inclusive. The
+     * iterators throw an UncheckedIOException if a leaf or a value cannot be read
      */
     public Iterable<Tuple<Integer, byte[]>> getInRange(int keyLow, int keyHigh) throws IOException {
-        BTreeNode ceil = getCeil(root, keyLow);
-        return new RangeIterable(ceil, keyLow, keyHigh, handler, valueHandler);
+        // The iterator positions itself in the leaves when it is created
+        return new RangeIterable(this, keyLow, keyHigh);
+    }
+
+    /**
+     * Same as getInRange for trees with keys that do not fit in an int, see BTreeConfig.keyType
+     */
+    public Iterable<Tuple<Long, byte[]>> getInRange(long keyLow, long keyHigh) throws IOException {
+        checkNotByteKeys();
+        return () -> RangeIterable.iterator(this, keyLow, keyHigh, LONG_KEY);
+    }
+
+    /**
+     * Calls consumer with every key in the range [keyLow, keyHigh] in key order together with a read only view
+     * of its value. Values in the value files are not copied and nothing is allocated per entry, see ScanCursor.
+     */
+    public void scan(int keyLow, int keyHigh, ScanConsumer consumer) throws IOException {
+        try (ScanCursor cursor = cursor()) {
+            cursor.seek(keyLow, keyHigh);
+            while (cursor.next()) {
+                consumer.accept(cursor.key(), cursor.value());
+            }
+        }
+    }
+
+    /**
+     * @return a cursor that can scan any number of key ranges of this tree one after the other. See ScanCursor
+     */
+    public ScanCursor cursor() {
+        checkNotByteKeys();
+        return new ScanCursor(this, null);
+    }
+
+    /**
+     * @return the keys and values in the range [keyLow, keyHigh] both inclusive in key order. The spliterator
+     * splits at the separator keys of the inner nodes, so that every part scans the leaves of its own subtrees.
+     * See RangeSpliterator
+     */
+    public Spliterator<Tuple<Integer, byte[]>> spliterator(int keyLow, int keyHigh) {
+        checkNotByteKeys();
+        return new RangeSpliterator<>(this, null, keyLow, keyHigh, INT_KEY);
+    }
+
+    public Spliterator<Tuple<Long, byte[]>> spliterator(long keyLow, long keyHigh) {
+        checkNotByteKeys();
+        return new RangeSpliterator<>(this, null, keyLow, keyHigh, LONG_KEY);
+    }
+
+    /**
+     * @return a sequential stream of the keys and values in the range [keyLow, keyHigh] both inclusive
+     */
+    public Stream<Tuple<Integer, byte[]>> stream(int keyLow, int keyHigh) {
+        return StreamSupport.stream(spliterator(keyLow, keyHigh), false);
+    }
+
+    public Stream<Tuple<Long, byte[]>> stream(long keyLow, long keyHigh) {
+        return StreamSupport.stream(spliterator(keyLow, keyHigh), false);
+    }
+
+    /**
+     * @return a parallel stream of the keys and values in the range [keyLow, keyHigh] both inclusive, which
+     * scans the subtrees the range is split into from the threads of the common ForkJoinPool
+     */
+    public Stream<Tuple<Integer, byte[]>> parallelStream(int keyLow, int keyHigh) {
+        return StreamSupport.stream(spliterator(keyLow, keyHigh), true);
+    }
+
+    public Stream<Tuple<Long, byte[]>> parallelStream(long keyLow, long keyHigh) {
+        return StreamSupport.stream(spliterator(keyLow, keyHigh), true);
+    }
+
+    /**
+     * Puts a byte array key, which trees created with BTreeConfig.KeyType.BYTES take instead of numbers. Keys
+     * longer than maxKeyLength are turned down. See ByteKeys
+     */
+    public void put(byte[] key, byte[] value) throws IOException {
+        checkByteKeys();
+        if (key.length > maxKeyLength) {
+            throw new IllegalArgumentException("The tree takes byte array keys of up to " + maxKeyLength
+                    + " bytes: " + key.length);
+        }
+        // The nodes keep the key, so later changes to the array must not reach them
+        byte[] byteKey = key.clone();
+        putEntry(ByteKeys.prefix(byteKey), byteKey, value);
+    }
+
+    public byte[] get(byte[] key) throws IOException {
+        checkByteKeys();
+        return getEntry(ByteKeys.prefix(key), key);
+    }
+
+    /**
+     * @return whether the key was in the tree
+     */
+    public boolean delete(byte[] key) throws IOException {
+        checkByteKeys();
+        return deleteEntry(ByteKeys.prefix(key), key.clone());
+    }
+
+    /**
+     * @return all byte array keys and values in the range [keyLow, keyHigh] both inclusive in unsigned
+     * lexicographic order of the keys
+     */
+    public Iterable<Tuple<byte[], byte[]>> getInRange(byte[] keyLow, byte[] keyHigh) throws IOException {
+        checkByteKeys();
+        byte[] low = keyLow.clone();
+        byte[] high = keyHigh.clone();
+        return () -> RangeIterable.iterator(this, ByteKeys.prefix(low), low, ByteKeys.prefix(high), high, BYTES_KEY);
+    }
+
+    /**
+     * Checks that key can be put into this tree: trees with 32 bit keys only take keys in the range of an int
+     * and trees with byte array keys only take byte arrays.
+     */
+    private void checkKey(long key) {
+        checkNotByteKeys();
+        if (BTreeNode.keySize(format) == 4 && key != (int) key) {
+            throw new IllegalArgumentException("The tree has 32 bit keys: " + key);
+        }
+    }
+
+    void checkNotByteKeys() {
+        if (byteKeys) {
+            throw new IllegalStateException("The tree has byte array keys");
+        }
+    }
+
+    void checkByteKeys() {
+        if (!byteKeys) {
+            throw new IllegalStateException("Byte array keys need a tree created with BTreeConfig.KeyType.BYTES");
+        }
     }
 
     public static BTree makeBTree() throws  IOException {
         String fileName = "btree.data";
-        int nodeSize = 5;
-        return new BTree(fileName, nodeSize);
+        return new BTree(fileName, new BTreeConfig().pageSize(BTreeConfig.DEFAULT_PAGE_SIZE));
     }
 
     public static BTree makeBTree(String fileName, int nodeSize) throws  IOException {
         return new BTree(fileName, nodeSize);
     }
 
-    private BTreeNode getRoot() throws IOException {
-        int rootAddr = ByteBuffer.wrap(handler.read(4, 0)).getInt();
-        if (rootAddr > 0) {
-            byte[] buffer = handler.readBatch(rootAddr);
-            return BTreeNode.deSerialize(buffer, this.batchsize);
+    /**
+     * @param cacheEntries - the number of decoded nodes kept in memory. 0 disables the cache.
+     */
+    public static BTree makeBTree(String fileName, int nodeSize, int cacheEntries) throws  IOException {
+        return new BTree(fileName, new BTreeConfig().nodeSize(nodeSize).cacheEntries(cacheEntries));
+    }
+
+    public static BTree makeBTree(String fileName, BTreeConfig config) throws  IOException {
+        return new BTree(fileName, config);
+    }
+
+    /**
+     * @return the number of bytes in all value files, including values that are no longer reachable
+     */
+    long valueFileLength() {
+        long length = 0;
+        for (IOHandler file : valueFiles.values()) {
+            length += file.fileLength();
+        }
+        return length;
+    }
+
+    /**
+     * @return the fraction of node reads answered by the node cache
+     */
+    public double cacheHitRatio() {
+        return cache.hitRatio();
+    }
+
+    /**
+     * @return the metrics of this tree as of now, null unless it was opened with BTreeConfig.metrics
+     */
+    public MetricsSnapshot metrics() {
+        return metrics == null ? null : new MetricsSnapshot(metrics);
+    }
+
+    /**
+     * @return the number of levels of the tree, 1 if the root is a leaf. Follows the leftmost path down from the
+     * root.
+     */
+    public int height() throws IOException {
+        if (copyOnWrite) {
+            try (Snapshot snapshot = pin()) {
+                return height(snapshot.root);
+            }
+        }
+        return optimisticRead(retry -> {
+            ReadPosition at = readRoot(new ReadPosition());
+            int height = 1;
+            while (!isLeaf(at)) {
+                if (height > MAX_HEIGHT) {
+                    throw new IOException("Tree is higher than " + MAX_HEIGHT);
+                }
+                descend(at, BTreeNode.isSorted(format)
+                        ? sortedView.getLower(at.position, Long.MIN_VALUE)
+                        : at.node.getLower(Long.MIN_VALUE));
+                height++;
+            }
+            at.validate();
+            return height;
+        });
+    }
+
+    /**
+     * @return the height of the tree rooted at root, which must be pinned
+     */
+    private int height(long root) throws IOException {
+        int height = 1;
+        if (BTreeNode.isSorted(format)) {
+            for (long node = root; !sortedView.isLeaf(node); node = sortedView.getLower(node, Long.MIN_VALUE)) {
+                height++;
+            }
+        } else {
+            for (BTreeNode node = getBTreeNodeAtIndex(root); !node.isLeaf;
+                 node = getBTreeNodeAtIndex(node.getLower(Long.MIN_VALUE))) {
+                height++;
+            }
+        }
+        return height;
+    }
+
+    /**
+     * @return how often the value files that are still in use were mapped again because they grew
+     */
+    long valueRemaps() {
+        long remaps = 0;
+        for (IOHandler file : valueFiles.values()) {
+            remaps += file.remaps();
+        }
+        return remaps;
+    }
+
+    /**
+     * @return the time spent growing and mapping again the index file and the value files still in use
+     */
+    long remapNanos() {
+        long nanos = handler.remapNanos();
+        for (IOHandler file : valueFiles.values()) {
+            nanos += file.remapNanos();
+        }
+        return nanos;
+    }
+
+    private long getRoot() throws IOException {
+        long rootAddr;
+        if (format == BTreeNode.FORMAT_V1) {
+            // The first 4 bytes [0,3] are taken up by the root address
+            rootAddr = ByteBuffer.wrap(handler.read(4, 0)).getInt();
         } else {
-            // The tree was empty so start fresh
-            // The self position is four because the first 4 bytes [0,3] are taken up by the root address
-            return new BTreeNode(new RedBlackTree(), true, -1, -1, 4, -1);
+            rootAddr = ByteBuffer.wrap(handler.read(8, ROOT_OFFSET)).getLong();
+        }
+        if (rootAddr <= 0 && handler.fileLength() > firstPage) {
+            // The root address is only written once the first root splits. Before that the root is the first node.
+            rootAddr = firstPage;
+        }
+        if (rootAddr > 0) {
+            return rootAddr;
+        }
+        // The tree was empty so start fresh with an empty leaf that owns its slot in the file
+        BTreeNode root = new BTreeNode(new RedBlackTree(), true, -1, -1, newPage(), -1);
+        writeNode(root);
+        writeRootAddress(root.selfPosition);
+        return root.selfPosition;
+    }
+
+    /**
+     * Moves the lengths in the header past the logical ends of both files once the files have grown beyond them.
+     * The lengths are rounded up to LENGTH_GRANULE, so the header is only written once every LENGTH_GRANULE bytes.
+     * Called before the new space can be reached from the tree, so that a tree that was not closed cleanly is
+     * opened with lengths that cover all of its data and at most LENGTH_GRANULE bytes of preallocated space.
+     */
+    private void recordLengths() throws IOException {
+        long indexLength = handler.fileLength();
+        long valueLength = valueHandler.fileLength();
+        if (indexLength <= recordedIndexLength && valueLength <= recordedValueLength) {
+            return;
+        }
+        synchronized (lengthLock) {
+            recordedIndexLength = Math.max(recordedIndexLength, roundUp(indexLength, LENGTH_GRANULE));
+            recordedValueLength = Math.max(recordedValueLength, roundUp(valueLength, LENGTH_GRANULE));
+            writeLengths(recordedIndexLength, recordedValueLength);
+        }
+    }
+
+    private static long roundUp(long length, long granule) {
+        return (length + granule - 1) / granule * granule;
+    }
+
+    /**
+     * Records the logical lengths of both files in the header. Writers only move the lengths in memory and the
+     * header past them, see recordLengths, so the exact lengths are written on close. A logged tree rolls back
+     * to the lengths of its checkpoint. Legacy files have no header and rely on close() to trim the files.
+     */
+    private void writeLengths(long indexLength, long valueLength) throws IOException {
+        if (format != BTreeNode.FORMAT_V1) {
+            ByteBuffer lengths = ByteBuffer.allocate(16);
+            lengths.putLong(indexLength).putLong(valueLength);
+            handler.write(lengths.array(), 16, INDEX_LENGTH_OFFSET);
+        }
+    }
+
+    public void close() throws IOException {
+        if (metrics != null) {
+            metrics.unregister();
+        }
+        if (readAhead != null) {
+            // The files must stay mapped for as long as the reader thread runs
+            readAhead.close();
+        }
+        long stamp = lock.writeLock();
+        try {
+            if (log != null) {
+                // Everything in the log is in the files after the checkpoint, so the log is not needed anymore
+                checkpoint();
+                log.close();
+                new File(logFileName).delete();
+                log = null;
+            }
+            if (copyOnWrite) {
+                // Snapshots cannot be read after close, so every replaced page can go on the free list
+                while (!retired.isEmpty()) {
+                    freePage(retired.pollFirst()[1]);
+                }
+                while (!retiredValueFiles.isEmpty()) {
+                    deleteValueFile((int) retiredValueFiles.pollFirst()[1]);
+                }
+            }
+            writeLengths(handler.fileLength(), valueHandler.fileLength());
+            handler.close();
+            for (IOHandler file : valueFiles.values()) {
+                file.close();
+            }
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
@@ -0,0 +1,226 @@
+package resilientbtree;
+
+/**
+ * Options used when a BTree is opened. The key type, the node layout, copy on write, the inline value size, key
+ * counts and the page size only apply to trees that are created with this configuration. Existing files keep the
+ * ones they were written with.
+ */
+public class BTreeConfig {
+
+    // The size of the pages of most operating systems
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+    static final int MIN_PAGE_SIZE = 4096;
+    static final int MAX_PAGE_SIZE = 64 * 1024;
+    // Fewest keys a page has to hold
+    static final int MIN_PAGE_KEYS = 4;
+
+    public enum NodeLayout {
+        // Keys are stored as a pre-order serialized red black tree (BTreeNode.FORMAT_V2)
+        RED_BLACK_TREE,
+        // Keys and pointers are stored as sorted parallel arrays that are searched in place (BTreeNode.FORMAT_SORTED)
+        SORTED_ARRAY,
+        // Keys and pointers are stored as differences in as few bytes as they need and nodes hold as many keys as
+        // fit in a page of the RED_BLACK_TREE layout, or of pageSize (BTreeNode.FORMAT_COMPRESSED)
+        COMPRESSED
+    }
+
+    public enum KeyType {
+        // 32 bit keys, the layout of files written before other key types existed
+        INT,
+        // 64 bit keys (BTreeNode.FORMAT_LONG, BTreeNode.FORMAT_SORTED_LONG or BTreeNode.FORMAT_COMPRESSED_LONG)
+        LONG,
+        // Byte array keys in unsigned lexicographic order, stored in full in nodes that hold as many of them as fit
+        // whatever the node layout (BTreeNode.FORMAT_BYTES). See ByteKeys and BTree.maxKeyLength
+        BYTES
+    }
+
+    public enum Durability {
+        // Nothing is logged. Puts since the files were last closed can be lost and the tree can be left
+        // inconsistent by a crash
+        NONE,
+        // Puts are logged and the log is forced every syncIntervalMillis, so a crash loses at most that much
+        PERIODIC,
+        // A put returns once its log record is on disk. Concurrent puts share one force of the log
+        PER_COMMIT
+    }
+
+    int nodeSize = 5;
+    KeyType keyType = KeyType.INT;
+    int cacheEntries = BTree.DEFAULT_CACHE_ENTRIES;
+    long cacheBytes = -1;
+    NodeLayout nodeLayout = NodeLayout.RED_BLACK_TREE;
+    boolean copyOnWrite = false;
+    Durability durability = Durability.NONE;
+    long syncIntervalMillis = 100;
+    long checkpointBytes = 64L << 20;
+    int inlineValueSize = 0;
+    boolean countKeys = false;
+    int readAheadLeaves = 0;
+    int compressValues = -1;
+    boolean metrics = false;
+    int pageSize = 0;
+
+    /**
+     * @param nodeSize - the maximum number of keys in a node. Ignored by trees with a page size, see pageSize
+     */
+    public BTreeConfig nodeSize(int nodeSize) {
+        this.nodeSize = nodeSize;
+        return this;
+    }
+
+    /**
+     * @param cacheEntries - the number of decoded nodes kept in memory. 0 disables the cache.
+     */
+    public BTreeConfig cacheEntries(int cacheEntries) {
+        this.cacheEntries = cacheEntries;
+        return this;
+    }
+
+    /**
+     * @param cacheBytes - the memory for decoded nodes, counted as the page size of the tree per node. Overrides
+     *                   cacheEntries, so that the cache covers the same part of the file whatever the page size.
+     *                   0 disables the cache.
+     */
+    public BTreeConfig cacheBytes(long cacheBytes) {
+        this.cacheBytes = cacheBytes;
+        return this;
+    }
+
+    public BTreeConfig keyType(KeyType keyType) {
+        this.keyType = keyType;
+        return this;
+    }
+
+    public BTreeConfig nodeLayout(NodeLayout nodeLayout) {
+        this.nodeLayout = nodeLayout;
+        return this;
+    }
+
+    /**
+     * @param copyOnWrite - write changed nodes to new pages and swap the root on every commit instead of updating
+     *                    nodes in place. Needed for BTree.snapshot().
+     */
+    public BTreeConfig copyOnWrite(boolean copyOnWrite) {
+        this.copyOnWrite = copyOnWrite;
+        return this;
+    }
+
+    /**
+     * Logs puts to a write ahead log that is replayed when the tree is opened after a crash. Rolling back to the
+     * last checkpoint needs pages that are never overwritten, so trees created with a log are copy on write and
+     * trees written in place cannot be opened with one.
+     */
+    public BTreeConfig durability(Durability durability) {
+        this.durability = durability;
+        return this;
+    }
+
+    /**
+     * @param syncIntervalMillis - how often the log is forced with Durability.PERIODIC
+     */
+    public BTreeConfig syncIntervalMillis(long syncIntervalMillis) {
+        this.syncIntervalMillis = syncIntervalMillis;
+        return this;
+    }
+
+    /**
+     * @param checkpointBytes - size of the log after which both files are forced and the log is started over
+     */
+    public BTreeConfig checkpointBytes(long checkpointBytes) {
+        this.checkpointBytes = checkpointBytes;
+        return this;
+    }
+
+    /**
+     * Values of at most inlineValueSize bytes are stored in the leaf instead of the value file, so reading them
+     * only touches index pages. Every leaf entry gets a slot of this size, which makes the pages larger.
+     * 0 stores every value in the value file.
+     */
+    public BTreeConfig inlineValueSize(int inlineValueSize) {
+        if (inlineValueSize < 0 || inlineValueSize > BTree.MAX_INLINE_VALUE_SIZE) {
+            throw new IllegalArgumentException(
+                    "Inline value size must be in [0, " + BTree.MAX_INLINE_VALUE_SIZE + "]: " + inlineValueSize);
+        }
+        this.inlineValueSize = inlineValueSize;
+        return this;
+    }
+
+    /**
+     * @param countKeys - keep the number of keys below every child in the inner nodes, which BTree.count, rank and
+     *                  select need. Every put of a new key and every delete then changes all nodes on the way
+     *                  down to the leaf, so in place such writers hold the latches of the whole path and no
+     *                  longer run alongside each other. Overwrites and readers are not affected.
+     */
+    public BTreeConfig countKeys(boolean countKeys) {
+        this.countKeys = countKeys;
+        return this;
+    }
+
+    /**
+     * @param readAheadLeaves - the number of leaves that range scans read ahead of themselves on a background
+     *                        thread, together with their values. 0 turns reading ahead off. See ReadAhead
+     */
+    public BTreeConfig readAheadLeaves(int readAheadLeaves) {
+        if (readAheadLeaves < 0) {
+            throw new IllegalArgumentException("Read ahead must not be negative: " + readAheadLeaves);
+        }
+        this.readAheadLeaves = readAheadLeaves;
+        return this;
+    }
+
+    /**
+     * @param minLength - deflate values of at least minLength bytes that go to the value file, if that makes them
+     *                  smaller. Every value records whether it was deflated, so a tree can be opened with or
+     *                  without this setting. -1, the default, stores all values as they are. See ValueCodec
+     */
+    public BTreeConfig compressValues(int minLength) {
+        if (minLength < -1) {
+            throw new IllegalArgumentException("Minimum length of compressed values must not be below -1: "
+                    + minLength);
+        }
+        this.compressValues = minLength;
+        return this;
+    }
+
+    /**
+     * @param metrics - count node reads, splits, remaps and bytes of values read and record the latencies of gets,
+     *                puts and deletes, see BTree.metrics(). The tree also registers them as an MBean. Off by
+     *                default, which leaves nothing but a null check on the paths that would record them.
+     */
+    public BTreeConfig metrics(boolean metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * @param pageSize - the size of every node in the index file, a power of two from 4 KiB to 64 KiB. The header
+     *                 takes up the first page, so every node starts on a page boundary and reading one reads a
+     *                 single page of the page cache. Nodes hold as many keys as fit in a page in the node layout,
+     *                 instead of nodeSize. 0, the default, sizes nodes by nodeSize and packs them right after the
+     *                 header, the way files written before page sizes existed are laid out.
+     */
+    public BTreeConfig pageSize(int pageSize) {
+        if (pageSize != 0
+                && (Integer.bitCount(pageSize) != 1 || pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE)) {
+            throw new IllegalArgumentException("Page size must be 0 or a power of two from " + MIN_PAGE_SIZE
+                    + " to " + MAX_PAGE_SIZE + ": " + pageSize);
+        }
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    int format() {
+        if (keyType == KeyType.BYTES) {
+            return BTreeNode.FORMAT_BYTES;
+        }
+        boolean longKeys = keyType != KeyType.INT;
+        switch (nodeLayout) {
+            case SORTED_ARRAY:
+                return longKeys ? BTreeNode.FORMAT_SORTED_LONG : BTreeNode.FORMAT_SORTED;
+            case COMPRESSED:
+                return longKeys ? BTreeNode.FORMAT_COMPRESSED_LONG : BTreeNode.FORMAT_COMPRESSED;
+            default:
+                return longKeys ? BTreeNode.FORMAT_LONG : BTreeNode.FORMAT_V2;
+        }
+    }
+}
@@ -2,21 +2,49 @@ package resilientbtree;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
 
 /**
  * Created by sohaib on 10/12/16.
  */
 public class BTreeNode {
+    // Legacy layout with 32 bit pointers. Files written in this format have no header.
+    static final int FORMAT_V1 = 1;
+    // Layout with 64 bit pointers so that both files can grow beyond 2GB
+    static final int FORMAT_V2 = 2;
+    // FORMAT_V2 metadata followed by a sorted array of keys and a parallel array of pointers. See SortedNodeView
+    static final int FORMAT_SORTED = 3;
+    // FORMAT_V2 with 64 bit keys
+    static final int FORMAT_LONG = 4;
+    // FORMAT_SORTED with 64 bit keys
+    static final int FORMAT_SORTED_LONG = 5;
+    // FORMAT_V2 metadata followed by keys and pointers stored as differences in as few bytes as they need. A node
+    // holds as many keys as fit in its page rather than nodeSize. See serializeCompressed
+    static final int FORMAT_COMPRESSED = 6;
+    // FORMAT_COMPRESSED with 64 bit keys
+    static final int FORMAT_COMPRESSED_LONG = 7;
+    // FORMAT_COMPRESSED with byte array keys, each stored after the bytes it shares with the key before it. Pages
+    // are sized for nodeSize keys of BYTE_KEY_SIZE bytes. See serializeCompressed and ByteKeys
+    static final int FORMAT_BYTES = 8;
+    // Bytes of a byte array key a FORMAT_BYTES page has room for per entry. Nodes with shorter keys hold more
+    static final int BYTE_KEY_SIZE = 48;
+
     final boolean isLeaf;
     RedBlackTree rbTree;
-    int parent = -1;
-    final int phi; // contains link to b tree node with value less the min key in the rbtree
-    final int selfPosition;
-    int nextLeafPos;
+    long parent = -1;
+    long phi; // contains link to b tree node with value less the min key in the rbtree
+    final long selfPosition;
+    long nextLeafPos;
+    // Number of keys below phi. The counts of the other children are kept in their entries, see RBTNode.count
+    long phiCount;
 
+    // Metadata size of a FORMAT_V1 node
     static final int metadataSize = 21;
+    // Metadata size of a FORMAT_V2 node
+    static final int metadataSizeV2 = 37;
 
-    BTreeNode(RedBlackTree rbTree, boolean isLeaf, int parent, int phi, int selfPosition, int nextLeafPos) {
+    BTreeNode(RedBlackTree rbTree, boolean isLeaf, long parent, long phi, long selfPosition, long nextLeafPos) {
         this.rbTree = rbTree;
         this.isLeaf = isLeaf;
         this.phi = phi;
@@ -25,45 +53,578 @@ public class BTreeNode {
         this.nextLeafPos = nextLeafPos;
     }
 
-    public int getLower(int key) {
-        Integer value = rbTree.getLower(key);
+    /**
+     * @return a copy of this node that can be modified without affecting readers of this one
+     */
+    BTreeNode copy() {
+        BTreeNode copy = new BTreeNode(rbTree.copy(), isLeaf, parent, phi, selfPosition, nextLeafPos);
+        copy.phiCount = phiCount;
+        return copy;
+    }
+
+    /**
+     * @return a copy of this node that goes to a new page at position. Copy on write trees keep neither parent
+     * pointers nor the leaf chain, since both would point at pages that are replaced by later writes.
+     */
+    BTreeNode copyTo(long position) {
+        BTreeNode copy = new BTreeNode(rbTree.copy(), isLeaf, -1, phi, position, -1);
+        copy.phiCount = phiCount;
+        return copy;
+    }
+
+    /**
+     * Replaces the pointer that getLower(key) returns with child.
+     */
+    void setLower(long key, long child) {
+        setLower(key, null, child);
+    }
+
+    /**
+     * Same as setLower for the key with the byte array key bytes
+     */
+    void setLower(long key, byte[] bytes, long child) {
+        RBTNode lower = rbTree.getLowerEntry(key, bytes);
+        if (lower == null) {
+            phi = child;
+        } else {
+            rbTree.put(lower.key, lower.bytes, child, null, 0);
+        }
+    }
+
+    /**
+     * Replaces the pointer that getLower(key) returns with child, which has count keys below it.
+     */
+    void setLower(long key, long child, long count) {
+        setLower(key, null, child, count);
+    }
+
+    /**
+     * Same as setLower for the key with the byte array key bytes
+     */
+    void setLower(long key, byte[] bytes, long child, long count) {
+        RBTNode lower = rbTree.getLowerEntry(key, bytes);
+        if (lower == null) {
+            phi = child;
+            phiCount = count;
+        } else {
+            rbTree.put(lower.key, lower.bytes, child, null, count);
+        }
+    }
+
+    /**
+     * @return the number of keys below this node. Only kept up to date in trees that count their keys.
+     */
+    long count() {
+        return isLeaf ? rbTree.size() : phiCount + rbTree.countAll();
+    }
+
+    static int metadataSize(int format) {
+        return format == FORMAT_V1 ? metadataSize : metadataSizeV2;
+    }
+
+    /**
+     * @return whether nodes of the format are sorted arrays read in place, see SortedNodeView
+     */
+    static boolean isSorted(int format) {
+        return format == FORMAT_SORTED || format == FORMAT_SORTED_LONG;
+    }
+
+    /**
+     * @return whether nodes of the format hold as many keys as fit in a page, see serializeCompressed
+     */
+    static boolean isCompressed(int format) {
+        return format == FORMAT_COMPRESSED || format == FORMAT_COMPRESSED_LONG || format == FORMAT_BYTES;
+    }
+
+    /**
+     * @return the number of bytes of a key in the given format. Compressed formats take keys of that size but
+     * store fewer bytes. Nodes with byte array keys keep a 64 bit prefix of every key in memory
+     */
+    static int keySize(int format) {
+        return format == FORMAT_LONG || format == FORMAT_SORTED_LONG || format == FORMAT_COMPRESSED_LONG
+                || format == FORMAT_BYTES ? 8 : 4;
+    }
+
+    /**
+     * @return the number of bytes taken up by one key in the given format. A page of a compressed format is as
+     * large as one of FORMAT_V2 (FORMAT_LONG) and holds as many keys as fit
+     */
+    static int entrySize(int format) {
+        if (format == FORMAT_BYTES) {
+            return RBTNode.serializedSize(format) + BYTE_KEY_SIZE;
+        }
+        return isSorted(format) ? keySize(format) + 8 : RBTNode.serializedSize(format);
+    }
+
+    /**
+     * @return the largest number of bytes one entry of a compressed node can take up: a key of up to
+     * MAX_VARINT_SIZE bytes, and a pointer of up to as many bytes with the value of a leaf entry or a child
+     * pointer with the count of an inner one
+     */
+    static int maxCompressedEntrySize(boolean isLeaf, int inlineSize, boolean counted) {
+        return MAX_VARINT_SIZE + (isLeaf ? MAX_VARINT_SIZE + inlineSize
+                : CHILD_POINTER_SIZE + (counted ? MAX_VARINT_SIZE : 0));
+    }
+
+    /**
+     * @return the largest number of bytes one entry of a FORMAT_BYTES node with keys of at most maxKeyLength bytes
+     * can take up: the key of maxCompressedEntrySize is the length of the prefix shared with the key before, the
+     * length of the rest and the rest
+     */
+    static int maxByteKeyEntrySize(boolean isLeaf, int inlineSize, boolean counted, int maxKeyLength) {
+        return maxCompressedEntrySize(isLeaf, inlineSize, counted) + MAX_VARINT_SIZE + maxKeyLength;
+    }
+
+    /**
+     * @return the largest number of keys that a node of the given format holds in pageSize bytes, i.e. the largest
+     * nodeSize whose batchSize is at most pageSize
+     */
+    static int nodeSizeForPage(int pageSize, int format, int inlineSize, boolean counted) {
+        int countSize = counted ? COUNT_SIZE : 0;
+        return (pageSize - metadataSize(format) - countSize) / (entrySize(format) + inlineSize + countSize);
+    }
+
+    /**
+     * @return the number of bytes needed for a node holding nodeSize keys in the given format
+     */
+    static int batchSize(int nodeSize, int format) {
+        return batchSize(nodeSize, format, 0);
+    }
+
+    /**
+     * @param inlineSize - size of the slot every leaf entry has for a value stored in the leaf
+     */
+    static int batchSize(int nodeSize, int format, int inlineSize) {
+        return batchSize(nodeSize, format, inlineSize, false);
+    }
+
+    /**
+     * @param counted - whether inner nodes keep the number of keys below each child, see countOffset
+     */
+    static int batchSize(int nodeSize, int format, int inlineSize, boolean counted) {
+        return nodeSize * (entrySize(format) + inlineSize) + metadataSize(format)
+                + (counted ? (nodeSize + 1) * COUNT_SIZE : 0);
+    }
+
+    static final int COUNT_SIZE = 8;
+
+    /**
+     * @return the offset in an inner node with size keys of the number of keys below the child of the index-th
+     * smallest key, or below phi for index -1. The counts follow the keys and pointers in both formats.
+     */
+    static int countOffset(int format, int size, int index) {
+        return metadataSize(format) + size * entrySize(format) + (index + 1) * COUNT_SIZE;
+    }
+
+    /**
+     * @return the offset in a leaf with size keys of the slot of the index-th smallest key for a value stored
+     * in the leaf. The slots follow the keys and pointers in both formats.
+     */
+    static int inlineOffset(int format, int size, int index, int inlineSize) {
+        return metadataSize(format) + size * entrySize(format) + index * inlineSize;
+    }
+
+    public long getLower(long key) {
+        Long value = rbTree.getLower(key);
         return value == null ? phi : value;
     }
 
+    /**
+     * Same as getLower for the key with the byte array key bytes
+     */
+    long getLower(long key, byte[] bytes) {
+        RBTNode lower = rbTree.getLowerEntry(key, bytes);
+        return lower == null ? phi : lower.value;
+    }
+
     public byte[] serialize() {
+        return serialize(FORMAT_V2);
+    }
+
+    public byte[] serialize(int format) {
+        return serialize(format, 0);
+    }
+
+    /**
+     * @param inlineSize - size of the slots for values stored in the leaf, 0 if the tree stores none
+     */
+    public byte[] serialize(int format, int inlineSize) {
+        return serialize(format, inlineSize, false);
+    }
+
+    /**
+     * @param counted - whether the counts of the children of an inner node are written, see countOffset
+     */
+    public byte[] serialize(int format, int inlineSize, boolean counted) {
+        ByteBuffer buffer = ByteBuffer.allocate(serializedSize(format, inlineSize, counted));
+        serializeInto(buffer, format, inlineSize, counted);
+        return buffer.array();
+    }
+
+    /**
+     * @return the number of bytes serialize returns for this node
+     */
+    int serializedSize(int format, int inlineSize, boolean counted) {
+        if (isCompressed(format)) {
+            return compressedSize(counted);
+        }
+        int rbTreeSize = rbTree.size();
+        int inlineBytes = isLeaf ? rbTreeSize * inlineSize : 0;
+        int countBytes = counted && !isLeaf ? (rbTreeSize + 1) * COUNT_SIZE : 0;
+        return rbTreeSize * entrySize(format) + metadataSize(format) + inlineBytes + countBytes;
+    }
+
+    /**
+     * Writes the same bytes as serialize at the position of buffer, which may be a page of the mapped index file,
+     * and moves the position past them. Apart from a stack as deep as the tree to walk the keys in order nothing is
+     * allocated. The buffer must have serializedSize bytes remaining.
+     */
+    void serializeInto(ByteBuffer buffer, int format, int inlineSize, boolean counted) {
+        if (isCompressed(format)) {
+            serializeCompressed(buffer, counted);
+            return;
+        }
+        int start = buffer.position();
         int rbTreeSize = rbTree.size();
+        int inlineBytes = isLeaf ? rbTreeSize * inlineSize : 0;
+        int countBytes = counted && !isLeaf ? (rbTreeSize + 1) * COUNT_SIZE : 0;
+        // 1 byte for isLeaf - it is negative if rbTree is not a leaf plus
         // 4 bytes for size of RBTree plus
-        // 4 bytes for pointer to parent plus
-        // 4 bytes for pointer to phi node plus
-        // 4 bytes for pointer to self plus
-        // 1 byte for isLeaf - it is negative if rbTree is not a leaf
-        ByteBuffer buffer = ByteBuffer.allocate(rbTreeSize * RBTNode.SERIALIZED_SIZE + metadataSize);
+        // 4 (V1) or 8 (V2) bytes for pointer to parent plus
+        // 4 (V1) or 8 (V2) bytes for pointer to phi node plus
+        // 4 (V1) or 8 (V2) bytes for pointer to self plus
+        // 4 (V1) or 8 (V2) bytes for pointer to next leaf
+        // The keys are followed by a slot of inlineSize bytes per key of a leaf for values stored in it or by the
+        // counts of the children of an inner node
         buffer.put((byte)(isLeaf ? +1 : -1));
         buffer.putInt(rbTreeSize);
-        buffer.putInt(parent);
-        buffer.putInt(phi);
-        buffer.putInt(selfPosition);
-        buffer.putInt(nextLeafPos);
-        buffer.put(rbTree.serialize());
-        return buffer.array();
+        if (format == FORMAT_V1) {
+            buffer.putInt((int) parent);
+            buffer.putInt((int) phi);
+            buffer.putInt((int) selfPosition);
+            buffer.putInt((int) nextLeafPos);
+        } else {
+            buffer.putLong(parent);
+            buffer.putLong(phi);
+            buffer.putLong(selfPosition);
+            buffer.putLong(nextLeafPos);
+        }
+        if (isSorted(format)) {
+            // All keys first, then the pointers in the same order
+            int valuesStart = buffer.position() + rbTreeSize * keySize(format);
+            for (Iterator<RBTNode> entries = rbTree.inOrder(); entries.hasNext(); ) {
+                RBTNode node = entries.next();
+                buffer.putLong(valuesStart, node.value);
+                valuesStart += 8;
+                if (format == FORMAT_SORTED_LONG) {
+                    buffer.putLong(node.key);
+                } else {
+                    buffer.putInt((int) node.key);
+                }
+            }
+        } else {
+            rbTree.serializeInto(buffer, format);
+        }
+        if (inlineBytes > 0) {
+            // The slots follow the keys and pointers. Slots of keys whose values are not stored in the leaf are zeroed
+            // so that a page written in place does not keep the bytes of an earlier version of the node
+            buffer.position(start + inlineOffset(format, rbTreeSize, 0, inlineSize));
+            for (Iterator<RBTNode> entries = rbTree.inOrder(); entries.hasNext(); ) {
+                RBTNode node = entries.next();
+                int written = 0;
+                if (node.inline != null) {
+                    buffer.put(node.inline);
+                    written = node.inline.length;
+                }
+                IOHandler.putZeroes(buffer, inlineSize - written);
+            }
+        }
+        if (countBytes > 0) {
+            buffer.position(start + countOffset(format, rbTreeSize, -1));
+            buffer.putLong(phiCount);
+            for (Iterator<RBTNode> entries = rbTree.inOrder(); entries.hasNext(); ) {
+                RBTNode node = entries.next();
+                buffer.putLong(node.count);
+            }
+        }
+        buffer.position(start + rbTreeSize * entrySize(format) + metadataSize(format) + inlineBytes + countBytes);
     }
 
-    // The batchsize is the same as when read through
     public static BTreeNode deSerialize(byte[] bytes, int batchSize) throws IOException {
-        if (bytes.length % RBTNode.SERIALIZED_SIZE != 4 || bytes.length == batchSize) {
+        return deSerialize(bytes, batchSize, FORMAT_V2);
+    }
+
+    public static BTreeNode deSerialize(byte[] bytes, int batchSize, int format) throws IOException {
+        return deSerialize(bytes, batchSize, format, 0);
+    }
+
+    // The batchsize is the same as when read through
+    public static BTreeNode deSerialize(byte[] bytes, int batchSize, int format, int inlineSize) throws IOException {
+        return deSerialize(bytes, batchSize, format, inlineSize, false);
+    }
+
+    public static BTreeNode deSerialize(byte[] bytes, int batchSize, int format, int inlineSize, boolean counted)
+            throws IOException {
+        int metadataSize = metadataSize(format);
+        if (isCompressed(format) && bytes.length >= metadataSize && bytes.length <= batchSize) {
+            try {
+                return deSerializeCompressed(ByteBuffer.wrap(bytes), inlineSize, counted, format == FORMAT_BYTES);
+            } catch (RuntimeException e) {
+                // A page that is not a node of this format, e.g. one read by an optimistic reader while it was freed
+                throw new IOException("Error while deserializing BTreeNode", e);
+            }
+        }
+        if (bytes.length >= metadataSize && bytes.length <= batchSize) {
             ByteBuffer buffer = ByteBuffer.wrap(bytes);
             boolean isLeaf = buffer.get() == ((byte) 1);
             int rbtSize = buffer.getInt();
-            int parent = buffer.getInt();
-            int phi = buffer.getInt();
-            int selfPosition = buffer.getInt();
-            int nextLeafPos = buffer.getInt();
-            RedBlackTree rbt =
-                    RedBlackTree.
-                            deserialize(ByteBuffer.wrap(bytes, metadataSize, rbtSize * RBTNode.SERIALIZED_SIZE));
-            return new BTreeNode(rbt, isLeaf, parent, phi, selfPosition, nextLeafPos);
+            long parent, phi, selfPosition, nextLeafPos;
+            if (format == FORMAT_V1) {
+                parent = buffer.getInt();
+                phi = buffer.getInt();
+                selfPosition = buffer.getInt();
+                nextLeafPos = buffer.getInt();
+            } else {
+                parent = buffer.getLong();
+                phi = buffer.getLong();
+                selfPosition = buffer.getLong();
+                nextLeafPos = buffer.getLong();
+            }
+            int rbtBytes = rbtSize * entrySize(format);
+            int inlineBytes = isLeaf ? rbtSize * inlineSize : 0;
+            int countBytes = counted && !isLeaf ? (rbtSize + 1) * COUNT_SIZE : 0;
+            if (rbtSize < 0 || metadataSize + rbtBytes + inlineBytes + countBytes > bytes.length) {
+                throw new IOException("Error while deserializing BTreeNode");
+            }
+            RedBlackTree rbt;
+            if (isSorted(format)) {
+                rbt = new RedBlackTree();
+                int valuesStart = metadataSize + rbtSize * keySize(format);
+                for (int i = 0; i < rbtSize; i++) {
+                    long key = format == FORMAT_SORTED_LONG ? buffer.getLong() : buffer.getInt();
+                    rbt.put(key, buffer.getLong(valuesStart + i * 8));
+                }
+            } else {
+                rbt = RedBlackTree.
+                        deserialize(ByteBuffer.wrap(bytes, metadataSize, rbtBytes), format);
+            }
+            if (inlineBytes > 0) {
+                int index = 0;
+                for (RBTNode node : rbt) {
+                    if (BTree.isInline(node.value)) {
+                        int length = BTree.inlineLength(node.value);
+                        if (length > inlineSize) {
+                            throw new IOException("Error while deserializing BTreeNode");
+                        }
+                        int offset = inlineOffset(format, rbtSize, index, inlineSize);
+                        node.inline = Arrays.copyOfRange(bytes, offset, offset + length);
+                    }
+                    index++;
+                }
+            }
+            BTreeNode node = new BTreeNode(rbt, isLeaf, parent, phi, selfPosition, nextLeafPos);
+            if (countBytes > 0) {
+                buffer.position(countOffset(format, rbtSize, -1));
+                node.phiCount = buffer.getLong();
+                for (RBTNode entry : rbt) {
+                    entry.count = buffer.getLong();
+                }
+            }
+            return node;
+        } else {
+            throw new IOException("Error while deserializing BTreeNode");
+        }
+    }
+
+    static final int MAX_VARINT_SIZE = 10;
+    // Pages start at multiples of the page size that fit in 48 bits
+    static final int CHILD_POINTER_SIZE = 6;
+
+    /**
+     * @return the number of bytes of the FORMAT_COMPRESSED page of this node, see serializeCompressed
+     */
+    int compressedSize(boolean counted) {
+        int size = compressedMetadataSize(isLeaf, phiCount, counted);
+        RBTNode previous = null;
+        for (Iterator<RBTNode> entries = rbTree.inOrder(); entries.hasNext(); ) {
+            RBTNode entry = entries.next();
+            size += compressedEntrySize(entry, previous, isLeaf, counted);
+            previous = entry;
+        }
+        return size;
+    }
+
+    static int compressedMetadataSize(boolean isLeaf, long phiCount, boolean counted) {
+        return metadataSizeV2 + (counted && !isLeaf ? varintSize(phiCount) : 0);
+    }
+
+    /**
+     * @return the number of bytes entry takes up in a FORMAT_COMPRESSED page after previous, null for the first
+     * entry
+     */
+    static int compressedEntrySize(RBTNode entry, RBTNode previous, boolean isLeaf, boolean counted) {
+        int size;
+        if (entry.bytes != null) {
+            int shared = previous == null ? 0 : ByteKeys.sharedPrefix(entry.bytes, previous.bytes);
+            size = varintSize(shared) + varintSize(entry.bytes.length - shared) + entry.bytes.length - shared;
+        } else {
+            size = varintSize(previous == null ? zigzag(entry.key) : entry.key - previous.key);
+        }
+        if (isLeaf) {
+            size += varintSize(zigzag(entry.value - (previous == null ? 0 : previous.value)));
+            if (entry.inline != null) {
+                size += entry.inline.length;
+            }
         } else {
+            size += CHILD_POINTER_SIZE + (counted ? varintSize(entry.count) : 0);
+        }
+        return size;
+    }
+
+    /**
+     * Writes the node in FORMAT_COMPRESSED. Keys that are close together and pointers to values appended one after
+     * the other differ in their low bytes only, so they are stored as differences in as few bytes as they need:
+     * [0, 36] FORMAT_V2 metadata,
+     * the number of keys below phi of an inner node of a tree that counts its keys,
+     * then for every key in order: the key, the first one zigzag encoded and all others as the difference to the
+     * one before, followed in a leaf by the pointer as the zigzag encoded difference to the pointer before and the
+     * value itself if it is stored in the leaf, or in an inner node by the child pointer in CHILD_POINTER_SIZE
+     * bytes and the number of keys below the child if the tree counts its keys.
+     * FORMAT_BYTES stores every key as the number of bytes it shares with the key before, 0 for the first key, the
+     * number of bytes that follow and those bytes instead. Only entries with byte array keys are written that way.
+     * Numbers are written 7 bits per byte, least significant first, with the high bit set on all but the last byte.
+     * Child pointers have a fixed size so that moving a child copy on write never makes its parent larger.
+     */
+    byte[] serializeCompressed(boolean counted) {
+        ByteBuffer buffer = ByteBuffer.allocate(compressedSize(counted));
+        serializeCompressed(buffer, counted);
+        return buffer.array();
+    }
+
+    private void serializeCompressed(ByteBuffer buffer, boolean counted) {
+        buffer.put((byte) (isLeaf ? +1 : -1));
+        buffer.putInt(rbTree.size());
+        buffer.putLong(parent).putLong(phi).putLong(selfPosition).putLong(nextLeafPos);
+        if (counted && !isLeaf) {
+            putVarint(buffer, phiCount);
+        }
+        long previousKey = 0;
+        long previousValue = 0;
+        byte[] previousBytes = null;
+        boolean first = true;
+        for (Iterator<RBTNode> entries = rbTree.inOrder(); entries.hasNext(); ) {
+            RBTNode entry = entries.next();
+            if (entry.bytes != null) {
+                int shared = first ? 0 : ByteKeys.sharedPrefix(entry.bytes, previousBytes);
+                putVarint(buffer, shared);
+                putVarint(buffer, entry.bytes.length - shared);
+                buffer.put(entry.bytes, shared, entry.bytes.length - shared);
+            } else {
+                putVarint(buffer, first ? zigzag(entry.key) : entry.key - previousKey);
+            }
+            if (isLeaf) {
+                putVarint(buffer, zigzag(entry.value - previousValue));
+                if (entry.inline != null) {
+                    buffer.put(entry.inline);
+                }
+            } else {
+                buffer.putShort((short) (entry.value >>> 32)).putInt((int) entry.value);
+                if (counted) {
+                    putVarint(buffer, entry.count);
+                }
+            }
+            previousKey = entry.key;
+            previousValue = entry.value;
+            previousBytes = entry.bytes;
+            first = false;
+        }
+    }
+
+    private static BTreeNode deSerializeCompressed(ByteBuffer buffer, int inlineSize, boolean counted,
+                                                   boolean byteKeys) throws IOException {
+        boolean isLeaf = buffer.get() == ((byte) 1);
+        int size = buffer.getInt();
+        long parent = buffer.getLong();
+        long phi = buffer.getLong();
+        long selfPosition = buffer.getLong();
+        long nextLeafPos = buffer.getLong();
+        BTreeNode node = new BTreeNode(new RedBlackTree(), isLeaf, parent, phi, selfPosition, nextLeafPos);
+        if (counted && !isLeaf) {
+            node.phiCount = getVarint(buffer);
+        }
+        // Every entry takes up at least two bytes
+        if (size < 0 || size > buffer.remaining() / 2) {
             throw new IOException("Error while deserializing BTreeNode");
         }
+        long key = 0;
+        long value = 0;
+        byte[] bytes = new byte[0];
+        for (int i = 0; i < size; i++) {
+            if (byteKeys) {
+                long shared = getVarint(buffer);
+                long rest = getVarint(buffer);
+                if (shared > bytes.length || rest > buffer.remaining()) {
+                    throw new IOException("Error while deserializing BTreeNode");
+                }
+                byte[] previous = bytes;
+                bytes = new byte[(int) (shared + rest)];
+                System.arraycopy(previous, 0, bytes, 0, (int) shared);
+                buffer.get(bytes, (int) shared, (int) rest);
+                key = ByteKeys.prefix(bytes);
+            } else {
+                long difference = getVarint(buffer);
+                key = i == 0 ? unzigzag(difference) : key + difference;
+            }
+            byte[] inline = null;
+            long count = 0;
+            if (isLeaf) {
+                value += unzigzag(getVarint(buffer));
+                if (BTree.isInline(value)) {
+                    int length = BTree.inlineLength(value);
+                    if (length > inlineSize) {
+                        throw new IOException("Error while deserializing BTreeNode");
+                    }
+                    inline = new byte[length];
+                    buffer.get(inline);
+                }
+            } else {
+                value = (buffer.getShort() & 0xFFFFL) << 32 | (buffer.getInt() & 0xFFFFFFFFL);
+                count = counted ? getVarint(buffer) : 0;
+            }
+            node.rbTree.put(key, byteKeys ? bytes : null, value, inline, count);
+        }
+        return node;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int varintSize(long value) {
+        return Math.max(1, (64 - Long.numberOfLeadingZeros(value) + 6) / 7);
+    }
+
+    private static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long getVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Number longer than " + MAX_VARINT_SIZE + " bytes");
     }
 }
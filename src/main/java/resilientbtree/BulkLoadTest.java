@@ -0,0 +1,201 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Bulk loads trees with 32 and 64 bit keys in both fixed size layouts at several fill factors and checks the
+ * structure that comes out: every leaf on the same level, keys in order and within the separators of their
+ * parents, parent pointers and the leaf chain, every node but the last of its level filled with exactly the
+ * number of keys the fill factor asks for, and the height that follows from that. Then checks lookups and a range
+ * scan, puts keys in between, and checks that unsorted input, keys that do not fit the tree and trees that are
+ * not empty are turned down.
+ */
+public class BulkLoadTest {
+
+    static final int KEYS = 30000;
+    static final int NODE_SIZE = 16;
+
+    public static void main(String args[]) throws IOException {
+        for (BTreeConfig.NodeLayout layout : new BTreeConfig.NodeLayout[]{BTreeConfig.NodeLayout.RED_BLACK_TREE,
+                BTreeConfig.NodeLayout.SORTED_ARRAY}) {
+            for (double fillFactor : new double[]{1.0, 0.7, 0.5}) {
+                test(layout, BTreeConfig.KeyType.INT, fillFactor);
+                test(layout, BTreeConfig.KeyType.LONG, fillFactor);
+            }
+        }
+        testRefused();
+    }
+
+    static void test(BTreeConfig.NodeLayout layout, BTreeConfig.KeyType keyType, double fillFactor)
+            throws IOException {
+        String fileName = "bulkload.dat";
+        delete(fileName);
+        BTreeConfig config = new BTreeConfig().nodeSize(NODE_SIZE).nodeLayout(layout).keyType(keyType);
+        BTree bTree = BTree.makeBTree(fileName, config);
+        TreeMap<Long, byte[]> expected = new TreeMap<>();
+        if (keyType == BTreeConfig.KeyType.INT) {
+            List<Tuple<Integer, byte[]>> entries = new ArrayList<>();
+            for (int i = 0; i < KEYS; i++) {
+                int key = Integer.MIN_VALUE + i * (Integer.MAX_VALUE / KEYS * 2);
+                entries.add(new Tuple<>(key, value(key)));
+                expected.put((long) key, value(key));
+            }
+            bTree.bulkLoad(entries.iterator(), fillFactor);
+        } else {
+            List<Tuple<Long, byte[]>> entries = new ArrayList<>();
+            for (int i = 0; i < KEYS; i++) {
+                long key = i == KEYS - 1 ? Long.MAX_VALUE : Long.MIN_VALUE + i * (Long.MAX_VALUE / KEYS * 2);
+                entries.add(new Tuple<>(key, value(key)));
+                expected.put(key, value(key));
+            }
+            bTree.bulkLoadLong(entries.iterator(), fillFactor);
+        }
+
+        int keysPerNode = Math.max(1, (int) (NODE_SIZE * fillFactor));
+        List<List<BTreeNode>> levels = new ArrayList<>();
+        checkNode(bTree, bTree.rootPosition, -1, Long.MIN_VALUE, Long.MAX_VALUE, 0, levels);
+        int expectedHeight = 1;
+        for (long nodes = (KEYS + keysPerNode - 1) / keysPerNode; nodes > 1; expectedHeight++) {
+            nodes = (nodes + keysPerNode) / (keysPerNode + 1);
+        }
+        check(levels.size(), expectedHeight, "height");
+        check(bTree.height(), expectedHeight, "height of the tree");
+        for (int depth = 0; depth < levels.size(); depth++) {
+            List<BTreeNode> level = levels.get(depth);
+            for (int i = 0; i < level.size() - 1; i++) {
+                check(level.get(i).rbTree.size(), keysPerNode, "keys in node " + i + " of level " + depth);
+            }
+        }
+        checkLeafChain(bTree, levels.get(levels.size() - 1), expected);
+        checkEntries(bTree, expected);
+
+        // Keys in between go into full nodes, which split
+        for (Long key : expected.keySet().toArray(new Long[0])) {
+            if (key != Long.MAX_VALUE && key % 7 == 0) {
+                bTree.put(key + 1, value(key + 1));
+                expected.put(key + 1, value(key + 1));
+            }
+        }
+        checkEntries(bTree, expected);
+        bTree.close();
+        System.out.println(layout + ", " + keyType + " keys, fill factor " + fillFactor + ": height "
+                + expectedHeight + ", " + levels.get(levels.size() - 1).size() + " leaves");
+    }
+
+    /**
+     * Checks the subtree at position and adds its nodes to their level in key order
+     * @param low - smallest key the subtree may hold
+     * @param high - largest key the subtree may hold
+     */
+    private static void checkNode(BTree bTree, long position, long parent, long low, long high, int depth,
+                                  List<List<BTreeNode>> levels) throws IOException {
+        BTreeNode node = bTree.getBTreeNodeAtIndex(position);
+        check(node.parent, parent, "parent of the node at " + position);
+        if (levels.size() == depth) {
+            levels.add(new ArrayList<>());
+        }
+        levels.get(depth).add(node);
+        for (RBTNode entry : node.rbTree) {
+            if (entry.key < low || entry.key > high) {
+                throw new IllegalStateException("Key " + entry.key + " outside of [" + low + ", " + high + "]");
+            }
+        }
+        if (node.isLeaf) {
+            if (depth + 1 != levels.size()) {
+                throw new IllegalStateException("Leaf at depth " + depth + " above other leaves");
+            }
+            return;
+        }
+        Iterator<RBTNode> entries = node.rbTree.iterator();
+        long childLow = low;
+        long child = node.phi;
+        while (entries.hasNext()) {
+            RBTNode entry = entries.next();
+            checkNode(bTree, child, position, childLow, entry.key - 1, depth + 1, levels);
+            childLow = entry.key;
+            child = entry.value;
+        }
+        checkNode(bTree, child, position, childLow, high, depth + 1, levels);
+    }
+
+    private static void checkLeafChain(BTree bTree, List<BTreeNode> leaves, TreeMap<Long, byte[]> expected) {
+        Iterator<Long> keys = expected.keySet().iterator();
+        for (int i = 0; i < leaves.size(); i++) {
+            BTreeNode leaf = leaves.get(i);
+            check(leaf.nextLeafPos, i + 1 < leaves.size() ? leaves.get(i + 1).selfPosition : -1,
+                    "next leaf of leaf " + i);
+            for (RBTNode entry : leaf.rbTree) {
+                check(entry.key, keys.next(), "key in leaf " + i);
+            }
+        }
+        if (keys.hasNext()) {
+            throw new IllegalStateException("Key " + keys.next() + " is in no leaf");
+        }
+    }
+
+    private static void checkEntries(BTree bTree, TreeMap<Long, byte[]> expected) throws IOException {
+        for (Map.Entry<Long, byte[]> entry : expected.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), bTree.get(entry.getKey()))) {
+                throw new IllegalStateException("Wrong value of key " + entry.getKey());
+            }
+        }
+        Iterator<Tuple<Long, byte[]>> actual = bTree.getInRange(Long.MIN_VALUE, Long.MAX_VALUE).iterator();
+        for (Long key : expected.keySet()) {
+            check(actual.next().x, key, "key of the range scan");
+        }
+        if (actual.hasNext()) {
+            throw new IllegalStateException("Range has more keys than expected: " + actual.next().x);
+        }
+    }
+
+    static void testRefused() throws IOException {
+        String fileName = "bulkload.dat";
+        delete(fileName);
+        BTree bTree = BTree.makeBTree(fileName, new BTreeConfig().nodeSize(NODE_SIZE));
+        try {
+            bTree.bulkLoad(Arrays.asList(new Tuple<>(2, value(2)), new Tuple<>(1, value(1))).iterator());
+            throw new IllegalStateException("Bulk loaded keys out of order");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            bTree.bulkLoadLong(Arrays.asList(new Tuple<>(1L << 40, value(1))).iterator());
+            throw new IllegalStateException("Bulk loaded a key that does not fit in an int");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        bTree.put(1, value(1));
+        try {
+            bTree.bulkLoad(Arrays.asList(new Tuple<>(2, value(2))).iterator());
+            throw new IllegalStateException("Bulk loaded a tree that is not empty");
+        } catch (IllegalStateException e) {
+            if (!e.getMessage().contains("empty")) {
+                throw e;
+            }
+        }
+        bTree.close();
+        System.out.println("Unsorted keys, keys that do not fit and trees that are not empty are turned down");
+    }
+
+    private static byte[] value(long key) {
+        return Long.toString(key).getBytes();
+    }
+
+    static void check(long actual, long expected, String what) {
+        if (actual != expected) {
+            throw new IllegalStateException("Wrong " + what + ": " + actual + " instead of " + expected);
+        }
+    }
+
+    private static void delete(String fileName) {
+        new File(fileName).delete();
+        new File(fileName + "_values").delete();
+    }
+}
@@ -0,0 +1,72 @@
+package resilientbtree;
+
+import java.util.Arrays;
+
+/**
+ * Byte array keys of trees created with BTreeConfig.KeyType.BYTES. Nodes of such trees hold the whole key of every
+ * entry, prefix compressed like BTreeNode.FORMAT_COMPRESSED, see BTreeNode.FORMAT_BYTES. In memory every entry also
+ * has a 64 bit key, the prefix of its byte array key: the first 8 bytes read big endian and padded with zeros, with
+ * the sign bit flipped so that signed order of prefixes is unsigned lexicographic order of the keys. Descents
+ * compare the prefixes and only compare the byte arrays of keys with the same prefix.
+ */
+final class ByteKeys {
+
+    private ByteKeys() {
+    }
+
+    /**
+     * @return the 64 bit key of key. Prefixes of keys in order are in order, see class comment
+     */
+    static long prefix(byte[] key) {
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix = prefix << 8 | (i < key.length ? key[i] & 0xFF : 0);
+        }
+        return prefix ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Compares a and b as unsigned bytes, a shorter key before the longer keys it is a prefix of.
+     */
+    static int compare(byte[] a, byte[] b) {
+        int common = Math.min(a.length, b.length);
+        for (int i = 0; i < common; i++) {
+            int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * @return the number of bytes a and b start with that are the same
+     */
+    static int sharedPrefix(byte[] a, byte[] b) {
+        int common = Math.min(a.length, b.length);
+        int shared = 0;
+        while (shared < common && a[shared] == b[shared]) {
+            shared++;
+        }
+        return shared;
+    }
+
+    /**
+     * @return the shortest key greater than left and less than or equal to right, which is right cut off after the
+     * first byte it differs from left in. Left must be less than right. Leaves split at this key rather than at the
+     * first key of the right one, so that inner nodes hold shorter keys (suffix truncation).
+     */
+    static byte[] separator(byte[] left, byte[] right) {
+        int length = sharedPrefix(left, right) + 1;
+        return length >= right.length ? right : Arrays.copyOf(right, length);
+    }
+
+    /**
+     * @return the smallest key greater than key, which is key followed by a zero byte
+     */
+    static byte[] successor(byte[] key) {
+        byte[] successor = new byte[key.length + 1];
+        System.arraycopy(key, 0, successor, 0, key.length);
+        return successor;
+    }
+}
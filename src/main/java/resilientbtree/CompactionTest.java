@@ -0,0 +1,121 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Overwrites every key of a tree several times, so that most of the value file is garbage, then compacts the
+ * values while a writer keeps putting and a reader keeps getting. Prints the size of the value files before and
+ * after and the longest a single put had to wait during compaction, then checks every key before and after
+ * opening the tree again.
+ */
+public class CompactionTest {
+
+    static final int KEYS = 50000;
+    static final int OVERWRITES = 10;
+
+    public static void main(String args[]) throws Exception {
+        for (BTreeConfig.NodeLayout layout : BTreeConfig.NodeLayout.values()) {
+            for (boolean copyOnWrite : new boolean[]{false, true}) {
+                System.out.println("Layout " + layout + (copyOnWrite ? ", copy on write" : ""));
+                String fileName = "compaction_" + layout + ".dat";
+                for (File file : new File(".").listFiles()) {
+                    if (file.getName().startsWith(fileName)) {
+                        file.delete();
+                    }
+                }
+                BTreeConfig config = new BTreeConfig().nodeSize(32).nodeLayout(layout).copyOnWrite(copyOnWrite);
+                BTree bTree = BTree.makeBTree(fileName, config);
+                final String[] round = new String[KEYS];
+                for (int overwrite = 0; overwrite < OVERWRITES; overwrite++) {
+                    for (int key = 0; key < KEYS; key++) {
+                        round[key] = "value-" + key + "-" + overwrite;
+                        bTree.put(key, round[key].getBytes());
+                    }
+                }
+                long before = bTree.valueFileLength();
+                long maxPutNanos = compactWhileBusy(bTree, round);
+                System.out.println("Value files: " + before + " bytes before, " + bTree.valueFileLength()
+                        + " bytes after compaction. Longest put during compaction: " + maxPutNanos / 1000 + " us");
+                verify(bTree, round);
+                bTree.close();
+                bTree = BTree.makeBTree(fileName, config);
+                verify(bTree, round);
+                bTree.close();
+            }
+        }
+    }
+
+    /**
+     * Compacts the values of bTree while another thread overwrites keys and one more gets them.
+     * @return the longest time a single put took
+     */
+    static long compactWhileBusy(final BTree bTree, final String[] values) throws Exception {
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong maxPutNanos = new AtomicLong();
+        final List<Throwable> failures = new ArrayList<>();
+        Thread writer = new Thread(() -> {
+            try {
+                Random random = new Random(1);
+                while (!done.get()) {
+                    int key = random.nextInt(KEYS);
+                    String value = "value-" + key + "-compacting";
+                    long start = System.nanoTime();
+                    synchronized (values) {
+                        bTree.put(key, value.getBytes());
+                        values[key] = value;
+                    }
+                    maxPutNanos.accumulateAndGet(System.nanoTime() - start, Math::max);
+                }
+            } catch (Throwable t) {
+                synchronized (failures) {
+                    failures.add(t);
+                }
+            }
+        });
+        Thread reader = new Thread(() -> {
+            try {
+                Random random = new Random(2);
+                while (!done.get()) {
+                    int key = random.nextInt(KEYS);
+                    byte[] value = bTree.get(key);
+                    if (value == null || !new String(value).startsWith("value-" + key + "-")) {
+                        throw new IllegalStateException("Wrong value for key " + key);
+                    }
+                }
+            } catch (Throwable t) {
+                synchronized (failures) {
+                    failures.add(t);
+                }
+            }
+        });
+        writer.start();
+        reader.start();
+        bTree.compactValues();
+        done.set(true);
+        writer.join();
+        reader.join();
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("Compaction broke a concurrent put or get", failures.get(0));
+        }
+        return maxPutNanos.get();
+    }
+
+    static void verify(BTree bTree, String[] values) throws IOException {
+        int key = 0;
+        for (Tuple<Integer, byte[]> keyValue : bTree.getInRange(0, KEYS)) {
+            if (keyValue.x != key || !new String(keyValue.y).equals(values[key])) {
+                throw new IllegalStateException("Wrong entry for key " + keyValue.x);
+            }
+            key++;
+        }
+        if (key != KEYS) {
+            throw new IllegalStateException("Range scan returned " + key + " keys instead of " + KEYS);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Writes the same keys to a tree with the RED_BLACK_TREE layout and one with the COMPRESSED layout and checks that
+ * the compressed index is several times smaller. Then puts and deletes keys with large gaps between them and
+ * values stored in the leaves, bulk loads full nodes and puts keys in between, and checks lookups, range scans and
+ * counts against a TreeMap, also after the tree has been opened again.
+ */
+public class CompressionTest {
+
+    static final int KEYS = 50000;
+
+    public static void main(String args[]) throws IOException {
+        long uncompressed = testSize(BTreeConfig.NodeLayout.RED_BLACK_TREE);
+        long compressed = testSize(BTreeConfig.NodeLayout.COMPRESSED);
+        System.out.println("Index of " + KEYS + " keys: " + uncompressed + " bytes, " + compressed + " compressed");
+        if (compressed * 3 > uncompressed) {
+            throw new IllegalStateException("Compressed index is not a third of the size of the uncompressed one");
+        }
+        for (boolean copyOnWrite : new boolean[]{false, true}) {
+            testLargeGaps(copyOnWrite);
+            testBulkLoad(copyOnWrite);
+        }
+    }
+
+    static long testSize(BTreeConfig.NodeLayout layout) throws IOException {
+        String fileName = "compression_" + layout + ".dat";
+        delete(fileName);
+        BTreeConfig config = new BTreeConfig().nodeSize(32).nodeLayout(layout);
+        BTree bTree = BTree.makeBTree(fileName, config);
+        TreeMap<Long, byte[]> expected = new TreeMap<>();
+        Random random = new Random(3);
+        for (int i = 0; i < KEYS; i++) {
+            put(bTree, expected, random.nextInt(KEYS * 4));
+        }
+        check(bTree, expected);
+        bTree.close();
+        bTree = BTree.makeBTree(fileName, config);
+        check(bTree, expected);
+        // Written again so that both trees have full nodes
+        bTree.relayout(1.0);
+        bTree.close();
+        return new File(fileName).length();
+    }
+
+    static void testLargeGaps(boolean copyOnWrite) throws IOException {
+        String fileName = "compression_gaps.dat";
+        delete(fileName);
+        BTreeConfig config = new BTreeConfig().nodeSize(16).nodeLayout(BTreeConfig.NodeLayout.COMPRESSED)
+                .keyType(BTreeConfig.KeyType.LONG).inlineValueSize(24).countKeys(true).copyOnWrite(copyOnWrite);
+        BTree bTree = BTree.makeBTree(fileName, config);
+        TreeMap<Long, byte[]> expected = new TreeMap<>();
+        Random random = new Random(5);
+        // Keys next to each other, keys far apart and the smallest and largest keys
+        for (long key : new long[]{Long.MIN_VALUE, Long.MAX_VALUE, 0}) {
+            put(bTree, expected, key);
+        }
+        for (int i = 0; i < KEYS; i++) {
+            long key = i % 2 == 0 ? random.nextLong() : random.nextInt(1000);
+            if (random.nextInt(4) == 0) {
+                bTree.delete(key);
+                expected.remove(key);
+            } else {
+                put(bTree, expected, key);
+            }
+        }
+        // Values of every length up to and beyond what a leaf holds
+        for (int length = 0; length < 40; length++) {
+            long key = random.nextLong();
+            byte[] value = new byte[length];
+            random.nextBytes(value);
+            bTree.put(key, value);
+            expected.put(key, value);
+        }
+        check(bTree, expected);
+        CountTest.check(bTree.count(Long.MIN_VALUE, Long.MAX_VALUE), expected.size(), "count of all keys");
+        CountTest.check(bTree.rank(0), expected.headMap(0L).size(), "rank of 0");
+        // Every other key is deleted again
+        int index = 0;
+        for (Long key : expected.keySet().toArray(new Long[0])) {
+            if (index++ % 2 == 0) {
+                if (!bTree.delete(key)) {
+                    throw new IllegalStateException("Key " + key + " was not deleted");
+                }
+                expected.remove(key);
+            }
+        }
+        bTree.close();
+        bTree = BTree.makeBTree(fileName, config);
+        check(bTree, expected);
+        CountTest.check(bTree.count(Long.MIN_VALUE, Long.MAX_VALUE), expected.size(), "count of all keys");
+        bTree.close();
+        System.out.println("Large gaps" + (copyOnWrite ? ", copy on write" : "") + ": " + expected.size() + " keys");
+    }
+
+    static void testBulkLoad(boolean copyOnWrite) throws IOException {
+        String fileName = "compression_bulk.dat";
+        delete(fileName);
+        BTreeConfig config = new BTreeConfig().nodeSize(16).nodeLayout(BTreeConfig.NodeLayout.COMPRESSED)
+                .copyOnWrite(copyOnWrite);
+        BTree bTree = BTree.makeBTree(fileName, config);
+        TreeMap<Long, byte[]> expected = new TreeMap<>();
+        List<Tuple<Integer, byte[]>> entries = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            byte[] value = Integer.toString(i * 10).getBytes();
+            entries.add(new Tuple<>(i * 10, value));
+            expected.put(i * 10L, value);
+        }
+        bTree.bulkLoad(entries.iterator(), 1.0);
+        // Every node is full, so every key put in between splits one
+        Random random = new Random(9);
+        for (int i = 0; i < KEYS / 10; i++) {
+            put(bTree, expected, random.nextInt(KEYS * 10));
+        }
+        check(bTree, expected);
+        bTree.relayout(0.5);
+        for (int i = 0; i < KEYS; i += 2) {
+            bTree.delete(i * 10);
+            expected.remove(i * 10L);
+        }
+        bTree.close();
+        bTree = BTree.makeBTree(fileName, config);
+        check(bTree, expected);
+        bTree.close();
+        System.out.println("Bulk load" + (copyOnWrite ? ", copy on write" : "") + ": " + expected.size() + " keys");
+    }
+
+    private static void put(BTree bTree, TreeMap<Long, byte[]> expected, long key) throws IOException {
+        byte[] value = Long.toString(key).getBytes();
+        bTree.put(key, value);
+        expected.put(key, value);
+    }
+
+    private static void check(BTree bTree, TreeMap<Long, byte[]> expected) throws IOException {
+        for (Map.Entry<Long, byte[]> entry : expected.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), bTree.get(entry.getKey()))) {
+                throw new IllegalStateException("Wrong value of key " + entry.getKey());
+            }
+        }
+        Iterator<Map.Entry<Long, byte[]>> expectedRange = expected.entrySet().iterator();
+        for (Tuple<Long, byte[]> keyValue : bTree.getInRange(Long.MIN_VALUE, Long.MAX_VALUE)) {
+            Map.Entry<Long, byte[]> entry = expectedRange.next();
+            if (!keyValue.x.equals(entry.getKey()) || !Arrays.equals(keyValue.y, entry.getValue())) {
+                throw new IllegalStateException("Expected key " + entry.getKey() + " but got " + keyValue.x);
+            }
+        }
+        if (expectedRange.hasNext()) {
+            throw new IllegalStateException("Range ended before key " + expectedRange.next().getKey());
+        }
+    }
+
+    private static void delete(String fileName) {
+        new File(fileName).delete();
+        new File(fileName + "_values").delete();
+    }
+}
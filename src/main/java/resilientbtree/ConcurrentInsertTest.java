@@ -0,0 +1,95 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmark for concurrent writers. The same set of keys is put into an empty tree by a growing number of
+ * threads, every thread putting its own share of the keys in random order so that the threads mostly go to
+ * different leaves. The insert throughput is printed for each number of threads and every key is checked
+ * afterwards.
+ */
+public class ConcurrentInsertTest {
+
+    static final int KEYS = 200000;
+
+    public static void main(String args[]) throws Exception {
+        int[] keys = new int[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = i;
+        }
+        Random random = new Random(42);
+        for (int i = KEYS - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = keys[i];
+            keys[i] = keys[j];
+            keys[j] = swap;
+        }
+        for (BTreeConfig.NodeLayout layout : BTreeConfig.NodeLayout.values()) {
+            System.out.println("Layout " + layout);
+            int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                String fileName = "concurrent_insert_" + layout + ".dat";
+                new File(fileName).delete();
+                new File(fileName + "_values").delete();
+                BTree bTree = BTree.makeBTree(fileName, new BTreeConfig().nodeSize(32).nodeLayout(layout));
+                long millis = run(bTree, keys, threads);
+                System.out.println(threads + " writer threads: " + (KEYS * 1000L / Math.max(1, millis)) + " puts/s");
+                verify(bTree);
+                bTree.close();
+            }
+        }
+    }
+
+    static long run(final BTree bTree, final int[] keys, final int threads) throws InterruptedException {
+        final List<Throwable> failures = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            workers.add(new Thread(() -> {
+                try {
+                    for (int i = first; i < keys.length; i += threads) {
+                        bTree.put(keys[i], ("value-" + keys[i]).getBytes());
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+        long start = System.currentTimeMillis();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long millis = System.currentTimeMillis() - start;
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("Concurrent insert failed", failures.get(0));
+        }
+        return millis;
+    }
+
+    static void verify(BTree bTree) throws IOException {
+        for (int key = 0; key < KEYS; key++) {
+            byte[] value = bTree.get(key);
+            if (value == null || !new String(value).equals("value-" + key)) {
+                throw new IllegalStateException("Wrong value for key " + key);
+            }
+        }
+        int expected = 0;
+        for (Tuple<Integer, byte[]> keyValue : bTree.getInRange(0, KEYS)) {
+            if (keyValue.x != expected++) {
+                throw new IllegalStateException("Range scan returned " + keyValue.x + " instead of " + (expected - 1));
+            }
+        }
+        if (expected != KEYS) {
+            throw new IllegalStateException("Range scan returned " + expected + " keys instead of " + KEYS);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stress test for concurrent readers. A single writer keeps overwriting values while a growing number of
+ * threads run gets and range scans without any external locking. Every value read is checked and the read
+ * throughput is printed for each number of reader threads.
+ */
+public class ConcurrentReadTest {
+
+    static final int KEYS = 200000;
+    static final long RUN_MILLIS = 2000;
+
+    static String valueFor(int key, int version) {
+        return "value-" + key + "-" + version;
+    }
+
+    static void check(int key, byte[] value) {
+        if (value == null || !new String(value).startsWith("value-" + key + "-")) {
+            throw new IllegalStateException("Wrong value for key " + key + ": "
+                    + (value == null ? null : new String(value)));
+        }
+    }
+
+    public static void main(String args[]) throws Exception {
+        for (BTreeConfig.NodeLayout layout : BTreeConfig.NodeLayout.values()) {
+            String fileName = "concurrent_" + layout + ".dat";
+            new File(fileName).delete();
+            new File(fileName + "_values").delete();
+            BTree bTree = BTree.makeBTree(fileName, new BTreeConfig().nodeSize(32).nodeLayout(layout));
+            int[] keys = new int[KEYS];
+            byte[][] values = new byte[KEYS][];
+            for (int i = 0; i < KEYS; i++) {
+                keys[i] = 2 * i; // Odd keys stay missing
+                values[i] = valueFor(keys[i], 0).getBytes();
+            }
+            bTree.putAll(keys, values);
+            System.out.println("Layout " + layout);
+            int maxThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                long reads = run(bTree, threads);
+                System.out.println(threads + " reader threads: " + (reads * 1000 / RUN_MILLIS) + " reads/s");
+            }
+            bTree.close();
+        }
+    }
+
+    static long run(final BTree bTree, int threads) throws InterruptedException {
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicLong reads = new AtomicLong();
+        final List<Throwable> failures = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        workers.add(new Thread(() -> {
+            Random random = new Random();
+            int version = 1;
+            try {
+                while (!stop.get()) {
+                    int key = 2 * random.nextInt(KEYS);
+                    bTree.put(key, valueFor(key, version++).getBytes());
+                }
+            } catch (Throwable t) {
+                synchronized (failures) {
+                    failures.add(t);
+                }
+            }
+        }));
+        for (int i = 0; i < threads; i++) {
+            workers.add(new Thread(() -> {
+                Random random = new Random();
+                long done = 0;
+                try {
+                    while (!stop.get()) {
+                        if (random.nextInt(100) == 0) {
+                            int low = 2 * random.nextInt(KEYS);
+                            int expected = low;
+                            for (Tuple<Integer, byte[]> keyValue : bTree.getInRange(low, low + 200)) {
+                                if (keyValue.x != expected) {
+                                    throw new IllegalStateException("Expected " + expected + " got " + keyValue.x);
+                                }
+                                check(keyValue.x, keyValue.y);
+                                expected += 2;
+                            }
+                        } else {
+                            int key = random.nextInt(2 * KEYS);
+                            byte[] value = bTree.get(key);
+                            if (key % 2 == 0) {
+                                check(key, value);
+                            } else if (value != null) {
+                                throw new IllegalStateException("Found missing key " + key);
+                            }
+                        }
+                        done++;
+                    }
+                } catch (Throwable t) {
+                    synchronized (failures) {
+                        failures.add(t);
+                    }
+                }
+                reads.addAndGet(done);
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        Thread.sleep(RUN_MILLIS);
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("Concurrent read failed", failures.get(0));
+        }
+        return reads.get();
+    }
+}
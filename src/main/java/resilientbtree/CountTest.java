@@ -0,0 +1,226 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Changes trees that count their keys with bulkLoad, put, putAll and delete and checks count, rank and select
+ * against a TreeMap before and after opening them again. Then puts keys from several threads into a tree written
+ * in place while another thread checks that the number of keys never goes down, and compares the time of count
+ * with that of counting through getInRange.
+ */
+public class CountTest {
+
+    static final int KEYS = 20000;
+    static final int THREADS = 4;
+    // Counts the reader has to finish while the writers are still putting, so that it is known not to wait for them
+    static final int MIN_COUNTS_ALONGSIDE = 10;
+
+    public static void main(String args[]) throws IOException, InterruptedException {
+        for (BTreeConfig.NodeLayout layout : BTreeConfig.NodeLayout.values()) {
+            for (boolean copyOnWrite : new boolean[]{false, true}) {
+                System.out.println("Layout " + layout + (copyOnWrite ? ", copy on write" : ""));
+                String fileName = "count_" + layout + ".dat";
+                new File(fileName).delete();
+                new File(fileName + "_values").delete();
+                BTreeConfig config = new BTreeConfig().nodeSize(8).nodeLayout(layout).copyOnWrite(copyOnWrite)
+                        .countKeys(true);
+                BTree bTree = BTree.makeBTree(fileName, config);
+                TreeMap<Integer, byte[]> expected = new TreeMap<>();
+                Random random = new Random(42);
+                bTree.bulkLoad(new Iterator<Tuple<Integer, byte[]>>() {
+                    int key = 0;
+
+                    public boolean hasNext() {
+                        return key < KEYS;
+                    }
+
+                    public Tuple<Integer, byte[]> next() {
+                        key += 2;
+                        expected.put(key, new byte[]{(byte) key});
+                        return new Tuple<>(key, new byte[]{(byte) key});
+                    }
+                }, 0.75);
+                verify(bTree, expected, random);
+                for (int i = 0; i < KEYS; i++) {
+                    int key = random.nextInt(2 * KEYS) - KEYS / 2;
+                    bTree.put(key, new byte[]{(byte) key});
+                    expected.put(key, new byte[]{(byte) key});
+                }
+                verify(bTree, expected, random);
+                int[] keys = new int[KEYS / 4];
+                byte[][] values = new byte[keys.length][];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = random.nextInt(3 * KEYS);
+                    values[i] = new byte[]{(byte) i};
+                    expected.put(keys[i], values[i]);
+                }
+                bTree.putAll(keys, values);
+                verify(bTree, expected, random);
+                for (int i = 0; i < KEYS; i++) {
+                    int key = random.nextInt(3 * KEYS) - KEYS / 2;
+                    if (bTree.delete(key) != (expected.remove(key) != null)) {
+                        throw new IllegalStateException("Wrong result deleting " + key);
+                    }
+                }
+                bTree.put(Integer.MIN_VALUE, new byte[0]);
+                bTree.put(Integer.MAX_VALUE, new byte[0]);
+                expected.put(Integer.MIN_VALUE, new byte[0]);
+                expected.put(Integer.MAX_VALUE, new byte[0]);
+                verify(bTree, expected, random);
+                bTree.close();
+                // Whether keys are counted is read from the file, not from the configuration
+                bTree = BTree.makeBTree(fileName, new BTreeConfig().nodeSize(8).nodeLayout(layout));
+                verify(bTree, expected, random);
+                if (copyOnWrite) {
+                    Snapshot snapshot = bTree.snapshot();
+                    long before = bTree.count(Integer.MIN_VALUE, Integer.MAX_VALUE);
+                    for (int key = 0; key < 100; key++) {
+                        bTree.delete(key);
+                    }
+                    check(snapshot.count(Integer.MIN_VALUE, Integer.MAX_VALUE), before, "count of the snapshot");
+                    check(snapshot.rank(Integer.MAX_VALUE), before - 1, "rank in the snapshot");
+                    snapshot.close();
+                }
+                bTree.close();
+                concurrentPuts(fileName, layout, copyOnWrite);
+            }
+        }
+        String fileName = "count_uncounted.dat";
+        new File(fileName).delete();
+        new File(fileName + "_values").delete();
+        BTree bTree = BTree.makeBTree(fileName, new BTreeConfig().nodeSize(8));
+        try {
+            bTree.count(0, 10);
+            throw new IllegalStateException("A tree that does not count its keys counted them");
+        } catch (IllegalStateException e) {
+            System.out.println("Without counts: " + e.getMessage());
+        }
+        bTree.close();
+    }
+
+    /**
+     * Checks the counts of all keys and of random ranges, ranks and indexes against expected.
+     */
+    static void verify(BTree bTree, TreeMap<Integer, byte[]> expected, Random random) throws IOException {
+        check(bTree.count(Integer.MIN_VALUE, Integer.MAX_VALUE), expected.size(), "count of all keys");
+        check(bTree.count(1, 0), 0, "count of an empty range");
+        check(bTree.select(expected.size()) == null ? 0 : 1, 0, "select past the last key");
+        check(bTree.select(-1) == null ? 0 : 1, 0, "select of a negative index");
+        long index = 0;
+        for (int key : expected.keySet()) {
+            if (random.nextInt(20) == 0 || index == 0 || index == expected.size() - 1) {
+                check(bTree.rank(key), index, "rank of " + key);
+                check(bTree.select(index), key, "select of " + index);
+            }
+            index++;
+        }
+        for (int i = 0; i < 200; i++) {
+            int low = random.nextInt(4 * KEYS) - KEYS;
+            int high = low + random.nextInt(KEYS);
+            check(bTree.count(low, high), expected.subMap(low, true, high, true).size(),
+                    "count of [" + low + ", " + high + "]");
+            check(bTree.rank(low), expected.headMap(low).size(), "rank of " + low);
+        }
+    }
+
+    static void check(long actual, long expected, String what) {
+        if (actual != expected) {
+            throw new IllegalStateException("Wrong " + what + ": " + actual + " instead of " + expected);
+        }
+    }
+
+    /**
+     * Puts disjoint keys from THREADS threads while the number of keys is checked to never go down and to be
+     * counted at least MIN_COUNTS_ALONGSIDE times, then compares count with counting through getInRange.
+     */
+    static void concurrentPuts(String fileName, BTreeConfig.NodeLayout layout, boolean copyOnWrite)
+            throws IOException, InterruptedException {
+        new File(fileName).delete();
+        new File(fileName + "_values").delete();
+        BTree bTree = BTree.makeBTree(fileName, new BTreeConfig().nodeSize(16).nodeLayout(layout)
+                .copyOnWrite(copyOnWrite).countKeys(true));
+        List<Thread> writers = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            writers.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < KEYS; i++) {
+                        bTree.put(i * THREADS + thread, new byte[]{(byte) i});
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        long[] checks = new long[1];
+        Thread reader = new Thread(() -> {
+            try {
+                long last = 0;
+                while (!done.get()) {
+                    long count = bTree.count(Integer.MIN_VALUE, Integer.MAX_VALUE);
+                    if (count < last) {
+                        throw new IllegalStateException("Count went down from " + last + " to " + count);
+                    }
+                    if (count > 0 && bTree.rank(Integer.MAX_VALUE) < last) {
+                        throw new IllegalStateException("Rank went down below " + last);
+                    }
+                    last = count;
+                    checks[0]++;
+                }
+            } catch (Throwable e) {
+                synchronized (failures) {
+                    failures.add(e);
+                }
+            }
+        });
+        long start = System.nanoTime();
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        reader.start();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        long putMillis = (System.nanoTime() - start) / 1000000;
+        done.set(true);
+        reader.join();
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("Concurrent puts failed", failures.get(0));
+        }
+        if (checks[0] < MIN_COUNTS_ALONGSIDE) {
+            throw new IllegalStateException("Only " + checks[0] + " counts finished alongside the puts");
+        }
+        check(bTree.count(Integer.MIN_VALUE, Integer.MAX_VALUE), THREADS * KEYS, "count after concurrent puts");
+
+        start = System.nanoTime();
+        long counted = 0;
+        for (int low = 0; low < THREADS * KEYS; low += 1000) {
+            counted += bTree.count(low, low + 9999);
+        }
+        long countNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        long iterated = 0;
+        for (int low = 0; low < THREADS * KEYS; low += 1000) {
+            for (Tuple<Integer, byte[]> ignored : bTree.getInRange(low, low + 9999)) {
+                iterated++;
+            }
+        }
+        long iterateNanos = System.nanoTime() - start;
+        check(counted, iterated, "sum of the counts of ranges");
+        System.out.println(String.format("Concurrent puts: %d ms with %d counts alongside. Counting ranges of "
+                        + "10000 keys: %d us with count, %d us through getInRange", putMillis, checks[0],
+                countNanos / 1000, iterateNanos / 1000));
+        bTree.close();
+    }
+}
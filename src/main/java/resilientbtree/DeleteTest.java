@@ -0,0 +1,91 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Puts and deletes random keys in rounds and checks the tree against a TreeMap after every round. Pages of
+ * merged nodes go on the free list and new nodes are taken from it, so the index file stops growing once the
+ * tree has been at its largest size. The length of the index file is printed after every round.
+ */
+public class DeleteTest {
+
+    static final int KEYS = 20000;
+    static final int ROUNDS = 5;
+
+    public static void main(String args[]) throws IOException {
+        for (BTreeConfig.NodeLayout layout : BTreeConfig.NodeLayout.values()) {
+            for (boolean copyOnWrite : new boolean[]{false, true}) {
+                System.out.println("Layout " + layout + (copyOnWrite ? ", copy on write" : ""));
+                String fileName = "delete_" + layout + ".dat";
+                new File(fileName).delete();
+                new File(fileName + "_values").delete();
+                BTreeConfig config = new BTreeConfig().nodeSize(8).nodeLayout(layout).copyOnWrite(copyOnWrite);
+                BTree bTree = BTree.makeBTree(fileName, config);
+                TreeMap<Integer, String> expected = new TreeMap<>();
+                Random random = new Random(42);
+                for (int round = 0; round < ROUNDS; round++) {
+                    // Fill up to about KEYS keys, then delete all but a few
+                    while (expected.size() < KEYS) {
+                        int key = random.nextInt(4 * KEYS);
+                        bTree.put(key, ("value-" + key + "-" + round).getBytes());
+                        expected.put(key, "value-" + key + "-" + round);
+                    }
+                    for (Integer key : expected.keySet().toArray(new Integer[0])) {
+                        if (random.nextInt(10) != 0) {
+                            if (!bTree.delete(key)) {
+                                throw new IllegalStateException("Key " + key + " was not found for delete");
+                            }
+                            expected.remove(key);
+                        }
+                    }
+                    if (bTree.delete(-1)) {
+                        throw new IllegalStateException("Deleted a key that was never put");
+                    }
+                    verify(bTree, expected);
+                    System.out.println("Round " + round + ": " + expected.size() + " keys left, index file has "
+                            + bTree.handler.fileLength() + " bytes");
+                }
+                for (Integer key : expected.keySet().toArray(new Integer[0])) {
+                    bTree.delete(key);
+                }
+                expected.clear();
+                verify(bTree, expected);
+                bTree.close();
+                // The free list survives a reopen
+                bTree = BTree.makeBTree(fileName, config);
+                while (expected.size() < KEYS) {
+                    int key = random.nextInt(4 * KEYS);
+                    bTree.put(key, ("value-" + key).getBytes());
+                    expected.put(key, "value-" + key);
+                }
+                verify(bTree, expected);
+                System.out.println("Reopened and filled again: index file has " + bTree.handler.fileLength()
+                        + " bytes");
+                bTree.close();
+            }
+        }
+    }
+
+    static void verify(BTree bTree, TreeMap<Integer, String> expected) throws IOException {
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            byte[] value = bTree.get(entry.getKey());
+            if (value == null || !new String(value).equals(entry.getValue())) {
+                throw new IllegalStateException("Wrong value for key " + entry.getKey());
+            }
+        }
+        Iterator<Integer> keys = expected.keySet().iterator();
+        for (Tuple<Integer, byte[]> keyValue : bTree.getInRange(Integer.MIN_VALUE, Integer.MAX_VALUE)) {
+            if (!keys.hasNext() || !keys.next().equals(keyValue.x)) {
+                throw new IllegalStateException("Range scan returned " + keyValue.x);
+            }
+        }
+        if (keys.hasNext()) {
+            throw new IllegalStateException("Range scan missed " + keys.next());
+        }
+    }
+}
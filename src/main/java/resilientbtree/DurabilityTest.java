@@ -0,0 +1,72 @@
+package resilientbtree;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the durability levels. For every level a growing number of threads puts into a fresh tree for a
+ * while and the put throughput is printed. With Durability.PER_COMMIT concurrent puts share forces of the log,
+ * so the throughput should grow with the number of threads. The tree is opened again afterwards to check that
+ * every put made it.
+ */
+public class DurabilityTest {
+
+    static final long RUN_MILLIS = 2000;
+
+    public static void main(String args[]) throws Exception {
+        for (BTreeConfig.Durability durability : BTreeConfig.Durability.values()) {
+            System.out.println("Durability " + durability);
+            for (int threads = 1; threads <= 8; threads *= 2) {
+                String fileName = "durability_" + durability + ".dat";
+                new File(fileName).delete();
+                new File(fileName + "_values").delete();
+                new File(fileName + "_log").delete();
+                BTreeConfig config = new BTreeConfig().nodeSize(32).copyOnWrite(true).durability(durability);
+                BTree bTree = BTree.makeBTree(fileName, config);
+                int puts = run(bTree, threads);
+                System.out.println(threads + " threads: " + (puts * 1000L / RUN_MILLIS) + " puts/s");
+                bTree.close();
+                bTree = BTree.makeBTree(fileName, config);
+                for (int key = 0; key < puts; key++) {
+                    if (bTree.get(key) == null) {
+                        throw new IllegalStateException("Lost key " + key);
+                    }
+                }
+                bTree.close();
+            }
+        }
+    }
+
+    static int run(final BTree bTree, int threads) throws InterruptedException {
+        final long end = System.currentTimeMillis() + RUN_MILLIS;
+        final AtomicInteger next = new AtomicInteger();
+        final List<Throwable> failures = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            workers.add(new Thread(() -> {
+                try {
+                    while (System.currentTimeMillis() < end) {
+                        int key = next.getAndIncrement();
+                        bTree.put(key, ("value-" + key).getBytes());
+                    }
+                } catch (Throwable t) {
+                    synchronized (failures) {
+                        failures.add(t);
+                    }
+                }
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("Put failed", failures.get(0));
+        }
+        return next.get();
+    }
+}
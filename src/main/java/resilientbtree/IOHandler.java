@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.*;
@@ -11,34 +12,98 @@ import java.util.Arrays;
 
 /**
  * Created by sohaib on 08/12/16.
+ *
+ * The file is mapped as an array of fixed size segments so that it can grow past the 2GB limit of a single
+ * MappedByteBuffer. All offsets are longs and reads or writes that cross a segment boundary are split over
+ * the segments involved.
+ *
+ * The physical file is grown in large preallocated chunks. The end of the data written so far is tracked
+ * separately as the logical length, so that appends are plain buffer writes until the next chunk is needed.
+ * The file is truncated back to its logical length on close.
+ *
+ * Reads never touch the position of the shared segments. They use absolute accessors or per thread duplicates
+ * of the segments, so any number of threads can read while others write. Space for new data is reserved with
+ * allocate, which hands every caller its own region, so that threads can fill their regions in parallel.
  */
 public class IOHandler {
+    // 1GB segments. Must be a power of two so that offsets can be split with shifts and masks.
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+    // The file grows geometrically, by at least MIN_GROWTH and at most MAX_GROWTH bytes at a time
+    public static final long MIN_GROWTH = 1 << 20;
+    public static final long MAX_GROWTH = 1 << 30;
+    // Every segment is a mapping of its own and the number of mappings of a process is limited, so a growth
+    // never preallocates more than this many segments. That only matters for segments far below MIN_GROWTH
+    static final int MAX_GROWTH_SEGMENTS = 64;
+    // Size of the pages of the operating system that touch steps over
+    static final int PAGE_SIZE = 4096;
+    // Source of the zeroes that pad batches, copied in bulk instead of allocating a padding array per write
+    private static final byte[] ZEROES = new byte[PAGE_SIZE];
+
     InputStream iStream;
     OutputStream oStream;
     RandomAccessFile randomAccessFile;
-    MappedByteBuffer mappedBuffer;
+    // Replaced as a whole when the file grows so that readers always see a completely mapped array
+    volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    // Number of bytes of the file currently covered by the segments
+    volatile long mappedLength = 0;
+    // End of the data written to the file. Everything between this and the physical length is preallocated space
+    volatile long logicalLength;
+    // Duplicates of the segments owned by each thread, so that relative bulk gets do not race on the position
+    private final ThreadLocal<SegmentViews> views = ThreadLocal.withInitial(SegmentViews::new);
+    // How often the file was mapped again and the time spent growing and mapping it. Only written holding the lock
+    // on this handler or from the constructor
+    private volatile long remaps;
+    private volatile long remapNanos;
     int batchSize;
+    final int segmentSize;
+    private final int segmentShift;
 
     public IOHandler(String fileName, int batchSize) throws IOException {
+        this(fileName, batchSize, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public IOHandler(String fileName, int batchSize, int segmentSize) throws IOException {
+        if (segmentSize <= 0 || Integer.bitCount(segmentSize) != 1) {
+            throw new IllegalArgumentException("Segment size must be a power of two: " + segmentSize);
+        }
         Path filePath = FileSystems.getDefault().getPath(fileName);
         if (Files.notExists(filePath, LinkOption.NOFOLLOW_LINKS)) {
             Files.createFile(filePath);
         }
         randomAccessFile = new RandomAccessFile(filePath.toFile(), "rw");
-        //fileChannel = FileChannel.open(filePath, StandardOpenOption.READ, StandardOpenOption.WRITE);
-        // TODO: Eventually we may need an array of these buffers cause this buffer runs out at 2GB of data
-        mappedBuffer =
-                randomAccessFile
-                        .getChannel()
-                        .map(
-                            FileChannel.MapMode.READ_WRITE,
-                            0,
-                            randomAccessFile.length()
-                        );
         this.batchSize = batchSize;
+        this.segmentSize = segmentSize;
+        this.segmentShift = Integer.numberOfTrailingZeros(segmentSize);
+        logicalLength = randomAccessFile.length();
+        remap(logicalLength);
+    }
+
+    /**
+     * Extends the mapping to cover the first newLength bytes of the file. Only the last, partially mapped
+     * segment and any new segments are mapped again. Segments that are already complete are left alone.
+     */
+    private void remap(long newLength) throws IOException {
+        if (newLength <= mappedLength) {
+            return;
+        }
+        int oldCount = segments.length;
+        int newCount = (int) ((newLength + segmentSize - 1) >>> segmentShift);
+        MappedByteBuffer[] newSegments = Arrays.copyOf(segments, Math.max(oldCount, newCount));
+        // The last old segment may have been mapped only partially
+        int first = (oldCount > 0 && mappedLength < ((long) oldCount << segmentShift)) ? oldCount - 1 : oldCount;
+        FileChannel channel = randomAccessFile.getChannel();
+        for (int i = first; i < newCount; i++) {
+            long start = (long) i << segmentShift;
+            long size = Math.min(segmentSize, newLength - start);
+            newSegments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        }
+        // Publish the segments before the length that makes them readable
+        segments = newSegments;
+        mappedLength = newLength;
+        remaps++;
     }
 
-    public byte[] readBatch(int offset) throws IOException {
+    public byte[] readBatch(long offset) throws IOException {
         //System.out.println("Reading from" + offset);
         return read(batchSize, offset);
     }
@@ -50,7 +115,7 @@ public class IOHandler {
      * @return index on which this batch was written in the file
      * @throws IOException
      */
-    public int writeBatch(byte[] bytes, int offset) throws IOException {
+    public long writeBatch(byte[] bytes, long offset) throws IOException {
         if (bytes.length <= batchSize) {
             return write(bytes, batchSize, offset);
         } else {
@@ -58,73 +123,353 @@ public class IOHandler {
         }
     }
 
-    public int writeBatch(byte[] bytes) throws IOException {
-        //System.out.println("Writing at index: " + randomAccessFile.length());
-        return writeBatch(bytes, (int)randomAccessFile.length());
+    /**
+     * Fills the batch at offset without copying it through an array: writer gets a buffer whose position is the
+     * start of the batch and writes at most length bytes from there, which must not be more than a batch. The
+     * rest of the batch is zeroed. The buffer is this thread's view of the mapped segment holding the batch, or a
+     * per thread scratch buffer copied into the file afterwards if the batch crosses a segment boundary. It must
+     * not be kept after writer returns.
+     * @return offset
+     */
+    public long writeBatch(int length, BatchWriter writer, long offset) throws IOException {
+        if (length > batchSize) {
+            throw new IOException("Cannot write more than a batch");
+        }
+        ensureCapacity(offset + batchSize);
+        int index = (int) (offset >>> segmentShift);
+        int start = (int) (offset & (segmentSize - 1));
+        if (start + batchSize <= segmentSize) {
+            ByteBuffer segment = view(index);
+            segment.limit(start + batchSize).position(start);
+            try {
+                writer.write(segment);
+                putZeroes(segment, segment.remaining());
+            } finally {
+                // Other users of the view rely on its limit being the end of the segment
+                segment.limit(segment.capacity());
+            }
+        } else {
+            SegmentViews threadViews = views.get();
+            if (threadViews.scratch == null || threadViews.scratch.capacity() != batchSize) {
+                threadViews.scratch = ByteBuffer.allocate(batchSize);
+            }
+            ByteBuffer scratch = threadViews.scratch;
+            scratch.clear();
+            writer.write(scratch);
+            putZeroes(scratch, scratch.remaining());
+            put(scratch.array(), offset);
+        }
+        return offset;
     }
 
-    public byte[] read(int length, int offset) {
-        byte[] bytes = new byte[length];
-        // Initialize with zeroes
-        Arrays.fill(bytes, (byte) 0x00);
-        mappedBuffer.position(offset);
-        // Check if there is anything?
-        if (mappedBuffer.remaining() >= length) {
-            mappedBuffer.get(bytes, 0, length);
-        } else {
-            mappedBuffer.get(bytes, 0, mappedBuffer.remaining());
+    /**
+     * Writes a batch into the buffer handed to it by writeBatch
+     */
+    public interface BatchWriter {
+        void write(ByteBuffer batch);
+    }
+
+    public long writeBatch(byte[] bytes) throws IOException {
+        if (bytes.length > batchSize) {
+            throw new IOException("Cannot write more than a batch");
         }
+        return write(bytes, batchSize, allocate(batchSize));
+    }
+
+    /**
+     * Reads length bytes starting at offset. Bytes past the end of the file are returned as zeroes.
+     */
+    public byte[] read(int length, long offset) {
+        // New arrays are zeroed already
+        byte[] bytes = new byte[length];
+        readInto(offset, bytes, length);
         return bytes;
     }
 
-    public int write(byte[] bytes, int length, int offset) throws IOException {
+    /**
+     * Copies the length bytes starting at offset into the beginning of bytes. Bytes past the end of the file are
+     * left as they are.
+     */
+    public void readInto(long offset, byte[] bytes, int length) {
+        int available = (int) Math.max(0, Math.min(length, mappedLength - offset));
+        int done = 0;
+        while (done < available) {
+            long position = offset + done;
+            ByteBuffer segment = view((int) (position >>> segmentShift));
+            segment.position((int) (position & (segmentSize - 1)));
+            int chunk = Math.min(available - done, segment.remaining());
+            segment.get(bytes, done, chunk);
+            done += chunk;
+        }
+    }
+
+    /**
+     * Reads a single byte at offset without copying anything out of the mapped segments.
+     */
+    public byte getByte(long offset) {
+        return segments[(int) (offset >>> segmentShift)].get((int) (offset & (segmentSize - 1)));
+    }
+
+    /**
+     * Reads a byte of every page of [offset, offset + length) that is inside the file, so that the operating system
+     * has read the pages by the time they are needed. Used to read ahead of scans, see ReadAhead.
+     */
+    void touch(long offset, long length) {
+        long end = Math.min(offset + length, Math.min(logicalLength, mappedLength));
+        for (long page = offset; page < end; page += PAGE_SIZE) {
+            getByte(page);
+        }
+        if (end > offset) {
+            getByte(end - 1);
+        }
+    }
+
+    public int getInt(long offset) {
+        int index = (int) (offset & (segmentSize - 1));
+        if (index + 4 <= segmentSize) {
+            return segments[(int) (offset >>> segmentShift)].getInt(index);
+        }
+        // The int straddles two segments
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (getByte(offset + i) & 0xFF);
+        }
+        return value;
+    }
+
+    public long getLong(long offset) {
+        int index = (int) (offset & (segmentSize - 1));
+        if (index + 8 <= segmentSize) {
+            return segments[(int) (offset >>> segmentShift)].getLong(index);
+        }
+        return ((long) getInt(offset) << 32) | (getInt(offset + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Writes value at offset with a single store, so that readers and a reopen after a crash see either the old or
+     * the new value. offset must be a multiple of 8 inside the file.
+     */
+    public void putLong(long offset, long value) {
+        segments[(int) (offset >>> segmentShift)].putLong((int) (offset & (segmentSize - 1)), value);
+    }
+
+    public long write(byte[] bytes, int length, long offset) throws IOException {
         //System.out.println("Writing on offset");
-        if ((offset + length) > randomAccessFile.length()) {
-            // Increase the file length if it is small
-            randomAccessFile.setLength(offset + length);
-            mappedBuffer =
-                    randomAccessFile
-                            .getChannel()
-                            .map(
-                                FileChannel.MapMode.READ_WRITE,
-                                0,
-                                randomAccessFile.length()
-                            );
-        }
-        mappedBuffer.position(offset);
-        mappedBuffer.put(bytes, 0, bytes.length);
-
-        for (int i =0; i < length - bytes.length; i++) {
-            // Put zeroes where batch size is not complete
-            mappedBuffer.put((byte)(0x00));
-        }
-        return mappedBuffer.position() - length; // same as offset
-    }
-
-    public int append(byte[] bytes) throws IOException {
-        int limit = (int)randomAccessFile.length();
-        randomAccessFile.setLength(randomAccessFile.length() + bytes.length);
-        mappedBuffer =
-                randomAccessFile
-                        .getChannel()
-                        .map(
-                                FileChannel.MapMode.READ_WRITE,
-                                0,
-                                randomAccessFile.length()
-                        );
-        mappedBuffer.position(limit);
-        mappedBuffer.put(bytes);
-        return limit;
-    }
-
-    public void close() throws IOException {
-        mappedBuffer.force();
+        ensureCapacity(offset + length);
+        put(bytes, offset);
+        // Put zeroes where batch size is not complete
+        for (long position = offset + bytes.length; position < offset + length; position += ZEROES.length) {
+            put(ZEROES, position, (int) Math.min(ZEROES.length, offset + length - position));
+        }
+        return offset;
+    }
+
+    /**
+     * Puts count zeroes at the position of buffer
+     */
+    static void putZeroes(ByteBuffer buffer, int count) {
+        while (count > 0) {
+            int chunk = Math.min(count, ZEROES.length);
+            buffer.put(ZEROES, 0, chunk);
+            count -= chunk;
+        }
+    }
+
+    public long append(byte[] bytes) throws IOException {
+        long offset = allocate(bytes.length);
+        put(bytes, offset);
+        return offset;
+    }
+
+    /**
+     * Reserves length bytes at the end of the file for the caller. Concurrent callers get disjoint regions.
+     * @return the offset of the reserved region
+     */
+    public synchronized long allocate(long length) throws IOException {
+        long offset = logicalLength;
+        growTo(offset + length);
+        return offset;
+    }
+
+    /**
+     * Makes sure that the file covers the first end bytes. Writes inside space that has been allocated already
+     * do not need the lock.
+     */
+    private void ensureCapacity(long end) throws IOException {
+        if (end > logicalLength || end > mappedLength) {
+            synchronized (this) {
+                growTo(end);
+            }
+        }
+    }
+
+    /**
+     * Moves the logical end of the file to end, growing the physical file by a preallocated chunk if needed.
+     * Must be called holding the lock on this handler.
+     */
+    private void growTo(long end) throws IOException {
+        if (end > mappedLength) {
+            long start = System.nanoTime();
+            long physical = randomAccessFile.length();
+            if (end > physical) {
+                long growth = Math.min(Math.min(MAX_GROWTH, (long) segmentSize * MAX_GROWTH_SEGMENTS),
+                        Math.max(MIN_GROWTH, physical));
+                randomAccessFile.setLength(Math.max(end, physical + growth));
+            }
+            remap(randomAccessFile.length());
+            remapNanos += System.nanoTime() - start;
+        }
+        if (end > logicalLength) {
+            logicalLength = end;
+        }
+    }
+
+    /**
+     * Restores the logical length of a file that was not closed cleanly and still carries preallocated space.
+     * Lengths outside of the physical file are ignored.
+     */
+    public synchronized void setLogicalLength(long length) throws IOException {
+        if (length > 0 && length <= randomAccessFile.length()) {
+            logicalLength = length;
+            remap(randomAccessFile.length());
+        }
+    }
+
+    /**
+     * Copies bytes into the mapped segments starting at offset. The region must already be mapped.
+     */
+    private void put(byte[] bytes, long offset) {
+        put(bytes, offset, bytes.length);
+    }
+
+    /**
+     * Copies the first length bytes of bytes into the mapped segments starting at offset
+     */
+    private void put(byte[] bytes, long offset, int length) {
+        int done = 0;
+        while (done < length) {
+            long position = offset + done;
+            ByteBuffer segment = view((int) (position >>> segmentShift));
+            segment.position((int) (position & (segmentSize - 1)));
+            int chunk = Math.min(length - done, segment.remaining());
+            segment.put(bytes, done, chunk);
+            done += chunk;
+        }
+    }
+
+    /**
+     * @return this thread's duplicate of the segment at index
+     */
+    private ByteBuffer view(int index) {
+        SegmentViews threadViews = views.get();
+        MappedByteBuffer[] current = segments;
+        MappedByteBuffer segment = current[index];
+        if (index >= threadViews.sources.length) {
+            threadViews.sources = Arrays.copyOf(threadViews.sources, current.length);
+            threadViews.views = Arrays.copyOf(threadViews.views, current.length);
+        }
+        if (threadViews.sources[index] != segment) {
+            // The segment was mapped again since this thread last used it
+            threadViews.sources[index] = segment;
+            threadViews.views[index] = segment.duplicate();
+        }
+        return threadViews.views[index];
+    }
+
+    private static class SegmentViews {
+        MappedByteBuffer[] sources = new MappedByteBuffer[0];
+        ByteBuffer[] views = new ByteBuffer[0];
+        // Batches that cross a segment boundary are written here first, see writeBatch
+        ByteBuffer scratch;
+    }
+
+    /**
+     * Read only views of the segments owned by one reader, which hand out regions of the file without copying
+     * them. A region stays valid until the next call, so unlike the per thread views they cannot be shared.
+     * See ScanCursor.
+     */
+    final class Regions {
+        private MappedByteBuffer[] sources = new MappedByteBuffer[0];
+        private ByteBuffer[] views = new ByteBuffer[0];
+        // Regions that cross a segment boundary are copied here
+        private byte[] copy = new byte[0];
+        private ByteBuffer copyView;
+
+        /**
+         * @return a read only buffer whose remaining bytes are the length bytes at offset, which must be inside
+         * the file. The buffer is reused by the next call.
+         */
+        ByteBuffer region(long offset, int length) {
+            int index = (int) (offset >>> segmentShift);
+            int start = (int) (offset & (segmentSize - 1));
+            if (start + length > segmentSize) {
+                if (copy.length < length) {
+                    copy = new byte[length];
+                    copyView = ByteBuffer.wrap(copy).asReadOnlyBuffer();
+                }
+                readInto(offset, copy, length);
+                copyView.clear();
+                copyView.limit(length);
+                return copyView;
+            }
+            MappedByteBuffer segment = segments[index];
+            if (index >= sources.length) {
+                sources = Arrays.copyOf(sources, index + 1);
+                views = Arrays.copyOf(views, index + 1);
+            }
+            if (sources[index] != segment) {
+                // The segment was mapped again since this reader last used it
+                sources[index] = segment;
+                views[index] = segment.asReadOnlyBuffer();
+            }
+            ByteBuffer view = views[index];
+            view.clear();
+            view.position(start);
+            view.limit(start + length);
+            return view;
+        }
+    }
+
+    /**
+     * Writes all changes made through the mapped segments to the disk.
+     */
+    public void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        force();
+        // Drop the preallocated space so that the file length is the logical length when it is opened again
+        randomAccessFile.setLength(logicalLength);
         randomAccessFile.close();
     }
 
-    public int fileLength() {
+    /**
+     * @return the logical length of the file, i.e. the end of the data written so far
+     */
+    public long fileLength() {
+        return logicalLength;
+    }
+
+    /**
+     * @return how often the file was mapped again because it grew, see BTree.metrics()
+     */
+    public long remaps() {
+        return remaps;
+    }
+
+    /**
+     * @return the time spent growing the file and mapping it again, in nanoseconds
+     */
+    public long remapNanos() {
+        return remapNanos;
+    }
+
+    public long physicalLength() {
         try {
-            return (int)randomAccessFile.length();
+            return randomAccessFile.length();
         } catch(IOException io) {
             return 0;
         }
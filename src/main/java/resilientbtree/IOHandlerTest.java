@@ -1,5 +1,6 @@
 package resilientbtree;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -9,10 +10,23 @@ public class IOHandlerTest {
 
     public static void main(String args[]) throws IOException {
         IOHandler handler = new IOHandler("myFile", 5);
-        int stringPosition1 = handler.writeBatch("mafia".getBytes());
-        int stringPosition2 = handler.writeBatch("doner".getBytes());
+        long stringPosition1 = handler.writeBatch("mafia".getBytes());
+        long stringPosition2 = handler.writeBatch("doner".getBytes());
         String read1 = new String(handler.readBatch(5));
         System.out.println(read1);
 
+        // Tiny segments so that batches straddle segment boundaries
+        new File("mySegmentedFile").delete();
+        IOHandler segmented = new IOHandler("mySegmentedFile", 5, 8);
+        segmented.writeBatch("mafia".getBytes(), 0);
+        segmented.writeBatch("doner".getBytes(), 5);
+        segmented.writeBatch("kebab".getBytes(), 10);
+        System.out.println(new String(segmented.readBatch(5)) + " " + new String(segmented.readBatch(10)));
+        // Every segment is a mapping, so the file must not be preallocated a full MIN_GROWTH ahead
+        if (segmented.randomAccessFile.length() > 8 * IOHandler.MAX_GROWTH_SEGMENTS + 15) {
+            throw new IllegalStateException("Preallocated " + segmented.randomAccessFile.length()
+                    + " bytes of 8 byte segments");
+        }
+        segmented.close();
     }
 }
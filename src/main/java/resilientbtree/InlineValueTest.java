@@ -0,0 +1,104 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Puts values of mixed sizes, mostly smaller than the inline value size, with put, putAll and delete and checks the
+ * tree against a TreeMap before and after opening it again. Trees are created with and without values in the
+ * leaves. The size of the value file and the time for a pass of gets over all keys are printed, so that the
+ * value file can be seen to only get the large values when small ones are stored in the leaves.
+ */
+public class InlineValueTest {
+
+    static final int KEYS = 50000;
+    static final int INLINE_VALUE_SIZE = 16;
+
+    public static void main(String args[]) throws IOException {
+        for (BTreeConfig.NodeLayout layout : BTreeConfig.NodeLayout.values()) {
+            for (boolean copyOnWrite : new boolean[]{false, true}) {
+                for (int inlineValueSize : new int[]{0, INLINE_VALUE_SIZE}) {
+                    System.out.println("Layout " + layout + (copyOnWrite ? ", copy on write" : "")
+                            + ", inline value size " + inlineValueSize);
+                    String fileName = "inline_" + layout + ".dat";
+                    new File(fileName).delete();
+                    new File(fileName + "_values").delete();
+                    BTreeConfig config = new BTreeConfig().nodeSize(32).nodeLayout(layout)
+                            .copyOnWrite(copyOnWrite).inlineValueSize(inlineValueSize);
+                    BTree bTree = BTree.makeBTree(fileName, config);
+                    TreeMap<Integer, byte[]> expected = new TreeMap<>();
+                    Random random = new Random(42);
+                    for (int key = 0; key < KEYS; key++) {
+                        byte[] value = value(random, key);
+                        bTree.put(key, value);
+                        expected.put(key, value);
+                    }
+                    // Overwrite small values with large ones and the other way round
+                    int[] keys = new int[KEYS / 10];
+                    byte[][] values = new byte[keys.length][];
+                    for (int i = 0; i < keys.length; i++) {
+                        keys[i] = random.nextInt(KEYS);
+                        values[i] = value(random, keys[i]);
+                        expected.put(keys[i], values[i]);
+                    }
+                    bTree.putAll(keys, values);
+                    for (int i = 0; i < KEYS / 10; i++) {
+                        int key = random.nextInt(KEYS);
+                        bTree.delete(key);
+                        expected.remove(key);
+                    }
+                    verify(bTree, expected);
+                    long start = System.nanoTime();
+                    for (int key = 0; key < KEYS; key++) {
+                        bTree.get(key);
+                    }
+                    long getNanos = (System.nanoTime() - start) / KEYS;
+                    System.out.println("Value file: " + bTree.valueFileLength() + " bytes, index file: "
+                            + bTree.handler.fileLength() + " bytes, " + getNanos + " ns per get");
+                    bTree.close();
+                    // The inline value size is read from the file, not from the configuration
+                    bTree = BTree.makeBTree(fileName, new BTreeConfig().nodeSize(32).nodeLayout(layout));
+                    verify(bTree, expected);
+                    bTree.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a value that fits into a leaf nine times out of ten. Empty values and values of exactly the inline
+     * value size are among them.
+     */
+    static byte[] value(Random random, int key) {
+        int length = random.nextInt(10) == 0 ? 100 + random.nextInt(100) : random.nextInt(INLINE_VALUE_SIZE + 1);
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = (byte) (key + i);
+        }
+        return value;
+    }
+
+    static void verify(BTree bTree, TreeMap<Integer, byte[]> expected) throws IOException {
+        for (Map.Entry<Integer, byte[]> entry : expected.entrySet()) {
+            if (!Arrays.equals(bTree.get(entry.getKey()), entry.getValue())) {
+                throw new IllegalStateException("Wrong value for key " + entry.getKey());
+            }
+        }
+        Iterator<Map.Entry<Integer, byte[]>> entries = expected.entrySet().iterator();
+        for (Tuple<Integer, byte[]> keyValue : bTree.getInRange(Integer.MIN_VALUE, Integer.MAX_VALUE)) {
+            Map.Entry<Integer, byte[]> entry = entries.hasNext() ? entries.next() : null;
+            if (entry == null || !entry.getKey().equals(keyValue.x)
+                    || !Arrays.equals(entry.getValue(), keyValue.y)) {
+                throw new IllegalStateException("Range scan returned " + keyValue.x);
+            }
+        }
+        if (entries.hasNext()) {
+            throw new IllegalStateException("Range scan missed " + entries.next().getKey());
+        }
+    }
+}
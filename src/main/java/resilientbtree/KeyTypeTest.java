@@ -0,0 +1,297 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Puts and deletes 64 bit keys spread over the whole range of a long, including the smallest and largest ones,
+ * and byte array keys up to the longest the tree takes, many of which share their first 8 bytes or more, checks
+ * lookups and range scans against a TreeMap and checks them again after the tree has been opened again. Every put
+ * of a byte array key writes only its own value to the value file, compaction and relayout keep every key, and
+ * keys that are too long are turned down. Trees with 32 bit keys have to turn down keys that do not fit in an int.
+ */
+public class KeyTypeTest {
+
+    static final int KEYS = 20000;
+
+    public static void main(String args[]) throws IOException {
+        for (BTreeConfig.NodeLayout layout : BTreeConfig.NodeLayout.values()) {
+            for (boolean copyOnWrite : new boolean[]{false, true}) {
+                System.out.println("Layout " + layout + (copyOnWrite ? ", copy on write" : ""));
+                testLongKeys(layout, copyOnWrite);
+                testByteKeys(layout, copyOnWrite);
+            }
+        }
+        testIntKeys();
+    }
+
+    static void testLongKeys(BTreeConfig.NodeLayout layout, boolean copyOnWrite) throws IOException {
+        String fileName = "keytype_long_" + layout + ".dat";
+        new File(fileName).delete();
+        new File(fileName + "_values").delete();
+        BTreeConfig config = new BTreeConfig().nodeSize(16).nodeLayout(layout).copyOnWrite(copyOnWrite)
+                .countKeys(true).keyType(BTreeConfig.KeyType.LONG);
+        BTree bTree = BTree.makeBTree(fileName, config);
+        TreeMap<Long, byte[]> expected = new TreeMap<>();
+        Random random = new Random(7);
+        long[] edges = {Long.MIN_VALUE, Long.MIN_VALUE + 1, -1L << 32, Integer.MIN_VALUE - 1L, -1, 0,
+                Integer.MAX_VALUE + 1L, 1L << 40, Long.MAX_VALUE - 1, Long.MAX_VALUE};
+        for (long key : edges) {
+            put(bTree, expected, key);
+        }
+        for (int i = 0; i < KEYS; i++) {
+            put(bTree, expected, random.nextLong());
+        }
+        // Every other key is deleted again, the smallest and largest keys among them
+        int index = 0;
+        for (Long key : expected.keySet().toArray(new Long[0])) {
+            if (index++ % 2 == 0) {
+                if (!bTree.delete(key)) {
+                    throw new IllegalStateException("Key " + key + " was not deleted");
+                }
+                expected.remove(key);
+            }
+        }
+        checkLongKeys(bTree, expected);
+        bTree.close();
+
+        bTree = BTree.makeBTree(fileName, config);
+        checkLongKeys(bTree, expected);
+        bTree.close();
+        System.out.println("Long keys: " + expected.size() + " keys from " + expected.firstKey() + " to "
+                + expected.lastKey());
+    }
+
+    private static void put(BTree bTree, TreeMap<Long, byte[]> expected, long key) throws IOException {
+        byte[] value = Long.toString(key).getBytes();
+        bTree.put(key, value);
+        expected.put(key, value);
+    }
+
+    private static void checkLongKeys(BTree bTree, TreeMap<Long, byte[]> expected) throws IOException {
+        for (Map.Entry<Long, byte[]> entry : expected.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), bTree.get(entry.getKey()))) {
+                throw new IllegalStateException("Wrong value of key " + entry.getKey());
+            }
+        }
+        if (bTree.get(Long.MIN_VALUE) != null) {
+            throw new IllegalStateException("Found the smallest key after it was deleted");
+        }
+        checkRange(bTree.getInRange(Long.MIN_VALUE, Long.MAX_VALUE).iterator(),
+                expected.entrySet().iterator());
+        long low = -1L << 62;
+        long high = 1L << 62;
+        checkRange(bTree.getInRange(low, high).iterator(), expected.subMap(low, true, high, true).entrySet().iterator());
+        check(expected.size(), bTree.count(Long.MIN_VALUE, Long.MAX_VALUE), "count of all keys");
+        check(expected.headMap(0L).size(), bTree.rank(0), "rank of 0");
+        check(expected.lastKey(), bTree.selectLong(expected.size() - 1), "last key");
+        check(expected.size(), bTree.stream(Long.MIN_VALUE, Long.MAX_VALUE).count(), "size of the stream");
+    }
+
+    static void testByteKeys(BTreeConfig.NodeLayout layout, boolean copyOnWrite) throws IOException {
+        String fileName = "keytype_bytes_" + layout + ".dat";
+        // Compaction below leaves value files of later generations behind
+        for (File file : new File(".").listFiles()) {
+            if (file.getName().startsWith(fileName)) {
+                file.delete();
+            }
+        }
+        BTreeConfig config = new BTreeConfig().nodeSize(16).nodeLayout(layout).copyOnWrite(copyOnWrite)
+                .keyType(BTreeConfig.KeyType.BYTES);
+        BTree bTree = BTree.makeBTree(fileName, config);
+        int maxKeyLength = bTree.maxKeyLength();
+        TreeMap<byte[], byte[]> expected = new TreeMap<>(ByteKeys::compare);
+        Random random = new Random(11);
+        long valueBytes = 0;
+        // Few distinct first bytes, so that many keys share their 64 bit prefix. Every other key is long and only
+        // differs from others in its last bytes
+        for (int i = 0; i < KEYS; i++) {
+            byte[] key = new byte[i % 2 == 0 ? random.nextInt(14) : maxKeyLength - random.nextInt(4)];
+            for (int j = 0; j < key.length; j++) {
+                key[j] = (byte) (j < 8 ? random.nextInt(3) * 0x7F : j < key.length - 2 ? 1 : random.nextInt(256));
+            }
+            byte[] value = Arrays.copyOf(key, key.length % 16 + 1);
+            bTree.put(key, value);
+            expected.put(key, value);
+            valueBytes += 4 + value.length;
+        }
+        // Leaves split at the shortest key between their halves, which is much shorter than the long keys
+        double separatorLength = separatorLength(bTree, bTree.getBTreeNodeAtIndex(bTree.rootPosition));
+        if (separatorLength > maxKeyLength / 2) {
+            throw new IllegalStateException("Separators have " + separatorLength + " bytes on average");
+        }
+        // Each put appends its value and nothing else
+        if (bTree.valueFileLength() > valueBytes) {
+            throw new IllegalStateException("Value file has " + bTree.valueFileLength() + " bytes after puts of "
+                    + valueBytes + " bytes of values");
+        }
+        try {
+            bTree.put(new byte[maxKeyLength + 1], new byte[0]);
+            throw new IllegalStateException("Took a key longer than " + maxKeyLength + " bytes");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        Snapshot snapshot = copyOnWrite ? bTree.snapshot() : null;
+        TreeMap<byte[], byte[]> before = new TreeMap<>(expected);
+        int index = 0;
+        for (byte[] key : expected.keySet().toArray(new byte[0][])) {
+            if (index++ % 3 == 0) {
+                if (!bTree.delete(key)) {
+                    throw new IllegalStateException("Key " + Arrays.toString(key) + " was not deleted");
+                }
+                expected.remove(key);
+            }
+        }
+        if (bTree.delete(new byte[]{1, 2, 3})) {
+            throw new IllegalStateException("Deleted a key that was never put");
+        }
+        // Both walk the leaves in key order
+        bTree.compactValues();
+        bTree.relayout(0.7);
+        checkByteKeys(bTree, expected);
+        if (snapshot != null) {
+            // The snapshot still has the deleted keys
+            for (Map.Entry<byte[], byte[]> entry : before.entrySet()) {
+                if (!Arrays.equals(entry.getValue(), snapshot.get(entry.getKey()))) {
+                    throw new IllegalStateException("Wrong value of key " + Arrays.toString(entry.getKey())
+                            + " in the snapshot");
+                }
+            }
+            checkByteRange(snapshot.getInRange(new byte[0], new byte[]{-1}).iterator(), before.entrySet().iterator());
+            snapshot.close();
+        }
+        bTree.close();
+
+        bTree = BTree.makeBTree(fileName, config);
+        checkByteKeys(bTree, expected);
+        bTree.close();
+        System.out.println("Byte array keys: " + expected.size() + " keys of up to " + maxKeyLength
+                + " bytes, separators of " + separatorLength + " bytes on average");
+    }
+
+    /**
+     * @return the average length of the separators in the inner nodes below and including node
+     */
+    private static double separatorLength(BTree bTree, BTreeNode node) throws IOException {
+        long[] lengths = new long[2];
+        addSeparatorLengths(bTree, node, lengths);
+        return (double) lengths[0] / lengths[1];
+    }
+
+    private static void addSeparatorLengths(BTree bTree, BTreeNode node, long[] lengths) throws IOException {
+        if (node.isLeaf) {
+            return;
+        }
+        if (node.phi > 0) {
+            addSeparatorLengths(bTree, bTree.getBTreeNodeAtIndex(node.phi), lengths);
+        }
+        for (RBTNode entry : node.rbTree) {
+            lengths[0] += entry.bytes.length;
+            lengths[1]++;
+            addSeparatorLengths(bTree, bTree.getBTreeNodeAtIndex(entry.value), lengths);
+        }
+    }
+
+    private static void checkByteKeys(BTree bTree, TreeMap<byte[], byte[]> expected) throws IOException {
+        for (Map.Entry<byte[], byte[]> entry : expected.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), bTree.get(entry.getKey()))) {
+                throw new IllegalStateException("Wrong value of key " + Arrays.toString(entry.getKey()));
+            }
+        }
+        checkByteRange(bTree.getInRange(new byte[0], new byte[]{-1}).iterator(), expected.entrySet().iterator());
+        // A range that starts and ends between keys with the same 64 bit prefix
+        byte[] low = {0, 0, 0, 0, 0x7F, 0x7F, 0, 0, 5};
+        byte[] high = {0x7F, 0, 0x7F, 0, 0, 0, 0x7F, 0x7F, 0x7F, 0};
+        checkByteRange(bTree.getInRange(low, high).iterator(),
+                expected.subMap(low, true, high, true).entrySet().iterator());
+        try (Snapshot snapshot = bTree.pin()) {
+            LongKeyCall[] calls = {() -> bTree.put(0, new byte[0]), () -> bTree.get(0), () -> bTree.delete(0),
+                    () -> bTree.getInRange(0, 1), () -> bTree.getInRange(0L, 1L), () -> bTree.count(0, 1),
+                    () -> bTree.rank(0), () -> bTree.selectLong(0), () -> bTree.cursor(),
+                    () -> bTree.spliterator(0L, 1L), () -> bTree.stream(0, 1), () -> snapshot.get(0),
+                    () -> snapshot.getInRange(0L, 1L), () -> snapshot.count(0, 1), () -> snapshot.rank(0),
+                    () -> snapshot.selectLong(0), () -> snapshot.cursor(), () -> snapshot.stream(0L, 1L)};
+            for (int i = 0; i < calls.length; i++) {
+                try {
+                    calls[i].call();
+                    throw new IllegalStateException("Call " + i + " took a long key on a tree with byte array keys");
+                } catch (IllegalStateException e) {
+                    if (!e.getMessage().contains("byte")) {
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A call with a long key, which trees with byte array keys turn down
+     */
+    private interface LongKeyCall {
+        void call() throws IOException;
+    }
+
+    static void testIntKeys() throws IOException {
+        String fileName = "keytype_int.dat";
+        new File(fileName).delete();
+        new File(fileName + "_values").delete();
+        BTree bTree = BTree.makeBTree(fileName, new BTreeConfig().nodeSize(16));
+        bTree.put(Integer.MAX_VALUE, new byte[]{1});
+        try {
+            bTree.put(Integer.MAX_VALUE + 1L, new byte[]{2});
+            throw new IllegalStateException("A tree with 32 bit keys took a key that does not fit in an int");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        if (bTree.getInRange(Long.MIN_VALUE, Long.MAX_VALUE).iterator().next().x != Integer.MAX_VALUE) {
+            throw new IllegalStateException("Wrong key in the tree with 32 bit keys");
+        }
+        bTree.close();
+        System.out.println("Int keys: keys that do not fit in an int are turned down");
+    }
+
+    private static <K> void checkRange(Iterator<Tuple<K, byte[]>> actual, Iterator<Map.Entry<K, byte[]>> expected) {
+        while (expected.hasNext()) {
+            Map.Entry<K, byte[]> entry = expected.next();
+            if (!actual.hasNext()) {
+                throw new IllegalStateException("Range ended before key " + entry.getKey());
+            }
+            Tuple<K, byte[]> keyValue = actual.next();
+            if (!keyValue.x.equals(entry.getKey()) || !Arrays.equals(keyValue.y, entry.getValue())) {
+                throw new IllegalStateException("Expected key " + entry.getKey() + " but got " + keyValue.x);
+            }
+        }
+        if (actual.hasNext()) {
+            throw new IllegalStateException("Range has more keys than expected: " + actual.next().x);
+        }
+    }
+
+    private static void checkByteRange(Iterator<Tuple<byte[], byte[]>> actual,
+                                       Iterator<Map.Entry<byte[], byte[]>> expected) {
+        while (expected.hasNext()) {
+            Map.Entry<byte[], byte[]> entry = expected.next();
+            if (!actual.hasNext()) {
+                throw new IllegalStateException("Range ended before key " + Arrays.toString(entry.getKey()));
+            }
+            Tuple<byte[], byte[]> keyValue = actual.next();
+            if (!Arrays.equals(keyValue.x, entry.getKey()) || !Arrays.equals(keyValue.y, entry.getValue())) {
+                throw new IllegalStateException("Expected key " + Arrays.toString(entry.getKey()) + " but got "
+                        + Arrays.toString(keyValue.x));
+            }
+        }
+        if (actual.hasNext()) {
+            throw new IllegalStateException("Range has more keys than expected");
+        }
+    }
+
+    static void check(long expected, long actual, String what) {
+        if (expected != actual) {
+            throw new IllegalStateException("Wrong " + what + ": " + actual + " instead of " + expected);
+        }
+    }
+}
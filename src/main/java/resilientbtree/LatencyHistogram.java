@@ -0,0 +1,71 @@
+package resilientbtree;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies in buckets of powers of two nanoseconds. Recording is two adds to LongAdders and a max, so
+ * threads that record at the same time do not contend. Percentiles are the upper end of the bucket they fall
+ * into, which is at most twice the exact value.
+ */
+final class LatencyHistogram {
+
+    // Bucket 0 counts latencies of 0 and bucket i latencies in [2^(i-1), 2^i) nanoseconds
+    private final LongAdder[] buckets = new LongAdder[64];
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records the time since startNanos, which was taken with System.nanoTime
+     */
+    void record(long startNanos) {
+        long nanos = Math.max(0, System.nanoTime() - startNanos);
+        buckets[64 - Long.numberOfLeadingZeros(nanos)].increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    long maxNanos() {
+        return maxNanos.get();
+    }
+
+    long meanNanos() {
+        long count = count();
+        return count == 0 ? 0 : totalNanos.sum() / count;
+    }
+
+    /**
+     * @return the latency that a fraction of quantile of all recorded latencies are at or below, 0 if none were
+     */
+    long percentileNanos(double quantile) {
+        long[] counts = new long[buckets.length];
+        long count = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min((1L << i) - 1, maxNanos());
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,209 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Records the metrics of a tree opened with BTreeConfig.metrics. The tree keeps a null reference to it otherwise,
+ * so that without metrics every place that records one only tests a field for null.
+ *
+ * Counters are LongAdders that threads add to without contending. Cache hits and misses, remaps and the height
+ * of the tree are not counted here but read from the tree when they are asked for.
+ */
+final class Metrics implements MetricsMBean {
+
+    private final BTree tree;
+    final LongAdder puts = new LongAdder();
+    final LongAdder scans = new LongAdder();
+    final LongAdder nodeReads = new LongAdder();
+    final LongAdder deserializations = new LongAdder();
+    final LongAdder splits = new LongAdder();
+    final LongAdder valueBytesRead = new LongAdder();
+    final LatencyHistogram getLatency = new LatencyHistogram();
+    final LatencyHistogram putLatency = new LatencyHistogram();
+    final LatencyHistogram deleteLatency = new LatencyHistogram();
+    // Null if the metrics could not be registered, see register
+    private ObjectName name;
+
+    Metrics(BTree tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * Registers the metrics with the platform MBeanServer under the path of fileName. If another tree opened on
+     * the same file already took the name, these metrics are only available through BTree.metrics().
+     */
+    void register(String fileName) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName("resilientbtree:type=BTree,name="
+                    + ObjectName.quote(new File(fileName).getAbsolutePath()));
+            server.registerMBean(new StandardMBean(this, MetricsMBean.class), objectName);
+            name = objectName;
+        } catch (JMException e) {
+            name = null;
+        }
+    }
+
+    void unregister() {
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                // Somebody else unregistered it already
+            }
+            name = null;
+        }
+    }
+
+    @Override
+    public long getGets() {
+        return getLatency.count();
+    }
+
+    @Override
+    public long getPuts() {
+        return puts.sum();
+    }
+
+    @Override
+    public long getDeletes() {
+        return deleteLatency.count();
+    }
+
+    @Override
+    public long getScans() {
+        return scans.sum();
+    }
+
+    @Override
+    public long getOperations() {
+        return getGets() + getPuts() + getDeletes() + getScans();
+    }
+
+    @Override
+    public long getNodeReads() {
+        return nodeReads.sum();
+    }
+
+    @Override
+    public long getDeserializations() {
+        return deserializations.sum();
+    }
+
+    @Override
+    public double getNodeReadsPerOperation() {
+        return perOperation(getNodeReads());
+    }
+
+    @Override
+    public double getDeserializationsPerOperation() {
+        return perOperation(getDeserializations());
+    }
+
+    private double perOperation(long count) {
+        long operations = getOperations();
+        return operations == 0 ? 0 : (double) count / operations;
+    }
+
+    @Override
+    public long getSplits() {
+        return splits.sum();
+    }
+
+    @Override
+    public int getTreeHeight() {
+        try {
+            return tree.height();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public long getCacheHits() {
+        return tree.cache.hits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return tree.cache.misses();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        return tree.cache.hitRatio();
+    }
+
+    @Override
+    public long getIndexRemaps() {
+        return tree.handler.remaps();
+    }
+
+    @Override
+    public long getValueRemaps() {
+        return tree.valueRemaps();
+    }
+
+    @Override
+    public long getRemapNanos() {
+        return tree.remapNanos();
+    }
+
+    @Override
+    public long getValueBytesRead() {
+        return valueBytesRead.sum();
+    }
+
+    @Override
+    public long getGetP50Nanos() {
+        return getLatency.percentileNanos(0.5);
+    }
+
+    @Override
+    public long getGetP99Nanos() {
+        return getLatency.percentileNanos(0.99);
+    }
+
+    @Override
+    public long getGetMaxNanos() {
+        return getLatency.maxNanos();
+    }
+
+    @Override
+    public long getPutP50Nanos() {
+        return putLatency.percentileNanos(0.5);
+    }
+
+    @Override
+    public long getPutP99Nanos() {
+        return putLatency.percentileNanos(0.99);
+    }
+
+    @Override
+    public long getPutMaxNanos() {
+        return putLatency.maxNanos();
+    }
+
+    @Override
+    public long getDeleteP50Nanos() {
+        return deleteLatency.percentileNanos(0.5);
+    }
+
+    @Override
+    public long getDeleteP99Nanos() {
+        return deleteLatency.percentileNanos(0.99);
+    }
+
+    @Override
+    public long getDeleteMaxNanos() {
+        return deleteLatency.maxNanos();
+    }
+}
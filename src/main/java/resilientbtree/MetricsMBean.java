@@ -0,0 +1,99 @@
+package resilientbtree;
+
+/**
+ * What a tree opened with BTreeConfig.metrics records about itself. Every tree registers one with the platform
+ * MBeanServer as resilientbtree:type=BTree,name="path of the index file", and BTree.metrics() returns a copy.
+ *
+ * Counters count from when the tree was opened. Latencies are in nanoseconds and only cover single gets, puts
+ * and deletes, not batches. See LatencyHistogram for how precise they are.
+ */
+public interface MetricsMBean {
+
+    long getGets();
+
+    /**
+     * @return the number of keys put, counting every key of a putAll
+     */
+    long getPuts();
+
+    long getDeletes();
+
+    /**
+     * @return the number of range scans started, see BTree.getInRange and ScanCursor.seek
+     */
+    long getScans();
+
+    /**
+     * @return gets, puts, deletes and scans together
+     */
+    long getOperations();
+
+    /**
+     * @return the number of nodes that were looked at, whether they came from the cache, were decoded or were
+     * read in place
+     */
+    long getNodeReads();
+
+    /**
+     * @return the number of nodes decoded from the index file because they were not in the cache
+     */
+    long getDeserializations();
+
+    double getNodeReadsPerOperation();
+
+    double getDeserializationsPerOperation();
+
+    /**
+     * @return the number of new nodes made by splitting full ones
+     */
+    long getSplits();
+
+    /**
+     * @return the number of levels of the tree, 1 if the root is a leaf
+     */
+    int getTreeHeight();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRatio();
+
+    /**
+     * @return how often the index file was mapped again because it grew
+     */
+    long getIndexRemaps();
+
+    /**
+     * @return how often the value files were mapped again because they grew
+     */
+    long getValueRemaps();
+
+    /**
+     * @return the time spent growing and mapping again the index and value files
+     */
+    long getRemapNanos();
+
+    /**
+     * @return the number of bytes of values read from the value files, as stored
+     */
+    long getValueBytesRead();
+
+    long getGetP50Nanos();
+
+    long getGetP99Nanos();
+
+    long getGetMaxNanos();
+
+    long getPutP50Nanos();
+
+    long getPutP99Nanos();
+
+    long getPutMaxNanos();
+
+    long getDeleteP50Nanos();
+
+    long getDeleteP99Nanos();
+
+    long getDeleteMaxNanos();
+}
@@ -0,0 +1,212 @@
+package resilientbtree;
+
+/**
+ * The metrics of a tree at one point in time, see BTree.metrics(). Its values are read from the live metrics one
+ * after the other, so a snapshot taken while the tree is in use may count an operation in one value but not yet
+ * in another.
+ */
+public final class MetricsSnapshot implements MetricsMBean {
+
+    private final long gets;
+    private final long puts;
+    private final long deletes;
+    private final long scans;
+    private final long operations;
+    private final long nodeReads;
+    private final long deserializations;
+    private final double nodeReadsPerOperation;
+    private final double deserializationsPerOperation;
+    private final long splits;
+    private final int treeHeight;
+    private final long cacheHits;
+    private final long cacheMisses;
+    private final double cacheHitRatio;
+    private final long indexRemaps;
+    private final long valueRemaps;
+    private final long remapNanos;
+    private final long valueBytesRead;
+    private final long getP50Nanos;
+    private final long getP99Nanos;
+    private final long getMaxNanos;
+    private final long putP50Nanos;
+    private final long putP99Nanos;
+    private final long putMaxNanos;
+    private final long deleteP50Nanos;
+    private final long deleteP99Nanos;
+    private final long deleteMaxNanos;
+
+    MetricsSnapshot(MetricsMBean source) {
+        gets = source.getGets();
+        puts = source.getPuts();
+        deletes = source.getDeletes();
+        scans = source.getScans();
+        operations = source.getOperations();
+        nodeReads = source.getNodeReads();
+        deserializations = source.getDeserializations();
+        nodeReadsPerOperation = source.getNodeReadsPerOperation();
+        deserializationsPerOperation = source.getDeserializationsPerOperation();
+        splits = source.getSplits();
+        treeHeight = source.getTreeHeight();
+        cacheHits = source.getCacheHits();
+        cacheMisses = source.getCacheMisses();
+        cacheHitRatio = source.getCacheHitRatio();
+        indexRemaps = source.getIndexRemaps();
+        valueRemaps = source.getValueRemaps();
+        remapNanos = source.getRemapNanos();
+        valueBytesRead = source.getValueBytesRead();
+        getP50Nanos = source.getGetP50Nanos();
+        getP99Nanos = source.getGetP99Nanos();
+        getMaxNanos = source.getGetMaxNanos();
+        putP50Nanos = source.getPutP50Nanos();
+        putP99Nanos = source.getPutP99Nanos();
+        putMaxNanos = source.getPutMaxNanos();
+        deleteP50Nanos = source.getDeleteP50Nanos();
+        deleteP99Nanos = source.getDeleteP99Nanos();
+        deleteMaxNanos = source.getDeleteMaxNanos();
+    }
+
+    @Override
+    public long getGets() {
+        return gets;
+    }
+
+    @Override
+    public long getPuts() {
+        return puts;
+    }
+
+    @Override
+    public long getDeletes() {
+        return deletes;
+    }
+
+    @Override
+    public long getScans() {
+        return scans;
+    }
+
+    @Override
+    public long getOperations() {
+        return operations;
+    }
+
+    @Override
+    public long getNodeReads() {
+        return nodeReads;
+    }
+
+    @Override
+    public long getDeserializations() {
+        return deserializations;
+    }
+
+    @Override
+    public double getNodeReadsPerOperation() {
+        return nodeReadsPerOperation;
+    }
+
+    @Override
+    public double getDeserializationsPerOperation() {
+        return deserializationsPerOperation;
+    }
+
+    @Override
+    public long getSplits() {
+        return splits;
+    }
+
+    @Override
+    public int getTreeHeight() {
+        return treeHeight;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        return cacheHitRatio;
+    }
+
+    @Override
+    public long getIndexRemaps() {
+        return indexRemaps;
+    }
+
+    @Override
+    public long getValueRemaps() {
+        return valueRemaps;
+    }
+
+    @Override
+    public long getRemapNanos() {
+        return remapNanos;
+    }
+
+    @Override
+    public long getValueBytesRead() {
+        return valueBytesRead;
+    }
+
+    @Override
+    public long getGetP50Nanos() {
+        return getP50Nanos;
+    }
+
+    @Override
+    public long getGetP99Nanos() {
+        return getP99Nanos;
+    }
+
+    @Override
+    public long getGetMaxNanos() {
+        return getMaxNanos;
+    }
+
+    @Override
+    public long getPutP50Nanos() {
+        return putP50Nanos;
+    }
+
+    @Override
+    public long getPutP99Nanos() {
+        return putP99Nanos;
+    }
+
+    @Override
+    public long getPutMaxNanos() {
+        return putMaxNanos;
+    }
+
+    @Override
+    public long getDeleteP50Nanos() {
+        return deleteP50Nanos;
+    }
+
+    @Override
+    public long getDeleteP99Nanos() {
+        return deleteP99Nanos;
+    }
+
+    @Override
+    public long getDeleteMaxNanos() {
+        return deleteMaxNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "gets=" + gets + ", puts=" + puts + ", deletes=" + deletes + ", scans=" + scans
+                + ", nodeReads=" + nodeReads + ", deserializations=" + deserializations + ", splits=" + splits
+                + ", treeHeight=" + treeHeight + ", cacheHitRatio=" + String.format("%.3f", cacheHitRatio)
+                + ", indexRemaps=" + indexRemaps + ", valueRemaps=" + valueRemaps + ", remapNanos=" + remapNanos
+                + ", valueBytesRead=" + valueBytesRead + ", getP99Nanos=" + getP99Nanos
+                + ", putP99Nanos=" + putP99Nanos + ", deleteP99Nanos=" + deleteP99Nanos;
+    }
+}
@@ -0,0 +1,139 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Puts, gets, deletes and scans keys in trees opened with metrics and checks what the metrics counted, both in
+ * the snapshot returned by BTree.metrics() and through the MBean the tree registered. A tree opened without
+ * metrics has none and registers nothing.
+ */
+public class MetricsTest {
+
+    static final int KEYS = 10000;
+    static final int VALUE_SIZE = 200;
+
+    public static void main(String args[]) throws IOException, JMException {
+        for (BTreeConfig.NodeLayout layout : BTreeConfig.NodeLayout.values()) {
+            for (boolean copyOnWrite : new boolean[]{false, true}) {
+                test(layout, copyOnWrite);
+            }
+        }
+        testOff();
+    }
+
+    static void test(BTreeConfig.NodeLayout layout, boolean copyOnWrite) throws IOException, JMException {
+        String fileName = "metrics_" + layout + ".dat";
+        delete(fileName);
+        BTreeConfig config = new BTreeConfig().nodeSize(8).nodeLayout(layout).copyOnWrite(copyOnWrite)
+                .metrics(true);
+        BTree bTree = BTree.makeBTree(fileName, config);
+        Random random = new Random(7);
+        int[] keys = new int[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = random.nextInt();
+            bTree.put(keys[i], value(keys[i]));
+        }
+        int[] batch = Arrays.copyOf(keys, KEYS / 10);
+        byte[][] values = new byte[batch.length][];
+        for (int i = 0; i < batch.length; i++) {
+            values[i] = value(batch[i]);
+        }
+        bTree.putAll(batch, values);
+        long valueBytes = 0;
+        for (int key : keys) {
+            valueBytes += bTree.get(key).length;
+        }
+        MetricsSnapshot afterGets = bTree.metrics();
+        check(afterGets.getPuts(), KEYS + batch.length, "puts");
+        check(afterGets.getGets(), KEYS, "gets");
+        check(afterGets.getValueBytesRead(), valueBytes, "bytes of values read");
+        check(afterGets.getTreeHeight(), bTree.height(), "height");
+        if (afterGets.getTreeHeight() < 3) {
+            throw new IllegalStateException("Tree of " + KEYS + " keys is only " + afterGets.getTreeHeight()
+                    + " high");
+        }
+        // Leaves hold fewer than 20 keys, so most of them were split off others
+        if (afterGets.getSplits() < KEYS / 20) {
+            throw new IllegalStateException("Only " + afterGets.getSplits() + " splits");
+        }
+        // Every get reads a node of every level
+        if (afterGets.getNodeReads() < (long) KEYS * afterGets.getTreeHeight()) {
+            throw new IllegalStateException("Only " + afterGets.getNodeReads() + " node reads");
+        }
+        if (afterGets.getDeserializations() > afterGets.getNodeReads()) {
+            throw new IllegalStateException("More deserializations than node reads");
+        }
+        if (afterGets.getValueRemaps() == 0) {
+            throw new IllegalStateException("The value file grew without being mapped again");
+        }
+        if (afterGets.getGetP50Nanos() <= 0 || afterGets.getGetP50Nanos() > afterGets.getGetP99Nanos()
+                || afterGets.getGetP99Nanos() > afterGets.getGetMaxNanos()) {
+            throw new IllegalStateException("Wrong get latencies: " + afterGets);
+        }
+
+        for (int i = 0; i < KEYS / 2; i++) {
+            bTree.delete(keys[i]);
+        }
+        int scanned = 0;
+        for (Tuple<Integer, byte[]> ignored : bTree.getInRange(Integer.MIN_VALUE, Integer.MAX_VALUE)) {
+            scanned++;
+        }
+        MetricsSnapshot metrics = bTree.metrics();
+        check(metrics.getDeletes(), KEYS / 2, "deletes");
+        check(metrics.getScans(), 1, "scans");
+        check(metrics.getOperations(), KEYS + batch.length + KEYS + KEYS / 2 + 1, "operations");
+        if (metrics.getValueBytesRead() < valueBytes + (long) scanned * VALUE_SIZE) {
+            throw new IllegalStateException("The scan read only " + (metrics.getValueBytesRead() - valueBytes)
+                    + " bytes of values");
+        }
+        if (metrics.getDeleteMaxNanos() == 0) {
+            throw new IllegalStateException("No delete latencies");
+        }
+
+        ObjectName name = new ObjectName("resilientbtree:type=BTree,name="
+                + ObjectName.quote(new File(fileName).getAbsolutePath()));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        check((Long) server.getAttribute(name, "Deletes"), KEYS / 2, "deletes through JMX");
+        check((Integer) server.getAttribute(name, "TreeHeight"), bTree.height(), "height through JMX");
+        bTree.close();
+        if (server.isRegistered(name)) {
+            throw new IllegalStateException("Metrics are still registered after close");
+        }
+        System.out.println(layout + (copyOnWrite ? ", copy on write" : "") + ": " + metrics);
+    }
+
+    static void testOff() throws IOException {
+        String fileName = "metrics_off.dat";
+        delete(fileName);
+        BTree bTree = BTree.makeBTree(fileName, new BTreeConfig());
+        bTree.put(1, value(1));
+        if (bTree.metrics() != null) {
+            throw new IllegalStateException("Tree opened without metrics has metrics");
+        }
+        bTree.close();
+    }
+
+    private static byte[] value(int key) {
+        byte[] value = new byte[VALUE_SIZE];
+        Arrays.fill(value, (byte) key);
+        return value;
+    }
+
+    private static void check(long actual, long expected, String what) {
+        if (actual != expected) {
+            throw new IllegalStateException("Expected " + expected + " " + what + " but got " + actual);
+        }
+    }
+
+    private static void delete(String fileName) {
+        new File(fileName).delete();
+        new File(fileName + "_values").delete();
+    }
+}
@@ -0,0 +1,164 @@
+package resilientbtree;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps decoded BTreeNodes keyed by their position in the index file so that the upper levels of the tree
+ * do not have to be deserialized again on every descent. Once the cache holds more than maxEntries nodes
+ * entries are evicted with the CLOCK algorithm: a hand sweeps over the entries, clearing the referenced bit
+ * of recently used ones and evicting the first one found that has not been used since the last sweep.
+ *
+ * Lookups do not take a lock, so the cache can be shared by concurrent readers. Cached nodes must never be
+ * modified. Writers modify a copy and put it into the cache after writing it to the index file.
+ */
+public class NodeCache {
+
+    private final int maxEntries;
+    private final ConcurrentHashMap<Position, Entry> nodes = new ConcurrentHashMap<>();
+    // Lookups fill in the position of each thread instead of boxing a new one for every node read
+    private final ThreadLocal<Position> lookup = ThreadLocal.withInitial(Position::new);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    // The clock hand. Only used while holding the lock on itself
+    private final Object evictionLock = new Object();
+    private Iterator<Map.Entry<Position, Entry>> hand;
+
+    /**
+     * The key of a cached node. The keys in the map are never changed, only the ones used for lookups.
+     */
+    private static final class Position {
+        long position;
+
+        Position() {
+        }
+
+        Position(long position) {
+            this.position = position;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(position);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Position && ((Position) other).position == position;
+        }
+    }
+
+    private static class Entry {
+        final BTreeNode node;
+        volatile boolean referenced = true;
+
+        Entry(BTreeNode node) {
+            this.node = node;
+        }
+    }
+
+    public NodeCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Creates a cache holding as many nodes as fit in maxBytes when every node takes up batchSize bytes on disk.
+     */
+    public static NodeCache withByteBudget(long maxBytes, int batchSize) {
+        return new NodeCache((int) Math.min(Integer.MAX_VALUE, maxBytes / batchSize));
+    }
+
+    /**
+     * @return the node at position or null if it is not cached
+     */
+    public BTreeNode get(long position) {
+        Entry entry = null;
+        if (maxEntries > 0) {
+            Position key = lookup.get();
+            key.position = position;
+            entry = nodes.get(key);
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (!entry.referenced) {
+            // Only write when needed so that hot entries are not written on every hit
+            entry.referenced = true;
+        }
+        hits.increment();
+        return entry.node;
+    }
+
+    /**
+     * Caches node, replacing whatever was cached for position before. Used by writers.
+     */
+    public void put(long position, BTreeNode node) {
+        if (maxEntries > 0) {
+            nodes.put(new Position(position), new Entry(node));
+            evictIfFull();
+        }
+    }
+
+    /**
+     * Caches node unless something is cached for position already. Used by readers, which must not replace a
+     * node that a writer has put in the meantime.
+     */
+    public void putIfAbsent(long position, BTreeNode node) {
+        if (maxEntries > 0) {
+            nodes.putIfAbsent(new Position(position), new Entry(node));
+            evictIfFull();
+        }
+    }
+
+    private void evictIfFull() {
+        if (nodes.size() <= maxEntries) {
+            return;
+        }
+        synchronized (evictionLock) {
+            while (nodes.size() > maxEntries) {
+                if (hand == null || !hand.hasNext()) {
+                    hand = nodes.entrySet().iterator();
+                }
+                Map.Entry<Position, Entry> candidate = hand.next();
+                Entry entry = candidate.getValue();
+                if (entry.referenced) {
+                    entry.referenced = false; // Second chance
+                } else {
+                    nodes.remove(candidate.getKey(), entry);
+                }
+            }
+        }
+    }
+
+    public void remove(long position) {
+        nodes.remove(new Position(position));
+    }
+
+    public void clear() {
+        nodes.clear();
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the fraction of lookups answered from the cache, 0 if there were none
+     */
+    public double hitRatio() {
+        long hits = hits();
+        long lookups = hits + misses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+}
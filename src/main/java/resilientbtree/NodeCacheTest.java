@@ -0,0 +1,78 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Gets a small set of keys over and over from trees with and without a node cache and checks the hit ratio: the
+ * upper levels and the hot leaves must be answered from the cache, and a tree without a cache must never hit.
+ * Trees created with BTreeConfig.cacheBytes must keep no more nodes than fit in the budget at their page size.
+ */
+public class NodeCacheTest {
+
+    static final int KEYS = 20000;
+    static final int HOT_KEYS = 100;
+    static final double MIN_HIT_RATIO = 0.9;
+
+    public static void main(String args[]) throws IOException {
+        BTree bTree = fill(new BTreeConfig().nodeSize(16));
+        double hitRatio = readHotKeys(bTree);
+        System.out.println("Hit ratio with " + bTree.cache.size() + " cached nodes: " + hitRatio);
+        if (hitRatio < MIN_HIT_RATIO) {
+            throw new IllegalStateException("Hit ratio " + hitRatio + " below " + MIN_HIT_RATIO);
+        }
+        bTree.close();
+
+        bTree = fill(new BTreeConfig().nodeSize(16).cacheEntries(0));
+        hitRatio = readHotKeys(bTree);
+        if (hitRatio != 0 || bTree.cache.size() != 0) {
+            throw new IllegalStateException("A tree without a cache hit " + hitRatio + " of its reads");
+        }
+        bTree.close();
+
+        for (int nodes : new int[]{0, 10, 1000}) {
+            bTree = fill(new BTreeConfig().pageSize(4096).cacheEntries(1 << 20).cacheBytes(nodes * 4096L));
+            hitRatio = readHotKeys(bTree);
+            System.out.println("Budget of " + nodes + " pages: " + bTree.cache.size() + " cached nodes, hit ratio "
+                    + hitRatio);
+            if (bTree.cache.size() > nodes) {
+                throw new IllegalStateException("Cached " + bTree.cache.size() + " nodes with room for " + nodes);
+            }
+            // Room for 10 nodes is less than the hot leaves, so only the other budgets have a known hit ratio
+            if (nodes == 0 ? hitRatio != 0 : nodes > 10 && hitRatio < MIN_HIT_RATIO) {
+                throw new IllegalStateException("Hit ratio " + hitRatio + " with room for " + nodes + " nodes");
+            }
+            bTree.close();
+        }
+    }
+
+    static BTree fill(BTreeConfig config) throws IOException {
+        String fileName = "cache.dat";
+        new File(fileName).delete();
+        new File(fileName + "_values").delete();
+        BTree bTree = BTree.makeBTree(fileName, config);
+        for (int key = 0; key < KEYS; key++) {
+            bTree.put(key, ("value" + key).getBytes());
+        }
+        return bTree;
+    }
+
+    /**
+     * @return the hit ratio of 100 passes of gets over HOT_KEYS keys spread over the tree
+     */
+    static double readHotKeys(BTree bTree) throws IOException {
+        long hits = bTree.cache.hits();
+        long misses = bTree.cache.misses();
+        for (int pass = 0; pass < 100; pass++) {
+            for (int i = 0; i < HOT_KEYS; i++) {
+                int key = i * (KEYS / HOT_KEYS);
+                if (bTree.get(key) == null) {
+                    throw new IllegalStateException("Lost key " + key);
+                }
+            }
+        }
+        hits = bTree.cache.hits() - hits;
+        misses = bTree.cache.misses() - misses;
+        return (double) hits / (hits + misses);
+    }
+}
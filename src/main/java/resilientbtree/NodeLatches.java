@@ -0,0 +1,119 @@
+package resilientbtree;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Latches of the nodes of a tree written in place, see BTree. The nodes share a fixed number of stripes by
+ * position, so nothing is allocated for a position, not even for one that a reader read from a node that changed
+ * under it.
+ *
+ * Writers latch the position itself: a stripe remembers which of its positions are latched, and a writer only
+ * waits for the writer that has the same position. Two writers whose nodes share a stripe therefore never wait
+ * for each other and cannot deadlock, however they got to their nodes.
+ *
+ * Readers validate the version of the stripe instead, which changes whenever a node of the stripe is latched or
+ * let go of. A writer on another node of the stripe makes them start over for nothing, which is rare enough with
+ * STRIPES stripes.
+ */
+final class NodeLatches {
+
+    static final int STRIPES = 1024;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final int pageSize;
+
+    /**
+     * The version of the nodes of a stripe. Writers only lock it for a moment to change the version, see lock.
+     * Readers use it like the latch of a single node.
+     */
+    static final class Stripe extends StampedLock {
+        private static final long serialVersionUID = 1L;
+
+        // Number of latched positions. Written while holding the lock on the stripe
+        private volatile int held;
+        // The latched positions. Only used while holding the lock on the stripe
+        private long[] positions = new long[2];
+        private int waiting;
+
+        /**
+         * @return a stamp to validate once the node has been read, 0 if a writer has a node of this stripe
+         */
+        long stamp() {
+            long stamp = tryOptimisticRead();
+            return held == 0 ? stamp : 0;
+        }
+
+        private int indexOf(long position) {
+            for (int i = 0; i < held; i++) {
+                if (positions[i] == position) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    NodeLatches(int pageSize) {
+        this.pageSize = pageSize;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    Stripe stripe(long position) {
+        return stripes[(int) (position / pageSize) & (STRIPES - 1)];
+    }
+
+    /**
+     * Waits until no other writer has the node at position and latches it. Readers of the stripe see its version
+     * change before the caller gets to modify the node.
+     */
+    void lock(long position) {
+        Stripe stripe = stripe(position);
+        boolean interrupted = false;
+        synchronized (stripe) {
+            while (stripe.indexOf(position) >= 0) {
+                stripe.waiting++;
+                try {
+                    stripe.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true; // Latches are not interruptible, like StampedLock.writeLock
+                } finally {
+                    stripe.waiting--;
+                }
+            }
+            int held = stripe.held;
+            if (held == stripe.positions.length) {
+                stripe.positions = Arrays.copyOf(stripe.positions, 2 * held);
+            }
+            stripe.positions[held] = position;
+            stripe.held = held + 1;
+        }
+        stripe.unlockWrite(stripe.writeLock());
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Lets go of the latch of the node at position, which the caller holds. Readers that read the node while it
+     * was latched see the version of the stripe change.
+     */
+    void unlock(long position) {
+        Stripe stripe = stripe(position);
+        stripe.unlockWrite(stripe.writeLock());
+        synchronized (stripe) {
+            int i = stripe.indexOf(position);
+            if (i < 0) {
+                throw new IllegalMonitorStateException("Position " + position + " is not latched");
+            }
+            int held = stripe.held - 1;
+            stripe.positions[i] = stripe.positions[held];
+            stripe.held = held;
+            if (stripe.waiting > 0) {
+                stripe.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Creates trees with 4, 8 and 16 KiB pages in every layout and checks that every node starts on a page boundary,
+ * that the nodes hold as many keys as fit in a page and that the tree is much lower than one with the default node
+ * size. Deletes half of the keys and puts them again, which reuses freed pages, and opens the tree again with a
+ * configuration that asks for another page and node size, which the header overrides.
+ */
+public class PageSizeTest {
+
+    static final int KEYS = 50000;
+
+    public static void main(String args[]) throws IOException {
+        int unpagedHeight = testHeight(new BTreeConfig());
+        for (int pageSize : new int[]{4096, 8192, 16384}) {
+            for (BTreeConfig.NodeLayout layout : BTreeConfig.NodeLayout.values()) {
+                for (boolean copyOnWrite : new boolean[]{false, true}) {
+                    int height = test(pageSize, layout, copyOnWrite);
+                    if (height * 2 > unpagedHeight) {
+                        throw new IllegalStateException("Tree with " + pageSize + " byte pages is " + height
+                                + " high, with nodes of 5 keys " + unpagedHeight);
+                    }
+                }
+            }
+        }
+        try {
+            new BTreeConfig().pageSize(5000);
+            throw new IllegalStateException("Page size that is not a power of two was taken");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    static int testHeight(BTreeConfig config) throws IOException {
+        String fileName = "page_size.dat";
+        delete(fileName);
+        BTree bTree = BTree.makeBTree(fileName, config);
+        Random random = new Random(1);
+        for (int i = 0; i < KEYS; i++) {
+            bTree.put(random.nextInt(), new byte[]{(byte) i});
+        }
+        int height = bTree.height();
+        bTree.close();
+        return height;
+    }
+
+    static int test(int pageSize, BTreeConfig.NodeLayout layout, boolean copyOnWrite) throws IOException {
+        String fileName = "page_size.dat";
+        delete(fileName);
+        BTreeConfig config = new BTreeConfig().pageSize(pageSize).nodeLayout(layout).copyOnWrite(copyOnWrite)
+                .inlineValueSize(8);
+        BTree bTree = BTree.makeBTree(fileName, config);
+        int format = config.format();
+        if (bTree.batchsize != pageSize
+                || bTree.nodeSize != BTreeNode.nodeSizeForPage(pageSize, format, 8, false)
+                || BTreeNode.batchSize(bTree.nodeSize + 1, format, 8, false) <= pageSize) {
+            throw new IllegalStateException("Nodes of " + bTree.nodeSize + " keys in pages of " + pageSize);
+        }
+        TreeMap<Long, byte[]> expected = new TreeMap<>();
+        Random random = new Random(pageSize + layout.ordinal());
+        // Copy on write every put writes a whole page for every level
+        int keys = copyOnWrite ? KEYS / 5 : KEYS;
+        for (int i = 0; i < keys; i++) {
+            put(bTree, expected, random.nextInt(KEYS * 10));
+        }
+        checkAligned(bTree, pageSize);
+        long length = bTree.handler.fileLength();
+        int height = bTree.height();
+        int index = 0;
+        for (Long key : expected.keySet().toArray(new Long[0])) {
+            if (index++ % 2 == 0) {
+                bTree.delete(key);
+                expected.remove(key);
+            }
+        }
+        for (int i = 0; i < keys / 2; i++) {
+            put(bTree, expected, random.nextInt(KEYS * 10));
+        }
+        check(bTree, expected);
+        checkAligned(bTree, pageSize);
+        bTree.close();
+
+        // The header decides the page size of an existing file
+        bTree = BTree.makeBTree(fileName, new BTreeConfig().nodeSize(5).pageSize(pageSize * 2)
+                .copyOnWrite(copyOnWrite));
+        if (bTree.batchsize != pageSize) {
+            throw new IllegalStateException("Opened with pages of " + bTree.batchsize + " instead of " + pageSize);
+        }
+        check(bTree, expected);
+        bTree.close();
+        long reused = new File(fileName).length();
+        System.out.println(pageSize + " byte pages, " + layout + (copyOnWrite ? ", copy on write" : "") + ": height "
+                + height + ", " + length + " bytes, " + reused + " after deleting and putting half the keys");
+        if (reused > length * 3 / 2) {
+            throw new IllegalStateException("Freed pages were not reused: " + length + " bytes before, " + reused
+                    + " after");
+        }
+        return height;
+    }
+
+    /**
+     * Checks that the index file is a whole number of pages and that every node on the leftmost path and in the
+     * leaf chain starts on a page boundary.
+     */
+    private static void checkAligned(BTree bTree, int pageSize) throws IOException {
+        if (bTree.handler.fileLength() % pageSize != 0) {
+            throw new IllegalStateException("Index file of " + bTree.handler.fileLength() + " bytes");
+        }
+        BTreeNode node;
+        if (bTree.copyOnWrite) {
+            try (Snapshot snapshot = bTree.pin()) {
+                node = bTree.getBTreeNodeAtIndex(snapshot.root);
+            }
+        } else {
+            node = bTree.getBTreeNodeAtIndex(bTree.rootPosition);
+        }
+        while (true) {
+            if (node.selfPosition % pageSize != 0) {
+                throw new IllegalStateException("Node at " + node.selfPosition);
+            }
+            if (node.isLeaf) {
+                if (node.nextLeafPos <= 0) {
+                    return;
+                }
+                node = bTree.getBTreeNodeAtIndex(node.nextLeafPos);
+            } else {
+                node = bTree.getBTreeNodeAtIndex(node.getLower(Long.MIN_VALUE));
+            }
+        }
+    }
+
+    private static void put(BTree bTree, TreeMap<Long, byte[]> expected, long key) throws IOException {
+        byte[] value = Long.toString(key).getBytes();
+        bTree.put(key, value);
+        expected.put(key, value);
+    }
+
+    private static void check(BTree bTree, TreeMap<Long, byte[]> expected) throws IOException {
+        for (Map.Entry<Long, byte[]> entry : expected.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), bTree.get(entry.getKey()))) {
+                throw new IllegalStateException("Wrong value of key " + entry.getKey());
+            }
+        }
+        Iterator<Map.Entry<Long, byte[]>> expectedRange = expected.entrySet().iterator();
+        for (Tuple<Integer, byte[]> keyValue : bTree.getInRange(0, KEYS * 10)) {
+            Map.Entry<Long, byte[]> entry = expectedRange.next();
+            if (keyValue.x != entry.getKey().intValue() || !Arrays.equals(keyValue.y, entry.getValue())) {
+                throw new IllegalStateException("Expected key " + entry.getKey() + " but got " + keyValue.x);
+            }
+        }
+        if (expectedRange.hasNext()) {
+            throw new IllegalStateException("Range ended before key " + expectedRange.next().getKey());
+        }
+    }
+
+    private static void delete(String fileName) {
+        new File(fileName).delete();
+        new File(fileName + "_values").delete();
+    }
+}
@@ -0,0 +1,121 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Puts batches with putAll in every layout, in place and copy on write: a batch that holds keys more than once,
+ * where the last value of a key has to win, a large unsorted batch into an empty tree, which splits the root
+ * again and again, and batches whose keys fall between keys of a tree with many leaves, so that one batch
+ * updates and splits many leaves at once. Lookups and range scans are checked against a TreeMap after every
+ * batch and again after the tree has been opened again.
+ */
+public class PutAllTest {
+
+    static final int BATCH = 5000;
+    static final int NODE_SIZE = 8;
+
+    public static void main(String args[]) throws IOException {
+        for (BTreeConfig.NodeLayout layout : BTreeConfig.NodeLayout.values()) {
+            for (boolean copyOnWrite : new boolean[]{false, true}) {
+                test(layout, copyOnWrite);
+            }
+        }
+    }
+
+    static void test(BTreeConfig.NodeLayout layout, boolean copyOnWrite) throws IOException {
+        String fileName = "putall.dat";
+        new File(fileName).delete();
+        new File(fileName + "_values").delete();
+        BTreeConfig config = new BTreeConfig().nodeSize(NODE_SIZE).nodeLayout(layout).copyOnWrite(copyOnWrite);
+        BTree bTree = BTree.makeBTree(fileName, config);
+        TreeMap<Integer, byte[]> expected = new TreeMap<>();
+
+        // The last value of a key wins, wherever the key is in the batch
+        int[] keys = {5, 3, 5, 1, 3, 5, 9, 1};
+        putAll(bTree, expected, keys, 0);
+        check(bTree, expected);
+        checkValue(bTree, 5, "5_5");
+        checkValue(bTree, 3, "3_4");
+        checkValue(bTree, 1, "1_7");
+
+        // One large unsorted batch with repeated keys into a tree that has a single leaf
+        Random random = new Random(17);
+        keys = new int[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            keys[i] = 4 * random.nextInt(BATCH);
+        }
+        putAll(bTree, expected, keys, 1);
+        check(bTree, expected);
+        int height = bTree.height();
+        if (height < 3) {
+            throw new IllegalStateException("A batch of " + BATCH + " keys left the tree " + height + " high");
+        }
+
+        // Keys between the keys already in the tree, together with keys that are overwritten. Every batch spans
+        // leaves all over the tree and splits many of them
+        for (int batch = 0; batch < 4; batch++) {
+            keys = new int[BATCH / 4];
+            for (int i = 0; i < keys.length; i++) {
+                int key = 4 * random.nextInt(BATCH);
+                keys[i] = random.nextInt(4) == 0 ? key : key + 1 + batch % 3;
+            }
+            putAll(bTree, expected, keys, 2 + batch);
+            check(bTree, expected);
+        }
+        bTree.close();
+
+        bTree = BTree.makeBTree(fileName, config);
+        check(bTree, expected);
+        bTree.close();
+        System.out.println("Layout " + layout + (copyOnWrite ? ", copy on write" : "") + ": " + expected.size()
+                + " keys, height " + height + " after the first large batch");
+    }
+
+    /**
+     * Puts keys in one batch. The value of the key at index i is key_i, or key_batch_i for later batches
+     */
+    private static void putAll(BTree bTree, TreeMap<Integer, byte[]> expected, int[] keys, int batch)
+            throws IOException {
+        byte[][] values = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = (keys[i] + (batch == 0 ? "" : "_" + batch) + "_" + i).getBytes();
+            expected.put(keys[i], values[i]);
+        }
+        bTree.putAll(keys, values);
+    }
+
+    private static void checkValue(BTree bTree, int key, String value) throws IOException {
+        byte[] actual = bTree.get(key);
+        if (actual == null || !value.equals(new String(actual))) {
+            throw new IllegalStateException("Key " + key + " has value " + (actual == null ? null : new String(actual))
+                    + " instead of " + value);
+        }
+    }
+
+    private static void check(BTree bTree, TreeMap<Integer, byte[]> expected) throws IOException {
+        for (Map.Entry<Integer, byte[]> entry : expected.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), bTree.get(entry.getKey()))) {
+                throw new IllegalStateException("Wrong value of key " + entry.getKey());
+            }
+        }
+        Iterator<Tuple<Integer, byte[]>> actual = bTree.getInRange(Integer.MIN_VALUE, Integer.MAX_VALUE).iterator();
+        for (Map.Entry<Integer, byte[]> entry : expected.entrySet()) {
+            if (!actual.hasNext()) {
+                throw new IllegalStateException("Range ended before key " + entry.getKey());
+            }
+            Tuple<Integer, byte[]> keyValue = actual.next();
+            if (!entry.getKey().equals(keyValue.x) || !Arrays.equals(entry.getValue(), keyValue.y)) {
+                throw new IllegalStateException("Expected key " + entry.getKey() + " but got " + keyValue.x);
+            }
+        }
+        if (actual.hasNext()) {
+            throw new IllegalStateException("Range has more keys than expected: " + actual.next().x);
+        }
+    }
+}
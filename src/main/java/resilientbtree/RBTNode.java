@@ -7,15 +7,28 @@ import java.nio.ByteBuffer;
  */
 
 public class RBTNode {
-    int key;
-    int value;
+    long key;
+    long value;
+    // The value itself if it is stored in the leaf, see BTree.INLINE_VALUE. Null otherwise
+    byte[] inline;
+    // Number of keys below the child that value points to if this is an entry of an inner BTree node of a tree
+    // that counts its keys. See BTreeConfig.countKeys
+    long count;
+    // The whole key if this is an entry of a tree with byte array keys, with key as its prefix. Null otherwise.
+    // See ByteKeys. Never changed once the entry is made, so copies share it
+    byte[] bytes;
     int size; //Length of subtree below this node
     RedBlackTree.Color color;
     resilientbtree.RBTNode left;
     resilientbtree.RBTNode right;
+    // Size of a node written with 32 bit values (BTreeNode.FORMAT_V1)
     public static final int SERIALIZED_SIZE = 13;
+    // Size of a node written with 64 bit values (BTreeNode.FORMAT_V2)
+    public static final int SERIALIZED_SIZE_V2 = 17;
+    // Size of a node written with 64 bit keys and values (BTreeNode.FORMAT_LONG)
+    public static final int SERIALIZED_SIZE_LONG = 21;
 
-    RBTNode(int key, int value, RedBlackTree.Color color) {
+    RBTNode(long key, long value, RedBlackTree.Color color) {
         this.key = key;
         this.value = value;
         this.color = color;
@@ -24,65 +37,132 @@ public class RBTNode {
         this.right = null;
     }
 
+    /**
+     * @return a deep copy of the subtree rooted at this node
+     */
+    RBTNode copy() {
+        RBTNode copy = new RBTNode(key, value, color);
+        copy.inline = inline;
+        copy.count = count;
+        copy.bytes = bytes;
+        copy.size = size;
+        copy.left = left == null ? null : left.copy();
+        copy.right = right == null ? null : right.copy();
+        return copy;
+    }
+
+    /**
+     * @return a node with the key and value of this one that belongs to no tree
+     */
+    RBTNode copyEntry() {
+        RBTNode copy = new RBTNode(key, value, RedBlackTree.Color.BLACK);
+        copy.inline = inline;
+        copy.count = count;
+        copy.bytes = bytes;
+        return copy;
+    }
+
+    public static int serializedSize(int format) {
+        if (format == BTreeNode.FORMAT_V1) {
+            return SERIALIZED_SIZE;
+        }
+        return BTreeNode.keySize(format) == 8 ? SERIALIZED_SIZE_LONG : SERIALIZED_SIZE_V2;
+    }
+
+    public byte[] serialize() {
+        return serialize(BTreeNode.FORMAT_V2);
+    }
+
     /**
      *
      * Converts a tree rooted at this this node to its byte form using pre-order traversal
      * The size of the byte array for one node is 4(key) + 4(value) + 4(size) + 1(color) = 13 bytes
-     * This function is not recursive.
+     * for FORMAT_V1, 4(key) + 8(value) + 4(size) + 1(color) = 17 bytes for FORMAT_V2 and 8(key) + 8(value) +
+     * 4(size) + 1(color) = 21 bytes for FORMAT_LONG
      **/
-    public byte[] serialize() {
-        ByteBuffer buffer = ByteBuffer.allocate(size * SERIALIZED_SIZE);
+    public byte[] serialize(int format) {
+        ByteBuffer buffer = ByteBuffer.allocate(size * serializedSize(format));
+        serializeInto(buffer, format);
+        return buffer.array();
+    }
+
+    /**
+     * Writes the tree rooted at this node like serialize at the position of buffer and moves the position past
+     * it. Nothing is allocated, the recursion is only as deep as the tree.
+     */
+    void serializeInto(ByteBuffer buffer, int format) {
         byte colorEncoded = color == RedBlackTree.Color.BLACK ? (byte)0x00 : (byte)0x01;
         // Encode the current node
-        buffer.putInt(key).putInt(value).putInt(size).put(colorEncoded);
+        if (BTreeNode.keySize(format) == 8) {
+            buffer.putLong(key);
+        } else {
+            buffer.putInt((int) key);
+        }
+        if (format == BTreeNode.FORMAT_V1) {
+            buffer.putInt((int) value);
+        } else {
+            buffer.putLong(value);
+        }
+        buffer.putInt(size).put(colorEncoded);
         if (this.left != null)
-            buffer.put(this.left.serialize());
+            this.left.serializeInto(buffer, format);
         if (this.right != null)
-            buffer.put(this.right.serialize());
-        return buffer.array();
+            this.right.serializeInto(buffer, format);
     }
 
     public static RBTNode deserialize(byte[] stream) throws RBTDeserializationException {
+        return deserialize(stream, BTreeNode.FORMAT_V2);
+    }
+
+    public static RBTNode deserialize(byte[] stream, int format) throws RBTDeserializationException {
+        int serializedSize = serializedSize(format);
         if (stream.length == 0) {
             return null;
-        } else if (stream.length % SERIALIZED_SIZE != 0){
+        } else if (stream.length % serializedSize != 0){
             throw new RBTDeserializationException(
-                    "Byte stream must be a perfect multiple of " + SERIALIZED_SIZE
+                    "Byte stream must be a perfect multiple of " + serializedSize
             );
         }
         //Read the root
         ByteBuffer buffer = ByteBuffer.wrap(stream);
-        return deserialize(buffer, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        return deserialize(buffer, Long.MIN_VALUE, Long.MAX_VALUE, format);
     }
 
     public static RBTNode deserialize(ByteBuffer stream) throws RBTDeserializationException {
+        return deserialize(stream, BTreeNode.FORMAT_V2);
+    }
+
+    public static RBTNode deserialize(ByteBuffer stream, int format) throws RBTDeserializationException {
+        int serializedSize = serializedSize(format);
         if (stream.capacity() == 0) {
             return null;
-        } else if ((stream.limit() - stream.position()) % SERIALIZED_SIZE != 0) {
+        } else if ((stream.limit() - stream.position()) % serializedSize != 0) {
             throw new RBTDeserializationException(
-                    "Byte stream must be a perfect multiple of " + SERIALIZED_SIZE
+                    "Byte stream must be a perfect multiple of " + serializedSize
             );
         }
         //Read the root
-        return deserialize(stream, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        return deserialize(stream, Long.MIN_VALUE, Long.MAX_VALUE, format);
     }
 
-    private static RBTNode deserialize(ByteBuffer buffer, int minVal, int maxVal) {
+    // Keys of the subtree are in [minVal, maxVal]. The bounds are inclusive so that every long key fits.
+    private static RBTNode deserialize(ByteBuffer buffer, long minVal, long maxVal, int format) {
         if (buffer.hasRemaining()) {
-            int key = buffer.getInt();
-            int value = buffer.getInt();
+            long key = BTreeNode.keySize(format) == 8 ? buffer.getLong() : buffer.getInt();
+            long value = format == BTreeNode.FORMAT_V1 ? buffer.getInt() : buffer.getLong();
             int size = buffer.getInt();
             byte colorEncoded = buffer.get();
             RedBlackTree.Color color =
                     colorEncoded == (byte)0x00 ? RedBlackTree.Color.BLACK : RedBlackTree.Color.RED;
-            if (key >= minVal && key < maxVal) {
+            if (key >= minVal && key <= maxVal) {
                 resilientbtree.RBTNode newRBTNode = new resilientbtree.RBTNode(key, value, color);
                 newRBTNode.size = size;
-                newRBTNode.left = deserialize(buffer, minVal, key);
-                newRBTNode.right = deserialize(buffer, key, maxVal);
+                // A subtree below the smallest or above the largest key is empty
+                newRBTNode.left = key == Long.MIN_VALUE ? null : deserialize(buffer, minVal, key - 1, format);
+                newRBTNode.right = key == Long.MAX_VALUE ? null : deserialize(buffer, key + 1, maxVal, format);
                 return newRBTNode;
             } else {
-                buffer.position(buffer.position() - SERIALIZED_SIZE);
+                buffer.position(buffer.position() - serializedSize(format));
                 return null;
             }
         } else {
@@ -36,5 +36,30 @@ public class RBTTest {
         printTree(treeReconstructed);
         System.out.println("===========================");
         System.out.println("TreeSize:" + treeReconstructed.size());
+        System.out.println("Deleting every other key...");
+        for (int i = 0; i < input.length; i += 2) {
+            if (!tree.delete(input[i])) {
+                throw new IllegalStateException("Key " + input[i] + " was not deleted");
+            }
+        }
+        if (tree.delete(input[0])) {
+            throw new IllegalStateException("Key " + input[0] + " was deleted twice");
+        }
+        int[] remaining = new int[input.length / 2];
+        for (int i = 1; i < input.length; i += 2) {
+            remaining[i / 2] = input[i];
+        }
+        Arrays.sort(remaining);
+        if (tree.size() != remaining.length) {
+            throw new IllegalStateException("TreeSize " + tree.size() + " instead of " + remaining.length);
+        }
+        Iterator<RBTNode> itr = tree.iterator();
+        for (int key : remaining) {
+            RBTNode node = itr.next();
+            if (node.key != key) {
+                throw new IllegalStateException("Key " + node.key + " instead of " + key + " after the deletes");
+            }
+        }
+        System.out.println("TreeSize after deleting every other key:" + tree.size());
     }
 }
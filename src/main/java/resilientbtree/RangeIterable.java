@@ -1,7 +1,7 @@
 package resilientbtree;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.io.UncheckedIOException;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -11,61 +11,144 @@ import java.util.NoSuchElementException;
 public class RangeIterable implements Iterable<Tuple<Integer, byte[]>> {
 
     /**
-     * The node passed along to this is the key which contains the key just higher or equal to the keyLower
-     * @param node
+     * The iterators find the leaf containing keyLow themselves when they are created.
      * @param keyLow
      * @param keyHigh
-     * @param handler - The IO Handler user to read the next node
+     * @param tree - The tree used to read the leaves and the values
      */
 
-    private BTreeNode startNode;
-    private int rangeLow;
-    private int rangeHigh;
-    private IOHandler handler;
-    private IOHandler valueHandler;
+    private long rangeLow;
+    private long rangeHigh;
+    private BTree tree;
 
-    public RangeIterable(BTreeNode node, int keyLow, int keyHigh, IOHandler handler, IOHandler valueHandler) {
-        this.startNode = node;
+    public RangeIterable(BTree tree, int keyLow, int keyHigh) {
+        tree.checkNotByteKeys();
         this.rangeLow = keyLow;
         this.rangeHigh = keyHigh;
-        this.handler = handler;
-        this.valueHandler = valueHandler;
+        this.tree = tree;
     }
 
     @Override
     public Iterator<Tuple<Integer, byte[]>> iterator() {
-        return new RangeIterator(startNode, rangeLow, rangeHigh, handler, valueHandler);
+        return iterator(tree, rangeLow, rangeHigh, BTree.INT_KEY);
+    }
+
+    /**
+     * @param boxKey - makes the key of a returned entry from the key in the tree, see BTree.INT_KEY
+     * @return an iterator over the range [keyLow, keyHigh] of the latest version of tree
+     */
+    static <K> Iterator<Tuple<K, byte[]>> iterator(BTree tree, long keyLow, long keyHigh, BTree.KeyBox<K> boxKey) {
+        return iterator(tree, keyLow, null, keyHigh, null, boxKey);
+    }
+
+    /**
+     * Same as iterator for a tree with byte array keys, whose prefixes keyLow and keyHigh are. See ByteKeys
+     * @param lowBytes - the byte array key keyLow is the prefix of, null if the tree has numeric keys
+     * @param highBytes - the byte array key keyHigh is the prefix of, null if the tree has numeric keys
+     */
+    static <K> Iterator<Tuple<K, byte[]>> iterator(BTree tree, long keyLow, byte[] lowBytes, long keyHigh,
+                                                   byte[] highBytes, BTree.KeyBox<K> boxKey) {
+        if (tree.metrics != null) {
+            tree.metrics.scans.increment();
+        }
+        if (tree.copyOnWrite) {
+            return new SnapshotRangeIterator<>(tree, null, keyLow, lowBytes, keyHigh, highBytes, boxKey);
+        }
+        if (BTreeNode.isSorted(tree.format)) {
+            return new SortedRangeIterator<>(tree, keyLow, keyHigh, boxKey);
+        }
+        return new RangeIterator<>(tree, keyLow, lowBytes, keyHigh, highBytes, boxKey);
     }
 }
 
-class RangeIterator implements  Iterator<Tuple<Integer, byte[]>> {
-
-    private BTreeNode current;
-    private int rangeLow;
-    private int rangeHigh;
-    private Tuple<Integer, byte[]> currKV;
-    private Iterator<RBTNode> itr = null;
-    private IOHandler handler;
-    private IOHandler valueHandler;
-
-    RangeIterator(BTreeNode current, int rangeLow, int rangeHigh, IOHandler handler, IOHandler valueHandler) {
-        this.current = current;
-        this.handler = handler;
-        this.valueHandler = valueHandler;
-        this.rangeLow = rangeLow;
+/**
+ * Walks the leaf chain of a tree with decoded nodes. Like SortedRangeIterator every step is an optimistic read,
+ * so that the iterator never follows the next leaf pointer of a leaf that has been written to since it was
+ * read. Deletes free the pages of merged leaves and the page may hold another node by now.
+ */
+class RangeIterator<K> implements  Iterator<Tuple<K, byte[]>> {
+
+    private final BTree tree;
+    private final BTree.KeyBox<K> boxKey;
+    private final long rangeHigh;
+    // Byte array keys of rangeHigh and from in a tree with byte array keys, null otherwise
+    private final byte[] rangeHighBytes;
+    private byte[] fromBytes;
+    // Smallest key that has not been returned yet
+    private long from;
+    // The current leaf and the stamp of its latch taken before it was read
+    private final BTree.ReadPosition leaf = new BTree.ReadPosition();
+    private boolean positioned;
+    // Entries of the current leaf that have not been looked at yet
+    private Iterator<RBTNode> itr;
+    // The entry returned by the next call to next
+    private boolean hasCurrent;
+    private long currentKey;
+    private byte[] currentBytes;
+    private byte[] currentValue;
+    // Null if the tree does not read ahead of scans
+    private final ReadAhead.Window readAhead;
+
+    RangeIterator(BTree tree, long rangeLow, byte[] rangeLowBytes, long rangeHigh, byte[] rangeHighBytes,
+                  BTree.KeyBox<K> boxKey) {
+        this.tree = tree;
+        this.boxKey = boxKey;
+        this.readAhead = tree.readAheadWindow();
         this.rangeHigh = rangeHigh;
-        if (this.current != null) {
-            itr = this.current.rbTree.iterator();
-            RBTNode node = null;
-            while (itr.hasNext() && (node == null || node.key < rangeLow)) {
-                node = itr.next();
-            }
-            if (node != null) {
-                int len = ByteBuffer.wrap(valueHandler.read(4, node.value)).getInt();
-                currKV = new Tuple<>(node.key, valueHandler.read(len, node.value+4));
-            }
+        this.rangeHighBytes = rangeHighBytes;
+        this.from = rangeLow;
+        this.fromBytes = rangeLowBytes;
+        advance();
+    }
+
+    private void advance() {
+        try {
+            hasCurrent = tree.optimisticRead(retry -> {
+                if (retry || !positioned || !leaf.latch.validate(leaf.stamp)) {
+                    positioned = false;
+                    tree.findLeaf(from, fromBytes, leaf);
+                    itr = leaf.node.rbTree.iterator();
+                    positioned = true;
+                    readAhead();
+                }
+                while (true) {
+                    while (itr.hasNext()) {
+                        RBTNode next = itr.next();
+                        if (RedBlackTree.compare(from, fromBytes, next) <= 0) {
+                            leaf.validate();
+                            if (RedBlackTree.compare(rangeHigh, rangeHighBytes, next) < 0) {
+                                return false;
+                            }
+                            currentKey = next.key;
+                            currentBytes = next.bytes;
+                            // Read now that the pointer is known to be current. See BTree.compactValues
+                            currentValue = tree.readValue(next);
+                            return true;
+                        }
+                    }
+                    if (leaf.node.nextLeafPos <= 0) {
+                        leaf.validate();
+                        return false;
+                    }
+                    positioned = false;
+                    tree.descend(leaf, leaf.node.nextLeafPos);
+                    itr = leaf.node.rbTree.iterator();
+                    positioned = true;
+                    readAhead();
+                }
+            });
+        } catch (IOException e) {
+            // Cutting the scan short would look like the end of the range
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void readAhead() {
+        if (readAhead != null) {
+            readAhead.moveTo(leaf.position);
         }
     }
+
     @Override
     public void remove() {
         // This is unsupported. The iterator is immutable
@@ -73,43 +156,137 @@ class RangeIterator implements  Iterator<Tuple<Integer, byte[]>> {
 
     @Override
     public boolean hasNext() {
-        return currKV != null;
+        return hasCurrent;
     }
 
     @Override
-    public Tuple<Integer, byte[]> next() {
-        if (currKV == null) {
+    public Tuple<K, byte[]> next() {
+        if (!hasCurrent) {
             throw new NoSuchElementException("Range Iterator is empty");
         }
-        Tuple<Integer, byte[]> toRet = currKV;
-        RBTNode next = null;
-        if (itr.hasNext()) {
-            next = itr.next();
-        } else { // Move to the next btreenode
-            try {
-                if (current.nextLeafPos > 0) {
-                    current = BTreeNode.deSerialize(handler.readBatch(current.nextLeafPos), handler.batchSize);
-                    itr = current.rbTree.iterator();
-                    if (itr.hasNext()) {
-                        next = itr.next();
+        Tuple<K, byte[]> toRet = new Tuple<>(boxKey.box(currentKey, currentBytes), currentValue);
+        if (currentBytes != null) {
+            // Has the same prefix as the current key
+            from = currentKey;
+            fromBytes = ByteKeys.successor(currentBytes);
+            advance();
+        } else if (currentKey == Long.MAX_VALUE) {
+            hasCurrent = false;
+        } else {
+            from = currentKey + 1;
+            advance();
+        }
+        return toRet;
+    }
+}
+
+/**
+ * Walks the leaf chain of a BTreeNode.FORMAT_SORTED tree by reading keys and pointers directly from the
+ * mapped index file. Every step is an optimistic read of the tree. If the leaf has been written to since the
+ * position in it was found, the position is found again from the root using the last key returned.
+ */
+class SortedRangeIterator<K> implements Iterator<Tuple<K, byte[]>> {
+
+    private final IOHandler handler;
+    private final BTree tree;
+    private final BTree.KeyBox<K> boxKey;
+    private final long rangeHigh;
+    // Smallest key that has not been returned yet
+    private long from;
+    // The current leaf and the stamp of its latch taken before it was read
+    private final BTree.ReadPosition leaf = new BTree.ReadPosition();
+    private boolean positioned;
+    private int leafSize;
+    private int index;
+    // The entry returned by the next call to next
+    private boolean hasCurrent;
+    private long currentKey;
+    private byte[] currentValue;
+    // Null if the tree does not read ahead of scans
+    private final ReadAhead.Window readAhead;
+
+    SortedRangeIterator(BTree tree, long rangeLow, long rangeHigh, BTree.KeyBox<K> boxKey) {
+        this.tree = tree;
+        this.boxKey = boxKey;
+        this.readAhead = tree.readAheadWindow();
+        this.handler = tree.handler;
+        this.rangeHigh = rangeHigh;
+        this.from = rangeLow;
+        advance();
+    }
+
+    private void advance() {
+        try {
+            hasCurrent = tree.optimisticRead(retry -> {
+                if (retry || !positioned || !leaf.latch.validate(leaf.stamp)) {
+                    positioned = false;
+                    tree.findLeaf(from, leaf);
+                    leafSize = tree.sortedView.size(leaf.position);
+                    index = tree.sortedView.ceilIndex(leaf.position, leafSize, from);
+                    positioned = true;
+                    readAhead();
+                }
+                // Move to the next leaf with keys left when the current one has been consumed
+                while (index >= leafSize) {
+                    long next = tree.sortedView.nextLeaf(leaf.position);
+                    if (next <= 0) {
+                        leaf.validate();
+                        return false;
                     }
-                } else {
-                    // Nothing more left
-                    next = null;
-                    current = null;
+                    positioned = false;
+                    tree.descend(leaf, next);
+                    index = 0;
+                    leafSize = tree.sortedView.size(leaf.position);
+                    positioned = true;
+                    readAhead();
                 }
-            } catch (IOException e) {
-                current = null;
-                next = null; // Terminate iterator
-            }
+                currentKey = tree.sortedView.key(leaf.position, index);
+                long valueInd = tree.sortedView.value(leaf.position, leafSize, index);
+                byte[] inline = currentKey > rangeHigh
+                        ? null : tree.readInlineValue(leaf.position, leafSize, index, valueInd);
+                leaf.validate();
+                if (currentKey > rangeHigh) {
+                    return false;
+                }
+                // Read now that the pointer is known to be current. See BTree.compactValues
+                currentValue = inline != null ? inline : tree.readValue(valueInd);
+                return true;
+            });
+        } catch (IOException e) {
+            // Cutting the scan short would look like the end of the range
+            throw new UncheckedIOException(e);
         }
-        if (next != null && next.key <= rangeHigh) {
-            int len = ByteBuffer.wrap(valueHandler.read(4, next.value)).getInt();
-            currKV = new Tuple<>(next.key, valueHandler.read(len, next.value+4));
+    }
+
+    private void readAhead() {
+        if (readAhead != null) {
+            readAhead.moveTo(leaf.position);
+        }
+    }
+
+    @Override
+    public void remove() {
+        // This is unsupported. The iterator is immutable
+    }
+
+    @Override
+    public boolean hasNext() {
+        return hasCurrent;
+    }
+
+    @Override
+    public Tuple<K, byte[]> next() {
+        if (!hasCurrent) {
+            throw new NoSuchElementException("Range Iterator is empty");
+        }
+        Tuple<K, byte[]> toRet = new Tuple<>(boxKey.box(currentKey, null), currentValue);
+        if (currentKey == Long.MAX_VALUE) {
+            hasCurrent = false;
         } else {
-            currKV = null;
+            from = currentKey + 1;
+            index++;
+            advance();
         }
         return toRet;
     }
-
 }
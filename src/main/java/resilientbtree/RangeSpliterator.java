@@ -0,0 +1,111 @@
+package resilientbtree;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A spliterator over the keys and values of a key range, see BTree.spliterator. Until it has returned its first
+ * entry it splits its range at a separator key of the inner node that divides the range between its children,
+ * see BTree.splitKey, so the parts of a parallel stream scan different subtrees and read their values from
+ * different threads. Once it has started it scans its range with the range iterators and no longer splits.
+ *
+ * The latest version of a tree is read like getInRange reads it, so entries written while the parts are scanned
+ * may or may not be seen. The size is the number of keys in the range if the tree counts its keys, which is exact
+ * for a snapshot. Otherwise the number of longs in the range is all that is known.
+ */
+class RangeSpliterator<K extends Comparable<K>> implements Spliterator<Tuple<K, byte[]>> {
+
+    private final Comparator<Tuple<K, byte[]>> keyOrder = Comparator.comparing(entry -> entry.x);
+
+    private final BTree tree;
+    // Snapshot the spliterator reads, null for the latest version of the tree
+    private final Snapshot snapshot;
+    private long rangeLow;
+    private final long rangeHigh;
+    // Makes the keys of the entries, see BTree.INT_KEY
+    private final BTree.KeyBox<K> boxKey;
+    // Created by the first call to tryAdvance
+    private Iterator<Tuple<K, byte[]>> entries;
+    // Number of keys in the range, -1 until it has been counted
+    private long size = -1;
+
+    RangeSpliterator(BTree tree, Snapshot snapshot, long rangeLow, long rangeHigh, BTree.KeyBox<K> boxKey) {
+        this.tree = tree;
+        this.snapshot = snapshot;
+        this.rangeLow = rangeLow;
+        this.rangeHigh = rangeHigh;
+        this.boxKey = boxKey;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Tuple<K, byte[]>> action) {
+        if (entries == null) {
+            entries = snapshot != null ? new SnapshotRangeIterator<>(tree, snapshot, rangeLow, rangeHigh, boxKey)
+                    : RangeIterable.iterator(tree, rangeLow, rangeHigh, boxKey);
+        }
+        if (!entries.hasNext()) {
+            return false;
+        }
+        action.accept(entries.next());
+        return true;
+    }
+
+    @Override
+    public Spliterator<Tuple<K, byte[]>> trySplit() {
+        if (entries != null || rangeLow >= rangeHigh) {
+            return null;
+        }
+        try {
+            long key = snapshot != null ? tree.splitKey(snapshot.root, rangeLow, rangeHigh)
+                    : tree.splitKey(rangeLow, rangeHigh);
+            if (key == Long.MIN_VALUE) {
+                return null;
+            }
+            RangeSpliterator<K> prefix = new RangeSpliterator<>(tree, snapshot, rangeLow, key - 1, boxKey);
+            rangeLow = key;
+            size = -1;
+            return prefix;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public long estimateSize() {
+        if (!tree.counted) {
+            if (rangeLow > rangeHigh) {
+                return 0;
+            }
+            long width = rangeHigh - rangeLow + 1;
+            // Wider ranges than Long.MAX_VALUE overflow and count as unknown
+            return width > 0 ? width : Long.MAX_VALUE;
+        }
+        if (size < 0) {
+            try {
+                size = snapshot != null ? snapshot.count(rangeLow, rangeHigh) : tree.count(rangeLow, rangeHigh);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public int characteristics() {
+        int characteristics = ORDERED | SORTED | DISTINCT | NONNULL;
+        if (snapshot == null) {
+            return characteristics | CONCURRENT;
+        }
+        // Only the size of a snapshot cannot change while it is scanned
+        return characteristics | IMMUTABLE | (tree.counted ? SIZED | SUBSIZED : 0);
+    }
+
+    @Override
+    public Comparator<? super Tuple<K, byte[]>> getComparator() {
+        return keyOrder;
+    }
+}
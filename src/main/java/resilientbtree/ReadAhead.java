@@ -0,0 +1,162 @@
+package resilientbtree;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads the leaves ahead of range scans and the values they point to on a background thread, so that their pages
+ * are in memory by the time the scan gets to them. See BTreeConfig.readAheadLeaves
+ *
+ * Every scan has a Window that it tells about each leaf it moves to. The thread then walks depth leaves ahead of
+ * it, along the leaf chain of a tree written in place or by descending from a pinned root copy on write, and
+ * touches the pages of the leaves it has not read ahead yet and of their values. Reading ahead is only a hint:
+ * leaves that change under it are read anyway and nothing it reads is used by the scan, apart from decoded nodes
+ * that go into the node cache the same way optimistic readers put them there. A scan never waits for the thread,
+ * requests that find the queue full are dropped.
+ */
+final class ReadAhead {
+
+    private static final int QUEUE_SIZE = 64;
+
+    private final BTree tree;
+    final int depth;
+    private final ArrayBlockingQueue<Window> requests = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread reader;
+
+    ReadAhead(BTree tree, int depth) {
+        this.tree = tree;
+        this.depth = depth;
+        reader = new Thread(() -> {
+            try {
+                while (true) {
+                    Window window = requests.take();
+                    window.queued.set(false);
+                    try {
+                        if (tree.copyOnWrite) {
+                            readAheadPinned(window);
+                        } else {
+                            readAhead(window);
+                        }
+                    } catch (Exception e) {
+                        // A leaf changed while it was read. The scan reads it itself
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Closed
+            }
+        }, "btree-read-ahead");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * The read ahead of one scan. Made once per scan so that telling it about a leaf allocates nothing.
+     */
+    final class Window {
+        // Leaf the scan is at in place, or the key it is at copy on write
+        private volatile long position;
+        private final AtomicBoolean queued = new AtomicBoolean();
+        // Leaves found by the last walk and how far it got. Only used by the reader thread
+        private final long[] leaves = new long[depth];
+        private long frontier = Long.MIN_VALUE;
+
+        /**
+         * Tells the reader that the scan is at the leaf at position of a tree written in place, or at the leaf
+         * holding the key position copy on write.
+         */
+        void moveTo(long position) {
+            this.position = position;
+            if (queued.compareAndSet(false, true) && !requests.offer(this)) {
+                queued.set(false);
+            }
+        }
+    }
+
+    Window window() {
+        return new Window();
+    }
+
+    /**
+     * Walks the leaf chain from the leaf the scan is at and reads the leaves past the end of the last walk.
+     */
+    private void readAhead(Window window) throws Exception {
+        long position = window.position;
+        int found = 0;
+        while (found < depth) {
+            position = tree.readAheadNextLeaf(position);
+            if (position <= 0) {
+                break;
+            }
+            window.leaves[found++] = position;
+        }
+        readLeaves(window, found, false);
+    }
+
+    /**
+     * Finds the leaves after the one holding the key the scan is at from a pinned root. The smallest separator
+     * greater than a key on the way down is where the next leaf starts, like in SnapshotRangeIterator.
+     */
+    private void readAheadPinned(Window window) throws Exception {
+        try (Snapshot pinned = tree.pin()) {
+            long from = window.position;
+            int found = 0;
+            // The first descent finds the leaf the scan is at, which is not read ahead
+            boolean last = false;
+            for (int i = 0; i <= depth && !last; i++) {
+                long key = from;
+                long upper = Long.MAX_VALUE;
+                // There is no separator greater than key on the way to the last leaf
+                last = true;
+                long position = pinned.root;
+                BTreeNode node = tree.getBTreeNodeAtIndex(position);
+                while (!node.isLeaf) {
+                    RBTNode higher = node.rbTree.getHigherEntry(key);
+                    if (higher != null) {
+                        upper = Math.min(upper, higher.key);
+                        last = false;
+                    }
+                    position = node.getLower(key);
+                    node = tree.getBTreeNodeAtIndex(position);
+                }
+                if (i > 0) {
+                    window.leaves[found++] = position;
+                }
+                from = upper;
+            }
+            // The pin keeps the pages of the leaves from being reused while they are read
+            readLeaves(window, found, true);
+        }
+    }
+
+    /**
+     * Reads the first found leaves of window that come after the frontier of the last walk, or all of them if the
+     * scan has moved somewhere else since.
+     */
+    private void readLeaves(Window window, int found, boolean pinned) throws Exception {
+        int first = 0;
+        for (int i = 0; i < found; i++) {
+            if (window.leaves[i] == window.frontier) {
+                first = i + 1;
+                break;
+            }
+        }
+        for (int i = first; i < found; i++) {
+            tree.readAheadLeaf(window.leaves[i], pinned);
+        }
+        if (found > 0) {
+            window.frontier = window.leaves[found - 1];
+        }
+    }
+
+    /**
+     * Stops the reader thread. Must be called before the files are closed.
+     */
+    void close() {
+        reader.interrupt();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Puts keys in random order, which scatters the leaves over the index file, and scans the tree with and without
+ * reading ahead before and after relayout. Prints how many leaves are next to the leaf before them in the file and
+ * the time of every scan. Every scan has to see all keys, also the ones that run while the tree is laid out again
+ * and, copy on write, a snapshot taken before. A writer puts the keys again while the tree is laid out, and the
+ * number of its puts and the longest one are printed, since relayout only holds off writers for one batch. Laid out
+ * once more without the writer, every leaf has to follow the one before it.
+ */
+public class ReadAheadTest {
+
+    static final int KEYS = 200000;
+
+    public static void main(String args[]) throws IOException, InterruptedException {
+        for (BTreeConfig.NodeLayout layout : BTreeConfig.NodeLayout.values()) {
+            for (boolean copyOnWrite : new boolean[]{false, true}) {
+                System.out.println("Layout " + layout + (copyOnWrite ? ", copy on write" : ""));
+                String fileName = "readahead_" + layout + ".dat";
+                new File(fileName).delete();
+                new File(fileName + "_values").delete();
+                BTreeConfig config = new BTreeConfig().nodeSize(32).nodeLayout(layout).copyOnWrite(copyOnWrite)
+                        .cacheEntries(64).countKeys(copyOnWrite);
+                BTree bTree = BTree.makeBTree(fileName, config);
+                Random random = new Random(42);
+                long expected = 0;
+                long keys = 0;
+                int[] putKeys = new int[KEYS];
+                for (int i = 0; i < KEYS; i++) {
+                    int key = random.nextInt(1 << 28);
+                    putKeys[i] = key;
+                    if (bTree.get(key) == null) {
+                        expected += key;
+                        keys++;
+                    }
+                    bTree.put(key, ("value-" + key).getBytes());
+                }
+                System.out.println(String.format("Random puts: %.2f of the leaves follow the one before them",
+                        adjacency(bTree)));
+                bTree.close();
+                compareScans(fileName, config, expected);
+
+                bTree = BTree.makeBTree(fileName, config);
+                Snapshot snapshot = copyOnWrite ? bTree.snapshot() : null;
+                AtomicBoolean done = new AtomicBoolean();
+                List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+                BTree tree = bTree;
+                long sum = expected;
+                Thread scanner = new Thread(() -> {
+                    try {
+                        while (!done.get()) {
+                            check(sum, scan(tree), "scan during relayout");
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                });
+                // Puts the same values again, so that the sum of the keys does not change
+                long[] puts = new long[2];
+                Thread writer = new Thread(() -> {
+                    try {
+                        for (int i = 0; !done.get(); i = (i + 1) % KEYS) {
+                            long putStart = System.nanoTime();
+                            tree.put(putKeys[i], ("value-" + putKeys[i]).getBytes());
+                            puts[0]++;
+                            puts[1] = Math.max(puts[1], System.nanoTime() - putStart);
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                });
+                scanner.start();
+                writer.start();
+                long start = System.nanoTime();
+                bTree.relayout(0.9);
+                long millis = (System.nanoTime() - start) / 1000000;
+                done.set(true);
+                scanner.join();
+                writer.join();
+                if (!failures.isEmpty()) {
+                    throw new IllegalStateException("Scan during relayout failed", failures.get(0));
+                }
+                if (snapshot != null) {
+                    long snapshotSum = 0;
+                    for (Tuple<Integer, byte[]> keyValue : snapshot.getInRange(Integer.MIN_VALUE, Integer.MAX_VALUE)) {
+                        snapshotSum += keyValue.x;
+                    }
+                    check(expected, snapshotSum, "scan of a snapshot taken before relayout");
+                    snapshot.close();
+                    if (bTree.count(Integer.MIN_VALUE, Integer.MAX_VALUE) != keys) {
+                        throw new IllegalStateException("Wrong count after relayout");
+                    }
+                }
+                System.out.println(String.format("Relayout: %d ms, %.2f of the leaves follow the one before them, "
+                        + "%d puts alongside, the longest %.1f ms", millis, adjacency(bTree), puts[0], puts[1] / 1e6));
+                // Without writers alongside every leaf follows the one before it
+                bTree.relayout(0.9);
+                double adjacency = adjacency(bTree);
+                System.out.println(String.format("Relayout without writers: %.2f of the leaves follow the one "
+                        + "before them", adjacency));
+                if (adjacency != 1) {
+                    throw new IllegalStateException("Only " + adjacency + " of the leaves are in order after relayout");
+                }
+                bTree.close();
+                compareScans(fileName, config, expected);
+            }
+        }
+    }
+
+    /**
+     * Scans the tree opened with and without reading ahead and prints the time of every scan.
+     */
+    static void compareScans(String fileName, BTreeConfig config, long expected) throws IOException {
+        for (int readAheadLeaves : new int[]{0, 8}) {
+            BTree bTree = BTree.makeBTree(fileName, config.readAheadLeaves(readAheadLeaves));
+            long start = System.nanoTime();
+            check(expected, scan(bTree), "scan reading " + readAheadLeaves + " leaves ahead");
+            long[] cursorSum = new long[1];
+            try (ScanCursor cursor = bTree.cursor()) {
+                cursor.seek(Integer.MIN_VALUE, Integer.MAX_VALUE);
+                while (cursor.next()) {
+                    cursorSum[0] += cursor.key();
+                }
+            }
+            check(expected, cursorSum[0], "cursor reading " + readAheadLeaves + " leaves ahead");
+            System.out.println(String.format("Scans reading %d leaves ahead: %d ms", readAheadLeaves,
+                    (System.nanoTime() - start) / 1000000));
+            bTree.close();
+        }
+        config.readAheadLeaves(0);
+    }
+
+    static long scan(BTree bTree) throws IOException {
+        long sum = 0;
+        for (Tuple<Integer, byte[]> keyValue : bTree.getInRange(Integer.MIN_VALUE, Integer.MAX_VALUE)) {
+            sum += keyValue.x;
+        }
+        return sum;
+    }
+
+    /**
+     * @return the fraction of the leaves that are on the page right after the leaf before them in key order
+     */
+    static double adjacency(BTree bTree) throws IOException {
+        List<Long> leaves = new ArrayList<>();
+        collectLeaves(bTree, bTree.rootPosition, leaves);
+        int adjacent = 0;
+        for (int i = 1; i < leaves.size(); i++) {
+            if (leaves.get(i) == leaves.get(i - 1) + bTree.batchsize) {
+                adjacent++;
+            }
+        }
+        return leaves.size() < 2 ? 1 : (double) adjacent / (leaves.size() - 1);
+    }
+
+    static void collectLeaves(BTree bTree, long position, List<Long> leaves) throws IOException {
+        BTreeNode node = bTree.getBTreeNodeAtIndex(position);
+        if (node.isLeaf) {
+            leaves.add(position);
+            return;
+        }
+        if (node.phi > 0) {
+            collectLeaves(bTree, node.phi, leaves);
+        }
+        for (RBTNode entry : node.rbTree) {
+            collectLeaves(bTree, entry.value, leaves);
+        }
+    }
+
+    static void check(long expected, long actual, String what) {
+        if (expected != actual) {
+            throw new IllegalStateException("Wrong sum of the keys of the " + what + ": " + actual + " instead of "
+                    + expected);
+        }
+    }
+}
@@ -22,13 +22,34 @@ public class RedBlackTree implements Serializable, Iterable<RBTNode> {
         RED, BLACK
     }
 
+    /**
+     * Orders keys by their 64 bit key and keys with the same 64 bit key by their byte array key, see ByteKeys. A
+     * null byte array key comes before all byte array keys with the same 64 bit key, so trees with numeric keys,
+     * which have no byte array keys, only compare longs.
+     */
+    static int compare(long key, byte[] bytes, long otherKey, byte[] otherBytes) {
+        int cmp = Long.compare(key, otherKey);
+        if (cmp != 0 || bytes == otherBytes) {
+            return cmp;
+        }
+        if (bytes == null || otherBytes == null) {
+            return bytes == null ? -1 : 1;
+        }
+        return ByteKeys.compare(bytes, otherBytes);
+    }
+
+    static int compare(long key, byte[] bytes, RBTNode node) {
+        return compare(key, bytes, node.key, node.bytes);
+    }
+
     //Tries to find a key in the subtree rooted at node
-    private RBTNode _get(RBTNode root, int key) {
+    private RBTNode _get(RBTNode root, long key, byte[] bytes) {
         if(root == null) {
             return null;
         } else {
-            while (root != null && root.key != key) {
-                if (root.key > key) {
+            int cmp;
+            while (root != null && (cmp = compare(key, bytes, root)) != 0) {
+                if (cmp < 0) {
                     root = root.left;
                 } else {
                     root = root.right;
@@ -59,39 +80,49 @@ public class RedBlackTree implements Serializable, Iterable<RBTNode> {
     }
 
     //Tries to find a key in the subtree rooted at node
-    private RBTNode _getLower(RBTNode root, int key) {
+    private RBTNode _getLower(RBTNode root, long key, byte[] bytes) {
         if(root == null) {
             return null;
         } else {
-            if (root.key == key) {
+            int cmp = compare(key, bytes, root);
+            if (cmp == 0) {
                 return root;
-            } else if (root.key > key){ // If key is lesser then it is in the left subtree
-                return _getLower(root.left, key);
+            } else if (cmp < 0){ // If key is lesser then it is in the left subtree
+                return _getLower(root.left, key, bytes);
             } else { // if key is greater then it is either in the right subtree or the current node is the lowest
-                RBTNode lower = _getLower(root.right, key);
+                RBTNode lower = _getLower(root.right, key, bytes);
                 return lower == null ? root : lower;
             }
         }
     }
 
-    private RBTNode _put(RBTNode root, int key, int value) {
+    private RBTNode _put(RBTNode root, long key, byte[] bytes, long value, byte[] inline, long count) {
         if(root == null) {
-           return new RBTNode(key, value, Color.RED);
+           RBTNode node = new RBTNode(key, value, Color.RED);
+           node.inline = inline;
+           node.count = count;
+           node.bytes = bytes;
+           return node;
         } else {
-            int cmp = key - root.key;
+            // Keys are compared rather than subtracted, since the difference of two keys can overflow
+            int cmp = compare(key, bytes, root);
             if (cmp < 0) {
-                root.left = _put(root.left, key, value);
+                root.left = _put(root.left, key, bytes, value, inline, count);
             } else if (cmp > 0) {
-                root.right = _put(root.right, key, value);
+                root.right = _put(root.right, key, bytes, value, inline, count);
             } else {
                 root.value = value;
+                root.inline = inline;
+                root.count = count;
             }
             //Fix imbalance
             if (isRed(root.right) && !isRed(root.left)) {
                 root = rotateLeft(root);
-            } else if (isRed(root.left) && isRed(root.left.left)) {
+            }
+            if (isRed(root.left) && isRed(root.left.left)) {
                 root = rotateRight(root);
-            } else if (isRed(root.left) && isRed(root.right)) {
+            }
+            if (isRed(root.left) && isRed(root.right)) {
                 flipColors(root);
             }
             root.size = size(root.right) + size(root.left) + 1;
@@ -99,29 +130,32 @@ public class RedBlackTree implements Serializable, Iterable<RBTNode> {
         }
     }
 
-    private RBTNode _delete(RBTNode root, int key) {
-        if(key < root.key) {
+    private RBTNode _delete(RBTNode root, long key, byte[] bytes) {
+        if(compare(key, bytes, root) < 0) {
             if (!isRed(root.left) && !isRed(root.left.left)) {
                 root = moveRedLeft(root);
             }
-            root = _delete(root.left, key);
+            root.left = _delete(root.left, key, bytes);
         } else {
             if(isRed(root.left)) {
                 root = rotateRight(root);
-                if (key == root.key && root.right == null) {
-                    return null;
-                }
-                if (!isRed(root.right) && !isRed(root.right.left)) {
-                    root = moveRedRight(root);
-                }
-                if (key == root.key) {
-                    RBTNode x = min(root.right);
-                    root.key = x.key;
-                    root.value = x.value;
-                    root.right = _deleteMin(root.right);
-                } else {
-                    root.right = _delete(root.right, key);
-                }
+            }
+            if (compare(key, bytes, root) == 0 && root.right == null) {
+                return null;
+            }
+            if (!isRed(root.right) && !isRed(root.right.left)) {
+                root = moveRedRight(root);
+            }
+            if (compare(key, bytes, root) == 0) {
+                RBTNode x = min(root.right);
+                root.key = x.key;
+                root.value = x.value;
+                root.inline = x.inline;
+                root.count = x.count;
+                root.bytes = x.bytes;
+                root.right = _deleteMin(root.right);
+            } else {
+                root.right = _delete(root.right, key, bytes);
             }
         }
         return balance(root);
@@ -208,7 +242,7 @@ public class RedBlackTree implements Serializable, Iterable<RBTNode> {
     private void flipColors(RBTNode t) {
         t.color = t.color == Color.RED ? Color.BLACK : Color.RED;
         t.right.color = t.right.color == Color.RED ? Color.BLACK : Color.RED;
-        t.left.color = t.right.color == Color.RED ? Color.BLACK : Color.RED;
+        t.left.color = t.left.color == Color.RED ? Color.BLACK : Color.RED;
     }
 
     private int size(RBTNode t) {
@@ -219,22 +253,148 @@ public class RedBlackTree implements Serializable, Iterable<RBTNode> {
         return t != null && t.color == Color.RED;
     }
 
-    public void put(int key, int value) {
+    public void put(long key, long value) {
+        put(key, value, null);
+    }
+
+    /**
+     * @param inline - the value of a BTree leaf entry that is stored in the leaf, null if value points to it
+     */
+    void put(long key, long value, byte[] inline) {
+        put(key, value, inline, 0);
+    }
+
+    /**
+     * @param count - the number of keys below the child of a BTree inner node that value points to
+     */
+    void put(long key, long value, long count) {
+        put(key, value, null, count);
+    }
+
+    void put(long key, long value, byte[] inline, long count) {
+        put(key, null, value, inline, count);
+    }
+
+    /**
+     * @param bytes - the byte array key of the entry if the BTree has byte array keys, with key as its prefix.
+     *              Null otherwise
+     */
+    void put(long key, byte[] bytes, long value, byte[] inline, long count) {
         // Error Checking?
-        root = _put(root, key, value);
+        root = _put(root, key, bytes, value, inline, count);
+        root.color = Color.BLACK;
+    }
+
+    /**
+     * Puts the key and value of entry, which stays out of this tree
+     */
+    void put(RBTNode entry) {
+        put(entry.key, entry.bytes, entry.value, entry.inline, entry.count);
+    }
+
+    /**
+     * @return the sum of the counts of all nodes with a key less than key
+     */
+    long countBelow(long key) {
+        return countBelow(root, key);
+    }
+
+    private long countBelow(RBTNode node, long key) {
+        if (node == null) {
+            return 0;
+        } else if (node.key < key) {
+            return countBelow(node.left, key) + node.count + countBelow(node.right, key);
+        } else {
+            return countBelow(node.left, key);
+        }
+    }
+
+    /**
+     * @return the sum of the counts of all nodes
+     */
+    long countAll() {
+        return countAll(root);
+    }
+
+    private long countAll(RBTNode node) {
+        return node == null ? 0 : countAll(node.left) + node.count + countAll(node.right);
+    }
+
+    /**
+     * @return the number of keys less than key
+     */
+    int rank(long key) {
+        int rank = 0;
+        RBTNode node = root;
+        while (node != null) {
+            if (node.key < key) {
+                rank += size(node.left) + 1;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * @return the node with the index-th smallest key, null if there are not that many
+     */
+    RBTNode select(int index) {
+        RBTNode node = root;
+        while (node != null) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index > leftSize) {
+                index -= leftSize + 1;
+                node = node.right;
+            } else {
+                return node;
+            }
+        }
+        return null;
     }
 
     // Returns the value associated with this key in this map else returns null
-    public Integer get(int key) {
-        RBTNode result = _get(root, key);
+    public Long get(long key) {
+        RBTNode result = _get(root, key, null);
         return result == null ? null : result.value;
     }
 
+    /**
+     * @return the node holding key or null if there is none
+     */
+    RBTNode getEntry(long key) {
+        return _get(root, key, null);
+    }
+
+    /**
+     * @return the node holding key with the byte array key bytes or null if there is none
+     */
+    RBTNode getEntry(long key, byte[] bytes) {
+        return _get(root, key, bytes);
+    }
+
+    /**
+     * @return the node with the smallest key, null if the tree is empty
+     */
+    RBTNode minEntry() {
+        return root == null ? null : getMin(root);
+    }
+
+    /**
+     * @return the node with the largest key, null if the tree is empty
+     */
+    RBTNode maxEntry() {
+        return root == null ? null : getMax(root);
+    }
+
     /**
      * Gets the minimum key and value in this RBTree
      * @return
      */
-    public Tuple<Integer, Integer> min() {
+    public Tuple<Long, Long> min() {
         if (root != null) {
             RBTNode min = getMin(root);
             if (min != null) {
@@ -250,7 +410,7 @@ public class RedBlackTree implements Serializable, Iterable<RBTNode> {
     /**
      * Gets the maximum key and value in this RBTree
      */
-    public Tuple<Integer, Integer> max() {
+    public Tuple<Long, Long> max() {
         if (root != null) {
             RBTNode max = getMax(root);
             if (max != null) {
@@ -267,19 +427,122 @@ public class RedBlackTree implements Serializable, Iterable<RBTNode> {
      * Gets a key less than or equal to the current key or null otherwise
      **/
 
-    public Integer getLower(int key) {
-        RBTNode result = _getLower(root, key);
+    public Long getLower(long key) {
+        RBTNode result = _getLower(root, key, null);
         return result == null ? null : result.value;
     }
 
-    public boolean delete(int key) {
-        RBTNode toDelete = _get(root, key);
+    /**
+     * Gets the largest key less than or equal to key or null otherwise
+     **/
+    public Long getLowerKey(long key) {
+        RBTNode result = _getLower(root, key, null);
+        return result == null ? null : result.key;
+    }
+
+    /**
+     * Gets the node with the largest key less than or equal to key or null otherwise
+     **/
+    RBTNode getLowerEntry(long key) {
+        return _getLower(root, key, null);
+    }
+
+    /**
+     * Same as getLowerEntry for the key with the byte array key bytes
+     **/
+    RBTNode getLowerEntry(long key, byte[] bytes) {
+        return _getLower(root, key, bytes);
+    }
+
+    /**
+     * Gets the node with the largest key less than key, with the byte array key bytes, or null otherwise
+     **/
+    RBTNode getBelowEntry(long key, byte[] bytes) {
+        RBTNode node = root;
+        RBTNode below = null;
+        while (node != null) {
+            if (compare(key, bytes, node) > 0) {
+                below = node;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return below;
+    }
+
+    /**
+     * Gets the smallest key greater than key or null otherwise
+     **/
+    public Long getHigherKey(long key) {
+        RBTNode higher = getHigherEntry(key);
+        return higher == null ? null : higher.key;
+    }
+
+    /**
+     * Gets the node with the smallest key greater than key or null otherwise
+     **/
+    RBTNode getHigherEntry(long key) {
+        return getHigherEntry(key, null);
+    }
+
+    /**
+     * Same as getHigherEntry for the key with the byte array key bytes
+     **/
+    RBTNode getHigherEntry(long key, byte[] bytes) {
+        RBTNode node = root;
+        RBTNode higher = null;
+        while (node != null) {
+            if (compare(key, bytes, node) < 0) {
+                higher = node;
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        return higher;
+    }
+
+    /**
+     * Gets the node with the smallest key greater than or equal to key or null otherwise. Allocates nothing,
+     * unlike iterating over the tree.
+     **/
+    RBTNode getCeilEntry(long key) {
+        return getCeilEntry(key, null);
+    }
+
+    /**
+     * Same as getCeilEntry for the key with the byte array key bytes
+     **/
+    RBTNode getCeilEntry(long key, byte[] bytes) {
+        RBTNode node = root;
+        RBTNode ceil = null;
+        while (node != null) {
+            if (compare(key, bytes, node) <= 0) {
+                ceil = node;
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        return ceil;
+    }
+
+    public boolean delete(long key) {
+        return delete(key, null);
+    }
+
+    /**
+     * Same as delete for the key with the byte array key bytes
+     */
+    boolean delete(long key, byte[] bytes) {
+        RBTNode toDelete = _get(root, key, bytes);
         if (toDelete != null) {
             // If both children are black turn root as red
             if(!isRed(root.left) && !isRed(root.right)) {
                 root.color = Color.RED;
             }
-            root = _delete(root, key);
+            root = _delete(root, key, bytes);
             if(root != null) {
                 root.color = Color.BLACK;
             }
@@ -294,13 +557,67 @@ public class RedBlackTree implements Serializable, Iterable<RBTNode> {
         return (root == null) ? 0 : root.size;
     }
 
+    /**
+     * @return a tree with the same shape and mappings that shares no nodes with this one
+     */
+    public RedBlackTree copy() {
+        RedBlackTree copy = new RedBlackTree();
+        copy.root = root == null ? null : root.copy();
+        return copy;
+    }
+
     public Iterator<RBTNode> iterator() {
         Queue<RBTNode> queue = new LinkedList<RBTNode>();
-        getInRange(root, queue, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        // Every node, also the ones of byte array keys that share their 64 bit key, which a range would cut off
+        inOrder().forEachRemaining(queue::add);
         return queue.iterator();
     }
 
-    public void getInRange(RBTNode root, Queue<RBTNode> queue, int rangeStart, int rangeEnd) {
+    /**
+     * @return the nodes in the order of their keys like iterator, but found one at a time while iterating instead
+     * of collected up front. The tree must not change while iterating.
+     */
+    Iterator<RBTNode> inOrder() {
+        return new InOrderIterator(root);
+    }
+
+    /**
+     * Walks down to the smallest key not seen yet, keeping the nodes it passed on a stack as deep as the tree
+     */
+    private static final class InOrderIterator implements Iterator<RBTNode> {
+        private final RBTNode[] stack;
+        private int depth;
+
+        InOrderIterator(RBTNode root) {
+            // A red black tree of n nodes is at most 2 log(n + 1) high
+            int size = root == null ? 0 : root.size;
+            stack = new RBTNode[2 * (32 - Integer.numberOfLeadingZeros(size + 1))];
+            pushLeft(root);
+        }
+
+        private void pushLeft(RBTNode node) {
+            for (; node != null; node = node.left) {
+                stack[depth++] = node;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return depth > 0;
+        }
+
+        @Override
+        public RBTNode next() {
+            if (depth == 0) {
+                throw new NoSuchElementException();
+            }
+            RBTNode node = stack[--depth];
+            pushLeft(node.right);
+            return node;
+        }
+    }
+
+    public void getInRange(RBTNode root, Queue<RBTNode> queue, long rangeStart, long rangeEnd) {
         if(root == null) return;
         if (root.key > rangeStart) {
             getInRange(root.left, queue, rangeStart, root.key);
@@ -314,10 +631,23 @@ public class RedBlackTree implements Serializable, Iterable<RBTNode> {
     }
 
     public byte[] serialize() {
+        return serialize(BTreeNode.FORMAT_V2);
+    }
+
+    public byte[] serialize(int format) {
         if (root == null) {
             return new byte[0];
         } else {
-            return root.serialize();
+            return root.serialize(format);
+        }
+    }
+
+    /**
+     * Writes the tree like serialize at the position of buffer and moves the position past it
+     */
+    void serializeInto(ByteBuffer buffer, int format) {
+        if (root != null) {
+            root.serializeInto(buffer, format);
         }
     }
 
@@ -328,8 +658,12 @@ public class RedBlackTree implements Serializable, Iterable<RBTNode> {
     }
 
     public static RedBlackTree deserialize(ByteBuffer serialized) throws RBTDeserializationException {
+        return deserialize(serialized, BTreeNode.FORMAT_V2);
+    }
+
+    public static RedBlackTree deserialize(ByteBuffer serialized, int format) throws RBTDeserializationException {
         RedBlackTree rbTree = new RedBlackTree();
-        rbTree.root = RBTNode.deserialize(serialized);
+        rbTree.root = RBTNode.deserialize(serialized, format);
         return rbTree;
     }
 
@@ -0,0 +1,15 @@
+package resilientbtree;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the entries of BTree.scan one at a time.
+ */
+public interface ScanConsumer {
+
+    /**
+     * @param value - read only view of the value between its position and its limit. The view is reused for the
+     *              next entry, so it must not be kept after this call returns.
+     */
+    void accept(int key, ByteBuffer value);
+}
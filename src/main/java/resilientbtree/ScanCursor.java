@@ -0,0 +1,316 @@
+package resilientbtree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+
+/**
+ * A cursor over the keys of a key range in order, which can be moved to another range with seek and used again.
+ * Keys are plain ints or longs and values are read only views of the mapped files: values in the value files are not
+ * copied and values stored in the leaves are copied into a buffer owned by the cursor, as are deflated values when
+ * they are inflated. Apart from growing its buffers and reading a node that is not in the node cache, moving the
+ * cursor allocates nothing.
+ *
+ * Like the range iterators every step of a tree written in place is an optimistic read of the leaf the cursor is
+ * at, so that writers are never blocked and the cursor never sees a half written leaf. Copy on write the cursor
+ * pins the latest root for one leaf at a time, or reads its snapshot if it has one. The view of the value is only
+ * valid until the cursor moves again and the cursor has to be closed, since it may hold a pin.
+ */
+public class ScanCursor implements AutoCloseable {
+
+    private final BTree tree;
+    private final IOHandler handler;
+    private final boolean sorted;
+    // Snapshot the cursor reads, null for the latest version of the tree
+    private final Snapshot snapshot;
+    // One step of a tree written in place. Made once so that a step does not allocate a lambda
+    private final BTree.TreeRead<Boolean> step = this::step;
+    private long rangeHigh;
+    // Smallest key that has not been returned yet
+    private long from;
+    // Whether the range is exhausted
+    private boolean done = true;
+
+    // In place: the current leaf and the stamp of its latch taken before it was read
+    private final BTree.ReadPosition leaf = new BTree.ReadPosition();
+    private boolean positioned;
+    private int leafSize;
+    private int index;
+
+    // Copy on write: the pin and the leaf that the entries come from and the smallest key of the next leaf
+    private Snapshot pinned;
+    private BTreeNode pinnedLeaf;
+    private long nextLeafKey;
+    private boolean lastLeaf;
+
+    // The current entry
+    private long key;
+    private ByteBuffer value;
+    // Values stored in the leaves are copied here, and deflated values inflated
+    private byte[] inline = new byte[0];
+    private ByteBuffer inlineView;
+    // Deflated values are copied here to be inflated, see ValueCodec
+    private byte[] deflated = new byte[0];
+    // Views of the value files, see IOHandler.Regions. Looking them up by identity does not box anything
+    private final IdentityHashMap<IOHandler, IOHandler.Regions> regions = new IdentityHashMap<>();
+    // Null if the tree does not read ahead of scans or the cursor reads a snapshot, see SnapshotRangeIterator
+    private final ReadAhead.Window readAhead;
+
+    ScanCursor(BTree tree, Snapshot snapshot) {
+        this.tree = tree;
+        this.handler = tree.handler;
+        this.sorted = BTreeNode.isSorted(tree.format);
+        this.snapshot = snapshot;
+        this.readAhead = snapshot == null ? tree.readAheadWindow() : null;
+    }
+
+    /**
+     * Moves the cursor in front of the range [keyLow, keyHigh] both inclusive. The first call to next moves it to
+     * the first key in the range.
+     */
+    public void seek(long keyLow, long keyHigh) {
+        if (tree.metrics != null) {
+            tree.metrics.scans.increment();
+        }
+        unpin();
+        rangeHigh = keyHigh;
+        from = keyLow;
+        done = keyLow > keyHigh;
+        positioned = false;
+        value = null;
+    }
+
+    /**
+     * Moves the cursor to the next key in the range.
+     * @return false if there is none
+     */
+    public boolean next() throws IOException {
+        value = null;
+        boolean found = !done && (tree.copyOnWrite ? nextPinned() : tree.optimisticRead(step));
+        if (!found) {
+            done = true;
+            unpin();
+        }
+        return found;
+    }
+
+    /**
+     * @return the current key. Trees with keys that do not fit in an int need longKey
+     */
+    public int key() {
+        return Math.toIntExact(longKey());
+    }
+
+    public long longKey() {
+        if (value == null) {
+            throw new IllegalStateException("The cursor is not at an entry");
+        }
+        return key;
+    }
+
+    /**
+     * @return a read only view of the value of the current key between its position and its limit. It is valid
+     * until the cursor moves again.
+     */
+    public ByteBuffer value() {
+        if (value == null) {
+            throw new IllegalStateException("The cursor is not at an entry");
+        }
+        return value;
+    }
+
+    /**
+     * Releases the pin of a copy on write tree. The cursor can still be moved with seek afterwards.
+     */
+    @Override
+    public void close() {
+        done = true;
+        value = null;
+        unpin();
+    }
+
+    /**
+     * Finds the entry at from in a tree written in place. See BTree.optimisticRead
+     */
+    private Boolean step(boolean retry) throws IOException {
+        if (retry || !positioned || !leaf.latch.validate(leaf.stamp)) {
+            positioned = false;
+            tree.findLeaf(from, leaf);
+            if (sorted) {
+                leafSize = tree.sortedView.size(leaf.position);
+                index = tree.sortedView.ceilIndex(leaf.position, leafSize, from);
+            }
+            positioned = true;
+            readAhead(leaf.position);
+        }
+        if (sorted) {
+            // Move to the next leaf with keys left when the current one has been consumed
+            while (index >= leafSize) {
+                long next = tree.sortedView.nextLeaf(leaf.position);
+                if (next <= 0) {
+                    leaf.validate();
+                    return false;
+                }
+                positioned = false;
+                tree.descend(leaf, next);
+                index = 0;
+                leafSize = tree.sortedView.size(leaf.position);
+                positioned = true;
+                readAhead(leaf.position);
+            }
+            long nextKey = tree.sortedView.key(leaf.position, index);
+            long pointer = tree.sortedView.value(leaf.position, leafSize, index);
+            if (nextKey <= rangeHigh && BTree.isInline(pointer)) {
+                // The slot can be rewritten as soon as the leaf is, so it is copied before the leaf is validated
+                long position = tree.inlinePosition(leaf.position, leafSize, index, pointer);
+                copyInline(BTree.inlineLength(pointer));
+                handler.readInto(position, inline, BTree.inlineLength(pointer));
+            }
+            leaf.validate();
+            if (nextKey > rangeHigh) {
+                return false;
+            }
+            // Read now that the pointer is known to be current. See BTree.compactValues
+            value = BTree.isInline(pointer) ? inlineView : fileValue(pointer);
+            index++;
+            return found(nextKey);
+        }
+        RBTNode entry;
+        while ((entry = leaf.node.rbTree.getCeilEntry(from)) == null) {
+            if (leaf.node.nextLeafPos <= 0) {
+                leaf.validate();
+                return false;
+            }
+            positioned = false;
+            tree.descend(leaf, leaf.node.nextLeafPos);
+            positioned = true;
+            readAhead(leaf.position);
+        }
+        leaf.validate();
+        if (entry.key > rangeHigh) {
+            return false;
+        }
+        value = entryValue(entry);
+        return found(entry.key);
+    }
+
+    /**
+     * Finds the entry at from in a copy on write tree, one pinned leaf at a time.
+     */
+    private boolean nextPinned() throws IOException {
+        while (true) {
+            if (pinnedLeaf != null) {
+                RBTNode entry = pinnedLeaf.rbTree.getCeilEntry(from);
+                if (entry != null) {
+                    if (entry.key > rangeHigh) {
+                        return false;
+                    }
+                    value = entryValue(entry);
+                    return found(entry.key);
+                }
+                // The rest of the range starts in the next leaf
+                unpin();
+                if (lastLeaf || nextLeafKey > rangeHigh) {
+                    return false;
+                }
+                from = nextLeafKey;
+            }
+            pinned = snapshot != null ? snapshot : tree.pin();
+            long start = from;
+            // The next leaf starts at the smallest separator greater than start on the way down. There is none on
+            // the way to the last leaf
+            nextLeafKey = Long.MAX_VALUE;
+            lastLeaf = true;
+            BTreeNode node = tree.getBTreeNodeAtIndex(pinned.root);
+            while (!node.isLeaf) {
+                RBTNode higher = node.rbTree.getHigherEntry(start);
+                if (higher != null) {
+                    nextLeafKey = Math.min(nextLeafKey, higher.key);
+                    lastLeaf = false;
+                }
+                node = tree.getBTreeNodeAtIndex(node.getLower(start));
+            }
+            pinnedLeaf = node;
+            readAhead(start);
+        }
+    }
+
+    /**
+     * Tells the read ahead where the cursor is: the leaf in place, the key copy on write
+     */
+    private void readAhead(long position) {
+        if (readAhead != null) {
+            readAhead.moveTo(position);
+        }
+    }
+
+    private boolean found(long foundKey) {
+        key = foundKey;
+        if (foundKey == rangeHigh) {
+            done = true; // Also keeps from from overflowing past Long.MAX_VALUE
+        } else {
+            from = foundKey + 1;
+        }
+        return true;
+    }
+
+    private void unpin() {
+        pinnedLeaf = null;
+        if (pinned != null && pinned != snapshot) {
+            pinned.close();
+        }
+        pinned = null;
+    }
+
+    /**
+     * @return the value of an entry of a decoded leaf
+     */
+    private ByteBuffer entryValue(RBTNode entry) throws IOException {
+        if (entry.inline == null) {
+            return fileValue(entry.value);
+        }
+        copyInline(entry.inline.length);
+        System.arraycopy(entry.inline, 0, inline, 0, entry.inline.length);
+        return inlineView;
+    }
+
+    /**
+     * Makes inlineView cover the first length bytes of inline, which the caller fills.
+     */
+    private void copyInline(int length) {
+        if (inline.length < length || inlineView == null) {
+            inline = new byte[Math.max(length, tree.inlineValueSize)];
+            inlineView = ByteBuffer.wrap(inline).asReadOnlyBuffer();
+        }
+        inlineView.clear();
+        inlineView.limit(length);
+    }
+
+    /**
+     * @return a view of the value in the value file that pointer points to, or of the value inflated into a
+     * buffer of the cursor if it was deflated
+     */
+    private ByteBuffer fileValue(long pointer) throws IOException {
+        IOHandler file = tree.valueFile(pointer);
+        int length = BTree.valueLength(file, pointer);
+        IOHandler.Regions fileRegions = regions.get(file);
+        if (fileRegions == null) {
+            fileRegions = file.new Regions();
+            regions.put(file, fileRegions);
+        }
+        ByteBuffer region = fileRegions.region(BTree.valueOffset(pointer) + 4, length);
+        if (tree.metrics != null) {
+            tree.metrics.valueBytesRead.add(length);
+        }
+        if (!BTree.isDeflated(file, pointer)) {
+            return region;
+        }
+        if (deflated.length < length) {
+            deflated = new byte[length];
+        }
+        region.get(deflated, 0, length);
+        copyInline(ValueCodec.inflatedLength(deflated, length));
+        ValueCodec.inflate(deflated, length, inline);
+        return inlineView;
+    }
+}
@@ -0,0 +1,115 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Scans every key of a tree with getInRange, with scan and with a reused cursor, and prints the time taken and
+ * the bytes allocated per entry by each. The node cache holds the whole tree, so in trees written in place scan and
+ * the cursor must not allocate anything per entry or per leaf, only the cursor itself, up to MAX_SCAN_BYTES per
+ * scan. Copy on write they allocate a pin for every leaf. All three have to see the same keys and values.
+ */
+public class ScanTest {
+
+    static final int KEYS = 500000;
+    static final int ROUNDS = 3;
+    // Far less than a byte for each of the thousands of leaves
+    static final long MAX_SCAN_BYTES = 4096;
+
+    public static void main(String args[]) throws IOException {
+        for (BTreeConfig.NodeLayout layout : BTreeConfig.NodeLayout.values()) {
+            for (boolean copyOnWrite : new boolean[]{false, true}) {
+                for (int inlineValueSize : new int[]{0, 16}) {
+                    System.out.println("Layout " + layout + (copyOnWrite ? ", copy on write" : "")
+                            + ", inline value size " + inlineValueSize);
+                    String fileName = "scan_" + layout + ".dat";
+                    new File(fileName).delete();
+                    new File(fileName + "_values").delete();
+                    BTreeConfig config = new BTreeConfig().nodeSize(64).nodeLayout(layout).cacheEntries(1 << 16)
+                            .copyOnWrite(copyOnWrite).inlineValueSize(inlineValueSize);
+                    BTree bTree = BTree.makeBTree(fileName, config);
+                    bTree.bulkLoad(new Iterator<Tuple<Integer, byte[]>>() {
+                        int key = 0;
+
+                        public boolean hasNext() {
+                            return key < KEYS;
+                        }
+
+                        public Tuple<Integer, byte[]> next() {
+                            key++;
+                            return new Tuple<>(key, ("value-" + key).getBytes());
+                        }
+                    });
+                    long maxBytes = copyOnWrite ? Long.MAX_VALUE : MAX_SCAN_BYTES;
+                    // The first round reads the tree into the node cache
+                    for (int round = 0; round < ROUNDS; round++) {
+                        long expected = measure("getInRange", round, Long.MAX_VALUE, () -> {
+                            long sum = 0;
+                            for (Tuple<Integer, byte[]> keyValue : bTree.getInRange(0, KEYS)) {
+                                sum += keyValue.x + keyValue.y[keyValue.y.length - 1];
+                            }
+                            return sum;
+                        });
+                        long[] sum = new long[1];
+                        ScanConsumer consumer = (key, value) -> sum[0] += key + value.get(value.limit() - 1);
+                        check(expected, measure("scan", round, maxBytes, () -> {
+                            sum[0] = 0;
+                            bTree.scan(0, KEYS, consumer);
+                            return sum[0];
+                        }));
+                        ScanCursor cursor = bTree.cursor();
+                        check(expected, measure("cursor", round, maxBytes, () -> {
+                            long cursorSum = 0;
+                            cursor.seek(0, KEYS);
+                            while (cursor.next()) {
+                                ByteBuffer value = cursor.value();
+                                cursorSum += cursor.key() + value.get(value.limit() - 1);
+                            }
+                            return cursorSum;
+                        }));
+                        cursor.close();
+                    }
+                    bTree.close();
+                }
+            }
+        }
+    }
+
+    interface Scan {
+        long run() throws IOException;
+    }
+
+    /**
+     * Runs scan and prints how long it took and how many bytes it allocated per key of the tree. In the last round
+     * it must not allocate more than maxBytes.
+     * @return what the scan returned
+     */
+    static long measure(String name, int round, long maxBytes, Scan scan) throws IOException {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long result = scan.run();
+        long millis = (System.nanoTime() - start) / 1000000;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        if (round == ROUNDS - 1) {
+            System.out.println(String.format("%-10s %5d ms, %8.2f bytes allocated per entry",
+                    name, millis, (double) allocated / KEYS));
+            if (allocated > maxBytes) {
+                throw new IllegalStateException(name + " allocated " + allocated + " bytes, at most " + maxBytes
+                        + " were expected");
+            }
+        }
+        return result;
+    }
+
+    static void check(long expected, long actual) {
+        if (expected != actual) {
+            throw new IllegalStateException("Scans disagree: " + expected + " and " + actual);
+        }
+    }
+}
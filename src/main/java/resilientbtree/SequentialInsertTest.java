@@ -0,0 +1,169 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Puts keys in ascending order and checks that the index ends up about as small as a bulk loaded one with full
+ * nodes, for every layout. Then puts keys below the largest one, deletes keys at the right edge and appends
+ * again, and appends from several threads at once, checking gets and range scans against a TreeMap.
+ */
+public class SequentialInsertTest {
+
+    static final int KEYS = 100000;
+
+    public static void main(String args[]) throws Exception {
+        for (BTreeConfig.NodeLayout layout : BTreeConfig.NodeLayout.values()) {
+            for (boolean copyOnWrite : new boolean[]{false, true}) {
+                testSpace(layout, copyOnWrite);
+            }
+            testMixed(layout);
+            testConcurrent(layout);
+        }
+    }
+
+    static void testSpace(BTreeConfig.NodeLayout layout, boolean copyOnWrite) throws IOException {
+        String fileName = "sequential_" + layout + ".dat";
+        BTreeConfig config = new BTreeConfig().nodeSize(16).nodeLayout(layout).copyOnWrite(copyOnWrite);
+        delete(fileName);
+        BTree bTree = BTree.makeBTree(fileName, config);
+        List<Tuple<Integer, byte[]>> entries = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            entries.add(new Tuple<>(i, value(i)));
+        }
+        bTree.bulkLoad(entries.iterator(), 1.0);
+        bTree.close();
+        long bulkLoaded = new File(fileName).length();
+
+        delete(fileName);
+        bTree = BTree.makeBTree(fileName, config);
+        long start = System.nanoTime();
+        for (int i = 0; i < KEYS; i++) {
+            bTree.put(i, value(i));
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        TreeMap<Long, byte[]> expected = new TreeMap<>();
+        for (Tuple<Integer, byte[]> entry : entries) {
+            expected.put((long) entry.x, entry.y);
+        }
+        check(bTree, expected);
+        bTree.close();
+        long put = new File(fileName).length();
+        System.out.println(layout + (copyOnWrite ? ", copy on write" : "") + ": " + KEYS + " ascending keys put in "
+                + millis + " ms into " + put + " bytes, bulk loaded " + bulkLoaded + " bytes");
+        if (put > bulkLoaded * 5 / 4) {
+            throw new IllegalStateException("Ascending keys take up " + put + " bytes, bulk loaded " + bulkLoaded);
+        }
+    }
+
+    static void testMixed(BTreeConfig.NodeLayout layout) throws IOException {
+        String fileName = "sequential_mixed.dat";
+        delete(fileName);
+        BTree bTree = BTree.makeBTree(fileName, new BTreeConfig().nodeSize(8).nodeLayout(layout));
+        TreeMap<Long, byte[]> expected = new TreeMap<>();
+        Random random = new Random(11);
+        long next = 0;
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < 100; i++) {
+                put(bTree, expected, next);
+                next += 1 + random.nextInt(3);
+            }
+            // Keys in between, which land in full leaves
+            for (int i = 0; i < 20; i++) {
+                put(bTree, expected, random.nextInt((int) next));
+            }
+            // Deletes at the right edge merge the rightmost leaf away
+            for (int i = 0; i < 30 && !expected.isEmpty(); i++) {
+                long key = expected.lastKey();
+                if (!bTree.delete(key)) {
+                    throw new IllegalStateException("Key " + key + " was not deleted");
+                }
+                expected.remove(key);
+            }
+            next = expected.isEmpty() ? 0 : expected.lastKey() + 1;
+        }
+        check(bTree, expected);
+        bTree.close();
+        bTree = BTree.makeBTree(fileName, new BTreeConfig().nodeSize(8).nodeLayout(layout));
+        check(bTree, expected);
+        bTree.close();
+        System.out.println(layout + ", mixed: " + expected.size() + " keys");
+    }
+
+    static void testConcurrent(BTreeConfig.NodeLayout layout) throws Exception {
+        String fileName = "sequential_concurrent.dat";
+        delete(fileName);
+        BTree bTree = BTree.makeBTree(fileName, new BTreeConfig().nodeSize(8).nodeLayout(layout));
+        AtomicInteger next = new AtomicInteger();
+        Map<Long, byte[]> written = new ConcurrentHashMap<>();
+        Thread[] threads = new Thread[4];
+        Exception[] failure = new Exception[1];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < KEYS / threads.length; i++) {
+                        int key = next.getAndIncrement();
+                        bTree.put(key, value(key));
+                        written.put((long) key, value(key));
+                        if (!Arrays.equals(bTree.get(key), value(key))) {
+                            throw new IllegalStateException("Key " + key + " not found after it was put");
+                        }
+                    }
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        check(bTree, new TreeMap<>(written));
+        bTree.close();
+        System.out.println(layout + ", concurrent: " + written.size() + " keys");
+    }
+
+    private static byte[] value(long key) {
+        return Long.toString(key).getBytes();
+    }
+
+    private static void put(BTree bTree, TreeMap<Long, byte[]> expected, long key) throws IOException {
+        bTree.put(key, value(key));
+        expected.put(key, value(key));
+    }
+
+    private static void check(BTree bTree, TreeMap<Long, byte[]> expected) throws IOException {
+        for (Map.Entry<Long, byte[]> entry : expected.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), bTree.get(entry.getKey()))) {
+                throw new IllegalStateException("Wrong value of key " + entry.getKey());
+            }
+        }
+        Iterator<Map.Entry<Long, byte[]>> expectedRange = expected.entrySet().iterator();
+        for (Tuple<Integer, byte[]> keyValue : bTree.getInRange(Integer.MIN_VALUE, Integer.MAX_VALUE)) {
+            Map.Entry<Long, byte[]> entry = expectedRange.next();
+            if (keyValue.x != entry.getKey().intValue() || !Arrays.equals(keyValue.y, entry.getValue())) {
+                throw new IllegalStateException("Expected key " + entry.getKey() + " but got " + keyValue.x);
+            }
+        }
+        if (expectedRange.hasNext()) {
+            throw new IllegalStateException("Range ended before key " + expectedRange.next().getKey());
+        }
+    }
+
+    private static void delete(String fileName) {
+        new File(fileName).delete();
+        new File(fileName + "_values").delete();
+    }
+}
@@ -0,0 +1,109 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Writes random nodes of every format straight into pages of a file that hold garbage, both inside a segment and
+ * across a segment boundary, and checks that the pages read back are exactly what serialize returns padded with
+ * zeroes and decode to the same node. A node larger than a batch is refused without touching its page.
+ */
+public class SerializeTest {
+
+    static final int BATCH_SIZE = 4096;
+    static final int SEGMENT_SIZE = 8192;
+
+    public static void main(String args[]) throws IOException {
+        String fileName = "serialize.dat";
+        new File(fileName).delete();
+        IOHandler handler = new IOHandler(fileName, BATCH_SIZE, SEGMENT_SIZE);
+        Random random = new Random(3);
+        byte[] garbage = new byte[BATCH_SIZE];
+        Arrays.fill(garbage, (byte) 0xFF);
+        int nodes = 0;
+        for (int format = BTreeNode.FORMAT_V1; format <= BTreeNode.FORMAT_COMPRESSED_LONG; format++) {
+            for (int inlineSize : new int[]{0, 16}) {
+                for (boolean counted : new boolean[]{false, true}) {
+                    // Pointers and counts of FORMAT_V1 are ints, which fit neither inline values nor counts
+                    if (format == BTreeNode.FORMAT_V1 && (inlineSize > 0 || counted)) {
+                        continue;
+                    }
+                    for (boolean isLeaf : new boolean[]{true, false}) {
+                        for (long offset : new long[]{0, SEGMENT_SIZE - 100}) {
+                            BTreeNode node = node(random, isLeaf, inlineSize);
+                            handler.writeBatch(garbage, offset);
+                            write(handler, node, format, inlineSize, counted, offset);
+                            byte[] page = handler.readBatch(offset);
+                            byte[] expected = Arrays.copyOf(node.serialize(format, inlineSize, counted), BATCH_SIZE);
+                            if (!Arrays.equals(page, expected)) {
+                                throw new IllegalStateException("Page of format " + format + " at " + offset
+                                        + " differs from the serialized node");
+                            }
+                            check(node, BTreeNode.deSerialize(page, BATCH_SIZE, format, inlineSize, counted));
+                            nodes++;
+                        }
+                    }
+                }
+            }
+        }
+
+        RedBlackTree rbTree = new RedBlackTree();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            rbTree.put(i, i);
+        }
+        BTreeNode tooLarge = new BTreeNode(rbTree, true, -1, -1, 0, -1);
+        handler.writeBatch(garbage, 0);
+        try {
+            write(handler, tooLarge, BTreeNode.FORMAT_V2, 0, false, 0);
+            throw new IllegalStateException("A node larger than a batch was written");
+        } catch (IOException e) {
+            if (!Arrays.equals(handler.readBatch(0), garbage)) {
+                throw new IllegalStateException("A node larger than a batch overwrote its page");
+            }
+        }
+        handler.close();
+        System.out.println(nodes + " nodes written in place");
+    }
+
+    private static void write(IOHandler handler, BTreeNode node, int format, int inlineSize, boolean counted,
+                              long offset) throws IOException {
+        handler.writeBatch(node.serializedSize(format, inlineSize, counted),
+                batch -> node.serializeInto(batch, format, inlineSize, counted), offset);
+    }
+
+    private static BTreeNode node(Random random, boolean isLeaf, int inlineSize) {
+        RedBlackTree rbTree = new RedBlackTree();
+        int size = 1 + random.nextInt(60);
+        for (int i = 0; i < size; i++) {
+            long key = random.nextInt(1 << 20);
+            if (isLeaf && inlineSize > 0 && random.nextBoolean()) {
+                byte[] inline = new byte[random.nextInt(inlineSize + 1)];
+                random.nextBytes(inline);
+                rbTree.put(key, BTree.INLINE_VALUE | inline.length, inline);
+            } else {
+                rbTree.put(key, random.nextInt(1 << 20), (long) random.nextInt(1000));
+            }
+        }
+        BTreeNode node = new BTreeNode(rbTree, isLeaf, 64, 128, 192, isLeaf ? 256 : -1);
+        node.phiCount = random.nextInt(1000);
+        return node;
+    }
+
+    private static void check(BTreeNode expected, BTreeNode actual) {
+        if (expected.isLeaf != actual.isLeaf || expected.parent != actual.parent || expected.phi != actual.phi
+                || expected.selfPosition != actual.selfPosition || expected.nextLeafPos != actual.nextLeafPos
+                || expected.rbTree.size() != actual.rbTree.size()) {
+            throw new IllegalStateException("Metadata of the node was not read back");
+        }
+        Iterator<RBTNode> entries = actual.rbTree.iterator();
+        for (RBTNode entry : expected.rbTree) {
+            RBTNode read = entries.next();
+            if (entry.key != read.key || entry.value != read.value || !Arrays.equals(entry.inline, read.inline)) {
+                throw new IllegalStateException("Key " + entry.key + " was not read back");
+            }
+        }
+    }
+}
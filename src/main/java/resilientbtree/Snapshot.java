@@ -0,0 +1,156 @@
+package resilientbtree;
+
+import java.io.IOException;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A point in time view of a copy on write BTree, see BTree.snapshot(). Reads through a snapshot see the tree as
+ * it was when the snapshot was taken, no matter what is written afterwards, and never wait for writers.
+ * The pages the snapshot can reach are not reused until it is closed, so snapshots should be closed as soon as
+ * they are no longer needed.
+ */
+public class Snapshot implements AutoCloseable {
+
+    private static final AtomicLong ids = new AtomicLong();
+
+    final BTree tree;
+    // Number of commits made to the tree before the snapshot was taken
+    final long version;
+    final long root;
+    // Tells apart snapshots of the same version
+    final long id = ids.incrementAndGet();
+
+    Snapshot(BTree tree, long version, long root) {
+        this.tree = tree;
+        this.version = version;
+        this.root = root;
+    }
+
+    public byte[] get(long key) throws IOException {
+        tree.checkNotByteKeys();
+        return tree.get(root, key);
+    }
+
+    /**
+     * Same as BTree.get for byte array keys but as of this snapshot
+     */
+    public byte[] get(byte[] key) throws IOException {
+        tree.checkByteKeys();
+        return tree.get(root, ByteKeys.prefix(key), key);
+    }
+
+    /**
+     * @return all keys and values in the range [keyLow, keyHigh] both inclusive as of this snapshot
+     */
+    public Iterable<Tuple<Integer, byte[]>> getInRange(int keyLow, int keyHigh) {
+        tree.checkNotByteKeys();
+        return () -> new SnapshotRangeIterator<>(tree, this, keyLow, keyHigh, BTree.INT_KEY);
+    }
+
+    public Iterable<Tuple<Long, byte[]>> getInRange(long keyLow, long keyHigh) {
+        tree.checkNotByteKeys();
+        return () -> new SnapshotRangeIterator<>(tree, this, keyLow, keyHigh, BTree.LONG_KEY);
+    }
+
+    public Iterable<Tuple<byte[], byte[]>> getInRange(byte[] keyLow, byte[] keyHigh) {
+        tree.checkByteKeys();
+        byte[] low = keyLow.clone();
+        byte[] high = keyHigh.clone();
+        return () -> new SnapshotRangeIterator<>(tree, this, ByteKeys.prefix(low), low, ByteKeys.prefix(high), high,
+                BTree.BYTES_KEY);
+    }
+
+    /**
+     * Same as BTree.spliterator but as of this snapshot. If the tree counts its keys the spliterator knows its
+     * exact size. It must not be used after the snapshot has been closed
+     */
+    public Spliterator<Tuple<Integer, byte[]>> spliterator(int keyLow, int keyHigh) {
+        tree.checkNotByteKeys();
+        return new RangeSpliterator<>(tree, this, keyLow, keyHigh, BTree.INT_KEY);
+    }
+
+    public Spliterator<Tuple<Long, byte[]>> spliterator(long keyLow, long keyHigh) {
+        tree.checkNotByteKeys();
+        return new RangeSpliterator<>(tree, this, keyLow, keyHigh, BTree.LONG_KEY);
+    }
+
+    public Stream<Tuple<Integer, byte[]>> stream(int keyLow, int keyHigh) {
+        return StreamSupport.stream(spliterator(keyLow, keyHigh), false);
+    }
+
+    public Stream<Tuple<Long, byte[]>> stream(long keyLow, long keyHigh) {
+        return StreamSupport.stream(spliterator(keyLow, keyHigh), false);
+    }
+
+    public Stream<Tuple<Integer, byte[]>> parallelStream(int keyLow, int keyHigh) {
+        return StreamSupport.stream(spliterator(keyLow, keyHigh), true);
+    }
+
+    public Stream<Tuple<Long, byte[]>> parallelStream(long keyLow, long keyHigh) {
+        return StreamSupport.stream(spliterator(keyLow, keyHigh), true);
+    }
+
+    /**
+     * Same as BTree.scan but as of this snapshot
+     */
+    public void scan(int keyLow, int keyHigh, ScanConsumer consumer) throws IOException {
+        try (ScanCursor cursor = cursor()) {
+            cursor.seek(keyLow, keyHigh);
+            while (cursor.next()) {
+                consumer.accept(cursor.key(), cursor.value());
+            }
+        }
+    }
+
+    /**
+     * @return a cursor over this snapshot. It must not be used after the snapshot has been closed
+     */
+    public ScanCursor cursor() {
+        tree.checkNotByteKeys();
+        return new ScanCursor(tree, this);
+    }
+
+    /**
+     * Same as BTree.count but as of this snapshot
+     */
+    public long count(long keyLow, long keyHigh) throws IOException {
+        tree.checkNotByteKeys();
+        return tree.count(root, keyLow, keyHigh);
+    }
+
+    /**
+     * Same as BTree.rank but as of this snapshot
+     */
+    public long rank(long key) throws IOException {
+        tree.checkNotByteKeys();
+        return tree.rank(root, key);
+    }
+
+    /**
+     * Same as BTree.select but as of this snapshot
+     */
+    public Integer select(long index) throws IOException {
+        Long key = selectLong(index);
+        return key == null ? null : Math.toIntExact(key);
+    }
+
+    public Long selectLong(long index) throws IOException {
+        tree.checkNotByteKeys();
+        return tree.selectLong(root, index);
+    }
+
+    public long version() {
+        return version;
+    }
+
+    /**
+     * Releases the pages of this snapshot. Closing a snapshot more than once has no effect.
+     */
+    @Override
+    public void close() {
+        tree.release(this);
+    }
+}
@@ -0,0 +1,143 @@
+package resilientbtree;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Range scan of a copy on write tree. Copy on write trees have no leaf chain, so the iterator reads one leaf at a
+ * time from the root down and remembers the smallest separator key greater than its position on the way. That is
+ * where the next leaf starts. With a snapshot every leaf is read from the snapshot root. Without one the latest
+ * root is pinned for each leaf, so every leaf is consistent but later leaves may include later writes.
+ */
+class SnapshotRangeIterator<K> implements Iterator<Tuple<K, byte[]>> {
+
+    private final BTree tree;
+    private final Snapshot snapshot;
+    private final BTree.KeyBox<K> boxKey;
+    private final long rangeHigh;
+    // Byte array keys of rangeHigh and from in a tree with byte array keys, null otherwise
+    private final byte[] rangeHighBytes;
+    private byte[] fromBytes;
+    // Smallest key of the next leaf to read
+    private long from;
+    // Whether the last leaf has been read
+    private boolean last;
+    // Entries of the current leaf in the range. The values are read while the leaf is pinned, since
+    // BTree.compactValues deletes value files that no snapshot can reach
+    private long[] keys = new long[0];
+    private byte[][] keyBytes = new byte[0][];
+    private byte[][] values = new byte[0][];
+    private int count;
+    private int index;
+    // Null if the tree does not read ahead of scans
+    private final ReadAhead.Window readAhead;
+
+    SnapshotRangeIterator(BTree tree, Snapshot snapshot, long rangeLow, long rangeHigh, BTree.KeyBox<K> boxKey) {
+        this(tree, snapshot, rangeLow, null, rangeHigh, null, boxKey);
+    }
+
+    /**
+     * @param rangeLowBytes - the byte array key rangeLow is the prefix of, null if the tree has numeric keys
+     * @param rangeHighBytes - the byte array key rangeHigh is the prefix of, null if the tree has numeric keys
+     */
+    SnapshotRangeIterator(BTree tree, Snapshot snapshot, long rangeLow, byte[] rangeLowBytes, long rangeHigh,
+                          byte[] rangeHighBytes, BTree.KeyBox<K> boxKey) {
+        this.tree = tree;
+        this.boxKey = boxKey;
+        // Reading ahead pins the latest root, which does not help a scan of an older snapshot
+        this.readAhead = snapshot == null ? tree.readAheadWindow() : null;
+        this.snapshot = snapshot;
+        this.rangeHigh = rangeHigh;
+        this.rangeHighBytes = rangeHighBytes;
+        this.from = rangeLow;
+        this.fromBytes = rangeLowBytes;
+        try {
+            fill();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads leaves until one has keys left in the range or the range is exhausted.
+     */
+    private void fill() throws IOException {
+        count = 0;
+        index = 0;
+        while (count == 0 && !last && RedBlackTree.compare(from, fromBytes, rangeHigh, rangeHighBytes) <= 0) {
+            Snapshot pinned = snapshot != null ? snapshot : tree.pin();
+            try {
+                long key = from;
+                byte[] bytes = fromBytes;
+                if (readAhead != null) {
+                    readAhead.moveTo(key);
+                }
+                // There is no separator greater than key on the way to the last leaf
+                last = true;
+                RBTNode upper = null;
+                BTreeNode node = tree.getBTreeNodeAtIndex(pinned.root);
+                while (!node.isLeaf) {
+                    RBTNode higher = node.rbTree.getHigherEntry(key, bytes);
+                    if (higher != null
+                            && (upper == null || RedBlackTree.compare(higher.key, higher.bytes, upper) < 0)) {
+                        upper = higher;
+                        last = false;
+                    }
+                    node = tree.getBTreeNodeAtIndex(node.getLower(key, bytes));
+                }
+                if (keys.length < node.rbTree.size()) {
+                    keys = Arrays.copyOf(keys, node.rbTree.size());
+                    keyBytes = Arrays.copyOf(keyBytes, node.rbTree.size());
+                    values = Arrays.copyOf(values, node.rbTree.size());
+                }
+                for (RBTNode entry : node.rbTree) {
+                    if (RedBlackTree.compare(key, bytes, entry) <= 0
+                            && RedBlackTree.compare(rangeHigh, rangeHighBytes, entry) >= 0) {
+                        keys[count] = entry.key;
+                        keyBytes[count] = entry.bytes;
+                        values[count++] = tree.readValue(entry);
+                    }
+                }
+                if (upper != null) {
+                    from = upper.key;
+                    fromBytes = upper.bytes;
+                }
+            } finally {
+                if (snapshot == null) {
+                    pinned.close();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void remove() {
+        // This is unsupported. The iterator is immutable
+    }
+
+    @Override
+    public boolean hasNext() {
+        return index < count;
+    }
+
+    @Override
+    public Tuple<K, byte[]> next() {
+        if (index >= count) {
+            throw new NoSuchElementException("Range Iterator is empty");
+        }
+        try {
+            Tuple<K, byte[]> toRet = new Tuple<>(boxKey.box(keys[index], keyBytes[index]), values[index]);
+            values[index] = null;
+            keyBytes[index] = null;
+            if (++index == count) {
+                fill();
+            }
+            return toRet;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Shows the point in time reads of a copy on write tree. A snapshot taken before a round of overwrites keeps
+ * returning the old values, and pages freed by the overwrites are reused once the snapshot is closed.
+ */
+public class SnapshotTest {
+
+    static final int KEYS = 10000;
+
+    public static void main(String args[]) throws IOException {
+        String fileName = "snapshot.dat";
+        new File(fileName).delete();
+        new File(fileName + "_values").delete();
+        BTree bTree = BTree.makeBTree(fileName, new BTreeConfig().nodeSize(16).copyOnWrite(true));
+        for (int key = 0; key < KEYS; key++) {
+            bTree.put(key, ("old-" + key).getBytes());
+        }
+        try (Snapshot snapshot = bTree.snapshot()) {
+            for (int key = 0; key < KEYS; key++) {
+                bTree.put(key, ("new-" + key).getBytes());
+            }
+            int seen = 0;
+            for (Tuple<Integer, byte[]> keyValue : snapshot.getInRange(0, KEYS)) {
+                if (!new String(keyValue.y).equals("old-" + keyValue.x)) {
+                    throw new IllegalStateException("Snapshot sees " + new String(keyValue.y));
+                }
+                seen++;
+            }
+            System.out.println("Snapshot of version " + snapshot.version() + " still sees " + seen + " old values");
+        }
+        if (!new String(bTree.get(42)).equals("new-42")) {
+            throw new IllegalStateException("Tree does not see the new value");
+        }
+        long length = bTree.handler.fileLength();
+        for (int key = 0; key < KEYS; key++) {
+            bTree.put(key, ("newer-" + key).getBytes());
+        }
+        System.out.println("Index file grew by " + (bTree.handler.fileLength() - length)
+                + " bytes while rewriting every key without an open snapshot");
+        bTree.close();
+    }
+}
@@ -0,0 +1,86 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Puts random keys, many of them more than once, into a tree with the SORTED_ARRAY layout and small nodes so
+ * that it is several levels high. Checks lookups of keys that are in the tree and of keys that are not, and
+ * range scans that start and end inside leaves, span many leaves, lie outside of all keys or are empty against
+ * a TreeMap, also after the tree has been opened again.
+ */
+public class SortedLayoutTest {
+
+    static final int PUTS = 20000;
+    static final int RANGES = 500;
+
+    public static void main(String args[]) throws IOException {
+        String fileName = "sorted_layout.dat";
+        new File(fileName).delete();
+        new File(fileName + "_values").delete();
+        BTreeConfig config = new BTreeConfig().nodeSize(8).nodeLayout(BTreeConfig.NodeLayout.SORTED_ARRAY);
+        BTree bTree = BTree.makeBTree(fileName, config);
+        TreeMap<Integer, byte[]> expected = new TreeMap<>();
+        Random random = new Random(11);
+        for (int i = 0; i < PUTS; i++) {
+            // Even keys only, so that the odd keys in between are known to be missing
+            int key = 2 * random.nextInt(PUTS);
+            byte[] value = (key + "_" + i).getBytes();
+            bTree.put(key, value);
+            expected.put(key, value);
+        }
+        check(bTree, expected, random);
+        bTree.close();
+
+        bTree = BTree.makeBTree(fileName, config);
+        check(bTree, expected, random);
+        bTree.close();
+        System.out.println("Sorted layout: " + expected.size() + " keys, " + RANGES + " ranges");
+    }
+
+    private static void check(BTree bTree, TreeMap<Integer, byte[]> expected, Random random) throws IOException {
+        for (int key = -2; key <= 2 * PUTS + 2; key++) {
+            byte[] value = bTree.get(key);
+            if (!Arrays.equals(expected.get(key), value)) {
+                throw new IllegalStateException("Wrong value of key " + key + ": "
+                        + (value == null ? null : new String(value)));
+            }
+        }
+        checkRange(bTree, expected, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        checkRange(bTree, expected, -100, -1);
+        checkRange(bTree, expected, 2 * PUTS + 1, 3 * PUTS);
+        checkRange(bTree, expected, 100, 99);
+        for (int i = 0; i < RANGES; i++) {
+            int low = random.nextInt(2 * PUTS + 2) - 1;
+            int high = low + random.nextInt(i % 2 == 0 ? 20 : 2 * PUTS);
+            checkRange(bTree, expected, low, high);
+        }
+    }
+
+    private static void checkRange(BTree bTree, TreeMap<Integer, byte[]> expected, int low, int high)
+            throws IOException {
+        Iterator<Tuple<Integer, byte[]>> actual = bTree.getInRange(low, high).iterator();
+        if (low <= high) {
+            for (Map.Entry<Integer, byte[]> entry : expected.subMap(low, true, high, true).entrySet()) {
+                if (!actual.hasNext()) {
+                    throw new IllegalStateException("Range [" + low + ", " + high + "] ended before key "
+                            + entry.getKey());
+                }
+                Tuple<Integer, byte[]> keyValue = actual.next();
+                if (!entry.getKey().equals(keyValue.x) || !Arrays.equals(entry.getValue(), keyValue.y)) {
+                    throw new IllegalStateException("Expected key " + entry.getKey() + " but got " + keyValue.x
+                            + " in range [" + low + ", " + high + "]");
+                }
+            }
+        }
+        if (actual.hasNext()) {
+            throw new IllegalStateException("Range [" + low + ", " + high + "] has more keys than expected: "
+                    + actual.next().x);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package resilientbtree;
+
+/**
+ * Reads FORMAT_SORTED and FORMAT_SORTED_LONG nodes directly from the mapped index file without deserializing them.
+ *
+ * A node starts with the FORMAT_V2 metadata:
+ * [0] isLeaf, [1, 4] number of keys n, [5, 12] parent, [13, 20] phi, [21, 28] self, [29, 36] next leaf
+ * followed by n sorted 4 byte (8 byte for FORMAT_SORTED_LONG) keys and n 8 byte pointers, where the i-th pointer
+ * belongs to the i-th key.
+ * Leaves of trees that store small values in the leaves end with n slots for them, see BTree.INLINE_VALUE.
+ * Inner nodes of trees that count their keys end with the number of keys below phi and below each of the n children.
+ * Lookups binary search the keys in place so nothing is allocated on the read path. The bytes may be rewritten
+ * while they are read, so callers validate the latch of the node afterwards. See BTree.ReadPosition.
+ *
+ * A view belongs to one tree, since the size of the keys depends on its format.
+ */
+final class SortedNodeView {
+
+    private static final int SIZE_OFFSET = 1;
+    private static final int PHI_OFFSET = 13;
+    private static final int NEXT_LEAF_OFFSET = 29;
+
+    private final IOHandler handler;
+    private final int format;
+    private final boolean longKeys;
+
+    SortedNodeView(IOHandler handler, int format) {
+        this.handler = handler;
+        this.format = format;
+        this.longKeys = BTreeNode.keySize(format) == 8;
+    }
+
+    boolean isLeaf(long node) {
+        return handler.getByte(node) == (byte) 1;
+    }
+
+    int size(long node) {
+        return handler.getInt(node + SIZE_OFFSET);
+    }
+
+    long phi(long node) {
+        return handler.getLong(node + PHI_OFFSET);
+    }
+
+    long nextLeaf(long node) {
+        return handler.getLong(node + NEXT_LEAF_OFFSET);
+    }
+
+    long key(long node, int index) {
+        return longKeys ? handler.getLong(node + BTreeNode.metadataSizeV2 + 8L * index)
+                : handler.getInt(node + BTreeNode.metadataSizeV2 + 4L * index);
+    }
+
+    long value(long node, int size, int index) {
+        return handler.getLong(node + BTreeNode.metadataSizeV2 + (longKeys ? 8L : 4L) * size + 8L * index);
+    }
+
+    /**
+     * @return the position of the slot of the index-th key of a leaf with size keys for a value stored in it
+     */
+    long inlinePosition(long node, int size, int index, int inlineSize) {
+        return node + BTreeNode.inlineOffset(format, size, index, inlineSize);
+    }
+
+    /**
+     * @return the number of keys below the child of the index-th key of an inner node with size keys, or below phi
+     * for index -1
+     */
+    long count(long node, int size, int index) {
+        return handler.getLong(node + BTreeNode.countOffset(format, size, index));
+    }
+
+    /**
+     * @return the index of the largest key less than or equal to key, -1 if all keys are greater
+     */
+    int floorIndex(long node, int size, long key) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = key(node, mid);
+            if (midKey <= key) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * @return the index of the smallest key greater than or equal to key, size if all keys are smaller
+     */
+    int ceilIndex(long node, int size, long key) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = key(node, mid);
+            if (midKey < key) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Same as BTreeNode.getLower but on the mapped bytes of an inner node.
+     */
+    long getLower(long node, long key) {
+        int size = size(node);
+        int index = floorIndex(node, size, key);
+        return index < 0 ? phi(node) : value(node, size, index);
+    }
+
+    /**
+     * @return the value pointer stored for key in the leaf, -1 if the key is not present
+     */
+    long get(long leaf, long key) {
+        int size = size(leaf);
+        int index = floorIndex(leaf, size, key);
+        if (index >= 0 && key(leaf, index) == key) {
+            return value(leaf, size, index);
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,127 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Sums the keys and value lengths of key ranges with a sequential and a parallel stream and checks them against
+ * getInRange, then splits a spliterator over the whole tree as far as it goes and checks that the parts cover the
+ * keys in order. For trees that count their keys the sizes the parts of a snapshot report have to be exact.
+ * Prints the time of the whole range with getInRange and both streams.
+ */
+public class StreamTest {
+
+    static final int KEYS = 300000;
+
+    public static void main(String args[]) throws IOException {
+        System.out.println("Parallelism of the common pool: " + ForkJoinPool.commonPool().getParallelism());
+        for (BTreeConfig.NodeLayout layout : BTreeConfig.NodeLayout.values()) {
+            for (boolean copyOnWrite : new boolean[]{false, true}) {
+                for (boolean countKeys : new boolean[]{false, true}) {
+                    System.out.println("Layout " + layout + (copyOnWrite ? ", copy on write" : "")
+                            + (countKeys ? ", counted" : ""));
+                    String fileName = "stream_" + layout + ".dat";
+                    new File(fileName).delete();
+                    new File(fileName + "_values").delete();
+                    BTree bTree = BTree.makeBTree(fileName, new BTreeConfig().nodeSize(32).nodeLayout(layout)
+                            .copyOnWrite(copyOnWrite).countKeys(countKeys));
+                    bTree.bulkLoad(new Iterator<Tuple<Integer, byte[]>>() {
+                        int key = -KEYS;
+
+                        public boolean hasNext() {
+                            return key < KEYS;
+                        }
+
+                        public Tuple<Integer, byte[]> next() {
+                            key += 2;
+                            return new Tuple<>(key, new byte[key & 63]);
+                        }
+                    }, 0.8);
+                    for (int[] range : new int[][]{{Integer.MIN_VALUE, Integer.MAX_VALUE}, {-1000, 1000},
+                            {5, 5}, {6, 6}, {KEYS, Integer.MAX_VALUE}, {10, 9}}) {
+                        long start = System.nanoTime();
+                        long expected = 0;
+                        for (Tuple<Integer, byte[]> keyValue : bTree.getInRange(range[0], range[1])) {
+                            expected += keyValue.x + keyValue.y.length;
+                        }
+                        long iterateMillis = (System.nanoTime() - start) / 1000000;
+                        start = System.nanoTime();
+                        check(expected, bTree.stream(range[0], range[1])
+                                .mapToLong(keyValue -> keyValue.x + keyValue.y.length).sum(), "sequential stream");
+                        long sequentialMillis = (System.nanoTime() - start) / 1000000;
+                        start = System.nanoTime();
+                        check(expected, bTree.parallelStream(range[0], range[1])
+                                .mapToLong(keyValue -> keyValue.x + keyValue.y.length).sum(), "parallel stream");
+                        long parallelMillis = (System.nanoTime() - start) / 1000000;
+                        if (range[0] == Integer.MIN_VALUE) {
+                            System.out.println(String.format("All keys: getInRange %d ms, stream %d ms, parallel "
+                                    + "stream %d ms", iterateMillis, sequentialMillis, parallelMillis));
+                        }
+                    }
+                    checkSplits(bTree.spliterator(Integer.MIN_VALUE, Integer.MAX_VALUE), false);
+                    if (copyOnWrite) {
+                        try (Snapshot snapshot = bTree.snapshot()) {
+                            for (int key = 0; key < 1000; key++) {
+                                bTree.delete(key);
+                            }
+                            // The snapshot still has the deleted keys
+                            checkSplits(snapshot.spliterator(Integer.MIN_VALUE, Integer.MAX_VALUE), countKeys);
+                        }
+                    }
+                    bTree.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits spliterator until none of its parts splits any further and checks that the parts hold all keys of
+     * the bulk load in order. Also checks the sizes the parts report if they are exact.
+     */
+    static void checkSplits(Spliterator<Tuple<Integer, byte[]>> spliterator, boolean sized) {
+        if (sized != spliterator.hasCharacteristics(Spliterator.SIZED)) {
+            throw new IllegalStateException("Spliterator is " + (sized ? "not " : "") + "sized");
+        }
+        // Splitting off a prefix leaves the rest in the spliterator, so the parts are kept in key order
+        Deque<Spliterator<Tuple<Integer, byte[]>>> splitting = new ArrayDeque<>();
+        Deque<Spliterator<Tuple<Integer, byte[]>>> parts = new ArrayDeque<>();
+        splitting.push(spliterator);
+        while (!splitting.isEmpty()) {
+            Spliterator<Tuple<Integer, byte[]>> part = splitting.pop();
+            Spliterator<Tuple<Integer, byte[]>> prefix = part.trySplit();
+            if (prefix == null) {
+                parts.addLast(part);
+            } else {
+                splitting.push(part);
+                splitting.push(prefix);
+            }
+        }
+        int[] expected = {-KEYS + 2};
+        for (Spliterator<Tuple<Integer, byte[]>> part : parts) {
+            long size = part.estimateSize();
+            long before = expected[0];
+            part.forEachRemaining(keyValue -> {
+                if (keyValue.x != expected[0]) {
+                    throw new IllegalStateException("Expected key " + expected[0] + " but got " + keyValue.x);
+                }
+                expected[0] += 2;
+            });
+            if (sized && size != (expected[0] - before) / 2) {
+                throw new IllegalStateException("Part reported " + size + " keys but has " + (expected[0] - before) / 2);
+            }
+        }
+        check(KEYS + 2, expected[0], "last key after the parts");
+        System.out.println("Split into " + parts.size() + " parts");
+    }
+
+    static void check(long expected, long actual, String what) {
+        if (expected != actual) {
+            throw new IllegalStateException("Wrong result of the " + what + ": " + actual + " instead of " + expected);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Opens a tree again while the first instance was never closed, as after a crash, and checks that the preallocated
+ * space at the end of the files is not taken for data: the new instance must start out within
+ * BTree.LENGTH_GRANULE of the logical lengths of the first one. The first instance puts keys until the index file
+ * carries more preallocated space than that. Keys put by both instances must be there after the tree is closed and
+ * opened once more.
+ */
+public class UncleanOpenTest {
+
+    public static void main(String args[]) throws IOException {
+        for (boolean copyOnWrite : new boolean[]{false, true}) {
+            System.out.println(copyOnWrite ? "Copy on write" : "In place");
+            String fileName = "unclean_" + (copyOnWrite ? "cow" : "in_place") + ".dat";
+            new File(fileName).delete();
+            new File(fileName + "_values").delete();
+            BTreeConfig config = new BTreeConfig().nodeSize(16).copyOnWrite(copyOnWrite);
+            BTree crashed = BTree.makeBTree(fileName, config);
+            int keys = 0;
+            while (new File(fileName).length() - crashed.handler.fileLength() <= 2 * BTree.LENGTH_GRANULE) {
+                crashed.put(keys, ("value" + keys).getBytes());
+                keys++;
+            }
+            BTree reopened = BTree.makeBTree(fileName, config);
+            checkLength(reopened.handler, crashed.handler, "index file");
+            checkLength(reopened.valueHandler, crashed.valueHandler, "value file");
+            for (int key = keys; key < 2 * keys; key++) {
+                reopened.put(key, ("value" + key).getBytes());
+            }
+            reopened.close();
+            BTree bTree = BTree.makeBTree(fileName, config);
+            for (int key = 0; key < 2 * keys; key++) {
+                byte[] value = bTree.get(key);
+                if (value == null || !new String(value).equals("value" + key)) {
+                    throw new IllegalStateException("Lost key " + key);
+                }
+            }
+            System.out.println("Index file: " + new File(fileName).length() + " bytes, value file: "
+                    + new File(fileName + "_values").length() + " bytes");
+            bTree.close();
+        }
+    }
+
+    static void checkLength(IOHandler reopened, IOHandler crashed, String what) {
+        long length = reopened.fileLength();
+        if (length < crashed.fileLength() || length > crashed.fileLength() + BTree.LENGTH_GRANULE) {
+            throw new IllegalStateException("The " + what + " was opened with " + length + " bytes, "
+                    + crashed.fileLength() + " were written");
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package resilientbtree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates values that go to the value file, see BTreeConfig.compressValues.
+ *
+ * A value is stored as a 4 byte length prefix followed by the value. A deflated value has the high bit of its
+ * prefix set and is stored as the length of the value before it was deflated followed by the deflated bytes, so
+ * the prefix still says how many bytes follow it. Values are only stored deflated if they are at least threshold
+ * bytes long and get smaller. Readers tell the two apart by the prefix alone, so trees opened without
+ * compressing values still read the ones deflated before.
+ */
+final class ValueCodec {
+
+    static final int DEFLATED = 0x80000000;
+
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    private final int threshold;
+    // Bytes of the values given to encode and the bytes they were stored in, prefixes included
+    private final AtomicLong valueBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    ValueCodec(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return the prefix and deflated bytes of value, null if it is stored as it is
+     */
+    byte[] encode(byte[] value) {
+        byte[] record = null;
+        // Deflated bytes are only kept if they fit in the space of the value, its length taking up the rest
+        int space = value.length - 4;
+        if (value.length >= threshold && space > 0) {
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            deflater.setInput(value);
+            deflater.finish();
+            byte[] buffer = new byte[8 + space];
+            int length = 0;
+            while (!deflater.finished() && length < space) {
+                length += deflater.deflate(buffer, 8 + length, space - length);
+            }
+            if (deflater.finished()) {
+                ByteBuffer.wrap(buffer).putInt(DEFLATED | (4 + length)).putInt(value.length);
+                record = length == space ? buffer : Arrays.copyOf(buffer, 8 + length);
+            }
+        }
+        valueBytes.addAndGet(value.length);
+        storedBytes.addAndGet(record == null ? 4 + value.length : record.length);
+        return record;
+    }
+
+    /**
+     * @return how many times smaller the values given to encode have been stored, 1 if there were none
+     */
+    double ratio() {
+        long stored = storedBytes.get();
+        return stored == 0 ? 1 : (double) valueBytes.get() / stored;
+    }
+
+    static boolean isDeflated(int prefix) {
+        return (prefix & DEFLATED) != 0;
+    }
+
+    /**
+     * @return the length of the value stored in the length bytes of stored that follow its prefix
+     */
+    static int inflatedLength(byte[] stored, int length) throws IOException {
+        int inflated = length < 4 ? -1 : ByteBuffer.wrap(stored).getInt();
+        // Deflate makes nothing more than about a thousand times smaller
+        if (inflated < 0 || inflated > 1100L * length) {
+            throw new IOException("Invalid deflated value");
+        }
+        return inflated;
+    }
+
+    /**
+     * Inflates the value stored in the first length bytes of stored, which follow its prefix, into the first
+     * inflatedLength bytes of value.
+     */
+    static void inflate(byte[] stored, int length, byte[] value) throws IOException {
+        int inflated = inflatedLength(stored, length);
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(stored, 4, length - 4);
+        try {
+            int done = 0;
+            while (done < inflated && !inflater.finished() && !inflater.needsInput()) {
+                done += inflater.inflate(value, done, inflated - done);
+            }
+            if (done != inflated) {
+                throw new IOException("Invalid deflated value");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid deflated value", e);
+        }
+    }
+
+    /**
+     * @return the value stored in stored, which follows its prefix
+     */
+    static byte[] inflate(byte[] stored) throws IOException {
+        byte[] value = new byte[inflatedLength(stored, stored.length)];
+        inflate(stored, stored.length, value);
+        return value;
+    }
+}
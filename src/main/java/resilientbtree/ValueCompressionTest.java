@@ -0,0 +1,145 @@
+package resilientbtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Puts JSON like values that compress well, values below the threshold and random values that do not compress
+ * one by one, in batches and by bulk loading, and checks gets, range scans and cursors against a TreeMap. The
+ * value file has to be several times smaller than without compression, also after the values have been compacted,
+ * and a tree opened without compressing values still reads the deflated ones.
+ */
+public class ValueCompressionTest {
+
+    static final int KEYS = 20000;
+    static final int THRESHOLD = 64;
+
+    public static void main(String args[]) throws IOException {
+        long raw = 0;
+        for (boolean compress : new boolean[]{false, true}) {
+            for (boolean copyOnWrite : new boolean[]{false, true}) {
+                long bytes = test(compress, copyOnWrite);
+                if (!compress) {
+                    raw = bytes;
+                } else if (bytes * 3 > raw) {
+                    throw new IllegalStateException("Compressed values take up " + bytes + " of " + raw + " bytes");
+                }
+            }
+        }
+    }
+
+    static long test(boolean compress, boolean copyOnWrite) throws IOException {
+        String fileName = "value_compression.dat";
+        new File(fileName).delete();
+        for (File file : new File(".").listFiles()) {
+            if (file.getName().startsWith(fileName + "_values")) {
+                file.delete();
+            }
+        }
+        BTreeConfig config = new BTreeConfig().nodeSize(16).copyOnWrite(copyOnWrite)
+                .compressValues(compress ? THRESHOLD : -1);
+        BTree bTree = BTree.makeBTree(fileName, config);
+        TreeMap<Long, byte[]> expected = new TreeMap<>();
+        Random random = new Random(13);
+        List<Tuple<Integer, byte[]>> entries = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            entries.add(new Tuple<>(i * 4, value(random, i * 4)));
+            expected.put(i * 4L, entries.get(i).y);
+        }
+        bTree.bulkLoad(entries.iterator());
+        for (int i = 0; i < KEYS; i++) {
+            int key = random.nextInt(KEYS * 4);
+            byte[] value = value(random, key);
+            bTree.put(key, value);
+            expected.put((long) key, value);
+        }
+        int[] keys = new int[KEYS];
+        byte[][] values = new byte[KEYS][];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = random.nextInt(KEYS * 4);
+            values[i] = value(random, keys[i]);
+            expected.put((long) keys[i], values[i]);
+        }
+        bTree.putAll(keys, values);
+        check(bTree, expected);
+        String ratio = String.format("%.2f", bTree.valueCompressionRatio());
+        bTree.compactValues();
+        check(bTree, expected);
+        bTree.close();
+        long bytes = 0;
+        for (File file : new File(".").listFiles()) {
+            if (file.getName().startsWith(fileName + "_values")) {
+                bytes += file.length();
+            }
+        }
+
+        // Opened without compressing values, so that only the values written before are deflated
+        bTree = BTree.makeBTree(fileName, new BTreeConfig().nodeSize(16).copyOnWrite(copyOnWrite));
+        check(bTree, expected);
+        bTree.close();
+        System.out.println((compress ? "Compressed" : "Uncompressed") + (copyOnWrite ? ", copy on write" : "")
+                + ": " + bytes + " bytes of values after compaction, ratio " + ratio);
+        return bytes;
+    }
+
+    /**
+     * @return a JSON like value for most keys, a short one for some and random bytes for others
+     */
+    private static byte[] value(Random random, int key) {
+        switch (key % 8) {
+            case 0:
+                return ("{\"id\":" + key + "}").getBytes();
+            case 1:
+                byte[] value = new byte[THRESHOLD * 2];
+                random.nextBytes(value);
+                return value;
+            default:
+                StringBuilder json = new StringBuilder("{\"id\":" + key + ",\"tags\":[");
+                for (int i = 0; i < 20; i++) {
+                    json.append(i > 0 ? "," : "").append("{\"name\":\"tag").append(random.nextInt(8))
+                            .append("\",\"weight\":").append(random.nextInt(100)).append("}");
+                }
+                return json.append("]}").toString().getBytes();
+        }
+    }
+
+    private static void check(BTree bTree, TreeMap<Long, byte[]> expected) throws IOException {
+        for (Map.Entry<Long, byte[]> entry : expected.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), bTree.get(entry.getKey()))) {
+                throw new IllegalStateException("Wrong value of key " + entry.getKey());
+            }
+        }
+        Iterator<Map.Entry<Long, byte[]>> expectedRange = expected.entrySet().iterator();
+        for (Tuple<Integer, byte[]> keyValue : bTree.getInRange(0, KEYS * 4)) {
+            Map.Entry<Long, byte[]> entry = expectedRange.next();
+            if (keyValue.x != entry.getKey().intValue() || !Arrays.equals(keyValue.y, entry.getValue())) {
+                throw new IllegalStateException("Expected key " + entry.getKey() + " but got " + keyValue.x);
+            }
+        }
+        expectedRange = expected.entrySet().iterator();
+        try (ScanCursor cursor = bTree.cursor()) {
+            cursor.seek(0, KEYS * 4);
+            while (cursor.next()) {
+                Map.Entry<Long, byte[]> entry = expectedRange.next();
+                ByteBuffer value = cursor.value();
+                byte[] bytes = new byte[value.remaining()];
+                value.get(bytes);
+                if (cursor.key() != entry.getKey() || !Arrays.equals(bytes, entry.getValue())) {
+                    throw new IllegalStateException("Cursor expected key " + entry.getKey() + " but got "
+                            + cursor.key());
+                }
+            }
+        }
+        if (expectedRange.hasNext()) {
+            throw new IllegalStateException("Cursor ended before key " + expectedRange.next().getKey());
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package resilientbtree;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Log of the puts and deletes made to a BTree since its last checkpoint. Every put, batch of puts or delete is
+ * one record: [0, 3] length n of the payload, [4, 7] CRC32 of the payload, then the payload: the number of
+ * entries followed by the key, the value length and the value of every entry. Keys take 4 bytes, or 8 bytes in
+ * logs of trees with 64 bit keys. Byte array keys are written as their length in 4 bytes followed by the key.
+ * A delete is an entry with value
+ * length -1 and no value. A record that was only partly written before a crash fails its checksum and ends
+ * the log.
+ *
+ * Records are appended in the order the puts are applied to the tree. Forcing the log is the expensive part,
+ * so it is shared: a thread that needs its record on disk forces everything appended so far, and threads that
+ * arrive while a force is running wait for the next one instead of forcing on their own (group commit).
+ */
+class WriteAheadLog {
+
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final BTreeConfig.Durability durability;
+    // Number of bytes of a key, see BTreeNode.keySize. 0 for byte array keys
+    private final int keySize;
+    // Serializes appends, which must not wait for a force that is running
+    private final Object appendLock = new Object();
+    // Log sequence numbers are byte counts that keep growing when the file is truncated. Bytes appended so far
+    // and bytes known to be on disk
+    private volatile long written;
+    private long synced;
+    private boolean syncing;
+    // Log sequence number of the first byte in the file
+    private long base;
+    private final Thread syncer;
+    // The syncer waits on this between forces. Interrupting it instead could close the channel during a force
+    private final Object stop = new Object();
+    private boolean closed;
+
+    WriteAheadLog(String fileName, int keySize, BTreeConfig.Durability durability, final long syncIntervalMillis)
+            throws IOException {
+        this.file = new RandomAccessFile(fileName, "rw");
+        this.channel = file.getChannel();
+        this.keySize = keySize;
+        this.durability = durability;
+        channel.truncate(0);
+        if (durability == BTreeConfig.Durability.PERIODIC) {
+            syncer = new Thread(() -> {
+                try {
+                    while (true) {
+                        synchronized (stop) {
+                            if (!closed) {
+                                stop.wait(syncIntervalMillis);
+                            }
+                            if (closed) {
+                                return;
+                            }
+                        }
+                        sync(written);
+                    }
+                } catch (InterruptedException | IOException e) {
+                    // Stop syncing. Close forces the log one last time
+                }
+            }, "btree-log-sync");
+            syncer.setDaemon(true);
+            syncer.start();
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * Appends a record for the puts of keys[i] with values[i]. A null value stands for a delete of the key.
+     * @param keyBytes - the byte array keys of a log with byte array keys, which are logged instead of keys. Null
+     *                 otherwise
+     * @return the log sequence number to pass to commit
+     */
+    long append(long[] keys, byte[][] keyBytes, byte[][] values) throws IOException {
+        int length = 4;
+        for (int i = 0; i < values.length; i++) {
+            length += (keySize == 0 ? 4 + keyBytes[i].length : keySize) + 4
+                    + (values[i] == null ? 0 : values[i].length);
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.position(RECORD_HEADER_SIZE);
+        record.putInt(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            if (keySize == 0) {
+                record.putInt(keyBytes[i].length).put(keyBytes[i]);
+            } else if (keySize == 8) {
+                record.putLong(keys[i]);
+            } else {
+                record.putInt((int) keys[i]);
+            }
+            if (values[i] == null) {
+                record.putInt(-1);
+            } else {
+                record.putInt(values[i].length).put(values[i]);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, length);
+        record.putInt(0, length).putInt(4, (int) crc.getValue());
+        record.rewind();
+        synchronized (appendLock) {
+            long position = written - base;
+            while (record.hasRemaining()) {
+                position += channel.write(record, position);
+            }
+            written += record.capacity();
+            return written;
+        }
+    }
+
+    /**
+     * Returns once the record with the log sequence number lsn is as durable as the durability level asks for.
+     */
+    void commit(long lsn) throws IOException {
+        if (durability == BTreeConfig.Durability.PER_COMMIT) {
+            sync(lsn);
+        }
+    }
+
+    /**
+     * Forces the log up to at least lsn. Only one thread forces at a time. It takes everything that has been
+     * appended when it starts along, so the threads waiting for it are usually done when it returns.
+     */
+    void sync(long lsn) throws IOException {
+        while (true) {
+            long target;
+            synchronized (this) {
+                while (syncing && synced < lsn) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the log to be forced");
+                    }
+                }
+                if (synced >= lsn) {
+                    return;
+                }
+                syncing = true;
+                target = written;
+            }
+            boolean forced = false;
+            try {
+                channel.force(false);
+                forced = true;
+            } finally {
+                synchronized (this) {
+                    syncing = false;
+                    if (forced) {
+                        synced = Math.max(synced, target);
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes in the log since it was last truncated
+     */
+    long size() {
+        return written - base;
+    }
+
+    /**
+     * Drops all records. Only called after a checkpoint made every record in the log durable in the tree files,
+     * while no puts are running.
+     */
+    void truncate() throws IOException {
+        synchronized (appendLock) {
+            channel.truncate(0);
+            channel.force(false);
+            base = written;
+        }
+        synchronized (this) {
+            synced = Math.max(synced, written);
+            notifyAll();
+        }
+    }
+
+    void close() throws IOException {
+        synchronized (stop) {
+            closed = true;
+            stop.notifyAll();
+        }
+        if (syncer != null) {
+            try {
+                syncer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        sync(written);
+        file.close();
+    }
+
+    /**
+     * Something that applies the puts of a log record. Deleted keys come with a null value. Byte array keys come
+     * with their prefixes as keys, see ByteKeys, and keyBytes is null for numeric keys.
+     */
+    interface Replay {
+        void apply(long[] keys, byte[][] keyBytes, byte[][] values) throws IOException;
+    }
+
+    /**
+     * Applies the records in the log file in order, stopping at the first one that is incomplete.
+     * @param keySize - number of bytes of a key in the log, 0 for byte array keys
+     * @return the number of records applied
+     */
+    static int replay(String fileName, int keySize, Replay replay) throws IOException {
+        int records = 0;
+        try (RandomAccessFile log = new RandomAccessFile(fileName, "r")) {
+            long position = 0;
+            while (position + RECORD_HEADER_SIZE <= log.length()) {
+                log.seek(position);
+                int length = log.readInt();
+                int checksum = log.readInt();
+                if (length < 4 || position + RECORD_HEADER_SIZE + length > log.length()) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                log.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                ByteBuffer entries = ByteBuffer.wrap(payload);
+                int count = entries.getInt();
+                long[] keys = new long[count];
+                byte[][] keyBytes = keySize == 0 ? new byte[count][] : null;
+                byte[][] values = new byte[count][];
+                for (int i = 0; i < count; i++) {
+                    if (keySize == 0) {
+                        keyBytes[i] = new byte[entries.getInt()];
+                        entries.get(keyBytes[i]);
+                        keys[i] = ByteKeys.prefix(keyBytes[i]);
+                    } else {
+                        keys[i] = keySize == 8 ? entries.getLong() : entries.getInt();
+                    }
+                    int valueLength = entries.getInt();
+                    if (valueLength >= 0) {
+                        values[i] = new byte[valueLength];
+                        entries.get(values[i]);
+                    }
+                }
+                replay.apply(keys, keyBytes, values);
+                records++;
+                position += RECORD_HEADER_SIZE + length;
+            }
+        } catch (EOFException e) {
+            // A record cut short by a crash ends the log
+        }
+        return records;
+    }
+}